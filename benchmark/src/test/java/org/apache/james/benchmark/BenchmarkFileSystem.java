@@ -0,0 +1,67 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.james.filesystem.api.FileSystem;
+
+/**
+ * {@link FileSystem} which resolves <code>file://</code> URLs against a base
+ * directory, so the stores of the benchmark can be removed once it is done
+ */
+public class BenchmarkFileSystem implements FileSystem {
+
+    private final File basedir;
+
+    public BenchmarkFileSystem(File basedir) {
+        this.basedir = basedir;
+    }
+
+    @Override
+    public InputStream getResource(String url) throws IOException {
+        if (url.startsWith(CLASSPATH_PROTOCOL)) {
+            InputStream in = getClass().getClassLoader().getResourceAsStream(url.substring(CLASSPATH_PROTOCOL.length()));
+            if (in == null) {
+                throw new FileNotFoundException(url);
+            }
+            return in;
+        }
+        return new FileInputStream(getFile(url));
+    }
+
+    @Override
+    public File getFile(String fileURL) throws FileNotFoundException {
+        if (fileURL.startsWith(FILE_PROTOCOL_ABSOLUTE)) {
+            return new File(fileURL.substring(FILE_PROTOCOL_ABSOLUTE.length() - 1));
+        } else if (fileURL.startsWith(FILE_PROTOCOL)) {
+            return new File(basedir, fileURL.substring(FILE_PROTOCOL.length()));
+        }
+        throw new FileNotFoundException("Unsupported url: " + fileURL);
+    }
+
+    @Override
+    public File getBasedir() throws FileNotFoundException {
+        return basedir;
+    }
+}
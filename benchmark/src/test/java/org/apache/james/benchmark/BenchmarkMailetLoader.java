@@ -0,0 +1,126 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.benchmark;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.mail.MessagingException;
+
+import org.apache.james.mailetcontainer.api.MailetLoader;
+import org.apache.james.mailetcontainer.api.MatcherLoader;
+import org.apache.mailet.Mailet;
+import org.apache.mailet.MailetConfig;
+import org.apache.mailet.MailetException;
+import org.apache.mailet.Matcher;
+import org.apache.mailet.MatcherConfig;
+
+/**
+ * Loads the mailets and matchers of the benchmark pipeline like the loaders of
+ * the Spring container do: names without a package are looked up in the
+ * standard packages, and the <code>@Inject</code> members are set from the
+ * registered services before the instance is initialized.
+ */
+public class BenchmarkMailetLoader implements MailetLoader, MatcherLoader {
+
+    private static final String MAILET_PACKAGE = "org.apache.james.transport.mailets";
+    private static final String MATCHER_PACKAGE = "org.apache.james.transport.matchers";
+
+    private final Map<String, Object> services = new HashMap<String, Object>();
+
+    /**
+     * Register a service which is injected by name, or by type if the
+     * injection point is not named
+     */
+    public void put(String name, Object service) {
+        services.put(name, service);
+    }
+
+    @Override
+    public Mailet getMailet(MailetConfig config) throws MessagingException {
+        try {
+            Mailet mailet = (Mailet) create(config.getMailetName(), MAILET_PACKAGE);
+            mailet.init(config);
+            return mailet;
+        } catch (MessagingException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new MailetException("Could not load mailet (" + config.getMailetName() + ")", e);
+        }
+    }
+
+    @Override
+    public Matcher getMatcher(MatcherConfig config) throws MessagingException {
+        try {
+            Matcher matcher = (Matcher) create(config.getMatcherName(), MATCHER_PACKAGE);
+            matcher.init(config);
+            return matcher;
+        } catch (MessagingException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new MailetException("Could not load matcher (" + config.getMatcherName() + ")", e);
+        }
+    }
+
+    private Object create(String name, String standardPackage) throws Exception {
+        String className = name.indexOf('.') < 1 ? standardPackage + "." + name : name;
+        Object instance = Thread.currentThread().getContextClassLoader().loadClass(className).newInstance();
+        injectMembers(instance);
+        return instance;
+    }
+
+    private void injectMembers(Object instance) throws Exception {
+        for (Class<?> c = instance.getClass(); c != null; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (field.isAnnotationPresent(Inject.class)) {
+                    field.setAccessible(true);
+                    field.set(instance, lookup(field.getAnnotation(Named.class), field.getType(), field.toString()));
+                }
+            }
+        }
+        for (Method method : instance.getClass().getMethods()) {
+            if (method.isAnnotationPresent(Inject.class) && method.getParameterTypes().length == 1) {
+                Named named = null;
+                for (Annotation annotation : method.getParameterAnnotations()[0]) {
+                    if (annotation instanceof Named) {
+                        named = (Named) annotation;
+                    }
+                }
+                method.invoke(instance, lookup(named, method.getParameterTypes()[0], method.toString()));
+            }
+        }
+    }
+
+    private Object lookup(Named named, Class<?> type, String member) {
+        if (named != null && services.containsKey(named.value())) {
+            return services.get(named.value());
+        }
+        for (Object service : services.values()) {
+            if (type.isInstance(service)) {
+                return service;
+            }
+        }
+        throw new IllegalStateException("No service to inject into " + member);
+    }
+}
@@ -0,0 +1,566 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.ActiveMQPrefetchPolicy;
+import org.apache.activemq.broker.BrokerPlugin;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.region.policy.PolicyEntry;
+import org.apache.activemq.broker.region.policy.PolicyMap;
+import org.apache.activemq.plugin.StatisticsBrokerPlugin;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.commons.configuration.DefaultConfigurationBuilder;
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.james.domainlist.xml.XMLDomainList;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.acl.SimpleGroupMembershipResolver;
+import org.apache.james.mailbox.acl.UnionMailboxACLResolver;
+import org.apache.james.mailbox.inmemory.InMemoryId;
+import org.apache.james.mailbox.inmemory.InMemoryMailboxSessionMapperFactory;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.store.Authenticator;
+import org.apache.james.mailbox.store.StoreMailboxManager;
+import org.apache.james.mailetcontainer.api.MailProcessor;
+import org.apache.james.mailetcontainer.impl.JamesMailSpooler;
+import org.apache.james.mailetcontainer.impl.JamesMailetContext;
+import org.apache.james.mailetcontainer.impl.camel.CamelCompositeProcessor;
+import org.apache.james.protocols.lib.mock.MockProtocolHandlerLoader;
+import org.apache.james.queue.activemq.ActiveMQMailQueueFactory;
+import org.apache.james.queue.activemq.FileSystemBlobTransferPolicy;
+import org.apache.james.queue.api.MailQueueFactory;
+import org.apache.james.queue.file.FileMailQueueFactory;
+import org.apache.james.queue.library.AbstractMailQueueFactory;
+import org.apache.james.rrt.file.XMLRecipientRewriteTable;
+import org.apache.james.smtpserver.netty.SMTPServer;
+import org.apache.james.user.api.UsersRepositoryException;
+import org.apache.james.user.lib.mock.MockUsersRepository;
+import org.apache.james.util.concurrent.TaskStatistics;
+import org.apache.mailet.Mail;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jms.connection.CachingConnectionFactory;
+
+/**
+ * Measures the ingestion of mail from the SMTP client to the mailbox through
+ * the components of the server: the {@link SMTPLoadClient} sends messages to an
+ * {@link SMTPServer}, which spools them to the mail queue. The
+ * {@link JamesMailSpooler} dequeues them into the mailet pipeline of a
+ * {@link CamelCompositeProcessor}, whose <code>LocalDelivery</code> mailet
+ * stores them in an in-memory mailbox. Only the users repository is a mock.
+ * 
+ * The queue is either the {@link FileMailQueueFactory} or the
+ * {@link ActiveMQMailQueueFactory} on an embedded broker, which is reached
+ * over the in-VM transport like in the server. The components are configured
+ * by the sections of <code>benchmark.xml</code>.
+ * 
+ * The benchmark prints the messages per second, the percentiles of the SMTP
+ * transaction and of the end-to-end latency, the bytes allocated per message
+ * and the time spent in garbage collection. After every run the messages in
+ * the mailboxes are counted, so mail which got lost in the pipeline fails the
+ * benchmark. Everything runs on the loopback interface, so no network is
+ * needed.
+ * 
+ * Start it with
+ * <code>mvn -pl benchmark test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.apache.james.benchmark.IngestionBenchmark</code>.
+ * It is configured with these system properties:
+ * <ul>
+ * <li><code>benchmark.queue</code>: <code>file</code> (the default) or
+ * <code>activemq</code></li>
+ * <li><code>benchmark.sync</code>: fsync the file queue, default
+ * <code>true</code> like the server</li>
+ * <li><code>benchmark.persistent</code>: use a persistent broker, default
+ * <code>true</code> like the server</li>
+ * <li><code>benchmark.blob</code>: send the messages of the ActiveMQ queue as
+ * blob messages, default <code>true</code> like the server</li>
+ * <li><code>benchmark.config</code>: the configuration file to use instead of
+ * the <code>benchmark.xml</code> of the classpath, for example to measure
+ * another mailet pipeline</li>
+ * <li><code>benchmark.threads</code>: client connections, default 8</li>
+ * <li><code>benchmark.spoolers</code>: spooler threads, default as
+ * configured</li>
+ * <li><code>benchmark.messages</code>: messages to send, default 20000</li>
+ * <li><code>benchmark.size</code>: message size in bytes, default 4096</li>
+ * <li><code>benchmark.recipients</code>: recipients per message, default 1</li>
+ * <li><code>benchmark.minThroughput</code>: if set, the benchmark exits with
+ * status 1 when fewer messages per second are delivered, so it can be used to
+ * catch regressions before a release</li>
+ * </ul>
+ * 
+ * The mailboxes keep every delivered message in memory, so the heap has to be
+ * sized for the count and size of the messages.
+ */
+public class IngestionBenchmark {
+
+    /**
+     * A run fails once no mail was delivered for this long
+     */
+    private static final long STALL_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+
+    private final String queueType = System.getProperty("benchmark.queue", "file");
+    private final boolean sync = Boolean.valueOf(System.getProperty("benchmark.sync", "true"));
+    private final boolean persistent = Boolean.valueOf(System.getProperty("benchmark.persistent", "true"));
+    private final boolean blob = Boolean.valueOf(System.getProperty("benchmark.blob", "true"));
+    private final String configFile = System.getProperty("benchmark.config");
+    private final int threads = Integer.getInteger("benchmark.threads", 8);
+    private final Integer spoolers = Integer.getInteger("benchmark.spoolers");
+    private final int messages = Integer.getInteger("benchmark.messages", 20000);
+    private final int size = Integer.getInteger("benchmark.size", 4096);
+    private final int recipients = Integer.getInteger("benchmark.recipients", 1);
+
+    private final Logger log = LoggerFactory.getLogger(IngestionBenchmark.class);
+    private final TaskStatistics endToEnd = new TaskStatistics();
+    private final MockProtocolHandlerLoader loader = new MockProtocolHandlerLoader();
+    private final BenchmarkMailetLoader mailetLoader = new BenchmarkMailetLoader();
+    private final MockUsersRepository usersRepository = new MockUsersRepository();
+    private final Object deliveryLock = new Object();
+    private long processed;
+    private long errors;
+
+    private File basedir;
+    private int port;
+    private BrokerService broker;
+    private AbstractMailQueueFactory jmsQueueFactory;
+    private StoreMailboxManager<InMemoryId> mailboxManager;
+    private CamelCompositeProcessor processor;
+    private JamesMailSpooler spooler;
+    private SMTPServer smtpServer;
+
+    public static void main(String[] args) throws Exception {
+        IngestionBenchmark benchmark = new IngestionBenchmark();
+        boolean failed = false;
+        double throughput;
+        try {
+            benchmark.start();
+            // warmup
+            benchmark.run(benchmark.messages / 10, false);
+            throughput = benchmark.run(benchmark.messages, true);
+        } finally {
+            benchmark.stop();
+        }
+
+        String minThroughput = System.getProperty("benchmark.minThroughput");
+        if (minThroughput != null && throughput < Double.parseDouble(minThroughput)) {
+            System.out.println(String.format("FAILED: %.1f msgs/s is below the minimum of %s msgs/s", throughput, minThroughput));
+            failed = true;
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * Wire and start the components
+     */
+    public void start() throws Exception {
+        basedir = new File(System.getProperty("java.io.tmpdir"), "james-benchmark-" + System.nanoTime());
+        if (!basedir.mkdirs()) {
+            throw new IOException("Unable to create " + basedir);
+        }
+        HierarchicalConfiguration config = loadConfiguration();
+        BenchmarkFileSystem fileSystem = new BenchmarkFileSystem(basedir);
+        LoopbackDNSService dnsService = new LoopbackDNSService();
+
+        XMLDomainList domainList = new XMLDomainList();
+        domainList.setLog(LoggerFactory.getLogger("domainlist"));
+        domainList.setDNSService(dnsService);
+        domainList.configure(config.configurationAt("domainlist"));
+
+        usersRepository.setLog(LoggerFactory.getLogger("usersrepository"));
+        usersRepository.setDomainList(domainList);
+
+        XMLRecipientRewriteTable recipientRewriteTable = new XMLRecipientRewriteTable();
+        recipientRewriteTable.setLog(LoggerFactory.getLogger("recipientrewritetable"));
+        recipientRewriteTable.setDomainList(domainList);
+        recipientRewriteTable.configure(config.configurationAt("recipientrewritetable"));
+
+        mailboxManager = new StoreMailboxManager<InMemoryId>(new InMemoryMailboxSessionMapperFactory(), new Authenticator() {
+
+            @Override
+            public boolean isAuthentic(String userid, CharSequence passwd) {
+                try {
+                    return usersRepository.test(userid, passwd.toString());
+                } catch (UsersRepositoryException e) {
+                    return false;
+                }
+            }
+        }, new UnionMailboxACLResolver(), new SimpleGroupMembershipResolver());
+        mailboxManager.init();
+        for (int i = 0; i < recipients; i++) {
+            String user = SMTPLoadClient.user(i);
+            usersRepository.addUser(user, "secret");
+            MailboxSession session = mailboxManager.createSystemSession(user, log);
+            mailboxManager.createMailbox(MailboxPath.inbox(session), session);
+            mailboxManager.logout(session, true);
+        }
+
+        MailQueueFactory queueFactory = createQueueFactory(fileSystem);
+
+        register("dnsservice", dnsService);
+        register("domainlist", domainList);
+        register("usersrepository", usersRepository);
+        register("recipientrewritetable", recipientRewriteTable);
+        register("filesystem", fileSystem);
+        register("mailboxmanager", mailboxManager);
+        register("mailqueuefactory", queueFactory);
+
+        HierarchicalConfiguration mailetConfig = config.configurationAt("mailetcontainer");
+        JamesMailetContext mailetContext = new JamesMailetContext();
+        mailetContext.setLog(LoggerFactory.getLogger("mailetcontext"));
+        mailetContext.setDNSService(dnsService);
+        mailetContext.setUsersRepository(usersRepository);
+        mailetContext.setDomainList(domainList);
+        mailetContext.configure(mailetConfig.configurationAt("context"));
+
+        processor = new CamelCompositeProcessor();
+        processor.setLog(LoggerFactory.getLogger("mailetcontainer"));
+        processor.setCamelContext(new DefaultCamelContext());
+        processor.setMailetLoader(mailetLoader);
+        processor.setMatcherLoader(mailetLoader);
+        processor.setMailetContext(mailetContext);
+        processor.configure(mailetConfig.configurationAt("processors"));
+        processor.init();
+        mailetContext.setMailProcessor(processor);
+
+        HierarchicalConfiguration spoolerConfig = mailetConfig.configurationAt("spooler");
+        if (spoolers != null) {
+            spoolerConfig.setProperty("threads", spoolers);
+        }
+        spooler = new JamesMailSpooler();
+        spooler.setLog(LoggerFactory.getLogger("spooler"));
+        spooler.setMailQueueFactory(queueFactory);
+        spooler.setMailProcessor(new RecordingMailProcessor(processor));
+        spooler.configure(spoolerConfig);
+        spooler.init();
+
+        port = freePort();
+        HierarchicalConfiguration smtpConfig = config.configurationAt("smtpserver");
+        smtpConfig.setProperty("bind", "127.0.0.1:" + port);
+        smtpServer = new SMTPServer();
+        smtpServer.setLog(LoggerFactory.getLogger("smtpserver"));
+        smtpServer.setDnsService(dnsService);
+        smtpServer.setFileSystem(fileSystem);
+        smtpServer.setProtocolHandlerLoader(loader);
+        smtpServer.configure(smtpConfig);
+        smtpServer.init();
+    }
+
+    /**
+     * Stop the components and remove their stores
+     */
+    public void stop() {
+        if (smtpServer != null) {
+            smtpServer.destroy();
+        }
+        if (spooler != null) {
+            spooler.dispose();
+        }
+        if (processor != null) {
+            processor.dispose();
+        }
+        loader.dispose();
+        if (jmsQueueFactory != null) {
+            jmsQueueFactory.destroy();
+        }
+        if (broker != null) {
+            try {
+                broker.stop();
+            } catch (Exception e) {
+                log.warn("Unable to stop the broker", e);
+            }
+        }
+        if (basedir != null) {
+            delete(basedir);
+        }
+    }
+
+    /**
+     * Send the given count of messages and wait until all of them went through
+     * the pipeline
+     * 
+     * @return the delivered messages per second
+     */
+    public double run(int count, boolean report) throws Exception {
+        SMTPLoadClient client = new SMTPLoadClient("127.0.0.1", port, threads, size, recipients);
+        Map<Long, Long> allocated = threadAllocatedBytes();
+        long gcCount = gcCount();
+        long gcTime = gcTime();
+        long storedBefore = countStoredMessages();
+        long target;
+        synchronized (deliveryLock) {
+            target = processed + count;
+        }
+
+        long start = System.nanoTime();
+        client.send(count);
+        if (client.getFailureCount() > 0) {
+            throw new IllegalStateException(client.getFailureCount() + " messages were rejected");
+        }
+        awaitProcessed(target);
+        double seconds = (System.nanoTime() - start) / 1000000000d;
+        double throughput = count / seconds;
+
+        long stored = countStoredMessages() - storedBefore;
+        if (stored != (long) count * recipients) {
+            throw new IllegalStateException("Expected " + (long) count * recipients + " messages in the mailboxes but found " + stored);
+        }
+
+        if (report) {
+            long allocatedBytes = client.getAllocatedBytes() + allocatedSince(allocated);
+            TaskStatistics smtp = client.getStatistics();
+            System.out.println(String.format("queue=%s threads=%d spoolers=%d size=%d recipients=%d", describeQueue(), threads, spooler.getThreadCount(), size, recipients));
+            System.out.println(String.format("throughput : %10.1f msgs/s", throughput));
+            System.out.println(String.format("smtp       : avg %8.2f ms, p50 %8.2f ms, p99 %8.2f ms, max %8.2f ms", smtp.getAverageTime(), smtp.getPercentile(0.5), smtp.getPercentile(0.99), smtp.getMaxTime()));
+            System.out.println(String.format("end-to-end : avg %8.2f ms, p50 %8.2f ms, p99 %8.2f ms, max %8.2f ms", endToEnd.getAverageTime(), endToEnd.getPercentile(0.5), endToEnd.getPercentile(0.99), endToEnd.getMaxTime()));
+            System.out.println(String.format("allocation : %10.1f MB/s, %10.1f KB/msg", allocatedBytes / seconds / (1024 * 1024), allocatedBytes / 1024d / count));
+            System.out.println(String.format("gc         : %10d collections, %10d ms paused", gcCount() - gcCount, gcTime() - gcTime));
+            System.out.println(String.format("delivered  : %10d copies", stored));
+        }
+        return throughput;
+    }
+
+    private HierarchicalConfiguration loadConfiguration() throws Exception {
+        InputStream in;
+        if (configFile != null) {
+            in = new FileInputStream(configFile);
+        } else {
+            in = IngestionBenchmark.class.getResourceAsStream("/benchmark.xml");
+        }
+        try {
+            DefaultConfigurationBuilder builder = new DefaultConfigurationBuilder();
+            builder.load(in);
+            return builder;
+        } finally {
+            in.close();
+        }
+    }
+
+    private MailQueueFactory createQueueFactory(BenchmarkFileSystem fileSystem) throws Exception {
+        if ("file".equals(queueType)) {
+            FileMailQueueFactory factory = new FileMailQueueFactory();
+            factory.setLog(LoggerFactory.getLogger("mailqueuefactory"));
+            factory.setFileSystem(fileSystem);
+            factory.setSync(sync);
+            return factory;
+        } else if ("activemq".equals(queueType)) {
+            // configured like the broker and the connection factory of
+            // activemq-queue-context.xml
+            broker = new BrokerService();
+            broker.setBrokerName("james");
+            broker.setPersistent(persistent);
+            broker.setDataDirectoryFile(new File(basedir, "var/store/activemq/brokers"));
+            broker.setUseJmx(false);
+            broker.setUseShutdownHook(false);
+            broker.setSchedulerSupport(false);
+            PolicyEntry entry = new PolicyEntry();
+            entry.setQueue(">");
+            entry.setPrioritizedMessages(true);
+            PolicyMap policyMap = new PolicyMap();
+            policyMap.setPolicyEntries(Arrays.asList(entry));
+            broker.setDestinationPolicy(policyMap);
+            broker.setPlugins(new BrokerPlugin[] { new StatisticsBrokerPlugin() });
+            broker.start();
+
+            ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory("vm://james?create=false");
+            ActiveMQPrefetchPolicy prefetchPolicy = new ActiveMQPrefetchPolicy();
+            prefetchPolicy.setQueuePrefetch(0);
+            prefetchPolicy.setTopicPrefetch(0);
+            connectionFactory.setPrefetchPolicy(prefetchPolicy);
+            FileSystemBlobTransferPolicy blobTransferPolicy = new FileSystemBlobTransferPolicy();
+            blobTransferPolicy.setFileSystem(fileSystem);
+            blobTransferPolicy.setDefaultUploadUrl("file://var/store/activemq/blob-transfer");
+            connectionFactory.setBlobTransferPolicy(blobTransferPolicy);
+
+            CachingConnectionFactory cachingConnectionFactory = new CachingConnectionFactory(connectionFactory);
+            cachingConnectionFactory.setSessionCacheSize(10);
+            cachingConnectionFactory.setCacheConsumers(false);
+            cachingConnectionFactory.setCacheProducers(true);
+
+            ActiveMQMailQueueFactory factory = new ActiveMQMailQueueFactory();
+            factory.setLog(LoggerFactory.getLogger("mailqueuefactory"));
+            factory.setConnectionFactory(cachingConnectionFactory);
+            factory.setUseBlobMessages(blob);
+            factory.setUseJMX(false);
+            factory.init();
+            jmsQueueFactory = factory;
+            return factory;
+        }
+        throw new IllegalArgumentException("Unknown queue " + queueType + ", use file or activemq");
+    }
+
+    private String describeQueue() {
+        if (broker == null) {
+            return sync ? "file (sync)" : "file";
+        }
+        return "activemq" + (persistent ? " (persistent)" : "") + (blob ? " (blob)" : "");
+    }
+
+    private void register(String name, Object service) {
+        loader.put(name, service);
+        mailetLoader.put(name, service);
+    }
+
+    /**
+     * Wait until the pipeline completed the given count of mails since the
+     * start
+     */
+    private void awaitProcessed(long target) throws InterruptedException {
+        synchronized (deliveryLock) {
+            long last = processed;
+            long deadline = System.currentTimeMillis() + STALL_TIMEOUT;
+            while (processed < target) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new IllegalStateException("No mail was delivered for " + STALL_TIMEOUT + " ms, " + (target - processed) + " mails are missing and " + errors + " failed in the pipeline");
+                }
+                deliveryLock.wait(wait);
+                if (processed != last) {
+                    last = processed;
+                    deadline = System.currentTimeMillis() + STALL_TIMEOUT;
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the count of the messages in the inboxes of all recipients
+     */
+    private long countStoredMessages() throws Exception {
+        long count = 0;
+        for (int i = 0; i < recipients; i++) {
+            MailboxSession session = mailboxManager.createSystemSession(SMTPLoadClient.user(i), log);
+            try {
+                count += mailboxManager.getMailbox(MailboxPath.inbox(session), session).getMessageCount(session);
+            } finally {
+                mailboxManager.logout(session, true);
+            }
+        }
+        return count;
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static Map<Long, Long> threadAllocatedBytes() {
+        Map<Long, Long> allocated = new HashMap<Long, Long>();
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            long[] ids = bean.getAllThreadIds();
+            long[] bytes = ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++) {
+                if (bytes[i] > 0) {
+                    allocated.put(ids[i], bytes[i]);
+                }
+            }
+        }
+        return allocated;
+    }
+
+    /**
+     * Return the bytes allocated by the live threads since the given snapshot.
+     * Threads which terminated in between are not counted.
+     */
+    private static long allocatedSince(Map<Long, Long> before) {
+        long sum = 0;
+        for (Map.Entry<Long, Long> entry : threadAllocatedBytes().entrySet()) {
+            Long start = before.get(entry.getKey());
+            sum += entry.getValue() - (start == null ? 0 : start);
+        }
+        return sum;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(bean.getCollectionCount(), 0);
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(bean.getCollectionTime(), 0);
+        }
+        return time;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Hands the mails of the spooler to the pipeline and records the time from
+     * the start of their SMTP transaction until the pipeline completed them
+     */
+    private final class RecordingMailProcessor implements MailProcessor {
+
+        private final MailProcessor next;
+
+        public RecordingMailProcessor(MailProcessor next) {
+            this.next = next;
+        }
+
+        @Override
+        public void service(Mail mail) throws MessagingException {
+            // read before the pipeline may change the message
+            String[] sent = mail.getMessage().getHeader(SMTPLoadClient.SENT_HEADER);
+            try {
+                next.service(mail);
+            } catch (MessagingException e) {
+                synchronized (deliveryLock) {
+                    errors++;
+                }
+                throw e;
+            }
+            if (sent != null && sent.length > 0) {
+                endToEnd.record(System.nanoTime() - Long.parseLong(sent[0].trim()), TimeUnit.NANOSECONDS);
+            }
+            synchronized (deliveryLock) {
+                processed++;
+                deliveryLock.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.benchmark;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.apache.james.dnsservice.api.DNSService;
+
+/**
+ * {@link DNSService} which resolves every name to the loopback address, so the
+ * benchmark never waits for a name server
+ */
+public class LoopbackDNSService implements DNSService {
+
+    @Override
+    public Collection<String> findMXRecords(String hostname) {
+        return Collections.singletonList("localhost");
+    }
+
+    @Override
+    public Collection<String> findTXTRecords(String hostname) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public InetAddress[] getAllByName(String host) throws UnknownHostException {
+        return new InetAddress[] { getByName(host) };
+    }
+
+    @Override
+    public InetAddress getByName(String host) throws UnknownHostException {
+        return InetAddress.getByAddress("localhost", new byte[] { 127, 0, 0, 1 });
+    }
+
+    @Override
+    public String getHostName(InetAddress addr) {
+        return "localhost";
+    }
+
+    @Override
+    public InetAddress getLocalHost() throws UnknownHostException {
+        return getByName("localhost");
+    }
+}
@@ -0,0 +1,236 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.james.util.concurrent.TaskStatistics;
+
+/**
+ * Simple SMTP load generator which sends messages over raw sockets from
+ * several threads, every thread over its own connection.
+ * 
+ * Every message carries a {@link #SENT_HEADER} with the {@link System#nanoTime()}
+ * at which the client started the transaction, so a consumer in the same JVM
+ * can compute the end-to-end latency. The time from MAIL FROM to the reply to
+ * the end of DATA is recorded per message.
+ */
+public class SMTPLoadClient {
+
+    public static final String SENT_HEADER = "X-Benchmark-Sent";
+
+    private final String host;
+    private final int port;
+    private final int threads;
+    private final int recipients;
+    private final String body;
+
+    private final TaskStatistics statistics = new TaskStatistics();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    /**
+     * @param host
+     *            the host of the server
+     * @param port
+     *            the port of the server
+     * @param threads
+     *            the count of concurrent connections
+     * @param messageSize
+     *            the approximate size of every message in bytes
+     * @param recipients
+     *            the count of recipients of every message
+     */
+    public SMTPLoadClient(String host, int port, int threads, int messageSize, int recipients) {
+        this.host = host;
+        this.port = port;
+        this.threads = threads;
+        this.recipients = recipients;
+        this.body = createBody(messageSize);
+    }
+
+    /**
+     * Send the given count of messages, spread over all threads, and wait until
+     * they are accepted or rejected
+     * 
+     * @param messages
+     *            the count of messages to send
+     * @throws InterruptedException
+     */
+    public void send(int messages) throws InterruptedException {
+        final AtomicInteger remaining = new AtomicInteger(messages);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread("SMTPLoadClient-" + i) {
+                public void run() {
+                    long allocated = threadAllocatedBytes();
+                    try {
+                        while (remaining.get() > 0) {
+                            try {
+                                sendOverConnection(remaining);
+                            } catch (IOException e) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        allocatedBytes.addAndGet(threadAllocatedBytes() - allocated);
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+    }
+
+    /**
+     * Return the statistics of the SMTP transactions, from MAIL FROM to the
+     * reply to the end of DATA
+     * 
+     * @return statistics
+     */
+    public TaskStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Return the count of rejected messages and failed connections
+     * 
+     * @return failures
+     */
+    public int getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Return the bytes allocated by the client threads, or 0 if the JVM can
+     * not measure it
+     * 
+     * @return allocatedBytes
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * Return the name of the local user which receives the given recipient of
+     * every message
+     * 
+     * @param recipient
+     *            the index of the recipient
+     * @return user
+     */
+    public static String user(int recipient) {
+        return "user" + recipient;
+    }
+
+    private void sendOverConnection(AtomicInteger remaining) throws IOException {
+        Socket socket = new Socket(host, port);
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            OutputStream out = socket.getOutputStream();
+            expect(in, '2');
+            write(out, "EHLO localhost\r\n");
+            expect(in, '2');
+            while (remaining.getAndDecrement() > 0) {
+                long start = System.nanoTime();
+                write(out, "MAIL FROM:<sender@localhost>\r\n");
+                expect(in, '2');
+                for (int i = 0; i < recipients; i++) {
+                    write(out, "RCPT TO:<" + user(i) + "@localhost>\r\n");
+                    expect(in, '2');
+                }
+                write(out, "DATA\r\n");
+                expect(in, '3');
+                write(out, SENT_HEADER + ": " + start + "\r\n" + body + ".\r\n");
+                if (reply(in).charAt(0) == '2') {
+                    statistics.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                } else {
+                    failures.incrementAndGet();
+                    write(out, "RSET\r\n");
+                    expect(in, '2');
+                }
+            }
+            write(out, "QUIT\r\n");
+            expect(in, '2');
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void write(OutputStream out, String data) throws IOException {
+        out.write(data.getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    /**
+     * Read a reply and abort the connection if its code does not start with
+     * the given digit
+     */
+    private static void expect(BufferedReader in, char digit) throws IOException {
+        String line = reply(in);
+        if (line.charAt(0) != digit) {
+            throw new IOException("Unexpected reply: " + line);
+        }
+    }
+
+    /**
+     * Read a possibly multi-line reply and return its last line
+     */
+    private static String reply(BufferedReader in) throws IOException {
+        String line;
+        do {
+            line = in.readLine();
+            if (line == null || line.length() < 3) {
+                throw new IOException("Invalid or missing reply: " + line);
+            }
+        } while (line.length() > 3 && line.charAt(3) == '-');
+        return line;
+    }
+
+    private static String createBody(int size) {
+        StringBuilder builder = new StringBuilder(size + 128);
+        builder.append("From: sender@localhost\r\n");
+        builder.append("Subject: ingestion benchmark\r\n\r\n");
+        while (builder.length() < size) {
+            builder.append("Lorem ipsum dolor sit amet, consectetur adipisicing elit, sed do eiusmod tempor incididunt.\r\n");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Return the bytes allocated by the current thread, or 0 if the JVM does
+     * not support measuring it
+     */
+    static long threadAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,84 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * {@link OutputStream} which passes all data through and records where the
+ * header block of the written message ends, so the boundary does not need to be
+ * rediscovered by parsing the message later on.
+ * 
+ * The header size includes the empty line which separates the headers from the
+ * body. Bytes are only inspected until this line was seen.
+ */
+public class HeaderBoundaryOutputStream extends FilterOutputStream {
+
+    private long written;
+    private long headerSize = -1;
+    private int lineLength;
+
+    public HeaderBoundaryOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (headerSize == -1) {
+            inspect((byte) b, written);
+        }
+        written++;
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        for (int i = 0; i < len && headerSize == -1; i++) {
+            inspect(b[off + i], written + i);
+        }
+        written += len;
+        out.write(b, off, len);
+    }
+
+    /**
+     * Inspect the byte at the given position of the message
+     */
+    private void inspect(byte b, long position) {
+        if (b == '\n') {
+            if (lineLength == 0) {
+                headerSize = position + 1;
+            }
+            lineLength = 0;
+        } else if (b != '\r') {
+            lineLength++;
+        }
+    }
+
+    /**
+     * Return the size of the header block, including the empty line which
+     * terminates it, or -1 if the end of the headers was not written yet
+     * 
+     * @return headerSize
+     */
+    public long getHeaderSize() {
+        return headerSize;
+    }
+}
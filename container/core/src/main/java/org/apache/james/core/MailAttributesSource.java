@@ -0,0 +1,51 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import java.util.HashMap;
+
+/**
+ * This defines a datasource that supplies the attributes of a
+ * {@link MailImpl}. It allows a repository to read the attributes only when
+ * they are accessed for the first time, instead of when the mail is retrieved.
+ * 
+ * @see MailImpl#setAttributesSource(MailAttributesSource)
+ */
+public abstract class MailAttributesSource {
+
+    /**
+     * Returns a unique String ID that represents the location from where the
+     * attributes are loaded. A repository uses it to detect that the
+     * attributes of a mail it stores were never loaded from its own record, so
+     * they don't have to be written again.
+     * 
+     * @return the String ID
+     */
+    public abstract String getSourceId();
+
+    /**
+     * Load the attributes. Errors are handled by the implementation, as they
+     * can not be reported to the caller of the attribute accessors.
+     * 
+     * @return the attributes, or <code>null</code> if there are none or they
+     *         could not be read
+     */
+    public abstract HashMap<String, Object> loadAttributes();
+
+}
@@ -61,6 +61,10 @@ import java.util.UUID;
  * attributes.</li>
  * </ul>
  * </p>
+ * <p>
+ * A repository can hand over the attributes as a {@link MailAttributesSource},
+ * which is only read when the attributes are accessed for the first time.
+ * </p>
  */
 public class MailImpl implements Disposable, Mail {
 
@@ -109,6 +113,11 @@ public class MailImpl implements Disposable, Mail {
      * Attributes added to this MailImpl instance
      */
     private Map<String, Object> attributes;
+    /**
+     * The source the attributes are still to be loaded from, or null if they
+     * are loaded
+     */
+    private MailAttributesSource attributesSource;
 
     /**
      * A constructor that creates a new, uninitialized MailImpl
@@ -527,7 +536,7 @@ public class MailImpl implements Disposable, Mail {
         out.writeObject(remoteHost);
         out.writeObject(remoteAddr);
         out.writeObject(lastUpdated);
-        out.writeObject(attributes);
+        out.writeObject(attributes());
     }
 
     @Override
@@ -550,7 +559,7 @@ public class MailImpl implements Disposable, Mail {
      * @since 2.2.0
      */
     public Map<String, Object> getAttributesRaw() {
-        return attributes;
+        return attributes();
     }
 
     /**
@@ -568,36 +577,85 @@ public class MailImpl implements Disposable, Mail {
      */
     public void setAttributesRaw(HashMap<String, Object> attr) {
         this.attributes = (attr == null) ? new HashMap<String, Object>() : attr;
+        this.attributesSource = null;
+    }
+
+    /**
+     * <p>
+     * Set the source the attributes are loaded from when they are accessed
+     * for the first time. This replaces the current attributes.
+     * </p>
+     * <p>
+     * <strong>Note</strong>: This method is not exposed in the Mail interface,
+     * it is for internal use by James only.
+     * </p>
+     *
+     * @param source the source of the attributes
+     */
+    public void setAttributesSource(MailAttributesSource source) {
+        this.attributes = new HashMap<String, Object>();
+        this.attributesSource = source;
+    }
+
+    /**
+     * <p>
+     * Return the source the attributes are still to be loaded from. Once the
+     * attributes were accessed, or replaced, this returns <code>null</code>,
+     * as they may have been changed.
+     * </p>
+     * <p>
+     * <strong>Note</strong>: This method is not exposed in the Mail interface,
+     * it is for internal use by James only.
+     * </p>
+     *
+     * @return the source, or <code>null</code> if the attributes are loaded
+     */
+    public MailAttributesSource getAttributesSource() {
+        return attributesSource;
+    }
+
+    /**
+     * Return the attributes, loading them from the source first if needed
+     */
+    private Map<String, Object> attributes() {
+        MailAttributesSource source = attributesSource;
+        if (source != null) {
+            attributesSource = null;
+            HashMap<String, Object> loaded = source.loadAttributes();
+            attributes = (loaded == null) ? new HashMap<String, Object>() : loaded;
+        }
+        return attributes;
     }
 
     @Override
     public Serializable getAttribute(String key) {
-        return (Serializable) attributes.get(key);
+        return (Serializable) attributes().get(key);
     }
 
     @Override
     public Serializable setAttribute(String key, Serializable object) {
-        return (Serializable) attributes.put(key, object);
+        return (Serializable) attributes().put(key, object);
     }
 
     @Override
     public Serializable removeAttribute(String key) {
-        return (Serializable) attributes.remove(key);
+        return (Serializable) attributes().remove(key);
     }
 
     @Override
     public void removeAllAttributes() {
+        attributesSource = null;
         attributes.clear();
     }
 
     @Override
     public Iterator getAttributeNames() {
-        return attributes.keySet().iterator();
+        return attributes().keySet().iterator();
     }
 
     @Override
     public boolean hasAttributes() {
-        return !attributes.isEmpty();
+        return !attributes().isEmpty();
     }
 
     /**
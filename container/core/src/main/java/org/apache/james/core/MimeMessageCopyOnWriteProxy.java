@@ -153,6 +153,21 @@ public class MimeMessageCopyOnWriteProxy extends MimeMessage implements Disposab
         return refCount.getWrapped();
     }
 
+    /**
+     * Return the size of the header block of the wrapped message, if known
+     * 
+     * @return headerSize the size or -1 if unknown
+     * @throws MessagingException
+     * @see MimeMessageWrapper#getHeaderSize()
+     */
+    public synchronized long getHeaderSize() throws MessagingException {
+        MimeMessage wrapped = getWrappedMessage();
+        if (wrapped instanceof MimeMessageWrapper) {
+            return ((MimeMessageWrapper) wrapped).getHeaderSize();
+        }
+        return -1;
+    }
+
     @Override
     public synchronized void dispose() {
         if (refCount != null) {
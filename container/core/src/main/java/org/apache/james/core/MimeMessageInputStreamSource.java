@@ -19,6 +19,7 @@
 
 package org.apache.james.core;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -38,7 +39,8 @@ import org.apache.james.lifecycle.api.Disposable;
 /**
  * Takes an input stream and creates a repeatable input stream source for a
  * MimeMessageWrapper. It does this by completely reading the input stream and
- * saving that to data to an {@link DeferredFileOutputStream} with its threshold set to 100kb
+ * saving that to data to an {@link DeferredFileOutputStream} whose threshold is
+ * granted by the shared {@link MimeMessageSpoolManager}
  */
 public class MimeMessageInputStreamSource extends MimeMessageSource implements Disposable {
 
@@ -47,22 +49,29 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
     /**
      * A temporary file used to hold the message stream
      */
-    private DeferredFileOutputStream out;
+    private MimeMessageSpoolManager.SpoolOutputStream out;
 
     /**
-     * The full path of the temporary file
+     * Records the end of the headers while the message is written to
+     * {@link #out}
      */
-    private String sourceId;
+    private HeaderBoundaryOutputStream headerOut;
+
+    /**
+     * Buffered view of {@link #headerOut} handed out to line based writers
+     */
+    private OutputStream writableOut;
 
     /**
-     * 100kb threshold for the stream.
+     * The full path of the temporary file
      */
-    private final static int THRESHOLD = 1024 * 100;
+    private String sourceId;
 
     /**
-     * Temporary directory to use
+     * Size of the buffer used by the writable stream. Once the data is spilled
+     * to disk this avoids one write call per received line.
      */
-    private final static File TMPDIR = new File(System.getProperty("java.io.tmpdir"));
+    private final static int WRITE_BUFFER_SIZE = 1024 * 8;
 
     /**
      * Construct a new MimeMessageInputStreamSource from an
@@ -77,20 +86,26 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
         // We want to immediately read this into a temporary file
         // Create a temp file and channel the input stream into it
         try {
-            out = new DeferredFileOutputStream(THRESHOLD, key, ".m64", TMPDIR);
-            IOUtils.copy(in, out);
+            out = MimeMessageSpoolManager.getDefault().createOutputStream(key);
+            headerOut = new HeaderBoundaryOutputStream(out);
+            IOUtils.copy(in, headerOut);
             sourceId = key;
         } catch (IOException ioe) {
+            if (out != null) {
+                IOUtils.closeQuietly(out);
+                out.release();
+                File file = out.getFile();
+                if (file != null) {
+                    FileUtils.deleteQuietly(file);
+                }
+            }
             throw new MessagingException("Unable to retrieve the data: " + ioe.getMessage(), ioe);
         } finally {
             try {
                 if (out != null) {
+                    // the spill file, if any, is kept until dispose() as it
+                    // holds the message content
                     out.close();
-
-                    File file = out.getFile();
-                    if (file != null) {
-                        FileUtils.forceDelete(file);
-                    }
                 }
             } catch (IOException ioe) {
                 // Ignored - logging unavailable to log this non-fatal error.
@@ -109,7 +124,8 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
 
     public MimeMessageInputStreamSource(String key) {
         super();
-        out = new DeferredFileOutputStream(THRESHOLD, key, ".m64", TMPDIR);
+        out = MimeMessageSpoolManager.getDefault().createOutputStream(key);
+        headerOut = new HeaderBoundaryOutputStream(out);
         sourceId = key;
     }
 
@@ -128,6 +144,7 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
      * @return a <code>BufferedInputStream</code> containing the data
      */
     public synchronized InputStream getInputStream() throws IOException {
+        flushWritableStream();
         InputStream in;
         if (out.isInMemory()) {
             in = new SharedByteArrayInputStream(out.getData());
@@ -147,11 +164,39 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
      */
     @Override
     public long getMessageSize() throws IOException {
+        flushWritableStream();
         return out.getByteCount();
     }
 
-    public OutputStream getWritableOutputStream() {
-        return out;
+    /**
+     * Return the size of the headers as seen while the message was written
+     * 
+     * @see org.apache.james.core.MimeMessageSource#getHeaderSize()
+     */
+    @Override
+    public long getHeaderSize() throws IOException {
+        flushWritableStream();
+        return headerOut.getHeaderSize();
+    }
+
+    /**
+     * Return the stream to write the message content to. The same buffered
+     * stream is returned on every call, so callers are expected to flush or
+     * close it once done.
+     *
+     * @return the stream to write the message to
+     */
+    public synchronized OutputStream getWritableOutputStream() {
+        if (writableOut == null) {
+            writableOut = new BufferedOutputStream(headerOut, WRITE_BUFFER_SIZE);
+        }
+        return writableOut;
+    }
+
+    private synchronized void flushWritableStream() throws IOException {
+        if (writableOut != null) {
+            writableOut.flush();
+        }
     }
 
     @Override
@@ -161,8 +206,14 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
             IOUtils.closeQuietly(stream);
         }
 
+        if (writableOut != null) {
+            IOUtils.closeQuietly(writableOut);
+            writableOut = null;
+        }
+
         if (out != null) {
             IOUtils.closeQuietly(out);
+            out.release();
             File file = out.getFile();
             if (file != null) {
                 FileUtils.deleteQuietly(file);
@@ -81,4 +81,18 @@ public abstract class MimeMessageSource {
         return size;
     }
 
+    /**
+     * Return the size of the header block of the message, including the empty
+     * line which separates it from the body. Sources which recorded the
+     * boundary when the data was written should override this, so the headers
+     * can be read or skipped without parsing them.
+     * 
+     * @return the size of the headers or -1 if it is not known
+     * @throws IOException
+     *             if an error is encountered while computing the header size
+     */
+    public long getHeaderSize() throws IOException {
+        return -1;
+    }
+
 }
@@ -0,0 +1,333 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.output.DeferredFileOutputStream;
+
+/**
+ * Shared accounting of the memory used by {@link MimeMessageInputStreamSource}
+ * instances.
+ * 
+ * Every spooled message reserves its in-memory threshold from a global budget
+ * before any byte is written. While less than half of the budget is in use each
+ * message gets the full threshold; after that the threshold shrinks linearly
+ * down to the minimal threshold, and once the budget is exhausted new messages
+ * are written straight to the spill directory. The reservation is given back
+ * when the message spills to disk, shrunk to the real size when the stream is
+ * closed, and released when the source is disposed.
+ * 
+ * Sources which are never disposed, like copies which are simply dropped, give
+ * their reservation back once they are garbage collected. Their spill file, if
+ * any, is deleted at the same time.
+ * 
+ * A single instance is shared by default, see {@link #getDefault()}.
+ */
+public class MimeMessageSpoolManager implements MimeMessageSpoolManagerMBean {
+
+    /**
+     * 64mb of messages are kept in memory by default
+     */
+    public final static long DEFAULT_MEMORY_BUDGET = 1024L * 1024 * 64;
+
+    /**
+     * 100kb threshold per message, as long as there is no memory pressure
+     */
+    public final static int DEFAULT_MAX_THRESHOLD = 1024 * 100;
+
+    /**
+     * 4kb threshold per message under memory pressure
+     */
+    public final static int DEFAULT_MIN_THRESHOLD = 1024 * 4;
+
+    private final static String SUFFIX = ".m64";
+
+    private static volatile MimeMessageSpoolManager defaultManager = new MimeMessageSpoolManager();
+
+    private volatile long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private volatile int maxThreshold = DEFAULT_MAX_THRESHOLD;
+    private volatile int minThreshold = DEFAULT_MIN_THRESHOLD;
+    private volatile File spillDirectory = new File(System.getProperty("java.io.tmpdir"));
+
+    private final AtomicLong memoryUsage = new AtomicLong();
+    private final AtomicLong peakMemoryUsage = new AtomicLong();
+    private final AtomicLong spooledMessages = new AtomicLong();
+    private final AtomicLong spills = new AtomicLong();
+
+    /**
+     * Reservations of the streams which are not released yet. The map keeps
+     * the phantom references reachable until their stream is collected.
+     */
+    private final Map<Reservation, Boolean> reservations = new ConcurrentHashMap<Reservation, Boolean>();
+    private final ReferenceQueue<SpoolOutputStream> collected = new ReferenceQueue<SpoolOutputStream>();
+
+    /**
+     * Return the manager shared by all {@link MimeMessageInputStreamSource}
+     * instances
+     * 
+     * @return manager
+     */
+    public static MimeMessageSpoolManager getDefault() {
+        return defaultManager;
+    }
+
+    /**
+     * Replace the shared manager. Sources created before keep using the
+     * previous one.
+     * 
+     * @param manager
+     */
+    public static void setDefault(MimeMessageSpoolManager manager) {
+        if (manager == null) {
+            throw new IllegalArgumentException("Manager must not be null");
+        }
+        defaultManager = manager;
+    }
+
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("Memory budget must not be negative");
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    public void setMaxThreshold(int maxThreshold) {
+        if (maxThreshold < 0) {
+            throw new IllegalArgumentException("Threshold must not be negative");
+        }
+        this.maxThreshold = maxThreshold;
+    }
+
+    public void setMinThreshold(int minThreshold) {
+        if (minThreshold < 0) {
+            throw new IllegalArgumentException("Threshold must not be negative");
+        }
+        this.minThreshold = minThreshold;
+    }
+
+    /**
+     * Set the directory to which messages over their threshold are written.
+     * The directory is created if it does not exist yet.
+     * 
+     * @param spillDirectory
+     * @throws IOException if the directory can not be created
+     */
+    public void setSpillDirectory(String spillDirectory) throws IOException {
+        File dir = new File(spillDirectory);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create spill directory " + dir.getAbsolutePath());
+        }
+        this.spillDirectory = dir;
+    }
+
+    /**
+     * Create a new stream for spooling a message. The stream reserves its
+     * threshold from the budget until it is released by calling
+     * {@link SpoolOutputStream#release()}.
+     * 
+     * @param prefix the prefix for the name of the spill file
+     * @return stream
+     */
+    SpoolOutputStream createOutputStream(String prefix) {
+        releaseCollected();
+        spooledMessages.incrementAndGet();
+        return new SpoolOutputStream(this, reserve(), prefix, spillDirectory);
+    }
+
+    /**
+     * Give back the reservations of the streams which were garbage collected
+     * without being released
+     */
+    void releaseCollected() {
+        Reference<? extends SpoolOutputStream> ref;
+        while ((ref = collected.poll()) != null) {
+            Reservation reservation = (Reservation) ref;
+            reservation.release();
+            File file = reservation.getSpillFile();
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Reserve the in-memory threshold for a new message
+     * 
+     * @return threshold the reserved amount of bytes
+     */
+    private int reserve() {
+        while (true) {
+            long used = memoryUsage.get();
+            int threshold = computeThreshold(used);
+            if (threshold == 0) {
+                return 0;
+            }
+            if (memoryUsage.compareAndSet(used, used + threshold)) {
+                updatePeak(used + threshold);
+                return threshold;
+            }
+        }
+    }
+
+    private int computeThreshold(long used) {
+        long budget = memoryBudget;
+        long free = budget - used;
+        if (free <= 0) {
+            return 0;
+        }
+        long threshold = maxThreshold;
+        long half = budget / 2;
+        if (free < half) {
+            threshold = Math.max(minThreshold, threshold * free / half);
+        }
+        return (int) Math.min(threshold, free);
+    }
+
+    private void updatePeak(long usage) {
+        long peak = peakMemoryUsage.get();
+        while (usage > peak && !peakMemoryUsage.compareAndSet(peak, usage)) {
+            peak = peakMemoryUsage.get();
+        }
+    }
+
+    private void release(long bytes) {
+        if (bytes > 0) {
+            memoryUsage.addAndGet(-bytes);
+        }
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public long getMemoryUsage() {
+        releaseCollected();
+        return memoryUsage.get();
+    }
+
+    public long getPeakMemoryUsage() {
+        return peakMemoryUsage.get();
+    }
+
+    public int getCurrentThreshold() {
+        releaseCollected();
+        return computeThreshold(memoryUsage.get());
+    }
+
+    public long getSpooledMessageCount() {
+        return spooledMessages.get();
+    }
+
+    public long getSpillCount() {
+        return spills.get();
+    }
+
+    public String getSpillDirectory() {
+        return spillDirectory.getAbsolutePath();
+    }
+
+    /**
+     * The memory reserved by a {@link SpoolOutputStream}. It is kept apart
+     * from the stream so it can still be released once the stream was
+     * garbage collected.
+     */
+    private final static class Reservation extends PhantomReference<SpoolOutputStream> {
+
+        private final MimeMessageSpoolManager manager;
+        private long reserved;
+        private File spillFile;
+
+        private Reservation(MimeMessageSpoolManager manager, SpoolOutputStream stream, long reserved) {
+            super(stream, manager.collected);
+            this.manager = manager;
+            this.reserved = reserved;
+            manager.reservations.put(this, Boolean.TRUE);
+        }
+
+        private synchronized void shrink(long size) {
+            if (size < reserved) {
+                manager.release(reserved - size);
+                reserved = size;
+            }
+        }
+
+        private synchronized void spilled(File file) {
+            manager.release(reserved);
+            reserved = 0;
+            spillFile = file;
+        }
+
+        private synchronized File getSpillFile() {
+            return spillFile;
+        }
+
+        private synchronized void release() {
+            manager.release(reserved);
+            reserved = 0;
+            manager.reservations.remove(this);
+        }
+    }
+
+    /**
+     * {@link DeferredFileOutputStream} which accounts its in-memory data
+     * against the budget of the {@link MimeMessageSpoolManager}
+     */
+    static class SpoolOutputStream extends DeferredFileOutputStream {
+
+        private final Reservation reservation;
+
+        private SpoolOutputStream(MimeMessageSpoolManager manager, int threshold, String prefix, File dir) {
+            super(threshold, prefix, SUFFIX, dir);
+            this.reservation = new Reservation(manager, this, threshold);
+        }
+
+        @Override
+        protected void thresholdReached() throws IOException {
+            super.thresholdReached();
+            reservation.manager.spills.incrementAndGet();
+            reservation.spilled(getFile());
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (isInMemory()) {
+                reservation.shrink(getByteCount());
+            }
+        }
+
+        /**
+         * Give the reserved memory back to the budget. The stream is no
+         * longer tracked afterwards, so its spill file must be deleted by the
+         * caller.
+         */
+        void release() {
+            reservation.release();
+            reservation.clear();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+/**
+ * Management interface of the {@link MimeMessageSpoolManager}
+ */
+public interface MimeMessageSpoolManagerMBean {
+
+    /**
+     * Return the total amount of bytes which may be held in memory by all
+     * spooled messages
+     * 
+     * @return budget
+     */
+    long getMemoryBudget();
+
+    /**
+     * Return the amount of bytes currently reserved in memory by spooled
+     * messages
+     * 
+     * @return usage
+     */
+    long getMemoryUsage();
+
+    /**
+     * Return the highest amount of bytes ever reserved in memory
+     * 
+     * @return peak
+     */
+    long getPeakMemoryUsage();
+
+    /**
+     * Return the in-memory threshold a message spooled now would get
+     * 
+     * @return threshold
+     */
+    int getCurrentThreshold();
+
+    /**
+     * Return the count of messages which were spooled so far
+     * 
+     * @return messages
+     */
+    long getSpooledMessageCount();
+
+    /**
+     * Return the count of messages which were spilled to disk so far
+     * 
+     * @return spills
+     */
+    long getSpillCount();
+
+    /**
+     * Return the directory spilled messages are written to
+     * 
+     * @return directory
+     */
+    String getSpillDirectory();
+}
@@ -38,6 +38,7 @@ import javax.mail.internet.MimeMessage;
 import javax.mail.util.SharedByteArrayInputStream;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.james.lifecycle.api.Disposable;
 import org.apache.james.lifecycle.api.LifecycleUtil;
 
@@ -194,6 +195,11 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
         } else if (source != null) {
             try {
                 InputStream in = source.getInputStream();
+                long headerSize = source.getHeaderSize();
+                if (headerSize > 0) {
+                    // only read the header block, the body is never touched
+                    in = new BoundedInputStream(in, headerSize);
+                }
                 try {
                     headers = createInternetHeaders(in);
 
@@ -263,6 +269,25 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
         return headersModified;
     }
 
+    /**
+     * Return the size of the header block of the unmodified source, as it is
+     * returned by {@link #getMessageInputStream()}.
+     * 
+     * @return headerSize the size or -1 if the size is unknown or the message
+     *         was modified
+     * @throws MessagingException
+     */
+    public synchronized long getHeaderSize() throws MessagingException {
+        if (source == null || isModified()) {
+            return -1;
+        }
+        try {
+            return source.getHeaderSize();
+        } catch (IOException e) {
+            throw new MessagingException("Unable to get header size", e);
+        }
+    }
+
     /**
      * Rewritten for optimization purposes
      */
@@ -301,8 +326,25 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
             // First handle the headers
             InputStream in = source.getInputStream();
             try {
+                long headerSize = source.getHeaderSize();
+                if (headerSize > 0 && !isHeaderModified() && (ignoreList == null || ignoreList.length == 0)) {
+                    // The header boundary is known, so just copy the raw bytes
+                    // without parsing them. Unlike the parsed headers below,
+                    // which are always written as CRLF lines, the line endings
+                    // are copied as received.
+                    IOUtils.copyLarge(in, headerOs, 0, headerSize);
+                    IOUtils.copy(in, bodyOs);
+                    return;
+                }
+
                 InternetHeaders myHeaders;
-                MailHeaders parsedHeaders = new MailHeaders(in);
+                MailHeaders parsedHeaders = null;
+                if (headerSize > 0 && isHeaderModified()) {
+                    // the in memory headers are used, so only skip the source ones
+                    IOUtils.skipFully(in, headerSize);
+                } else {
+                    parsedHeaders = new MailHeaders(in);
+                }
 
                 // check if we should use the parsed headers or not
                 if (!isHeaderModified()) {
@@ -349,6 +391,10 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
         if (source != null) {
             try {
                 long fullSize = source.getMessageSize();
+                long headerSize = source.getHeaderSize();
+                if (headerSize > 0) {
+                    return (int) (fullSize - headerSize);
+                }
                 if (headers == null) {
                     loadHeaders();
                 }
@@ -635,7 +681,7 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
             try {
                 is = source.getInputStream();
                 // skip the headers.
-                new MailHeaders(is);
+                skipHeaders(is);
                 return is;
             } catch (IOException e) {
                 throw new MessagingException("Unable to read the stream: " + e.getMessage(), e);
@@ -645,6 +691,24 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
         }
     }
 
+    /**
+     * Skip the headers of the given source stream. If the source knows the size
+     * of its headers they are skipped without being parsed.
+     * 
+     * @param in
+     *            the stream of the source, positioned at the start
+     * @throws IOException
+     * @throws MessagingException
+     */
+    private void skipHeaders(InputStream in) throws IOException, MessagingException {
+        long headerSize = source.getHeaderSize();
+        if (headerSize > 0) {
+            IOUtils.skipFully(in, headerSize);
+        } else {
+            new MailHeaders(in);
+        }
+    }
+
     /**
      * Return an {@link InputStream} which holds the full content of the
      * message. This method tries to optimize this call as far as possible. This
@@ -675,7 +739,7 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
                     
                     // skip over headers from original stream we want to use the
                     // in memory ones
-                    new MailHeaders(in);
+                    skipHeaders(in);
 
                     // now construct the new stream using the in memory headers
                     // and the body from the original source
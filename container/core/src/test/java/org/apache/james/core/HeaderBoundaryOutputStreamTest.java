@@ -0,0 +1,79 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+public class HeaderBoundaryOutputStreamTest {
+
+    private long headerSize(String message, int chunkSize) throws Exception {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        HeaderBoundaryOutputStream out = new HeaderBoundaryOutputStream(target);
+        byte[] bytes = message.getBytes("US-ASCII");
+        for (int i = 0; i < bytes.length; i += chunkSize) {
+            out.write(bytes, i, Math.min(chunkSize, bytes.length - i));
+        }
+        out.close();
+        assertEquals(message, target.toString("US-ASCII"));
+        return out.getHeaderSize();
+    }
+
+    @Test
+    public void testHeaderSizeIncludesEmptyLine() throws Exception {
+        String headers = "Subject: test\r\nFrom: a@b.c\r\n\r\n";
+        assertEquals(headers.length(), headerSize(headers + "body\r\n\r\nmore\r\n", 1024));
+    }
+
+    @Test
+    public void testHeaderSizeWhenWrittenInSmallChunks() throws Exception {
+        String headers = "Subject: test\r\nFrom: a@b.c\r\n\r\n";
+        assertEquals(headers.length(), headerSize(headers + "body\r\n", 1));
+        assertEquals(headers.length(), headerSize(headers + "body\r\n", 3));
+    }
+
+    @Test
+    public void testBareLineFeeds() throws Exception {
+        String headers = "Subject: test\nFrom: a@b.c\n\n";
+        assertEquals(headers.length(), headerSize(headers + "body\n", 7));
+    }
+
+    @Test
+    public void testMessageWithoutHeaders() throws Exception {
+        assertEquals(2, headerSize("\r\nbody\r\n", 1024));
+    }
+
+    @Test
+    public void testMessageWithoutBody() throws Exception {
+        assertEquals(-1, headerSize("Subject: test\r\n", 1024));
+    }
+
+    @Test
+    public void testSingleByteWrites() throws Exception {
+        HeaderBoundaryOutputStream out = new HeaderBoundaryOutputStream(new ByteArrayOutputStream());
+        byte[] bytes = "A: b\r\n\r\nbody".getBytes("US-ASCII");
+        for (byte b : bytes) {
+            out.write(b);
+        }
+        assertEquals(8, out.getHeaderSize());
+    }
+}
@@ -25,6 +25,7 @@ import org.apache.mailet.Mail;
 
 import javax.mail.MessagingException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import static org.junit.Assert.*;
 import org.junit.Test;
 
@@ -102,4 +103,32 @@ public class MailImplTest extends MailTestAllImplementations {
         helperTestInitialState(duplicate);
         helperTestMessageSize(duplicate, 0);
     }
+
+    @Test
+    public void testAttributesAreLoadedOnFirstAccess() throws MessagingException {
+        final int[] loads = new int[1];
+        MailImpl mail = new MailImpl();
+        mail.setAttributesSource(new MailAttributesSource() {
+
+            @Override
+            public String getSourceId() {
+                return "repository/key";
+            }
+
+            @Override
+            public HashMap<String, Object> loadAttributes() {
+                loads[0]++;
+                HashMap<String, Object> attributes = new HashMap<String, Object>();
+                attributes.put("name", "value");
+                return attributes;
+            }
+        });
+        assertEquals("not loaded before access", 0, loads[0]);
+        assertNotNull("source pending", mail.getAttributesSource());
+
+        assertEquals("loaded attribute", "value", mail.getAttribute("name"));
+        assertTrue("has attributes", mail.hasAttributes());
+        assertEquals("loaded once", 1, loads[0]);
+        assertNull("no source once loaded", mail.getAttributesSource());
+    }
 }
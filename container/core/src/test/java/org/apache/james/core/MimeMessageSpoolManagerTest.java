@@ -0,0 +1,130 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MimeMessageSpoolManagerTest {
+
+    private MimeMessageSpoolManager previous;
+    private MimeMessageSpoolManager manager;
+
+    @Before
+    public void setUp() throws Exception {
+        previous = MimeMessageSpoolManager.getDefault();
+        manager = new MimeMessageSpoolManager();
+        manager.setMemoryBudget(1000);
+        manager.setMaxThreshold(200);
+        manager.setMinThreshold(50);
+        MimeMessageSpoolManager.setDefault(manager);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        MimeMessageSpoolManager.setDefault(previous);
+    }
+
+    @Test
+    public void testThresholdIsReservedAndReleased() throws Exception {
+        MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("test");
+        assertEquals(200, manager.getMemoryUsage());
+
+        source.dispose();
+        assertEquals(0, manager.getMemoryUsage());
+        assertEquals(1, manager.getSpooledMessageCount());
+    }
+
+    @Test
+    public void testReservationShrinksToMessageSizeOnClose() throws Exception {
+        MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("test");
+        OutputStream out = source.getWritableOutputStream();
+        out.write(new byte[30]);
+        out.close();
+
+        assertEquals(30, manager.getMemoryUsage());
+        assertEquals(30, source.getMessageSize());
+        source.dispose();
+        assertEquals(0, manager.getMemoryUsage());
+    }
+
+    @Test
+    public void testThresholdShrinksUnderPressure() throws Exception {
+        MimeMessageInputStreamSource[] sources = new MimeMessageInputStreamSource[3];
+        for (int i = 0; i < sources.length; i++) {
+            sources[i] = new MimeMessageInputStreamSource("test");
+        }
+        // 600 of 1000 bytes used: the threshold scales down with the free memory
+        assertEquals(160, manager.getCurrentThreshold());
+
+        for (MimeMessageInputStreamSource source : sources) {
+            source.dispose();
+        }
+        assertEquals(200, manager.getCurrentThreshold());
+    }
+
+    @Test
+    public void testMessagesAreSpilledOnceBudgetIsExhausted() throws Exception {
+        manager.setMemoryBudget(0);
+        byte[] content = "Subject: test\r\n\r\nbody\r\n".getBytes();
+        MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("test", new ByteArrayInputStream(content));
+        try {
+            assertEquals(0, manager.getMemoryUsage());
+            assertEquals(1, manager.getSpillCount());
+            assertEquals(content.length, source.getMessageSize());
+            assertTrue(IOUtils.contentEquals(new ByteArrayInputStream(content), source.getInputStream()));
+        } finally {
+            source.dispose();
+        }
+    }
+
+    @Test
+    public void testSpillReleasesReservation() throws Exception {
+        MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("test", new ByteArrayInputStream(new byte[500]));
+        try {
+            assertEquals(0, manager.getMemoryUsage());
+            assertEquals(1, manager.getSpillCount());
+            assertEquals(200, manager.getPeakMemoryUsage());
+            assertEquals(500, source.getMessageSize());
+        } finally {
+            source.dispose();
+        }
+    }
+
+    @Test
+    public void testCollectedSourceReleasesReservation() throws Exception {
+        MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("test");
+        assertEquals(200, manager.getMemoryUsage());
+
+        source = null;
+        for (int i = 0; i < 50 && manager.getMemoryUsage() > 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(0, manager.getMemoryUsage());
+    }
+}
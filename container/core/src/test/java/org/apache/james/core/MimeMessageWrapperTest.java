@@ -327,4 +327,44 @@ public class MimeMessageWrapperTest extends MimeMessageFromStreamTest {
         mw.saveChanges();
         assertEquals(body.length(), mw.getSize());
     }
+
+    @Test
+    public void testHeaderSizeIsRecordedBySource() throws MessagingException {
+        assertEquals((content + sep).length(), mw.getHeaderSize());
+    }
+
+    @Test
+    public void testSizeDoesNotLoadHeadersWhenHeaderSizeIsKnown() throws MessagingException {
+        mw.setHeadersLoadable(false);
+        assertEquals(body.length(), mw.getSize());
+    }
+
+    @Test
+    public void testWriteToUnmodifiedDoesNotParseHeaders() throws Exception {
+        mw.setHeadersLoadable(false);
+        mw.setMessageLoadable(false);
+        ByteArrayOutputStream headerOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream bodyOut = new ByteArrayOutputStream();
+        mw.writeTo(headerOut, bodyOut);
+        assertEquals(content + sep, headerOut.toString());
+        assertEquals(body, bodyOut.toString());
+    }
+
+    @Test
+    public void testWriteToWithoutIgnoreListThroughMimeMessageUtil() throws Exception {
+        mw.setHeadersLoadable(false);
+        mw.setMessageLoadable(false);
+        ByteArrayOutputStream headerOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream bodyOut = new ByteArrayOutputStream();
+        // passes a null ignore list
+        MimeMessageUtil.writeTo(mw, headerOut, bodyOut);
+        assertEquals(content + sep, headerOut.toString());
+        assertEquals(body, bodyOut.toString());
+    }
+
+    @Test
+    public void testHeaderSizeUnknownWhenModified() throws MessagingException {
+        mw.addHeader("whatever", "test");
+        assertEquals(-1, mw.getHeaderSize());
+    }
 }
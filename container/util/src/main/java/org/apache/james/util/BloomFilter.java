@@ -0,0 +1,141 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util;
+
+/**
+ * Bloom filter of strings. {@link #mightContain(CharSequence)} never returns
+ * <code>false</code> for a string which was added, and returns
+ * <code>true</code> for a string which was not added with about the
+ * configured false positive probability.
+ * 
+ * The filter is sized for an expected number of strings. Adding is not
+ * thread-safe, the filter is meant to be filled by one thread and then
+ * published for concurrent lookups.
+ */
+public class BloomFilter {
+
+    private final long[] bits;
+    private final long bitCount;
+    private final int hashCount;
+    private int size;
+
+    /**
+     * Create a filter
+     * 
+     * @param expectedSize
+     *            the number of strings which will be added
+     * @param falsePositiveProbability
+     *            the wanted probability of false positives, between 0 and 1
+     */
+    public BloomFilter(int expectedSize, double falsePositiveProbability) {
+        if (falsePositiveProbability <= 0 || falsePositiveProbability >= 1) {
+            throw new IllegalArgumentException("falsePositiveProbability must be between 0 and 1");
+        }
+        int n = Math.max(1, expectedSize);
+        long m = (long) Math.ceil(-n * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+        m = Math.max(64, m);
+        this.bits = new long[(int) ((m + 63) >>> 6)];
+        this.bitCount = (long) bits.length << 6;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+    }
+
+    /**
+     * Add the given string
+     * 
+     * @param value
+     *            the string
+     */
+    public void put(CharSequence value) {
+        long hash1 = hash(value);
+        long hash2 = mix(hash1 ^ 0x9e3779b97f4a7c15L) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long index = ((hash1 + i * hash2) & Long.MAX_VALUE) % bitCount;
+            bits[(int) (index >>> 6)] |= 1L << index;
+        }
+        size++;
+    }
+
+    /**
+     * Return <code>false</code> if the given string was certainly not added
+     * 
+     * @param value
+     *            the string
+     * @return mightContain
+     */
+    public boolean mightContain(CharSequence value) {
+        long hash1 = hash(value);
+        long hash2 = mix(hash1 ^ 0x9e3779b97f4a7c15L) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long index = ((hash1 + i * hash2) & Long.MAX_VALUE) % bitCount;
+            if ((bits[(int) (index >>> 6)] & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the number of strings added
+     * 
+     * @return size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the number of bits of the filter
+     * 
+     * @return bitCount
+     */
+    public long getBitCount() {
+        return bitCount;
+    }
+
+    /**
+     * Return the number of bits set per string
+     * 
+     * @return hashCount
+     */
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    /**
+     * 64 bit FNV-1a over the chars, finished with a mix step
+     */
+    private static long hash(CharSequence value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            h = (h ^ (c & 0xff)) * 0x100000001b3L;
+            h = (h ^ (c >>> 8)) * 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,413 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.IDN;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Lookup of public suffixes, the domains under which names can be registered
+ * (like <code>com</code> or <code>co.uk</code>), and of the registrable domain
+ * of a host name (like <code>example.co.uk</code> for
+ * <code>www.example.co.uk</code>).
+ * 
+ * The rules are read in the format of the public suffix list
+ * (http://publicsuffix.org/) and compiled into a trie of reversed labels, so a
+ * lookup walks the labels of the host from its end and stops at the first
+ * label which is not covered by a rule. The lookup methods which return an
+ * index work on the label boundaries of the given {@link CharSequence} and do
+ * not allocate. Labels are compared ASCII case-insensitive.
+ * 
+ * Instances are immutable and thread-safe. A default instance is loaded from
+ * the <code>public_suffix_list.dat</code> resource of this package on first
+ * use, it can be replaced with {@link #setDefault(PublicSuffixList)}.
+ */
+public class PublicSuffixList {
+
+    /** Name of the resource the default instance is loaded from */
+    public final static String DEFAULT_RESOURCE = "public_suffix_list.dat";
+
+    private final static String CHARSET = "UTF-8";
+
+    private static volatile PublicSuffixList defaultList;
+
+    private final Node root;
+    private final int ruleCount;
+
+    private PublicSuffixList(Node root, int ruleCount) {
+        this.root = root;
+        this.ruleCount = ruleCount;
+    }
+
+    /**
+     * Return the default instance, loading it from {@link #DEFAULT_RESOURCE} if
+     * none was set yet.
+     * 
+     * @return the default instance
+     */
+    public static PublicSuffixList getDefault() {
+        PublicSuffixList list = defaultList;
+        if (list == null) {
+            synchronized (PublicSuffixList.class) {
+                list = defaultList;
+                if (list == null) {
+                    list = loadDefault();
+                    defaultList = list;
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Replace the default instance, for example with one loaded from a full
+     * copy of the public suffix list.
+     * 
+     * @param list
+     *            the new default instance, or null to reload the bundled
+     *            resource on next use
+     */
+    public static void setDefault(PublicSuffixList list) {
+        defaultList = list;
+    }
+
+    /**
+     * Load the rules from the given file.
+     * 
+     * @param file
+     *            a file in the public suffix list format
+     * @return the compiled rules
+     * @throws IOException
+     */
+    public static PublicSuffixList load(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Load the rules from the given stream, which is read as UTF-8 and not
+     * closed.
+     * 
+     * @param in
+     *            a stream in the public suffix list format
+     * @return the compiled rules
+     * @throws IOException
+     */
+    public static PublicSuffixList load(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, CHARSET));
+        Node root = new Node();
+        int count = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (addRule(root, line)) {
+                count++;
+            }
+        }
+        root.compile();
+        return new PublicSuffixList(root, count);
+    }
+
+    private static PublicSuffixList loadDefault() {
+        InputStream in = PublicSuffixList.class.getResourceAsStream(DEFAULT_RESOURCE);
+        if (in == null) {
+            throw new IllegalStateException("Resource " + DEFAULT_RESOURCE + " not found");
+        }
+        try {
+            return load(in);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to load " + DEFAULT_RESOURCE, e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore on close
+            }
+        }
+    }
+
+    /**
+     * Add one line of the list to the trie
+     * 
+     * @return true if the line contained a rule
+     */
+    private static boolean addRule(Node root, String line) {
+        // only the first word of a line is significant
+        String rule = line.trim();
+        int space = indexOfWhitespace(rule);
+        if (space != -1) {
+            rule = rule.substring(0, space);
+        }
+        if (rule.length() == 0 || rule.startsWith("//")) {
+            return false;
+        }
+        boolean exception = false;
+        if (rule.charAt(0) == '!') {
+            exception = true;
+            rule = rule.substring(1);
+        }
+        boolean wildcard = false;
+        if (rule.startsWith("*")) {
+            wildcard = true;
+            rule = rule.length() > 2 ? rule.substring(2) : "";
+        }
+        if (rule.length() == 0) {
+            // the "*" rule is implied for every unknown TLD
+            return false;
+        }
+        try {
+            rule = IDN.toASCII(rule, IDN.ALLOW_UNASSIGNED);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        rule = rule.toLowerCase(Locale.US);
+
+        Node node = root;
+        int end = rule.length();
+        while (end > 0) {
+            int start = rule.lastIndexOf('.', end - 1) + 1;
+            if (start == end) {
+                return false;
+            }
+            node = node.add(rule.substring(start, end));
+            end = start - 1;
+        }
+        if (wildcard) {
+            node.wildcard = true;
+        } else if (exception) {
+            node.exception = true;
+        } else {
+            node.rule = true;
+        }
+        return true;
+    }
+
+    private static int indexOfWhitespace(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.isWhitespace(s.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the index at which the public suffix of the given host name
+     * starts. Unknown TLDs are public suffixes themselves. A trailing dot is
+     * ignored.
+     * 
+     * @param host
+     *            the host name
+     * @return the index of the first character of the public suffix, or -1 if
+     *         the host name is empty or malformed
+     */
+    public int getPublicSuffixStart(CharSequence host) {
+        int end = hostEnd(host);
+        if (end == 0) {
+            return -1;
+        }
+        Node node = root;
+        int suffixStart = -1;
+        int previousStart = -1;
+        while (true) {
+            int start = labelStart(host, end);
+            if (start == end) {
+                // empty label
+                return -1;
+            }
+            if (suffixStart == -1) {
+                // implied "*" rule
+                suffixStart = start;
+            }
+            Node child = node.find(host, start, end);
+            if (child != null && child.exception) {
+                // the exception wins over every other rule
+                return previousStart;
+            }
+            if (node.wildcard || (child != null && child.rule)) {
+                suffixStart = start;
+            }
+            if (child == null || start == 0) {
+                return suffixStart;
+            }
+            node = child;
+            previousStart = start;
+            end = start - 1;
+        }
+    }
+
+    /**
+     * Return the index at which the registrable domain of the given host name
+     * starts, this is the label in front of its public suffix.
+     * 
+     * @param host
+     *            the host name
+     * @return the index of the first character of the registrable domain, or
+     *         -1 if the host name is a public suffix itself or invalid
+     */
+    public int getRegistrableDomainStart(CharSequence host) {
+        int suffixStart = getPublicSuffixStart(host);
+        if (suffixStart <= 0) {
+            return -1;
+        }
+        int start = labelStart(host, suffixStart - 1);
+        if (start == suffixStart - 1) {
+            // empty label in front of the suffix
+            return -1;
+        }
+        return start;
+    }
+
+    /**
+     * Return if the given host name is a public suffix
+     * 
+     * @param host
+     *            the host name
+     * @return true if the whole host name is a public suffix
+     */
+    public boolean isPublicSuffix(CharSequence host) {
+        return getPublicSuffixStart(host) == 0;
+    }
+
+    /**
+     * Return the registrable domain of the given host name, lower cased and
+     * without a trailing dot.
+     * 
+     * @param host
+     *            the host name
+     * @return the registrable domain, or null if the host name is a public
+     *         suffix itself or invalid
+     */
+    public String getRegistrableDomain(CharSequence host) {
+        int start = getRegistrableDomainStart(host);
+        if (start == -1) {
+            return null;
+        }
+        return host.subSequence(start, hostEnd(host)).toString().toLowerCase(Locale.US);
+    }
+
+    /**
+     * Return the count of rules
+     * 
+     * @return the count
+     */
+    public int size() {
+        return ruleCount;
+    }
+
+    private static int labelStart(CharSequence host, int end) {
+        int start = end;
+        while (start > 0 && host.charAt(start - 1) != '.') {
+            start--;
+        }
+        return start;
+    }
+
+    private static int hostEnd(CharSequence host) {
+        int end = host.length();
+        if (end > 0 && host.charAt(end - 1) == '.') {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * A label of the trie. Children are kept sorted by label while the rules
+     * are added and are then compiled to arrays for binary search.
+     */
+    private final static class Node {
+
+        private final static char[][] NO_LABELS = new char[0][];
+        private final static Node[] NO_CHILDREN = new Node[0];
+
+        private Map<String, Node> pending = new TreeMap<String, Node>();
+        private char[][] labels = NO_LABELS;
+        private Node[] children = NO_CHILDREN;
+
+        private boolean rule;
+        private boolean exception;
+        private boolean wildcard;
+
+        private Node add(String label) {
+            Node child = pending.get(label);
+            if (child == null) {
+                child = new Node();
+                pending.put(label, child);
+            }
+            return child;
+        }
+
+        private void compile() {
+            if (!pending.isEmpty()) {
+                labels = new char[pending.size()][];
+                children = new Node[pending.size()];
+                int i = 0;
+                for (Map.Entry<String, Node> entry : pending.entrySet()) {
+                    labels[i] = entry.getKey().toCharArray();
+                    children[i] = entry.getValue();
+                    children[i].compile();
+                    i++;
+                }
+            }
+            pending = null;
+        }
+
+        private Node find(CharSequence host, int start, int end) {
+            int low = 0;
+            int high = labels.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int cmp = compare(labels[middle], host, start, end);
+                if (cmp < 0) {
+                    low = middle + 1;
+                } else if (cmp > 0) {
+                    high = middle - 1;
+                } else {
+                    return children[middle];
+                }
+            }
+            return null;
+        }
+
+        private static int compare(char[] label, CharSequence host, int start, int end) {
+            int length = Math.min(label.length, end - start);
+            for (int i = 0; i < length; i++) {
+                char c = host.charAt(start + i);
+                if (c >= 'A' && c <= 'Z') {
+                    c = (char) (c + ('a' - 'A'));
+                }
+                if (label[i] != c) {
+                    return label[i] - c;
+                }
+            }
+            return label.length - (end - start);
+        }
+    }
+}
@@ -54,6 +54,27 @@ public interface JMXEnabledThreadPoolExecutorMBean {
      * @return aTime
      */
     double getAverageTaskTime();
+
+    /**
+     * Return the median time for a task (in ms)
+     * 
+     * @return mTime
+     */
+    double getMedianTaskTime();
+
+    /**
+     * Return the time which 99% of the tasks did not exceed (in ms)
+     * 
+     * @return pTime
+     */
+    double getTaskTimePercentile99();
+
+    /**
+     * Return the longest time of a task (in ms)
+     * 
+     * @return maxTime
+     */
+    double getMaximalTaskTime();
     
     /**
      * Return the maximal allowed count of threads
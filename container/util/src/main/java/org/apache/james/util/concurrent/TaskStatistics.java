@@ -0,0 +1,260 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Collects the count, the in-flight count and the execution times of the tasks
+ * of an executor, without taking a lock.
+ * 
+ * Counters are striped by thread, so the worker threads of a pool mostly write
+ * to their own cache lines and only readers have to sum up all stripes.
+ * Execution times are kept in a histogram with 8 buckets per power of two
+ * microseconds, which gives percentiles with an error below 12.5%. The
+ * histogram is striped less, as its writes spread over many buckets, and a
+ * stripe is only allocated by the first task recording to it.
+ * 
+ * {@link #taskStarted()} and {@link #taskCompleted()} must be called from the
+ * thread which executes the task, like from
+ * {@link java.util.concurrent.ThreadPoolExecutor#beforeExecute(Thread, Runnable)}
+ * and {@link java.util.concurrent.ThreadPoolExecutor#afterExecute(Runnable, Throwable)}.
+ */
+public class TaskStatistics {
+
+    /** Longs per stripe, so every stripe fills a 64 byte cache line */
+    private final static int STRIPE_SIZE = 8;
+    private final static int COUNT = 0;
+    private final static int TIME = 1;
+    private final static int IN_FLIGHT = 2;
+
+    private final static int SUB_BUCKET_BITS = 3;
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Times of more than 2^40 microseconds (about 12 days) share the last bucket */
+    private final static int MAX_EXPONENT = 40;
+    private final static int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final static int MAX_STRIPES = 32;
+
+    /** About 2.5 KB each */
+    private final static int MAX_HISTOGRAM_STRIPES = 4;
+
+    private final int stripeMask;
+    private final int histogramStripeMask;
+    private final AtomicLongArray counters;
+    private final AtomicReferenceArray<AtomicLongArray> histograms;
+    private final AtomicLong maxTime = new AtomicLong();
+    private final ThreadLocal<long[]> startTime = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    public TaskStatistics() {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() && stripes < MAX_STRIPES) {
+            stripes <<= 1;
+        }
+        stripeMask = stripes - 1;
+        counters = new AtomicLongArray(stripes * STRIPE_SIZE);
+        int histogramStripes = Math.min(stripes, MAX_HISTOGRAM_STRIPES);
+        histogramStripeMask = histogramStripes - 1;
+        histograms = new AtomicReferenceArray<AtomicLongArray>(histogramStripes);
+    }
+
+    /**
+     * Mark the start of a task on the current thread
+     */
+    public void taskStarted() {
+        counters.incrementAndGet(stripe() * STRIPE_SIZE + IN_FLIGHT);
+        startTime.get()[0] = System.nanoTime();
+    }
+
+    /**
+     * Mark the end of the task started last on the current thread and record
+     * its execution time
+     */
+    public void taskCompleted() {
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime.get()[0]);
+        counters.decrementAndGet(stripe() * STRIPE_SIZE + IN_FLIGHT);
+        record(micros);
+    }
+
+    /**
+     * Record the execution time of a task which was measured by the caller,
+     * without touching the in-flight count. This can be called from any
+     * thread.
+     * 
+     * @param time
+     *            the execution time
+     * @param unit
+     *            the unit of the time
+     */
+    public void record(long time, TimeUnit unit) {
+        record(unit.toMicros(time));
+    }
+
+    private void record(long micros) {
+        int stripe = stripe();
+        int base = stripe * STRIPE_SIZE;
+        counters.incrementAndGet(base + COUNT);
+        counters.addAndGet(base + TIME, micros);
+        histogram(stripe & histogramStripeMask).incrementAndGet(bucket(micros));
+
+        long max = maxTime.get();
+        while (micros > max && !maxTime.compareAndSet(max, micros)) {
+            max = maxTime.get();
+        }
+    }
+
+    /**
+     * Return the count of completed tasks
+     * 
+     * @return count
+     */
+    public long getTaskCount() {
+        return sum(COUNT);
+    }
+
+    /**
+     * Return the count of started but not yet completed tasks
+     * 
+     * @return inFlight
+     */
+    public long getInFlightCount() {
+        return sum(IN_FLIGHT);
+    }
+
+    /**
+     * Return the average execution time of the completed tasks (in ms)
+     * 
+     * @return average
+     */
+    public double getAverageTime() {
+        long count = getTaskCount();
+        return (count == 0) ? 0 : sum(TIME) / (count * 1000d);
+    }
+
+    /**
+     * Return the longest execution time of a completed task (in ms)
+     * 
+     * @return max
+     */
+    public double getMaxTime() {
+        return maxTime.get() / 1000d;
+    }
+
+    /**
+     * Return the execution time which is not exceeded by the given fraction of
+     * the completed tasks (in ms). The value is the upper bound of the
+     * histogram bucket holding the percentile, so it is never lower than the
+     * exact value.
+     * 
+     * @param fraction
+     *            the fraction of tasks, between 0 and 1, like 0.99 for the 99th
+     *            percentile
+     * @return percentile
+     */
+    public double getPercentile(double fraction) {
+        long[] buckets = new long[BUCKETS];
+        long total = 0;
+        for (int stripe = 0; stripe < histograms.length(); stripe++) {
+            AtomicLongArray histogram = histograms.get(stripe);
+            if (histogram == null) {
+                continue;
+            }
+            for (int i = 0; i < BUCKETS; i++) {
+                long count = histogram.get(i);
+                buckets[i] += count;
+                total += count;
+            }
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), maxTime.get()) / 1000d;
+            }
+        }
+        return getMaxTime();
+    }
+
+    private long sum(int offset) {
+        long sum = 0;
+        for (int i = offset; i < counters.length(); i += STRIPE_SIZE) {
+            sum += counters.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * Return the given histogram stripe, allocating it on first use
+     */
+    private AtomicLongArray histogram(int stripe) {
+        AtomicLongArray histogram = histograms.get(stripe);
+        if (histogram == null) {
+            histograms.compareAndSet(stripe, null, new AtomicLongArray(BUCKETS));
+            histogram = histograms.get(stripe);
+        }
+        return histogram;
+    }
+
+    private int stripe() {
+        return (int) Thread.currentThread().getId() & stripeMask;
+    }
+
+    /**
+     * Return the histogram bucket of a time
+     */
+    static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(micros, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Return the highest time which falls into the given histogram bucket
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        long subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -21,19 +21,17 @@ package org.apache.james.util.scanner;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
+
 import java.util.HashMap;
 import java.util.Map;
-import java.util.StringTokenizer;
 
 /**
  * Sends the message through daemonized SpamAssassin (spamd), visit <a
  * href="SpamAssassin.org">SpamAssassin.org</a> for info on configuration.
+ * 
+ * The invoker holds the result of one scan, the connections to spamd are
+ * handled by a {@link SpamdClient} which should be shared between the
+ * invokers.
  */
 public class SpamAssassinInvoker {
 
@@ -43,9 +41,7 @@ public class SpamAssassinInvoker {
     /** The mail attribute under which the flag get stored */
     public final static String FLAG_MAIL_ATTRIBUTE_NAME = "org.apache.james.spamassassin.flag";
 
-    private final String spamdHost;
-
-    private final int spamdPort;
+    private final SpamdClient client;
 
     private String hits = "?";
 
@@ -62,8 +58,17 @@ public class SpamAssassinInvoker {
      *            The port on which spamd listen
      */
     public SpamAssassinInvoker(String spamdHost, int spamdPort) {
-        this.spamdHost = spamdHost;
-        this.spamdPort = spamdPort;
+        this(new SpamdClient(spamdHost, spamdPort));
+    }
+
+    /**
+     * Init the spamassassin invoker
+     * 
+     * @param client
+     *            The client which is used to connect to spamd
+     */
+    public SpamAssassinInvoker(SpamdClient client) {
+        this.client = client;
     }
 
     /**
@@ -76,71 +81,31 @@ public class SpamAssassinInvoker {
      *             if an error on scanning is detected
      */
     public boolean scanMail(MimeMessage message) throws MessagingException {
-        Socket socket = null;
-        OutputStream out = null;
-        BufferedReader in = null;
-
-        try {
-            socket = new Socket(spamdHost, spamdPort);
-
-            out = socket.getOutputStream();
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out.write("CHECK SPAMC/1.2\r\n\r\n".getBytes());
-
-            // pass the message to spamd
-            message.writeTo(out);
-            out.flush();
-            socket.shutdownOutput();
-            String s;
-            while ((s = in.readLine()) != null) {
-                if (s.startsWith("Spam:")) {
-                    StringTokenizer t = new StringTokenizer(s, " ");
-                    boolean spam;
-                    try {
-                        t.nextToken();
-                        spam = Boolean.valueOf(t.nextToken());
-                    } catch (Exception e) {
-                        // On exception return flase
-                        return false;
-                    }
-                    t.nextToken();
-                    hits = t.nextToken();
-                    t.nextToken();
-                    required = t.nextToken();
-
-                    if (spam) {
-                        // message was spam
-                        headers.put(FLAG_MAIL_ATTRIBUTE_NAME, "YES");
-                        headers.put(STATUS_MAIL_ATTRIBUTE_NAME, "Yes, hits=" + hits + " required=" + required);
-
-                        // spam detected
-                        return true;
-                    } else {
-                        // add headers
-                        headers.put(FLAG_MAIL_ATTRIBUTE_NAME, "NO");
-                        headers.put(STATUS_MAIL_ATTRIBUTE_NAME, "No, hits=" + hits + " required=" + required);
-
-                        return false;
-                    }
-                }
-            }
-            return false;
-        } catch (UnknownHostException e1) {
-            throw new MessagingException("Error communicating with spamd. Unknown host: " + spamdHost);
-        } catch (IOException e1) {
-            throw new MessagingException("Error communicating with spamd on " + spamdHost + ":" + spamdPort + " Exception: " + e1);
-        } catch (MessagingException e1) {
-            throw new MessagingException("Error communicating with spamd on " + spamdHost + ":" + spamdPort + " Exception: " + e1);
-        } finally {
-            try {
-                in.close();
-                out.close();
-                socket.close();
-            } catch (Exception e) {
-                // Should never happin
-            }
+        return scanMail(message, -1);
+    }
 
+    /**
+     * Scan a MimeMessage for spam by passing it to spamd. Messages which
+     * exceed the maximal size of the client are not scanned and no headers
+     * are added for them.
+     * 
+     * @param message
+     *            The MimeMessage to scan
+     * @param size
+     *            The size of the message, or -1 if it is unknown
+     * @return true if spam otherwise false
+     * @throws MessagingException
+     *             if an error on scanning is detected
+     */
+    public boolean scanMail(MimeMessage message, long size) throws MessagingException {
+        SpamdClient.Result result = client.scan(message, size);
+        if (result == null) {
+            return false;
         }
+        hits = result.getHits();
+        required = result.getRequiredHits();
+        headers.putAll(result.getHeadersAsAttribute());
+        return result.isSpam();
     }
 
     /**
@@ -0,0 +1,512 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.util.scanner;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.james.util.concurrent.TaskStatistics;
+
+/**
+ * Thread-safe client for one or more spamd daemons, which is meant to be shared
+ * by all callers of a component.
+ * 
+ * spamd answers one request per connection, so instead of keeping idle
+ * sockets around the client bounds the connections which are open to every
+ * backend at the same time. Calls wait up to the connect timeout for a free
+ * connection, so a busy spamd slows down the callers instead of getting
+ * flooded. The backends are used round robin. A backend which fails is skipped
+ * for the retry interval and the message is sent to the next one.
+ * 
+ * The message is written with {@link MimeMessage#writeTo(OutputStream)}, which
+ * streams the source of the James message implementations without parsing it.
+ */
+public class SpamdClient implements SpamdClientMBean {
+
+    public final static int DEFAULT_PORT = 783;
+    public final static int DEFAULT_MAX_CONNECTIONS = 10;
+    public final static int DEFAULT_CONNECT_TIMEOUT = 5000;
+    public final static int DEFAULT_READ_TIMEOUT = 30000;
+    public final static long DEFAULT_RETRY_INTERVAL = 30000;
+
+    private final static int BUFFER_SIZE = 8192;
+
+    /**
+     * The verdict of spamd for a message
+     */
+    public static class Result {
+        private final boolean spam;
+        private final String hits;
+        private final String required;
+        private final Map<String, String> headers = new HashMap<String, String>();
+
+        Result(boolean spam, String hits, String required) {
+            this.spam = spam;
+            this.hits = hits;
+            this.required = required;
+            if (spam) {
+                headers.put(SpamAssassinInvoker.FLAG_MAIL_ATTRIBUTE_NAME, "YES");
+                headers.put(SpamAssassinInvoker.STATUS_MAIL_ATTRIBUTE_NAME, "Yes, hits=" + hits + " required=" + required);
+            } else {
+                headers.put(SpamAssassinInvoker.FLAG_MAIL_ATTRIBUTE_NAME, "NO");
+                headers.put(SpamAssassinInvoker.STATUS_MAIL_ATTRIBUTE_NAME, "No, hits=" + hits + " required=" + required);
+            }
+        }
+
+        /**
+         * Return true if spamd flagged the message as spam
+         * 
+         * @return spam
+         */
+        public boolean isSpam() {
+            return spam;
+        }
+
+        /**
+         * Return the hits which was returned by spamd
+         * 
+         * @return hits
+         */
+        public String getHits() {
+            return hits;
+        }
+
+        /**
+         * Return the hits required before a message is handled as spam
+         * 
+         * @return required
+         */
+        public String getRequiredHits() {
+            return required;
+        }
+
+        /**
+         * Return the headers as attributes which spamd generates
+         * 
+         * @return headers
+         */
+        public Map<String, String> getHeadersAsAttribute() {
+            return headers;
+        }
+    }
+
+    private final static class Backend {
+        private final String host;
+        private final int port;
+        private final Semaphore connections;
+        private volatile long downUntil;
+
+        private Backend(String host, int port, int maxConnections) {
+            this.host = host;
+            this.port = port;
+            this.connections = new Semaphore(maxConnections);
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    private final List<Backend> backends = new ArrayList<Backend>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final int maxConnections;
+
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private int readTimeout = DEFAULT_READ_TIMEOUT;
+    private long retryInterval = DEFAULT_RETRY_INTERVAL;
+    private long maxMessageSize = 0;
+
+    private final TaskStatistics statistics = new TaskStatistics();
+    private final AtomicLong spamCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private final AtomicLong failedConnectionCount = new AtomicLong();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+
+    /**
+     * Create a client for the given spamd backends
+     * 
+     * @param hosts
+     *            the backends as host or host:port
+     * @param defaultPort
+     *            the port of the backends which do not name one
+     * @param maxConnections
+     *            the maximal count of connections open to every backend at
+     *            the same time
+     */
+    public SpamdClient(String[] hosts, int defaultPort, int maxConnections) {
+        if (hosts.length == 0) {
+            throw new IllegalArgumentException("At least one spamd host is needed");
+        }
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        this.maxConnections = maxConnections;
+        for (String host : hosts) {
+            String name = host.trim();
+            int port = defaultPort;
+            int index = name.lastIndexOf(':');
+            if (index > 0) {
+                try {
+                    port = Integer.parseInt(name.substring(index + 1));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid port in spamd host " + host);
+                }
+                name = name.substring(0, index);
+            }
+            backends.add(new Backend(name, port, maxConnections));
+        }
+    }
+
+    /**
+     * Create a client for a single spamd backend
+     * 
+     * @param spamdHost
+     *            The host on which spamd runs
+     * @param spamdPort
+     *            The port on which spamd listen
+     */
+    public SpamdClient(String spamdHost, int spamdPort) {
+        this(new String[] { spamdHost }, spamdPort, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Set the timeout for connecting to spamd, which is also the maximal time
+     * to wait for a free connection (in ms)
+     * 
+     * @param connectTimeout
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Set the timeout for reading the answer of spamd (in ms)
+     * 
+     * @param readTimeout
+     */
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Set the time a failed backend is skipped before it gets used again (in
+     * ms)
+     * 
+     * @param retryInterval
+     */
+    public void setRetryInterval(long retryInterval) {
+        this.retryInterval = retryInterval;
+    }
+
+    /**
+     * Set the size above which messages are not scanned. 0 disable the limit
+     * 
+     * @param maxMessageSize
+     */
+    public void setMaxMessageSize(long maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Scan a MimeMessage for spam by passing it to spamd.
+     * 
+     * @param message
+     *            The MimeMessage to scan
+     * @param size
+     *            The size of the message, or -1 if it is unknown
+     * @return result the verdict of spamd, or null if the message exceed the
+     *         maximal size
+     * @throws MessagingException
+     *             if no backend was able to scan the message
+     */
+    public Result scan(MimeMessage message, long size) throws MessagingException {
+        if (maxMessageSize > 0 && size > maxMessageSize) {
+            skippedCount.incrementAndGet();
+            return null;
+        }
+
+        statistics.taskStarted();
+        try {
+            Result result = scanWithFailover(message);
+            if (result.isSpam()) {
+                spamCount.incrementAndGet();
+            }
+            return result;
+        } catch (MessagingException e) {
+            errorCount.incrementAndGet();
+            throw e;
+        } finally {
+            statistics.taskCompleted();
+        }
+    }
+
+    private Result scanWithFailover(MimeMessage message) throws MessagingException {
+        int count = backends.size();
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % count;
+        long now = System.currentTimeMillis();
+        IOException lastError = null;
+
+        // first try the healthy backends, then the ones which failed lately
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < count; i++) {
+                Backend backend = backends.get((start + i) % count);
+                boolean down = backend.downUntil > now;
+                if (down != (pass == 1)) {
+                    continue;
+                }
+                if (!acquire(backend)) {
+                    // busy is not down, so just try the next one
+                    lastError = new IOException("No free connection to spamd on " + backend + " within " + connectTimeout + "ms");
+                    continue;
+                }
+                try {
+                    Result result = scan(backend, message);
+                    backend.downUntil = 0;
+                    return result;
+                } catch (IOException e) {
+                    failedConnectionCount.incrementAndGet();
+                    backend.downUntil = System.currentTimeMillis() + retryInterval;
+                    lastError = e;
+                }
+            }
+        }
+        throw new MessagingException("Error communicating with spamd on " + backends + " Exception: " + lastError, lastError);
+    }
+
+    private boolean acquire(Backend backend) throws MessagingException {
+        try {
+            return backend.connections.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for a connection to spamd on " + backend);
+        }
+    }
+
+    /**
+     * Scan the message on the given backend, which must have a free
+     * connection acquired. The connection is released again on return.
+     */
+    private Result scan(Backend backend, MimeMessage message) throws IOException, MessagingException {
+        activeConnections.incrementAndGet();
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(backend.host, backend.port), connectTimeout);
+            socket.setSoTimeout(readTimeout);
+
+            SocketOutputStream socketOut = new SocketOutputStream(socket.getOutputStream());
+            OutputStream out = new BufferedOutputStream(socketOut, BUFFER_SIZE);
+            out.write("CHECK SPAMC/1.2\r\n\r\n".getBytes("US-ASCII"));
+
+            // pass the message to spamd
+            try {
+                message.writeTo(out);
+                out.flush();
+            } catch (IOException e) {
+                if (socketOut.failed) {
+                    throw e;
+                }
+                // the message could not be read, which is no fault of spamd
+                throw new MessagingException("Unable to read the message to scan", e);
+            }
+            socket.shutdownOutput();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            String s;
+            while ((s = in.readLine()) != null) {
+                if (s.startsWith("SPAMD/")) {
+                    StringTokenizer t = new StringTokenizer(s, " ");
+                    t.nextToken();
+                    if (t.hasMoreTokens() && !"0".equals(t.nextToken())) {
+                        throw new IOException("spamd on " + backend + " returned an error: " + s);
+                    }
+                } else if (s.startsWith("Spam:")) {
+                    return parseSpamLine(s);
+                }
+            }
+            throw new IOException("spamd on " + backend + " closed the connection without a result");
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore on close
+            }
+            activeConnections.decrementAndGet();
+            backend.connections.release();
+        }
+    }
+
+    /**
+     * Remembers if writing to the socket failed, to tell these errors apart
+     * from errors reading the message
+     */
+    private final static class SocketOutputStream extends FilterOutputStream {
+        private boolean failed;
+
+        private SocketOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+    }
+
+    private Result parseSpamLine(String s) {
+        StringTokenizer t = new StringTokenizer(s, " ");
+        boolean spam;
+        String hits = "?";
+        String required = "?";
+        try {
+            t.nextToken();
+            spam = Boolean.valueOf(t.nextToken());
+            t.nextToken();
+            hits = t.nextToken();
+            t.nextToken();
+            required = t.nextToken();
+        } catch (Exception e) {
+            // On a malformed line handle the message as not spam
+            spam = false;
+        }
+        return new Result(spam, hits, required);
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getScanCount()
+     */
+    public long getScanCount() {
+        return statistics.getTaskCount();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getSpamCount()
+     */
+    public long getSpamCount() {
+        return spamCount.get();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getErrorCount()
+     */
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getSkippedCount()
+     */
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getFailedConnectionCount()
+     */
+    public long getFailedConnectionCount() {
+        return failedConnectionCount.get();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getActiveConnections()
+     */
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getAverageTime()
+     */
+    public double getAverageTime() {
+        return statistics.getAverageTime();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getMaxTime()
+     */
+    public double getMaxTime() {
+        return statistics.getMaxTime();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#get99thPercentileTime()
+     */
+    public double get99thPercentileTime() {
+        return statistics.getPercentile(0.99);
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getBackends()
+     */
+    public String[] getBackends() {
+        long now = System.currentTimeMillis();
+        String[] result = new String[backends.size()];
+        for (int i = 0; i < result.length; i++) {
+            Backend backend = backends.get(i);
+            int used = maxConnections - backend.connections.availablePermits();
+            result[i] = backend + " " + (backend.downUntil > now ? "down" : "up") + ", " + used + "/" + maxConnections + " connections";
+        }
+        return result;
+    }
+}
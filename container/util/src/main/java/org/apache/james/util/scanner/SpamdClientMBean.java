@@ -0,0 +1,100 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.util.scanner;
+
+/**
+ * JMX view on the statistics of a {@link SpamdClient}
+ */
+public interface SpamdClientMBean {
+
+    /**
+     * Return the count of messages which were passed to spamd
+     * 
+     * @return scanCount
+     */
+    long getScanCount();
+
+    /**
+     * Return the count of scanned messages which spamd flagged as spam
+     * 
+     * @return spamCount
+     */
+    long getSpamCount();
+
+    /**
+     * Return the count of messages which could not be scanned because no
+     * spamd backend answered
+     * 
+     * @return errorCount
+     */
+    long getErrorCount();
+
+    /**
+     * Return the count of messages which were not scanned because they
+     * exceeded the configured maximal size
+     * 
+     * @return skippedCount
+     */
+    long getSkippedCount();
+
+    /**
+     * Return the count of connections to spamd backends which failed
+     * 
+     * @return failedConnectionCount
+     */
+    long getFailedConnectionCount();
+
+    /**
+     * Return the count of connections which are currently open to the spamd
+     * backends
+     * 
+     * @return activeConnections
+     */
+    int getActiveConnections();
+
+    /**
+     * Return the average time of a scan (in ms)
+     * 
+     * @return averageTime
+     */
+    double getAverageTime();
+
+    /**
+     * Return the maximal time of a scan (in ms)
+     * 
+     * @return maxTime
+     */
+    double getMaxTime();
+
+    /**
+     * Return the time of a scan which is not exceeded by 99% of the scans (in
+     * ms)
+     * 
+     * @return percentile
+     */
+    double get99thPercentileTime();
+
+    /**
+     * Return the configured backends with their state
+     * 
+     * @return backends
+     */
+    String[] getBackends();
+}
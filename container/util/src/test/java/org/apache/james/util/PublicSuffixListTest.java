@@ -0,0 +1,109 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class PublicSuffixListTest {
+
+    private final static String RULES = "// comment\n" + "\n" + "uk\n" + "co.uk\n" + "*.ck\n" + "!www.ck\n" + "kawasaki.jp\n" + "*.kawasaki.jp\n" + "!city.kawasaki.jp\n" + "lkd.co.im  trailing words are ignored\n";
+
+    private PublicSuffixList load(String rules) throws IOException {
+        return PublicSuffixList.load(new ByteArrayInputStream(rules.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void testRuleCount() throws IOException {
+        assertEquals(8, load(RULES).size());
+    }
+
+    @Test
+    public void testUnknownTLD() throws IOException {
+        PublicSuffixList list = load(RULES);
+        assertEquals("example.com", list.getRegistrableDomain("www.sub.example.com"));
+        assertEquals("example.com", list.getRegistrableDomain("example.com"));
+        assertTrue(list.isPublicSuffix("com"));
+        assertNull(list.getRegistrableDomain("com"));
+    }
+
+    @Test
+    public void testNormalRule() throws IOException {
+        PublicSuffixList list = load(RULES);
+        assertEquals("example.co.uk", list.getRegistrableDomain("www.example.co.uk"));
+        assertEquals("example.uk", list.getRegistrableDomain("www.example.uk"));
+        assertTrue(list.isPublicSuffix("co.uk"));
+        assertNull(list.getRegistrableDomain("co.uk"));
+        assertEquals("b.lkd.co.im", list.getRegistrableDomain("a.b.lkd.co.im"));
+    }
+
+    @Test
+    public void testWildcardRule() throws IOException {
+        PublicSuffixList list = load(RULES);
+        assertEquals("foo.bar.ck", list.getRegistrableDomain("www.foo.bar.ck"));
+        assertTrue(list.isPublicSuffix("bar.ck"));
+        assertEquals("foo.bar.kawasaki.jp", list.getRegistrableDomain("foo.bar.kawasaki.jp"));
+    }
+
+    @Test
+    public void testExceptionRule() throws IOException {
+        PublicSuffixList list = load(RULES);
+        assertEquals("www.ck", list.getRegistrableDomain("www.www.ck"));
+        assertFalse(list.isPublicSuffix("www.ck"));
+        assertEquals("city.kawasaki.jp", list.getRegistrableDomain("www.city.kawasaki.jp"));
+    }
+
+    @Test
+    public void testCaseAndTrailingDot() throws IOException {
+        PublicSuffixList list = load(RULES);
+        assertEquals("example.co.uk", list.getRegistrableDomain("WWW.Example.CO.UK."));
+        assertEquals(4, list.getRegistrableDomainStart("www.example.co.uk"));
+        assertEquals(12, list.getPublicSuffixStart("www.example.co.uk"));
+    }
+
+    @Test
+    public void testMalformedHosts() throws IOException {
+        PublicSuffixList list = load(RULES);
+        assertEquals(-1, list.getPublicSuffixStart(""));
+        assertEquals(-1, list.getPublicSuffixStart("example..uk"));
+        assertNull(list.getRegistrableDomain(".co.uk"));
+    }
+
+    @Test
+    public void testRegionLookupOnBuilder() throws IOException {
+        StringBuilder host = new StringBuilder("mail.example.co.uk");
+        assertEquals(5, load(RULES).getRegistrableDomainStart(host));
+    }
+
+    @Test
+    public void testDefaultList() {
+        PublicSuffixList list = PublicSuffixList.getDefault();
+        assertTrue(list.size() > 0);
+        assertEquals("example.co.uk", list.getRegistrableDomain("www.example.co.uk"));
+        assertEquals("example.com.au", list.getRegistrableDomain("example.com.au"));
+        assertEquals("example.org", list.getRegistrableDomain("www.example.org"));
+    }
+}
@@ -0,0 +1,132 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the accounting overhead per task of {@link TaskStatistics} against
+ * the synchronized list and lock which the JMX enabled executors used before,
+ * with a growing count of threads which all complete tiny tasks at the same
+ * time, like the workers of a busy spooler pool.
+ * 
+ * This is not run as part of the test suite, start it with
+ * <code>java org.apache.james.util.concurrent.TaskStatisticsBenchmark</code>
+ */
+public class TaskStatisticsBenchmark {
+
+    private static final int[] THREADS = { 1, 4, 16, 100 };
+
+    private static final int TASKS = 2000000;
+
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        for (int threads : THREADS) {
+            // warmup
+            run(new Synchronized(), threads);
+            run(new Striped(), threads);
+
+            long synchronizedTime = 0;
+            long stripedTime = 0;
+            for (int i = 0; i < ROUNDS; i++) {
+                synchronizedTime += run(new Synchronized(), threads);
+                stripedTime += run(new Striped(), threads);
+            }
+            System.out.println(String.format("%4d threads: synchronized %8.1f ns/task, striped %8.1f ns/task", threads, synchronizedTime / (double) TASKS / ROUNDS,
+                    stripedTime / (double) TASKS / ROUNDS));
+        }
+    }
+
+    private static long run(final Accounting accounting, int threads) throws InterruptedException {
+        final int tasks = TASKS / threads;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < tasks; j++) {
+                        Runnable task = new Runnable() {
+                            public void run() {
+                            }
+                        };
+                        accounting.before(task);
+                        task.run();
+                        accounting.after(task);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - begin;
+    }
+
+    private interface Accounting {
+        void before(Runnable r);
+
+        void after(Runnable r);
+    }
+
+    /**
+     * The accounting done by the executors before {@link TaskStatistics}
+     */
+    private static class Synchronized implements Accounting {
+        private final List<Runnable> inProgress = Collections.synchronizedList(new ArrayList<Runnable>());
+        private final ThreadLocal<Long> startTime = new ThreadLocal<Long>();
+        private long totalTime;
+        private int totalTasks;
+
+        public void before(Runnable r) {
+            inProgress.add(r);
+            startTime.set(System.currentTimeMillis());
+        }
+
+        public void after(Runnable r) {
+            long time = System.currentTimeMillis() - startTime.get();
+            synchronized (this) {
+                totalTime += time;
+                ++totalTasks;
+            }
+            inProgress.remove(r);
+        }
+    }
+
+    private static class Striped implements Accounting {
+        private final TaskStatistics statistics = new TaskStatistics();
+
+        public void before(Runnable r) {
+            statistics.taskStarted();
+        }
+
+        public void after(Runnable r) {
+            statistics.taskCompleted();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TaskStatisticsTest {
+
+    @Test
+    public void testEmpty() {
+        TaskStatistics statistics = new TaskStatistics();
+        assertEquals(0, statistics.getTaskCount());
+        assertEquals(0, statistics.getInFlightCount());
+        assertEquals(0, statistics.getAverageTime(), 0);
+        assertEquals(0, statistics.getPercentile(0.99), 0);
+        assertEquals(0, statistics.getMaxTime(), 0);
+    }
+
+    @Test
+    public void testInFlight() {
+        TaskStatistics statistics = new TaskStatistics();
+        statistics.taskStarted();
+        assertEquals(1, statistics.getInFlightCount());
+        assertEquals(0, statistics.getTaskCount());
+        statistics.taskCompleted();
+        assertEquals(0, statistics.getInFlightCount());
+        assertEquals(1, statistics.getTaskCount());
+    }
+
+    @Test
+    public void testTimes() throws InterruptedException {
+        TaskStatistics statistics = new TaskStatistics();
+        statistics.taskStarted();
+        Thread.sleep(50);
+        statistics.taskCompleted();
+        for (int i = 0; i < 99; i++) {
+            statistics.taskStarted();
+            statistics.taskCompleted();
+        }
+        assertEquals(100, statistics.getTaskCount());
+        assertTrue(statistics.getMaxTime() >= 50);
+        assertTrue(statistics.getPercentile(0.5) < 50);
+        assertTrue(statistics.getPercentile(0.99) < 50);
+        assertEquals(statistics.getMaxTime(), statistics.getPercentile(1), 0);
+        assertTrue(statistics.getAverageTime() >= 50d / 100);
+    }
+
+    @Test
+    public void testRecord() {
+        TaskStatistics statistics = new TaskStatistics();
+        statistics.record(10, TimeUnit.MILLISECONDS);
+        statistics.record(30, TimeUnit.MILLISECONDS);
+        assertEquals(2, statistics.getTaskCount());
+        assertEquals(0, statistics.getInFlightCount());
+        assertEquals(20, statistics.getAverageTime(), 0);
+        assertEquals(30, statistics.getMaxTime(), 0);
+        assertTrue(statistics.getPercentile(0.5) >= 10);
+        assertTrue(statistics.getPercentile(0.5) < 30);
+    }
+
+    @Test
+    public void testBuckets() {
+        long previous = -1;
+        for (long micros = 0; micros < 1000000; micros++) {
+            int bucket = TaskStatistics.bucket(micros);
+            long upperBound = TaskStatistics.upperBound(bucket);
+            assertTrue(micros <= upperBound);
+            // a bucket is never wider than 1/8 of its lower bound
+            assertTrue(upperBound - micros <= Math.max(micros / 8, 0));
+            assertTrue(upperBound >= previous);
+            previous = upperBound;
+        }
+        assertEquals(TaskStatistics.bucket(Long.MAX_VALUE), TaskStatistics.bucket(1L << 50));
+    }
+
+    @Test
+    public void testConcurrentThreads() throws InterruptedException {
+        final TaskStatistics statistics = new TaskStatistics();
+        final int threads = 8;
+        final int tasks = 10000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                public void run() {
+                    for (int j = 0; j < tasks; j++) {
+                        statistics.taskStarted();
+                        statistics.taskCompleted();
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        assertEquals(threads * tasks, statistics.getTaskCount());
+        assertEquals(0, statistics.getInFlightCount());
+    }
+}
@@ -0,0 +1,207 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.util.scanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SpamdClientTest {
+
+    private final static String GTUBE = "-SPAM-";
+
+    /**
+     * Fake spamd which answers every connection like spamd does
+     */
+    private final class FakeSpamd extends Thread {
+        private final ServerSocket socket;
+        private final AtomicInteger requests = new AtomicInteger();
+
+        private FakeSpamd() throws IOException {
+            socket = new ServerSocket(0);
+            setDaemon(true);
+        }
+
+        private int getPort() {
+            return socket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (!socket.isClosed()) {
+                try {
+                    Socket connection = socket.accept();
+                    try {
+                        BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), "US-ASCII"));
+                        boolean spam = false;
+                        String line;
+                        while ((line = in.readLine()) != null) {
+                            if (line.contains(GTUBE)) {
+                                spam = true;
+                            }
+                        }
+                        requests.incrementAndGet();
+                        OutputStream out = connection.getOutputStream();
+                        out.write(("SPAMD/1.1 0 EX_OK\r\n" + (spam ? "Spam: True ; 1000.0 / 5.0" : "Spam: False ; 3.0 / 5.0") + "\r\n\r\n").getBytes("US-ASCII"));
+                        out.flush();
+                    } finally {
+                        connection.close();
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+
+        private void shutdown() throws IOException {
+            socket.close();
+        }
+    }
+
+    private FakeSpamd spamd;
+
+    @Before
+    public void setUp() throws IOException {
+        spamd = new FakeSpamd();
+        spamd.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        spamd.shutdown();
+    }
+
+    private MimeMessage message(String text) throws MessagingException {
+        String content = "Subject: test\r\n\r\n" + text + "\r\n";
+        return new MimeMessage(Session.getDefaultInstance(new Properties()), new ByteArrayInputStream(content.getBytes()));
+    }
+
+    private int unusedPort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        SpamdClient client = new SpamdClient("localhost", spamd.getPort());
+
+        SpamdClient.Result result = client.scan(message("test"), -1);
+        assertFalse(result.isSpam());
+        assertEquals("3.0", result.getHits());
+        assertEquals("NO", result.getHeadersAsAttribute().get(SpamAssassinInvoker.FLAG_MAIL_ATTRIBUTE_NAME));
+
+        result = client.scan(message(GTUBE), -1);
+        assertTrue(result.isSpam());
+        assertEquals("1000.0", result.getHits());
+        assertEquals("5.0", result.getRequiredHits());
+
+        assertEquals(2, client.getScanCount());
+        assertEquals(1, client.getSpamCount());
+        assertEquals(0, client.getActiveConnections());
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        SpamdClient client = new SpamdClient(new String[] { "localhost:" + unusedPort(), "localhost:" + spamd.getPort() }, 783, 2);
+        client.setRetryInterval(60000);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(client.scan(message(GTUBE), -1).isSpam());
+        }
+        assertEquals(4, spamd.requests.get());
+        // the dead backend is only tried once within the retry interval
+        assertEquals(1, client.getFailedConnectionCount());
+        assertEquals(0, client.getErrorCount());
+        assertTrue(client.getBackends()[0].contains("down"));
+    }
+
+    @Test
+    public void testAllBackendsDown() throws Exception {
+        SpamdClient client = new SpamdClient("localhost", unusedPort());
+        try {
+            client.scan(message("test"), -1);
+            fail("No spamd is running");
+        } catch (MessagingException e) {
+            // expected
+        }
+        assertEquals(1, client.getErrorCount());
+    }
+
+    @Test
+    public void testUnreadableMessageDoesNotMarkBackendDown() throws Exception {
+        SpamdClient client = new SpamdClient("localhost", spamd.getPort());
+        MimeMessage broken = new MimeMessage(Session.getDefaultInstance(new Properties())) {
+            @Override
+            public void writeTo(OutputStream os) throws IOException, MessagingException {
+                throw new IOException("Unable to read the message source");
+            }
+        };
+        try {
+            client.scan(broken, -1);
+            fail("The message can not be read");
+        } catch (MessagingException e) {
+            // expected
+        }
+        assertEquals(0, client.getFailedConnectionCount());
+        assertTrue(client.getBackends()[0].contains("up"));
+    }
+
+    @Test
+    public void testMaxMessageSize() throws Exception {
+        SpamdClient client = new SpamdClient("localhost", spamd.getPort());
+        client.setMaxMessageSize(100);
+
+        assertNull(client.scan(message(GTUBE), 1000));
+        assertEquals(1, client.getSkippedCount());
+        assertEquals(0, spamd.requests.get());
+
+        assertTrue(client.scan(message(GTUBE), 50).isSpam());
+    }
+
+    @Test
+    public void testInvoker() throws Exception {
+        SpamAssassinInvoker invoker = new SpamAssassinInvoker(new SpamdClient("localhost", spamd.getPort()));
+        assertTrue(invoker.scanMail(message(GTUBE)));
+        assertEquals("1000.0", invoker.getHits());
+        assertEquals("YES", invoker.getHeadersAsAttribute().get(SpamAssassinInvoker.FLAG_MAIL_ATTRIBUTE_NAME));
+    }
+}
@@ -41,6 +41,15 @@ public interface MailRepository {
      */
     void store(Mail mc) throws MessagingException;
 
+    /**
+     * Stores several messages in this repository. Implementations may store
+     * them in one batch, which is much faster than storing them one by one.
+     * 
+     * @param mails
+     *            the mail messages to store
+     */
+    void storeAll(Collection<Mail> mails) throws MessagingException;
+
     /**
      * List string keys of messages in repository.
      * 
@@ -49,6 +58,23 @@ public interface MailRepository {
      */
     Iterator<String> list() throws MessagingException;
 
+    /**
+     * List a page of string keys of messages in repository. The keys are
+     * returned in their natural order, so the last key of a page can be passed
+     * as <code>afterKey</code> to get the next page. Unlike {@link #list()}
+     * this does not need to hold all keys in memory, and keys which are added
+     * or removed between two calls do not affect the remaining pages.
+     * 
+     * @param afterKey
+     *            only keys greater than this one are returned, or
+     *            <code>null</code> to start with the first key
+     * @param limit
+     *            the maximum count of keys to return
+     * @return an <code>Iterator</code> over at most <code>limit</code> keys,
+     *         which has no elements once the end of the repository is reached
+     */
+    Iterator<String> list(String afterKey, int limit) throws MessagingException;
+
     /**
      * Retrieves a message given a key. At the moment, keys can be obtained from
      * list() in superinterface Store.Repository
@@ -84,6 +110,16 @@ public interface MailRepository {
      */
     void remove(String key) throws MessagingException;
 
+    /**
+     * Removes the messages identified by the given keys. Implementations may
+     * remove them in one batch, which is much faster than removing them one by
+     * one.
+     * 
+     * @param keys
+     *            the keys of the messages to be removed from the repository
+     */
+    void removeAll(Collection<String> keys) throws MessagingException;
+
     /**
      * Obtains a lock on a message identified by key
      * 
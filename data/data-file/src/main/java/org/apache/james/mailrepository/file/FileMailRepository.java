@@ -25,6 +25,7 @@ import org.apache.james.core.MimeMessageCopyOnWriteProxy;
 import org.apache.james.core.MimeMessageWrapper;
 import org.apache.james.filesystem.api.FileSystem;
 import org.apache.james.mailrepository.lib.AbstractMailRepository;
+import org.apache.james.mailrepository.lib.KeyPage;
 import org.apache.james.repository.file.FilePersistentObjectRepository;
 import org.apache.james.repository.file.FilePersistentStreamRepository;
 import org.apache.mailet.Mail;
@@ -41,7 +42,17 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <p>
@@ -70,6 +81,13 @@ public class FileMailRepository extends AbstractMailRepository {
     private boolean cacheKeys; // experimental: for use with write mostly
     // repositories such as spam and error
     private FileSystem fileSystem;
+    private int bulkThreads;
+    private ExecutorService bulkExecutor;
+
+    /**
+     * Bulk operations on fewer mails are not worth handing to other threads
+     */
+    private static final int PARALLEL_THRESHOLD = 16;
 
     @Inject
     public void setFileSystem(@Named("filesystem") FileSystem fileSystem) {
@@ -85,6 +103,7 @@ public class FileMailRepository extends AbstractMailRepository {
         }
         fifo = config.getBoolean("[@FIFO]", false);
         cacheKeys = config.getBoolean("[@CACHEKEYS]", true);
+        bulkThreads = config.getInt("[@bulkThreads]", 4);
         // ignore model
     }
 
@@ -217,6 +236,134 @@ public class FileMailRepository extends AbstractMailRepository {
         objectRepository.put(key, mc);
     }
 
+    /**
+     * Stores the mails from several threads, as every mail is written to its
+     * own files
+     */
+    @Override
+    protected void internalStoreAll(Collection<Mail> mails) throws MessagingException, IOException {
+        Set<String> names = new HashSet<String>();
+        for (Mail mail : mails) {
+            if (!names.add(mail.getName())) {
+                // the last store of a name must win, keep the order
+                super.internalStoreAll(mails);
+                return;
+            }
+        }
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(mails.size());
+        for (final Mail mail : mails) {
+            tasks.add(new Callable<Void>() {
+                public Void call() throws Exception {
+                    internalStore(mail);
+                    return null;
+                }
+            });
+        }
+        runAll(tasks);
+    }
+
+    /**
+     * Removes the files of the mails from several threads
+     */
+    @Override
+    protected void internalRemoveAll(Collection<String> keys) throws MessagingException {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(keys.size());
+        for (final String key : keys) {
+            tasks.add(new Callable<Void>() {
+                public Void call() throws Exception {
+                    internalRemove(key);
+                    return null;
+                }
+            });
+        }
+        try {
+            runAll(tasks);
+        } catch (IOException e) {
+            throw new MessagingException("Exception while removing mails: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Run the tasks on the bulk executor, or in the calling thread if there are
+     * only a few of them, and wait for all of them. The first failure is
+     * rethrown once all tasks are done.
+     */
+    private void runAll(List<Callable<Void>> tasks) throws MessagingException, IOException {
+        if (tasks.size() < PARALLEL_THRESHOLD || bulkThreads <= 1) {
+            for (Callable<Void> task : tasks) {
+                call(task);
+            }
+            return;
+        }
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks.size());
+        for (Callable<Void> task : tasks) {
+            futures.add(getBulkExecutor().submit(task));
+        }
+        Throwable failure = null;
+        boolean interrupted = false;
+        for (Future<Void> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure instanceof MessagingException) {
+            throw (MessagingException) failure;
+        } else if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new MessagingException("Exception in bulk operation: " + failure.getMessage(), (Exception) failure);
+        }
+    }
+
+    private void call(Callable<Void> task) throws MessagingException, IOException {
+        try {
+            task.call();
+        } catch (MessagingException e) {
+            throw e;
+        } catch (IOException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new MessagingException("Exception in bulk operation: " + e.getMessage(), e);
+        }
+    }
+
+    private synchronized ExecutorService getBulkExecutor() {
+        if (bulkExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(bulkThreads, bulkThreads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "FileMailRepository-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            // idle repositories do not keep threads around
+            executor.allowCoreThreadTimeOut(true);
+            bulkExecutor = executor;
+        }
+        return bulkExecutor;
+    }
+
     @Override
     public Mail retrieve(String key) throws MessagingException {
         try {
@@ -274,4 +421,20 @@ public class FileMailRepository extends AbstractMailRepository {
         // that need it
         return clone.iterator();
     }
+
+    /**
+     * Selects the page from the cached keys or the directory listing without
+     * copying or sorting all keys
+     * 
+     * @see org.apache.james.mailrepository.api.MailRepository#list(String, int)
+     */
+    @SuppressWarnings("unchecked")
+    public Iterator<String> list(String afterKey, int limit) {
+        if (keys != null) {
+            synchronized (keys) {
+                return KeyPage.select(keys.iterator(), afterKey, limit).iterator();
+            }
+        }
+        return KeyPage.select(objectRepository.list(), afterKey, limit).iterator();
+    }
 }
@@ -19,38 +19,32 @@
 
 /* TODO:
  *
- * 1. Currently, iterating through the message collection does not
- *    preserve the order in the file.  Change this with some form of
- *    OrderedMap.  There is a suitable class in Jakarta Commons
- *    Collections.
- *
- * 2. Optimize the remove operation.
- *
- * 3. Don't load entire message into memory.  This would mean computing
- *    the hash during I/O streaming, rather than loading entire message
- *    into memory, and using a MimeMessageWrapper with a suitable data
- *    source.  As a strawman, the interface to MessageAction would
- *    carry the hash, along with a size-limited stream providing the
- *    message body.
- *
- * 4. Decide what to do when there are IDENTICAL messages in the file.
+ * 1. Decide what to do when there are IDENTICAL messages in the file.
  *    Right now only the last one will ever be processed, due to key
  *    collissions.
  *
- * 5. isComplete()  - DONE.
- *
- * 6. Buffered I/O. - Partially done, and optional.
+ * 2. Escape lines starting with "From " in stored messages (mboxrd).
  *
  */
 
 package org.apache.james.mailrepository.file;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
@@ -58,13 +52,24 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Hashtable;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
 
+import javax.annotation.PreDestroy;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
@@ -76,6 +81,7 @@ import org.apache.james.core.MailImpl;
 import org.apache.james.lifecycle.api.Configurable;
 import org.apache.james.lifecycle.api.LogEnabled;
 import org.apache.james.mailrepository.api.MailRepository;
+import org.apache.james.mailrepository.lib.KeyPage;
 import org.apache.mailet.Mail;
 import org.slf4j.Logger;
 
@@ -102,16 +108,18 @@ import org.slf4j.Logger;
  * <p>
  * Implementation notes:
  * <p>
- * This class keeps an internal store of the mbox file When the internal mbox
- * file is updated (added/deleted) then the file will be re-read from disk and
- * then written back. This is a bit inefficent but means that the file on disk
- * should be correct.
+ * The offset and length of every message in the mbox file are kept in an
+ * index, which is persisted in a sidecar file next to the mbox (with the
+ * extension {@link #INDEXEXT}). Storing appends the message to the mbox and a
+ * record to the index. Retrieving reads exactly the bytes of one message.
+ * Removing only appends a tombstone to the index; the space of removed messages
+ * is reclaimed by a background compaction once it exceeds the configured
+ * <code>compactionRatio</code> of the mbox (0.5 by default).
  * <p>
- * The mbox store is mainly meant to be used as a one-way street. Storing new
- * emails is very fast (append to file) whereas reading them (via POP3) is
- * slower (read from disk and parse). Therefore this implementation is best
- * suited to people who wish to use the mbox format for taking data out of James
- * and into something else (IMAP server or mail list displayer)
+ * The mbox file is only parsed when there is no index yet, or when its length
+ * does not match the index, like after another program changed it. The key of a
+ * message is an adapted MD5 checksum of its text, so the keys stay the same
+ * after re-indexing.
  */
 
 public class MBoxMailRepository implements MailRepository, LogEnabled, Configurable {
@@ -119,47 +127,63 @@ public class MBoxMailRepository implements MailRepository, LogEnabled, Configura
     static final SimpleDateFormat dy = new SimpleDateFormat("EE MMM dd HH:mm:ss yyyy", Locale.US);
     static final String LOCKEXT = ".lock";
     static final String WORKEXT = ".work";
+    static final String INDEXEXT = ".idx";
     static final int LOCKSLEEPDELAY = 2000; // 2 second back off in the event of
                                             // a problem with the lock file
     static final int MAXSLEEPTIMES = 100; //
-    static final long MLISTPRESIZEFACTOR = 10 * 1024; // The hash table will be
-                                                      // loaded with a initial
-                                                      // capacity of
-                                                      // filelength/MLISTPRESIZEFACTOR
-    static final long DEFAULTMLISTCAPACITY = 20; // Set up a hashtable to have a
-                                                 // meaningful default
 
     /**
-     * Whether line buffering is turned used.
+     * Removed messages are not compacted away before they add up to this size
      */
-    private static boolean BUFFERING = true;
+    static final long MINCOMPACTIONBYTES = 64 * 1024;
+
+    private static final int INDEX_MAGIC = 0x4A4D4958;
+    private static final byte APPEND_RECORD = 'A';
+    private static final byte DELETE_RECORD = 'D';
+
+    private static final Pattern SEPARATOR = Pattern.compile("^From (.*) (.*):(.*):(.*)$");
 
     /**
-     * Whether 'deep debugging' is turned on.
+     * The index of the mbox file. The key is an adapted MD5 checksum of the
+     * mail, the value the offset and the length of the message including its
+     * separator line. Guarded by {@link #lock}.
      */
-    private static final boolean DEEP_DEBUG = true;
+    private Map<String, long[]> index = null;
 
     /**
-     * The internal list of the emails The key is an adapted MD5 checksum of the
-     * mail
+     * The length of the mbox file covered by the index
      */
-    private Hashtable<String, Long> mList = null;
+    private long indexedLength;
+
     /**
-     * The filename to read & write the mbox from/to
+     * The bytes of the mbox file taken by removed messages
      */
-    private String mboxFile;
+    private long deletedBytes;
 
-    private boolean fifo;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
 
     /**
-     * A callback used when a message is read from the mbox file
+     * The index file missed some updates, so it has to be rewritten before
+     * records can be appended to it again. Guarded by {@link #lock}.
      */
-    public interface MessageAction {
-        boolean isComplete(); // *** Not valid until AFTER each call to
-                              // messageAction(...)!
+    private boolean indexFileStale;
 
-        MimeMessage messageAction(String messageSeparator, String bodyText, long messageStart);
-    }
+    /**
+     * Only one compaction copies the mbox file at a time
+     */
+    private final Object compactionLock = new Object();
+
+    private ExecutorService compactor;
+    private boolean compactionScheduled;
+
+    /**
+     * The filename to read & write the mbox from/to
+     */
+    private String mboxFile;
+
+    private boolean fifo;
+
+    private double compactionRatio;
 
     private Logger logger;
 
@@ -168,14 +192,13 @@ public class MBoxMailRepository implements MailRepository, LogEnabled, Configura
     }
 
     public void configure(HierarchicalConfiguration configuration) throws ConfigurationException {
-        /*
-      The repository configuration
-     */
-        HierarchicalConfiguration configuration1 = configuration;
         String destination;
-        this.mList = null;
-        BUFFERING = configuration.getBoolean("[@BUFFERING]", true);
+        this.index = null;
         fifo = configuration.getBoolean("[@FIFO]", false);
+        compactionRatio = configuration.getDouble("[@compactionRatio]", 0.5);
+        if (compactionRatio <= 0 || compactionRatio > 1) {
+            throw new ConfigurationException("compactionRatio must be greater than 0 and at most 1");
+        }
         destination = configuration.getString("[@destinationURL]");
         if (destination.charAt(destination.length() - 1) == '/') {
             // Remove the trailing / as well as the protocol marker
@@ -198,6 +221,14 @@ public class MBoxMailRepository implements MailRepository, LogEnabled, Configura
         }
     }
 
+    @PreDestroy
+    public synchronized void dispose() {
+        if (compactor != null) {
+            compactor.shutdownNow();
+            compactor = null;
+        }
+    }
+
     protected Logger getLogger() {
         return logger;
     }
@@ -226,7 +257,6 @@ public class MBoxMailRepository implements MailRepository, LogEnabled, Configura
      *            mime message and stored
      */
     private MimeMessage convertTextToMimeMessage(String emailBody) {
-        // this.emailBody = emailBody;
         MimeMessage mimeMessage = null;
         // Parse the mime message as we have the full message now (in string
         // format)
@@ -244,23 +274,6 @@ public class MBoxMailRepository implements MailRepository, LogEnabled, Configura
             String logBuffer = this.getClass().getName() + " Mime message is null";
             getLogger().debug(logBuffer);
         }
-
-        /*
-         * String toAddr = null; try { // Attempt to read the TO field and see
-         * if it errors toAddr =
-         * mimeMessage.getRecipients(javax.mail.Message.RecipientType
-         * .TO).toString(); } catch (Exception e) { // It has errored, so time
-         * for plan B // use the from field I suppose try {
-         * mimeMessage.setRecipients(javax.mail.Message.RecipientType.TO,
-         * mimeMessage.getFrom()); if (getLogger().isDebugEnabled()) {
-         * StringBuffer logBuffer = new StringBuffer(128)
-         * .append(this.getClass().getName())
-         * .append(" Patching To: field for message ")
-         * .append(" with  From: field");
-         * getLogger().debug(logBuffer.toString()); } } catch
-         * (MessagingException e1) {
-         * getLogger().error("Unable to set to: field to from: field", e); } }
-         */
         return mimeMessage;
     }
 
@@ -282,365 +295,348 @@ public class MBoxMailRepository implements MailRepository, LogEnabled, Configura
     }
 
     /**
-     * Parse the mbox file.
+     * Return the text of a message as the mbox parser sees it: the lines
+     * following the separator line, every one terminated by a single newline
      * 
-     * @param ins
-     *            The random access file to load. Note that the file may or may
-     *            not start at offset 0 in the file
-     * @param messAct
-     *            The action to take when a message is found
+     * @param data
+     *            the bytes of the message, starting with the separator line
      */
-    private MimeMessage parseMboxFile(RandomAccessFile ins, MessageAction messAct) {
-        if ((getLogger().isDebugEnabled())) {
-            String logBuffer = this.getClass().getName() + " Start parsing " + mboxFile;
-
-            getLogger().debug(logBuffer);
-        }
-        try {
-
-            Pattern sepMatchPattern = Pattern.compile("^From (.*) (.*):(.*):(.*)$");
-
-            int c;
-            boolean inMessage = false;
-            StringBuffer messageBuffer = new StringBuffer();
-            String previousMessageSeparator = null;
-            boolean foundSep;
-
-            long prevMessageStart = ins.getFilePointer();
-            if (BUFFERING) {
-                String line;
-                while ((line = ins.readLine()) != null) {
-                    foundSep = sepMatchPattern.matcher(line).matches();
-
-                    if (foundSep && inMessage) {
-                        // if ((DEEP_DEBUG) && (getLogger().isDebugEnabled())) {
-                        // getLogger().debug(this.getClass().getName() +
-                        // " Invoking " + messAct.getClass() + " at " +
-                        // prevMessageStart);
-                        // }
-                        MimeMessage endResult = messAct.messageAction(previousMessageSeparator, messageBuffer.toString(), prevMessageStart);
-                        if (messAct.isComplete()) {
-                            // I've got what I want so just exit
-                            return endResult;
-                        }
-                        previousMessageSeparator = line;
-                        prevMessageStart = ins.getFilePointer() - line.length();
-                        messageBuffer = new StringBuffer();
-                        inMessage = true;
-                    }
-                    // Only done at the start (first header)
-                    if (foundSep && !inMessage) {
-                        previousMessageSeparator = line;
-                        inMessage = true;
-                    }
-                    if (!foundSep && inMessage) {
-                        messageBuffer.append(line).append("\n");
-                    }
+    private static String messageText(byte[] data) {
+        StringBuilder text = new StringBuilder(data.length);
+        int start = 0;
+        boolean separator = true;
+        for (int i = 0; i <= data.length; i++) {
+            if (i == data.length || data[i] == '\n') {
+                int end = i;
+                if (end > start && data[end - 1] == '\r') {
+                    end--;
                 }
-            } else {
-                StringBuffer line = new StringBuffer();
-                while ((c = ins.read()) != -1) {
-                    if (c == 10) {
-                        foundSep = sepMatchPattern.matcher(line).matches();
-                        if (foundSep && inMessage) {
-                            // if ((DEEP_DEBUG) &&
-                            // (getLogger().isDebugEnabled())) {
-                            // getLogger().debug(this.getClass().getName() +
-                            // " Invoking " + messAct.getClass() + " at " +
-                            // prevMessageStart);
-                            // }
-                            MimeMessage endResult = messAct.messageAction(previousMessageSeparator, messageBuffer.toString(), prevMessageStart);
-                            if (messAct.isComplete()) {
-                                // I've got what I want so just exit
-                                return endResult;
-                            }
-                            previousMessageSeparator = line.toString();
-                            prevMessageStart = ins.getFilePointer() - line.length();
-                            messageBuffer = new StringBuffer();
-                            inMessage = true;
-                        }
-                        // Only done at the start (first header)
-                        if (foundSep && !inMessage) {
-                            previousMessageSeparator = line.toString();
-                            inMessage = true;
-                        }
-                        if (!foundSep) {
-                            messageBuffer.append(line).append((char) c);
-                        }
-                        line = new StringBuffer(); // Reset buffer
-                    } else {
-                        line.append((char) c);
+                if (separator) {
+                    separator = false;
+                } else if (i < data.length || end > start) {
+                    for (int j = start; j < end; j++) {
+                        text.append((char) (data[j] & 0xff));
                     }
+                    text.append('\n');
                 }
-            }
-
-            if (messageBuffer.length() != 0) {
-                // process last message
-                return messAct.messageAction(previousMessageSeparator, messageBuffer.toString(), prevMessageStart);
-            }
-        } catch (IOException ioEx) {
-            getLogger().error("Unable to write file (General I/O problem) " + mboxFile, ioEx);
-        } catch (PatternSyntaxException e) {
-            getLogger().error("Bad regex passed " + mboxFile, e);
-        } finally {
-            if ((getLogger().isDebugEnabled())) {
-                String logBuffer = this.getClass().getName() + " Finished parsing " + mboxFile;
-
-                getLogger().debug(logBuffer);
+                start = i + 1;
             }
         }
-        return null;
+        return text.toString();
     }
 
     /**
-     * Find a given message<br>
-     * This method will first use selectMessage(key) to see if the key/offset
-     * combination allows us to skip parts of the file and only load the message
-     * we are interested in
-     * 
-     * @param key
-     *            The key of the message to find
+     * Make sure the index matches the mbox file, loading it from the sidecar
+     * file or re-indexing the mbox when needed. The write lock must be held.
      */
-    private MimeMessage findMessage(String key) {
-        MimeMessage foundMessage;
-
-        // See if we can get the message by using the cache position first
-        foundMessage = selectMessage(key);
-        if (foundMessage == null) {
-            // If the message is not found something has changed from
-            // the cache. The cache may have been invalidated by
-            // another method, or the file may have been replaced from
-            // underneath us. Reload the cache, and try again.
-            mList = null;
-            loadKeys();
-            foundMessage = selectMessage(key);
+    private void loadIndex() {
+        long length = new File(mboxFile).length();
+        if (index != null && length == indexedLength) {
+            return;
+        }
+        if (readIndexFile() && length == indexedLength) {
+            return;
+        }
+        scanMboxFile();
+        try {
+            writeIndexFile();
+        } catch (IOException e) {
+            getLogger().warn("Unable to write index " + mboxFile + INDEXEXT, e);
+            // it will be rebuilt from the mbox file
+            deleteIndexFile();
         }
-        return foundMessage;
     }
 
     /**
-     * Quickly find a message by using the stored message offsets
-     * 
-     * @param key
-     *            The key of the message to find
-     */
-    private MimeMessage selectMessage(final String key) {
-        MimeMessage foundMessage = null;
-        // Can we find the key first
-        if (mList == null || !mList.containsKey(key)) {
-            // Not initiailised so no point looking
-            if ((getLogger().isDebugEnabled())) {
-                String logBuffer = this.getClass().getName() + " mList - key not found " + mboxFile;
-
-                getLogger().debug(logBuffer);
-            }
-            return foundMessage;
+     * Make sure the index is loaded, and take the read lock
+     */
+    private void lockIndexForRead() {
+        lock.readLock().lock();
+        if (index != null && new File(mboxFile).length() == indexedLength) {
+            return;
         }
-        long messageStart = mList.get(key);
+        lock.readLock().unlock();
+        lock.writeLock().lock();
+        try {
+            loadIndex();
+            // downgrade to the read lock
+            lock.readLock().lock();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Build the index by parsing the whole mbox file
+     */
+    private void scanMboxFile() {
         if ((getLogger().isDebugEnabled())) {
-            String logBuffer = this.getClass().getName() + " Load message starting at offset " + messageStart + " from file " + mboxFile;
+            String logBuffer = this.getClass().getName() + " Start indexing " + mboxFile;
 
             getLogger().debug(logBuffer);
         }
-        // Now try and find the position in the file
-        RandomAccessFile ins = null;
+        Map<String, long[]> newIndex = new LinkedHashMap<String, long[]>();
+        long deleted = 0;
+        long position = 0;
+        InputStream ins = null;
         try {
-            ins = new RandomAccessFile(mboxFile, "r");
-            if (messageStart != 0) {
-                ins.seek(messageStart - 1);
-            }
-            MessageAction op = new MessageAction() {
-                public boolean isComplete() {
-                    return true;
+            ins = new BufferedInputStream(new FileInputStream(mboxFile), 64 * 1024);
+            ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+            StringBuilder text = new StringBuilder();
+            long messageStart = -1;
+            long lineStart = 0;
+            int c;
+            do {
+                c = ins.read();
+                if (c != -1) {
+                    position++;
+                    if (c != '\n') {
+                        line.write(c);
+                        continue;
+                    }
+                } else if (line.size() == 0) {
+                    break;
                 }
-
-                public MimeMessage messageAction(String messageSeparator, String bodyText, long messageStart) {
-                    try {
-                        if (key.equals(generateKeyValue(bodyText))) {
-                            getLogger().debug(this.getClass().getName() + " Located message. Returning MIME message");
-                            return convertTextToMimeMessage(bodyText);
-                        }
-                    } catch (NoSuchAlgorithmException e) {
-                        getLogger().error("MD5 not supported! ", e);
+                String current = line.toString("ISO-8859-1");
+                if (current.endsWith("\r")) {
+                    current = current.substring(0, current.length() - 1);
+                }
+                line.reset();
+                if (SEPARATOR.matcher(current).matches()) {
+                    if (messageStart >= 0) {
+                        deleted += put(newIndex, text.toString(), messageStart, lineStart - messageStart);
                     }
-                    return null;
+                    messageStart = lineStart;
+                    text.setLength(0);
+                } else if (messageStart >= 0) {
+                    text.append(current).append('\n');
                 }
-            };
-            foundMessage = this.parseMboxFile(ins, op);
+                lineStart = position;
+            } while (c != -1);
+            if (messageStart >= 0) {
+                deleted += put(newIndex, text.toString(), messageStart, position - messageStart);
+            }
         } catch (FileNotFoundException e) {
-            getLogger().error("Unable to save(open) file (File not found) " + mboxFile, e);
+            getLogger().debug("No mbox file " + mboxFile + " yet");
         } catch (IOException e) {
-            getLogger().error("Unable to write file (General I/O problem) " + mboxFile, e);
+            getLogger().error("Unable to read file (General I/O problem) " + mboxFile, e);
+        } catch (NoSuchAlgorithmException e) {
+            getLogger().error("MD5 not supported! ", e);
         } finally {
-            if (foundMessage == null) {
-                if ((getLogger().isDebugEnabled())) {
-                    String logBuffer = this.getClass().getName() + " select - message not found " + mboxFile;
-
-                    getLogger().debug(logBuffer);
-                }
-            }
-            if (ins != null)
+            if (ins != null) {
                 try {
                     ins.close();
                 } catch (IOException e) {
                     getLogger().error("Unable to close file (General I/O problem) " + mboxFile, e);
                 }
+            }
+        }
+        index = newIndex;
+        indexedLength = position;
+        deletedBytes = deleted;
+        if ((getLogger().isDebugEnabled())) {
+            String logBuffer = this.getClass().getName() + " Indexed " + newIndex.size() + " messages in " + mboxFile;
+
+            getLogger().debug(logBuffer);
         }
-        return foundMessage;
     }
 
     /**
-     * Load the message keys and file pointer offsets from disk
+     * Add a message to the index and return the length of the message it
+     * replaces, if any
      */
-    private synchronized void loadKeys() {
-        if (mList != null) {
-            return;
+    private long put(Map<String, long[]> index, String text, long offset, long length) throws NoSuchAlgorithmException {
+        String key = generateKeyValue(text);
+        long[] previous = index.put(key, new long[] { offset, length });
+        if ((getLogger().isDebugEnabled())) {
+            getLogger().debug(this.getClass().getName() + " Key " + key + " at " + offset);
         }
-        RandomAccessFile ins = null;
+        return previous == null ? 0 : previous[1];
+    }
+
+    /**
+     * Load the index from the sidecar file
+     * 
+     * @return false if there is no valid sidecar file
+     */
+    private boolean readIndexFile() {
+        File indexFile = new File(mboxFile + INDEXEXT);
+        if (!indexFile.exists()) {
+            return false;
+        }
+        DataInputStream in = null;
         try {
-            ins = new RandomAccessFile(mboxFile, "r");
-            long initialCapacity = (ins.length() > MLISTPRESIZEFACTOR ? ins.length() / MLISTPRESIZEFACTOR : 0);
-            if (initialCapacity < DEFAULTMLISTCAPACITY) {
-                initialCapacity = DEFAULTMLISTCAPACITY;
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (in.readInt() != INDEX_MAGIC) {
+                return false;
             }
-            if (initialCapacity > Integer.MAX_VALUE) {
-                initialCapacity = Integer.MAX_VALUE - 1;
-            }
-            this.mList = new Hashtable<String, Long>((int) initialCapacity);
-            this.parseMboxFile(ins, new MessageAction() {
-                public boolean isComplete() {
-                    return false;
-                }
-
-                public MimeMessage messageAction(String messageSeparator, String bodyText, long messageStart) {
-                    try {
-                        String key = generateKeyValue(bodyText);
-                        mList.put(key, messageStart);
-                        if ((getLogger().isDebugEnabled())) {
-                            getLogger().debug(this.getClass().getName() + " Key " + key + " at " + messageStart);
+            long length = in.readLong();
+            long deleted = in.readLong();
+            Map<String, long[]> newIndex = new LinkedHashMap<String, long[]>();
+            try {
+                while (true) {
+                    byte type = in.readByte();
+                    String key = in.readUTF();
+                    if (type == APPEND_RECORD) {
+                        long[] entry = new long[] { in.readLong(), in.readLong() };
+                        long[] previous = newIndex.put(key, entry);
+                        if (previous != null) {
+                            deleted += previous[1];
                         }
-
-                    } catch (NoSuchAlgorithmException e) {
-                        getLogger().error("MD5 not supported! ", e);
+                        length = Math.max(length, entry[0] + entry[1]);
+                    } else if (type == DELETE_RECORD) {
+                        long[] previous = newIndex.remove(key);
+                        if (previous != null) {
+                            deleted += previous[1];
+                        }
+                    } else {
+                        return false;
                     }
-                    return null;
                 }
-            });
-            // System.out.println("Done Load keys!");
-        } catch (FileNotFoundException e) {
-            getLogger().error("Unable to save(open) file (File not found) " + mboxFile, e);
-            this.mList = new Hashtable<String, Long>((int) DEFAULTMLISTCAPACITY);
+            } catch (EOFException e) {
+                // end of the records, a partly written record at the end is
+                // ignored
+            }
+            index = newIndex;
+            indexedLength = length;
+            deletedBytes = deleted;
+            return true;
         } catch (IOException e) {
-            getLogger().error("Unable to write file (General I/O problem) " + mboxFile, e);
+            getLogger().warn("Unable to read index " + indexFile + ", re-indexing " + mboxFile, e);
+            return false;
         } finally {
-            if (ins != null)
+            if (in != null) {
                 try {
-                    ins.close();
+                    in.close();
                 } catch (IOException e) {
-                    getLogger().error("Unable to close file (General I/O problem) " + mboxFile, e);
+                    getLogger().error("Unable to close file (General I/O problem) " + indexFile, e);
                 }
+            }
         }
     }
 
     /**
-     * @see org.apache.james.mailrepository.api.MailRepository#store(Mail)
+     * Write the whole index to the sidecar file. The previous sidecar file is
+     * only replaced once the new one was written completely.
      */
-    public void store(Mail mc) {
-
-        if ((getLogger().isDebugEnabled())) {
-            String logBuffer = this.getClass().getName() + " Will store message to file " + mboxFile;
-
-            getLogger().debug(logBuffer);
-        }
-        this.mList = null;
-        // Now make up the from header
-        String fromHeader = null;
-        String message = null;
+    private void writeIndexFile() throws IOException {
+        File indexFile = new File(mboxFile + INDEXEXT);
+        File workFile = new File(mboxFile + INDEXEXT + WORKEXT);
+        DataOutputStream out = null;
         try {
-            message = getRawMessage(mc.getMessage());
-            // check for nullsender
-            if (mc.getMessage().getFrom() == null) {
-                fromHeader = "From   " + dy.format(Calendar.getInstance().getTime());
-            } else {
-                fromHeader = "From " + mc.getMessage().getFrom()[0] + " " + dy.format(Calendar.getInstance().getTime());
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(workFile)));
+            out.writeInt(INDEX_MAGIC);
+            out.writeLong(indexedLength);
+            out.writeLong(deletedBytes);
+            for (Map.Entry<String, long[]> entry : index.entrySet()) {
+                writeAppendRecord(out, entry.getKey(), entry.getValue());
+            }
+            out.close();
+            out = null;
+            if (indexFile.exists()) {
+                FileUtils.forceDelete(indexFile);
+            }
+            if (!workFile.renameTo(indexFile)) {
+                throw new IOException("Failed to rename file " + workFile + " -> " + indexFile);
+            }
+            indexFileStale = false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    getLogger().error("Unable to close file (General I/O problem) " + workFile, e);
+                }
             }
-
-        } catch (IOException e) {
-            getLogger().error("Unable to parse mime message for " + mboxFile, e);
-        } catch (MessagingException e) {
-            getLogger().error("Unable to parse mime message for " + mboxFile, e);
-        }
-        // And save only the new stuff to disk
-        RandomAccessFile saveFile;
-        try {
-            saveFile = new RandomAccessFile(mboxFile, "rw");
-            saveFile.seek(saveFile.length()); // Move to the end
-            saveFile.writeBytes((fromHeader + "\n"));
-            saveFile.writeBytes((message + "\n"));
-            saveFile.close();
-
-        } catch (FileNotFoundException e) {
-            getLogger().error("Unable to save(open) file (File not found) " + mboxFile, e);
-        } catch (IOException e) {
-            getLogger().error("Unable to write file (General I/O problem) " + mboxFile, e);
         }
     }
 
     /**
-     * @see org.apache.james.mailrepository.api.MailRepository#list()
+     * Append records to the sidecar file. If that fails the whole index is
+     * written again, as dropping the sidecar file would bring back the
+     * removed messages when the mbox file is indexed again.
+     * 
+     * @param appended
+     *            the keys and positions of stored messages
+     * @param deleted
+     *            the keys of removed messages
+     * @throws MessagingException
+     *             if the index could not be written at all
      */
-    public Iterator<String> list() {
-        loadKeys();
-        ArrayList<String> keys = new ArrayList<String>(mList.keySet());
-
-        if (!keys.isEmpty()) {
-            // find the first message. This is a trick to make sure that if
-            // the file is changed out from under us, we will detect it and
-            // correct for it BEFORE we return the iterator.
-            findMessage(keys.iterator().next());
+    private void appendIndexRecords(Map<String, long[]> appended, Collection<String> deleted) throws MessagingException {
+        File indexFile = new File(mboxFile + INDEXEXT);
+        if (indexFile.exists() && !indexFileStale) {
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+                for (Map.Entry<String, long[]> entry : appended.entrySet()) {
+                    writeAppendRecord(out, entry.getKey(), entry.getValue());
+                }
+                for (String key : deleted) {
+                    out.writeByte(DELETE_RECORD);
+                    out.writeUTF(key);
+                }
+                out.close();
+                out = null;
+                return;
+            } catch (IOException e) {
+                getLogger().warn("Unable to update index " + indexFile + ", writing it again", e);
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        getLogger().error("Unable to close file (General I/O problem) " + indexFile, e);
+                    }
+                }
+            }
         }
-        if ((getLogger().isDebugEnabled())) {
-            String logBuffer = this.getClass().getName() + " " + keys.size() + " keys to be iterated over.";
-
-            getLogger().debug(logBuffer);
+        try {
+            writeIndexFile();
+        } catch (IOException e) {
+            // the records of this update may be partly written
+            indexFileStale = true;
+            throw new MessagingException("Unable to write index " + indexFile, e);
         }
-        if (fifo)
-            Collections.sort(keys); // Keys is a HashSet; impose FIFO for apps
-                                    // that need it
-        return keys.iterator();
     }
 
-    /**
-     * @see org.apache.james.mailrepository.api.MailRepository#retrieve(String)
-     */
-    public Mail retrieve(String key) {
-
-        loadKeys();
-        MailImpl res;
-
-        MimeMessage foundMessage = findMessage(key);
-        if (foundMessage == null) {
-            getLogger().error("found message is null!");
-            return null;
-        }
-        res = new MailImpl();
-        res.setMessage(foundMessage);
-        res.setName(key);
-        if ((getLogger().isDebugEnabled())) {
-            String logBuffer = this.getClass().getName() + " Retrieving entry for key " + key;
+    private void writeAppendRecord(DataOutputStream out, String key, long[] entry) throws IOException {
+        out.writeByte(APPEND_RECORD);
+        out.writeUTF(key);
+        out.writeLong(entry[0]);
+        out.writeLong(entry[1]);
+    }
 
-            getLogger().debug(logBuffer);
+    private void deleteIndexFile() {
+        File indexFile = new File(mboxFile + INDEXEXT);
+        if (indexFile.exists() && !indexFile.delete()) {
+            getLogger().error("Unable to delete index " + indexFile);
         }
-        return res;
     }
 
     /**
-     * @see org.apache.james.mailrepository.api.MailRepository#remove(Mail)
+     * Read the bytes of one message from the mbox file
+     * 
+     * @return the bytes, or null if the index does not point to a message
      */
-    public void remove(Mail mail) {
-        ArrayList<Mail> remArray = new ArrayList<Mail>();
-        remArray.add(mail);
-        remove(remArray);
+    private byte[] readMessage(long[] entry) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mboxFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) entry[1]);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, entry[0] + buffer.position()) < 0) {
+                    return null;
+                }
+            }
+            byte[] data = buffer.array();
+            if (data.length < 5 || data[0] != 'F' || data[1] != 'r' || data[2] != 'o' || data[3] != 'm' || data[4] != ' ') {
+                return null;
+            }
+            return data;
+        } finally {
+            file.close();
+        }
     }
 
     /**
@@ -693,103 +689,415 @@ public class MBoxMailRepository implements MailRepository, LogEnabled, Configura
     }
 
     /**
-     * @see org.apache.james.mailrepository.api.MailRepository#remove(Collection)
+     * @see org.apache.james.mailrepository.api.MailRepository#store(Mail)
      */
-    public void remove(final Collection<Mail> mails) {
+    public void store(Mail mc) throws MessagingException {
+        storeAll(Collections.singletonList(mc));
+    }
+
+    /**
+     * Appends all messages with a single open of the mbox file and a single
+     * update of the index
+     * 
+     * @see org.apache.james.mailrepository.api.MailRepository#storeAll(Collection)
+     */
+    public void storeAll(Collection<Mail> mails) throws MessagingException {
+
         if ((getLogger().isDebugEnabled())) {
-            String logBuffer = this.getClass().getName() + " Removing entry for key " + mails;
+            String logBuffer = this.getClass().getName() + " Will store " + mails.size() + " messages to file " + mboxFile;
 
             getLogger().debug(logBuffer);
         }
-        // The plan is as follows:
-        // Attempt to locate the message in the file
-        // by reading through the
-        // once we've done that then seek to the file
+        lock.writeLock().lock();
         try {
-            RandomAccessFile ins = new RandomAccessFile(mboxFile, "r"); // The
-                                                                        // source
-            final RandomAccessFile outputFile = new RandomAccessFile(mboxFile + WORKEXT, "rw"); // The
-                                                                                                // destination
-            parseMboxFile(ins, new MessageAction() {
-                public boolean isComplete() {
-                    return false;
-                }
-
-                public MimeMessage messageAction(String messageSeparator, String bodyText, long messageStart) {
-                    // Write out the messages as we go, until we reach the key
-                    // we want
-                    try {
-                        String currentKey = generateKeyValue(bodyText);
-                        boolean foundKey = false;
-                        Iterator<Mail> mailList = mails.iterator();
-                        String key;
-                        while (mailList.hasNext()) {
-                            // Attempt to find the current key in the array
-                            key = mailList.next().getName();
-                            if (key.equals(currentKey)) {
-                                // Don't write the message to disk
-                                foundKey = true;
-                                break;
+            loadIndex();
+            Map<String, long[]> appended = new LinkedHashMap<String, long[]>();
+            // And save only the new stuff to disk
+            RandomAccessFile saveFile;
+            try {
+                saveFile = new RandomAccessFile(mboxFile, "rw");
+                try {
+                    long position = saveFile.length();
+                    saveFile.seek(position); // Move to the end
+                    for (Mail mc : mails) {
+                        // Now make up the from header
+                        String fromHeader;
+                        String message;
+                        try {
+                            message = getRawMessage(mc.getMessage());
+                            // check for nullsender
+                            if (mc.getMessage().getFrom() == null) {
+                                fromHeader = "From   " + dy.format(Calendar.getInstance().getTime());
+                            } else {
+                                fromHeader = "From " + mc.getMessage().getFrom()[0] + " " + dy.format(Calendar.getInstance().getTime());
                             }
+                        } catch (IOException e) {
+                            getLogger().error("Unable to parse mime message for " + mboxFile, e);
+                            continue;
+                        } catch (MessagingException e) {
+                            getLogger().error("Unable to parse mime message for " + mboxFile, e);
+                            continue;
                         }
-                        if (!foundKey) {
-                            // We didn't find the key in the array so we will
-                            // keep it
-                            outputFile.writeBytes(messageSeparator + "\n");
-                            outputFile.writeBytes(bodyText);
-
+                        // written like RandomAccessFile.writeBytes, one byte
+                        // per char
+                        String entry = fromHeader + "\n" + message + "\n";
+                        byte[] data = new byte[entry.length()];
+                        for (int i = 0; i < data.length; i++) {
+                            data[i] = (byte) entry.charAt(i);
                         }
-                    } catch (NoSuchAlgorithmException e) {
-                        getLogger().error("MD5 not supported! ", e);
-                    } catch (IOException e) {
-                        getLogger().error("Unable to write file (General I/O problem) " + mboxFile, e);
+                        saveFile.write(data);
+                        try {
+                            String key = generateKeyValue(messageText(data));
+                            long[] previous = index.put(key, new long[] { position, data.length });
+                            if (previous != null) {
+                                deletedBytes += previous[1];
+                            }
+                            appended.put(key, new long[] { position, data.length });
+                        } catch (NoSuchAlgorithmException e) {
+                            getLogger().error("MD5 not supported! ", e);
+                        }
+                        position += data.length;
                     }
-                    return null;
+                    indexedLength = position;
+                } finally {
+                    saveFile.close();
                 }
-            });
-            ins.close();
-            outputFile.close();
-            // Delete the old mbox file
-            File mbox = new File(mboxFile);
-            FileUtils.forceDelete(mbox);
-            // And rename the lock file to be the new mbox
-            mbox = new File(mboxFile + WORKEXT);
-            if (!mbox.renameTo(new File(mboxFile))) {
-                throw new IOException("Failed to rename file " + mbox + " -> " + mboxFile);
+
+            } catch (FileNotFoundException e) {
+                getLogger().error("Unable to save(open) file (File not found) " + mboxFile, e);
+            } catch (IOException e) {
+                getLogger().error("Unable to write file (General I/O problem) " + mboxFile, e);
+                // the index does not know how much was written
+                index = null;
+            }
+            if (index != null) {
+                appendIndexRecords(appended, Collections.<String>emptyList());
             }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.apache.james.mailrepository.api.MailRepository#list()
+     */
+    public Iterator<String> list() {
+        ArrayList<String> keys;
+        lockIndexForRead();
+        try {
+            keys = new ArrayList<String>(index.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+        if ((getLogger().isDebugEnabled())) {
+            String logBuffer = this.getClass().getName() + " " + keys.size() + " keys to be iterated over.";
 
-            // Now delete the keys in mails from the main hash
-            Iterator<Mail> mailList = mails.iterator();
-            String key;
-            while (mailList.hasNext()) {
-                // Attempt to find the current key in the array
-                key = mailList.next().getName();
-                mList.remove(key);
+            getLogger().debug(logBuffer);
+        }
+        if (fifo)
+            Collections.sort(keys); // Keys is a HashSet; impose FIFO for apps
+                                    // that need it
+        return keys.iterator();
+    }
+
+    /**
+     * @see org.apache.james.mailrepository.api.MailRepository#list(String, int)
+     */
+    public Iterator<String> list(String afterKey, int limit) {
+        lockIndexForRead();
+        try {
+            return KeyPage.select(index.keySet().iterator(), afterKey, limit).iterator();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.apache.james.mailrepository.api.MailRepository#retrieve(String)
+     */
+    public Mail retrieve(String key) {
+        byte[] data = null;
+        for (int attempt = 0; attempt < 2 && data == null; attempt++) {
+            lockIndexForRead();
+            try {
+                long[] entry = index.get(key);
+                if (entry == null) {
+                    if ((getLogger().isDebugEnabled())) {
+                        String logBuffer = this.getClass().getName() + " index - key not found " + mboxFile;
+
+                        getLogger().debug(logBuffer);
+                    }
+                    return null;
+                }
+                if ((getLogger().isDebugEnabled())) {
+                    String logBuffer = this.getClass().getName() + " Load message starting at offset " + entry[0] + " from file " + mboxFile;
+
+                    getLogger().debug(logBuffer);
+                }
+                data = readMessage(entry);
+            } catch (IOException e) {
+                getLogger().error("Unable to read file (General I/O problem) " + mboxFile, e);
+                return null;
+            } finally {
+                lock.readLock().unlock();
             }
+            if (data == null) {
+                // The file was replaced from underneath us with one of the same
+                // length. Re-index it, and try again.
+                lock.writeLock().lock();
+                try {
+                    deleteIndexFile();
+                    index = null;
+                    loadIndex();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }
+        MimeMessage foundMessage = data == null ? null : convertTextToMimeMessage(messageText(data));
+        if (foundMessage == null) {
+            getLogger().error("found message is null!");
+            return null;
+        }
+        MailImpl res = new MailImpl();
+        res.setMessage(foundMessage);
+        res.setName(key);
+        if ((getLogger().isDebugEnabled())) {
+            String logBuffer = this.getClass().getName() + " Retrieving entry for key " + key;
 
-        } catch (FileNotFoundException e) {
-            getLogger().error("Unable to save(open) file (File not found) " + mboxFile, e);
-        } catch (IOException e) {
-            getLogger().error("Unable to write file (General I/O problem) " + mboxFile, e);
+            getLogger().debug(logBuffer);
         }
+        return res;
+    }
+
+    /**
+     * @see org.apache.james.mailrepository.api.MailRepository#remove(Mail)
+     */
+    public void remove(Mail mail) throws MessagingException {
+        removeAll(Collections.singletonList(mail.getName()));
+    }
+
+    /**
+     * @see org.apache.james.mailrepository.api.MailRepository#remove(Collection)
+     */
+    public void remove(final Collection<Mail> mails) throws MessagingException {
+        Set<String> keys = new HashSet<String>();
+        for (Mail mail : mails) {
+            keys.add(mail.getName());
+        }
+        removeAll(keys);
     }
 
     /**
      * @see org.apache.james.mailrepository.api.MailRepository#remove(String)
      */
-    public void remove(String key) {
-        loadKeys();
+    public void remove(String key) throws MessagingException {
+        removeAll(Collections.singletonList(key));
+    }
+
+    /**
+     * Removes the messages from the index only. The mbox file is compacted in
+     * the background once enough of it is taken by removed messages.
+     * 
+     * @see org.apache.james.mailrepository.api.MailRepository#removeAll(Collection)
+     */
+    public void removeAll(Collection<String> keys) throws MessagingException {
+        if ((getLogger().isDebugEnabled())) {
+            String logBuffer = this.getClass().getName() + " Removing entry for key " + keys;
+
+            getLogger().debug(logBuffer);
+        }
+        lock.writeLock().lock();
         try {
-            lockMBox();
-        } catch (Exception e) {
-            getLogger().error("Lock failed!", e);
-            return; // No lock, so exit
+            loadIndex();
+            List<String> removed = new ArrayList<String>();
+            for (String key : keys) {
+                long[] entry = index.remove(key);
+                if (entry != null) {
+                    deletedBytes += entry[1];
+                    removed.add(key);
+                }
+            }
+            if (!removed.isEmpty()) {
+                appendIndexRecords(Collections.<String, long[]>emptyMap(), removed);
+                if (needsCompaction()) {
+                    scheduleCompaction();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean needsCompaction() {
+        return deletedBytes >= MINCOMPACTIONBYTES && deletedBytes >= compactionRatio * indexedLength;
+    }
+
+    private synchronized void scheduleCompaction() {
+        if (compactionScheduled) {
+            return;
+        }
+        if (compactor == null) {
+            compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "MBoxCompaction-" + new File(mboxFile).getName());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
         }
-        ArrayList<Mail> keys = new ArrayList<Mail>();
-        keys.add(retrieve(key));
+        compactionScheduled = true;
+        compactor.execute(new Runnable() {
+            public void run() {
+                synchronized (MBoxMailRepository.this) {
+                    compactionScheduled = false;
+                }
+                compact();
+            }
+        });
+    }
 
-        this.remove(keys);
-        unlockMBox();
+    /**
+     * Copy the messages which are still in the index to a new mbox file,
+     * leaving out the removed ones, and replace the mbox file with it. The
+     * messages are copied without blocking the repository; the write lock is
+     * only taken to append the messages stored meanwhile and to swap in the
+     * new file and index, which leaves out the messages removed meanwhile.
+     */
+    public void compact() {
+        synchronized (compactionLock) {
+            Map<String, long[]> copiedIndex;
+            Map<String, long[]> snapshot;
+            long copiedLength;
+            lockIndexForRead();
+            try {
+                if (deletedBytes == 0) {
+                    return;
+                }
+                copiedIndex = index;
+                copiedLength = indexedLength;
+                snapshot = new LinkedHashMap<String, long[]>(index);
+            } finally {
+                lock.readLock().unlock();
+            }
+            try {
+                lockMBox();
+            } catch (Exception e) {
+                getLogger().error("Lock failed!", e);
+                return; // No lock, so exit
+            }
+            File workFile = new File(mboxFile + WORKEXT);
+            boolean swapped = false;
+            try {
+                List<Map.Entry<String, long[]>> entries = new ArrayList<Map.Entry<String, long[]>>(snapshot.entrySet());
+                Collections.sort(entries, new Comparator<Map.Entry<String, long[]>>() {
+                    public int compare(Map.Entry<String, long[]> e1, Map.Entry<String, long[]> e2) {
+                        return e1.getValue()[0] < e2.getValue()[0] ? -1 : (e1.getValue()[0] == e2.getValue()[0] ? 0 : 1);
+                    }
+                });
+                Map<String, Long> moved = new HashMap<String, Long>();
+                RandomAccessFile outputFile = new RandomAccessFile(workFile, "rw");
+                try {
+                    outputFile.setLength(0);
+                    FileChannel out = outputFile.getChannel();
+                    RandomAccessFile ins = new RandomAccessFile(mboxFile, "r");
+                    try {
+                        for (Map.Entry<String, long[]> entry : entries) {
+                            moved.put(entry.getKey(), out.position());
+                            transfer(ins.getChannel(), entry.getValue()[0], entry.getValue()[1], out);
+                        }
+                    } finally {
+                        ins.close();
+                    }
+
+                    lock.writeLock().lock();
+                    try {
+                        if (index != copiedIndex || new File(mboxFile).length() != indexedLength) {
+                            getLogger().info("The index of " + mboxFile + " was reloaded during the compaction, keeping the mbox file");
+                            return;
+                        }
+                        // append the messages stored during the copy
+                        long shift = out.position() - copiedLength;
+                        ins = new RandomAccessFile(mboxFile, "r");
+                        try {
+                            transfer(ins.getChannel(), copiedLength, indexedLength - copiedLength, out);
+                        } finally {
+                            ins.close();
+                        }
+                        out.force(true);
+                        long position = out.position();
+                        outputFile.close();
+
+                        Map<String, long[]> newIndex = new LinkedHashMap<String, long[]>();
+                        long live = 0;
+                        for (Map.Entry<String, long[]> entry : index.entrySet()) {
+                            long offset = entry.getValue()[0];
+                            long length = entry.getValue()[1];
+                            Long newOffset = offset < copiedLength ? moved.get(entry.getKey()) : Long.valueOf(offset + shift);
+                            if (newOffset == null) {
+                                throw new IOException("Message " + entry.getKey() + " was not copied from " + mboxFile);
+                            }
+                            newIndex.put(entry.getKey(), new long[] { newOffset, length });
+                            live += length;
+                        }
+
+                        try {
+                            // Delete the old mbox file
+                            File mbox = new File(mboxFile);
+                            FileUtils.forceDelete(mbox);
+                            swapped = true;
+                            // And rename the work file to be the new mbox
+                            if (!workFile.renameTo(mbox)) {
+                                throw new IOException("Failed to rename file " + workFile + " -> " + mboxFile);
+                            }
+                        } catch (IOException e) {
+                            index = null;
+                            throw e;
+                        }
+                        // the messages removed during the copy are still in
+                        // the new mbox file
+                        index = newIndex;
+                        indexedLength = position;
+                        deletedBytes = position - live;
+                        try {
+                            writeIndexFile();
+                        } catch (IOException e) {
+                            getLogger().warn("Unable to write index " + mboxFile + INDEXEXT, e);
+                            // it will be rebuilt from the compacted mbox file
+                            deleteIndexFile();
+                        }
+                        if ((getLogger().isDebugEnabled())) {
+                            getLogger().debug(this.getClass().getName() + " Compacted " + mboxFile + " to " + position + " bytes");
+                        }
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                } finally {
+                    outputFile.close();
+                }
+            } catch (IOException e) {
+                getLogger().error("Unable to compact file (General I/O problem) " + mboxFile, e);
+            } finally {
+                if (!swapped) {
+                    FileUtils.deleteQuietly(workFile);
+                }
+                unlockMBox();
+            }
+        }
+    }
+
+    /**
+     * Copy a range of the mbox file to the end of the given channel
+     */
+    private void transfer(FileChannel in, long offset, long length, FileChannel out) throws IOException {
+        long copied = 0;
+        while (copied < length) {
+            long count = in.transferTo(offset + copied, length - copied, out);
+            if (count <= 0) {
+                throw new IOException("Unexpected end of file " + mboxFile);
+            }
+            copied += count;
+        }
     }
 
     /**
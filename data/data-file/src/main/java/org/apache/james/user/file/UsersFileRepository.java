@@ -206,6 +206,7 @@ public class UsersFileRepository extends AbstractJamesUsersRepository {
      */
     public synchronized void removeUser(String name) throws UsersRepositoryException {
         objectRepository.remove(name);
+        invalidateAuthentication(name);
     }
 
     /**
@@ -238,15 +239,15 @@ public class UsersFileRepository extends AbstractJamesUsersRepository {
      *      java.lang.String)
      */
     public boolean test(String name, String password) throws UsersRepositoryException {
-        User user;
-        try {
-            user = getUserByName(name);
-            if (user == null)
-                return false;
-        } catch (Exception e) {
-            throw new RuntimeException("Exception retrieving User" + e);
-        }
-        return user.verifyPassword(password);
+        return testPassword(name, password, new UserLoader() {
+            public User load(String name) throws UsersRepositoryException {
+                try {
+                    return getUserByName(name);
+                } catch (Exception e) {
+                    throw new RuntimeException("Exception retrieving User" + e);
+                }
+            }
+        });
     }
 
     /**
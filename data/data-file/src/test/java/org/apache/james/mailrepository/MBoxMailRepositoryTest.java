@@ -18,14 +18,31 @@
  ****************************************************************/
 package org.apache.james.mailrepository;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
 import org.apache.commons.configuration.DefaultConfigurationBuilder;
+import org.apache.commons.io.FileUtils;
+import org.apache.james.core.MailImpl;
 import org.apache.james.filesystem.api.mock.MockFileSystem;
 import org.apache.james.mailrepository.api.MailRepository;
 import org.apache.james.mailrepository.file.MBoxMailRepository;
+import org.apache.mailet.Mail;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.LoggerFactory;
 
@@ -38,6 +55,20 @@ import org.slf4j.LoggerFactory;
  */
 public class MBoxMailRepositoryTest {
 
+    private File tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = File.createTempFile("mbox", "test");
+        tempDir.delete();
+        tempDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
     protected MailRepository getMailRepository() throws Exception {
         MBoxMailRepository mr = new MBoxMailRepository();
 
@@ -54,6 +85,44 @@ public class MBoxMailRepositoryTest {
         return mr;
     }
 
+    private MBoxMailRepository getTempMailRepository() throws Exception {
+        return getTempMailRepository(0.5);
+    }
+
+    private MBoxMailRepository getTempMailRepository(double compactionRatio) throws Exception {
+        MBoxMailRepository mr = new MBoxMailRepository();
+
+        DefaultConfigurationBuilder defaultConfiguration = new DefaultConfigurationBuilder();
+        defaultConfiguration.addProperty("[@destinationURL]", "mbox://" + new File(tempDir, "Inbox").getPath());
+        defaultConfiguration.addProperty("[@type]", "MAIL");
+        defaultConfiguration.addProperty("[@compactionRatio]", compactionRatio);
+        mr.setLog(LoggerFactory.getLogger("MockLog"));
+        mr.configure(defaultConfiguration);
+
+        return mr;
+    }
+
+    private Mail createMail(int i, int bodySize) throws Exception {
+        StringBuilder body = new StringBuilder();
+        while (body.length() < bodySize) {
+            body.append("Line of the body of message ").append(i).append("\r\n");
+        }
+        String content = "Subject: test " + i + "\r\nFrom: sender@domain.com\r\n\r\n" + body;
+        MimeMessage message = new MimeMessage(Session.getDefaultInstance(new Properties()), new ByteArrayInputStream(content.getBytes()));
+        MailImpl mail = new MailImpl();
+        mail.setName("mail" + i);
+        mail.setMessage(message);
+        return mail;
+    }
+
+    private Set<String> keys(MailRepository mr) throws Exception {
+        Set<String> keys = new HashSet<String>();
+        for (Iterator<String> i = mr.list(); i.hasNext();) {
+            keys.add(i.next());
+        }
+        return keys;
+    }
+
     // Try to write a unit test for JAMES-744. At the moment it seems that we
     // cannot reproduce it.
     @Test
@@ -71,6 +140,104 @@ public class MBoxMailRepositoryTest {
         assertFalse("No messages", keys.hasNext());
     }
 
+    @Test
+    public void testStoreRetrieveRemove() throws Exception {
+        MBoxMailRepository mr = getTempMailRepository();
+        mr.store(createMail(1, 100));
+        mr.store(createMail(2, 100));
+
+        Set<String> keys = keys(mr);
+        assertEquals(2, keys.size());
+        Set<String> subjects = new HashSet<String>();
+        for (String key : keys) {
+            Mail mail = mr.retrieve(key);
+            assertNotNull(mail);
+            subjects.add(mail.getMessage().getSubject());
+        }
+        assertTrue(subjects.contains("test 1"));
+        assertTrue(subjects.contains("test 2"));
+
+        String removed = keys.iterator().next();
+        mr.remove(removed);
+        assertNull(mr.retrieve(removed));
+        assertEquals(1, keys(mr).size());
+    }
+
+    @Test
+    public void testReloadIndex() throws Exception {
+        MBoxMailRepository mr = getTempMailRepository();
+        List<Mail> mails = new ArrayList<Mail>();
+        for (int i = 0; i < 5; i++) {
+            mails.add(createMail(i, 100));
+        }
+        mr.storeAll(mails);
+        Set<String> keys = keys(mr);
+
+        new File(tempDir, "Inbox.idx").delete();
+        MBoxMailRepository rebuilt = getTempMailRepository();
+        assertEquals("The mbox is indexed again", keys, keys(rebuilt));
+        for (String key : keys) {
+            assertNotNull(rebuilt.retrieve(key));
+        }
+
+        String removed = keys.iterator().next();
+        rebuilt.remove(removed);
+        keys.remove(removed);
+
+        assertTrue(new File(tempDir, "Inbox.idx").exists());
+        assertEquals("The index survives a restart", keys, keys(getTempMailRepository()));
+    }
+
+    @Test
+    public void testRemoveWhenIndexCanNotBeAppended() throws Exception {
+        MBoxMailRepository mr = getTempMailRepository();
+        List<Mail> mails = new ArrayList<Mail>();
+        for (int i = 0; i < 5; i++) {
+            mails.add(createMail(i, 100));
+        }
+        mr.storeAll(mails);
+        Set<String> keys = keys(mr);
+
+        // appending to a directory fails, the index is written again instead
+        File indexFile = new File(tempDir, "Inbox.idx");
+        assertTrue(indexFile.delete());
+        assertTrue(indexFile.mkdir());
+        String removed = keys.iterator().next();
+        mr.remove(removed);
+        keys.remove(removed);
+
+        assertTrue(indexFile.isFile());
+        assertEquals("The removed message does not come back", keys, keys(getTempMailRepository()));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        // no background compaction, it is started by the test
+        MBoxMailRepository mr = getTempMailRepository(1.0);
+        Collection<Mail> mails = new ArrayList<Mail>();
+        for (int i = 0; i < 40; i++) {
+            mails.add(createMail(i, 4000));
+        }
+        mr.storeAll(mails);
+        File mbox = new File(tempDir, "Inbox");
+        long length = mbox.length();
+
+        List<String> keys = new ArrayList<String>(keys(mr));
+        List<String> removed = keys.subList(0, 30);
+        Set<String> kept = new HashSet<String>(keys.subList(30, 40));
+        mr.removeAll(removed);
+        assertEquals("Removing only updates the index", length, mbox.length());
+
+        mr.compact();
+        assertTrue(mbox.length() < length / 2);
+        assertEquals(kept, keys(mr));
+        assertEquals(kept, keys(getTempMailRepository()));
+        for (String key : kept) {
+            assertNotNull(mr.retrieve(key));
+        }
+        mr.dispose();
+    }
+
     /*
      * public void runBare() throws Throwable {
      * System.err.println("TEST DISABLED!"); // Decomment this or remove this
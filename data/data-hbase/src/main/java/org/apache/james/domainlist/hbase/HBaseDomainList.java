@@ -29,6 +29,7 @@ import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.james.domainlist.api.DomainListException;
 import org.apache.james.domainlist.hbase.def.HDomainList;
@@ -48,10 +49,10 @@ public class HBaseDomainList extends AbstractDomainList {
     private static final Logger log = LoggerFactory.getLogger(HBaseDomainList.class.getName());
 
     /**
-     * @see org.apache.james.domainlist.api.DomainList#containsDomain(String)
+     * @see org.apache.james.domainlist.lib.AbstractDomainList#containsDomainInternal(String)
      */
     @Override
-    public boolean containsDomain(String domain) throws DomainListException {
+    protected boolean containsDomainInternal(String domain) throws DomainListException {
         HTable table = null;
         try {
             table = TablePool.getInstance().getDomainlistTable();
@@ -66,7 +67,7 @@ public class HBaseDomainList extends AbstractDomainList {
         } finally {
             if (table != null) {
                 try {
-                    table.close();
+                    TablePool.getInstance().putTable(table);
                 } catch (IOException e) {
                     // Do nothing, we can't get access to the HBaseSchema.
                 }
@@ -76,12 +77,12 @@ public class HBaseDomainList extends AbstractDomainList {
     }
 
     /**
-     * @see org.apache.james.domainlist.api.DomainList#addDomain(String)
+     * @see org.apache.james.domainlist.lib.AbstractDomainList#addDomainInternal(String)
      */
     @Override
-    public void addDomain(String domain) throws DomainListException {
+    protected void addDomainInternal(String domain) throws DomainListException {
         String lowerCasedDomain = domain.toLowerCase();
-        if (containsDomain(lowerCasedDomain)) {
+        if (containsDomainInternal(lowerCasedDomain)) {
             throw new DomainListException(lowerCasedDomain + " already exists.");
         }
         HTable table = null;
@@ -97,7 +98,7 @@ public class HBaseDomainList extends AbstractDomainList {
         } finally {
             if (table != null) {
                 try {
-                    table.close();
+                    TablePool.getInstance().putTable(table);
                 } catch (IOException e) {
                     // Do nothing, we can't get access to the HBaseSchema.
                 }
@@ -106,7 +107,7 @@ public class HBaseDomainList extends AbstractDomainList {
     }
 
     @Override
-    public void removeDomain(String domain) throws DomainListException {
+    protected void removeDomainInternal(String domain) throws DomainListException {
         HTable table = null;
         try {
             table = TablePool.getInstance().getDomainlistTable();
@@ -119,7 +120,7 @@ public class HBaseDomainList extends AbstractDomainList {
         } finally {
             if (table != null) {
                 try {
-                    table.close();
+                    TablePool.getInstance().putTable(table);
                 } catch (IOException e) {
                     // Do nothing, we can't get access to the HBaseSchema.
                 }
@@ -138,8 +139,10 @@ public class HBaseDomainList extends AbstractDomainList {
         try {
             table = TablePool.getInstance().getDomainlistTable();
             Scan scan = new Scan();
-            scan.addFamily(HDomainList.COLUMN_FAMILY_NAME);
-            scan.setCaching(table.getScannerCaching() * 2);
+            scan.addColumn(HDomainList.COLUMN_FAMILY_NAME, HDomainList.COLUMN.DOMAIN);
+            scan.setFilter(new FirstKeyOnlyFilter());
+            scan.setCaching(table.getScannerCaching());
+            scan.setCacheBlocks(false);
             resultScanner = table.getScanner(scan);
             Result result;
             while ((result = resultScanner.next()) != null) {
@@ -154,7 +157,7 @@ public class HBaseDomainList extends AbstractDomainList {
             }
             if (table != null) {
                 try {
-                    table.close();
+                    TablePool.getInstance().putTable(table);
                 } catch (IOException e) {
                     // Do nothing, we can't get access to the HBaseSchema.
                 }
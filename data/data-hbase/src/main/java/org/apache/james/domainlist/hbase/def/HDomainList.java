@@ -18,6 +18,7 @@
  ****************************************************************/
 package org.apache.james.domainlist.hbase.def;
 
+import org.apache.hadoop.hbase.regionserver.StoreFile;
 import org.apache.hadoop.hbase.util.Bytes;
 
 /**
@@ -30,6 +31,7 @@ public interface HDomainList {
 
     byte[] TABLE_NAME = Bytes.toBytes("JAMES_DOMAINLIST");
     byte[] COLUMN_FAMILY_NAME = Bytes.toBytes("JAMES_DOMAINLIST");
+    StoreFile.BloomType BLOOM_FILTER_TYPE = StoreFile.BloomType.ROW;
     
     public interface COLUMN {
         byte [] DOMAIN = Bytes.toBytes("dom");
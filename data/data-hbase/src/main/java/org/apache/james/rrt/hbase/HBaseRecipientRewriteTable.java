@@ -87,7 +87,7 @@ public class HBaseRecipientRewriteTable extends AbstractRecipientRewriteTable {
         } finally {
             if (table != null) {
                 try {
-                    table.close();
+                    TablePool.getInstance().putTable(table);
                 } catch (IOException e) {
                     // Do nothing, we can't get access to the HBaseSchema.
                 }
@@ -118,25 +118,20 @@ public class HBaseRecipientRewriteTable extends AbstractRecipientRewriteTable {
         try {
             table = TablePool.getInstance().getRecipientRewriteTable();
             Scan scan = new Scan();
-            scan.addFamily(HRecipientRewriteTable.COLUMN_FAMILY_NAME);
-            scan.setCaching(table.getScannerCaching() * 2);
+            scan.addColumn(HRecipientRewriteTable.COLUMN_FAMILY_NAME, HRecipientRewriteTable.COLUMN.MAPPING);
+            scan.setCaching(table.getScannerCaching());
+            scan.setCacheBlocks(false);
             resultScanner = table.getScanner(scan);
             Result result;
             while ((result = resultScanner.next()) != null) {
-                List<KeyValue> keyValues = result.list();
-                if (keyValues != null) {
-                    for (KeyValue keyValue : keyValues) {
-                        String email = Bytes.toString(keyValue.getRow());
-                        if (map == null) {
-                            map = new HashMap<String, Collection<String>>();
-                        }
-                        Collection<String> list = map.get(email);
-                        if (list == null) {
-                            list = new ArrayList<String>();
-                        }
-                        list.add(Bytes.toString(keyValue.getRow()));
-                        map.put(email, list);
+                KeyValue keyValue = result.getColumnLatest(HRecipientRewriteTable.COLUMN_FAMILY_NAME,
+                                                           HRecipientRewriteTable.COLUMN.MAPPING);
+                if (keyValue != null) {
+                    if (map == null) {
+                        map = new HashMap<String, Collection<String>>();
                     }
+                    map.put(Bytes.toString(keyValue.getRow()),
+                            RecipientRewriteTableUtil.mappingToCollection(Bytes.toString(keyValue.getValue())));
                 }
             }
         } catch (IOException e) {
@@ -148,7 +143,7 @@ public class HBaseRecipientRewriteTable extends AbstractRecipientRewriteTable {
             }
             if (table != null) {
                 try {
-                    table.close();
+                    TablePool.getInstance().putTable(table);
                 } catch (IOException e) {
                     // Do nothing, we can't get access to the HBaseSchema.
                 }
@@ -166,12 +161,15 @@ public class HBaseRecipientRewriteTable extends AbstractRecipientRewriteTable {
         String mappings = null;
         try {
             table = TablePool.getInstance().getRecipientRewriteTable();
-            mappings = getMapping(table, user, domain);
-            if (mappings == null) {
-                mappings = getMapping(table, WILDCARD, domain);
-            }
-            if (mappings == null) {
-                mappings = getMapping(table, user, WILDCARD);
+            // Fetch the exact and both wildcard rows in one round trip, most
+            // lookups miss all of them and the Bloom filters make misses cheap.
+            List<Get> gets = new ArrayList<Get>(3);
+            gets.add(newMappingGet(user, domain));
+            gets.add(newMappingGet(WILDCARD, domain));
+            gets.add(newMappingGet(user, WILDCARD));
+            Result[] results = table.get(gets);
+            for (int i = 0; i < results.length && mappings == null; i++) {
+                mappings = getMapping(results[i]);
             }
         } catch (IOException e) {
             log.error("Error while mapping address in HBase", e);
@@ -179,7 +177,7 @@ public class HBaseRecipientRewriteTable extends AbstractRecipientRewriteTable {
         } finally {
             if (table != null) {
                 try {
-                    table.close();
+                    TablePool.getInstance().putTable(table);
                 } catch (IOException e) {
                     // Do nothing, we can't get access to the HBaseSchema.
                 }
@@ -188,13 +186,20 @@ public class HBaseRecipientRewriteTable extends AbstractRecipientRewriteTable {
         return mappings;
     }
 
-    private String getMapping(HTable table, String user, String domain) throws IOException {
+    private Get newMappingGet(String user, String domain) {
         Get get = new Get(Bytes.toBytes(getRowKey(user, domain)));
-        Result result = table.get(get);
-        List<KeyValue> keyValues = result.getColumn(HRecipientRewriteTable.COLUMN_FAMILY_NAME,
-                                                    HRecipientRewriteTable.COLUMN.MAPPING);
-        if (keyValues.size() > 0) {
-            return Bytes.toString(keyValues.get(0).getValue());
+        get.addColumn(HRecipientRewriteTable.COLUMN_FAMILY_NAME, HRecipientRewriteTable.COLUMN.MAPPING);
+        return get;
+    }
+
+    private String getMapping(Result result) {
+        if (result == null) {
+            return null;
+        }
+        KeyValue keyValue = result.getColumnLatest(HRecipientRewriteTable.COLUMN_FAMILY_NAME,
+                                                   HRecipientRewriteTable.COLUMN.MAPPING);
+        if (keyValue != null) {
+            return Bytes.toString(keyValue.getValue());
         }
         return null;
     }
@@ -251,7 +256,7 @@ public class HBaseRecipientRewriteTable extends AbstractRecipientRewriteTable {
         } finally {
             if (table != null) {
                 try {
-                    table.close();
+                    TablePool.getInstance().putTable(table);
                 } catch (IOException e) {
                     // Do nothing, we can't get access to the HBaseSchema.
                 }
@@ -282,7 +287,7 @@ public class HBaseRecipientRewriteTable extends AbstractRecipientRewriteTable {
         } finally {
             if (table != null) {
                 try {
-                    table.close();
+                    TablePool.getInstance().putTable(table);
                 } catch (IOException e) {
                     // Do nothing, we can't get access to the HBaseSchema.
                 }
@@ -18,6 +18,7 @@
  ****************************************************************/
 package org.apache.james.rrt.hbase.def;
 
+import org.apache.hadoop.hbase.regionserver.StoreFile;
 import org.apache.hadoop.hbase.util.Bytes;
 
 /**
@@ -30,6 +31,7 @@ public interface HRecipientRewriteTable {
 
     byte[] TABLE_NAME = Bytes.toBytes("JAMES_RRT");
     byte[] COLUMN_FAMILY_NAME = Bytes.toBytes("JAMES_RRT");
+    StoreFile.BloomType BLOOM_FILTER_TYPE = StoreFile.BloomType.ROW;
 
     public interface COLUMN {
         byte [] MAPPING = Bytes.toBytes("map");
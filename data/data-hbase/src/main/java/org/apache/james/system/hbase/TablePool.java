@@ -19,13 +19,19 @@
 package org.apache.james.system.hbase;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.client.HBaseAdmin;
 import org.apache.hadoop.hbase.client.HTable;
-import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.james.domainlist.hbase.def.HDomainList;
 import org.apache.james.rrt.api.RecipientRewriteTable;
 import org.apache.james.rrt.hbase.def.HRecipientRewriteTable;
@@ -35,16 +41,42 @@ import org.apache.james.user.hbase.def.HUsersRepository;
 /**
  * Table Pool singleton to get the DomainList, RecipientRewriteTable and UserRepository HBase tables.
  *
+ * Every table handed out by this pool must be given back with {@link #putTable(HTable)} once
+ * the caller is done with it, so the {@link HTable} instances (and their executors and region
+ * caches) are reused instead of being created and closed for every operation.
+ *
+ * The pool can be tuned with the following properties of the {@link Configuration}:
+ * <ul>
+ * <li>james.hbase.table.pool.size: the count of idle tables kept per table name (default 100)</li>
+ * <li>james.hbase.client.write.buffer: the write buffer of the tables in bytes (default hbase.client.write.buffer)</li>
+ * <li>james.hbase.client.scanner.caching: the count of rows fetched per scanner call (default 100)</li>
+ * </ul>
+ *
+ * The tables have auto flush disabled, so callers must call {@link HTable#flushCommits()} after
+ * their puts. A list of puts given to {@link HTable#put(java.util.List)} is sent in one batch.
+ *
  * TODO Two getInstance methods are public, one for the impl, one for the tests. This is not good.
  */
 public class TablePool {
 
-    private static Configuration configuration;
-    private static TablePool hbaseSchema;
-    private static HTablePool htablePool;
+    public static final String POOL_SIZE = "james.hbase.table.pool.size";
+    public static final String WRITE_BUFFER = "james.hbase.client.write.buffer";
+    public static final String SCANNER_CACHING = "james.hbase.client.scanner.caching";
+
+    private static final int DEFAULT_POOL_SIZE = 100;
+    private static final long DEFAULT_WRITE_BUFFER = 2097152;
+    private static final int DEFAULT_SCANNER_CACHING = 100;
+
+    private static volatile TablePool hbaseSchema;
+
+    private final Configuration configuration;
+    private final int poolSize;
+    private final long writeBufferSize;
+    private final int scannerCaching;
+    private final Map<String, BlockingDeque<HTable>> tables = new HashMap<String, BlockingDeque<HTable>>();
 
     /**
-     * Use getInstance to get an instance of the {@link HTablePool}.
+     * Use getInstance to get an instance of the {@link TablePool}.
      *
      * Don't give any configuration, the default one will be used
      * via {@link HBaseConfiguration#create(Configuration)}.
@@ -55,73 +87,140 @@ public class TablePool {
      * @return An instance using a default configuration
      * @throws IOException
      */
-    public static synchronized TablePool getInstance() throws IOException {
+    public static TablePool getInstance() throws IOException {
+        TablePool pool = hbaseSchema;
+        if (pool != null) {
+            return pool;
+        }
         return getInstance(HBaseConfiguration.create());
     }
 
     /**
-     * Use getInstance to get an instance of the {@link HTablePool}.
+     * Use getInstance to get an instance of the {@link TablePool}.
      *
      * You can give at first call a specific {@link HBaseConfiguration} to suit your needs.
      *
      * @param configuration
-     * @return An instance of {@link HTablePool}
+     * @return An instance of {@link TablePool}
      * @throws IOException
      */
     public static synchronized TablePool getInstance(Configuration configuration) throws IOException {
         if (hbaseSchema == null) {
-            TablePool.configuration = configuration;
-            TablePool.hbaseSchema = new TablePool();
-            TablePool.htablePool = new HTablePool(configuration, 100);
-            ensureTable(HDomainList.TABLE_NAME, HDomainList.COLUMN_FAMILY_NAME);
-            ensureTable(HRecipientRewriteTable.TABLE_NAME, HRecipientRewriteTable.COLUMN_FAMILY_NAME);
-            ensureTable(HUsersRepository.TABLE_NAME, HUsersRepository.COLUMN_FAMILY_NAME);
+            TablePool pool = new TablePool(configuration);
+            pool.ensureTable(HDomainList.TABLE_NAME, HDomainList.COLUMN_FAMILY_NAME, HDomainList.BLOOM_FILTER_TYPE);
+            pool.ensureTable(HRecipientRewriteTable.TABLE_NAME, HRecipientRewriteTable.COLUMN_FAMILY_NAME,
+                    HRecipientRewriteTable.BLOOM_FILTER_TYPE);
+            pool.ensureTable(HUsersRepository.TABLE_NAME, HUsersRepository.COLUMN_FAMILY_NAME,
+                    HUsersRepository.BLOOM_FILTER_TYPE);
+            hbaseSchema = pool;
         }
         return hbaseSchema;
     }
 
+    private TablePool(Configuration configuration) {
+        this.configuration = configuration;
+        this.poolSize = configuration.getInt(POOL_SIZE, DEFAULT_POOL_SIZE);
+        this.writeBufferSize = configuration.getLong(WRITE_BUFFER,
+                configuration.getLong("hbase.client.write.buffer", DEFAULT_WRITE_BUFFER));
+        this.scannerCaching = configuration.getInt(SCANNER_CACHING, DEFAULT_SCANNER_CACHING);
+        tables.put(Bytes.toString(HDomainList.TABLE_NAME), new LinkedBlockingDeque<HTable>(poolSize));
+        tables.put(Bytes.toString(HRecipientRewriteTable.TABLE_NAME), new LinkedBlockingDeque<HTable>(poolSize));
+        tables.put(Bytes.toString(HUsersRepository.TABLE_NAME), new LinkedBlockingDeque<HTable>(poolSize));
+    }
+
     /**
      * Get an instance of the {@link HDomainList} table.
      *
      * @return An instance of {@link HDomainList}
+     * @throws IOException
      */
-    public HTable getDomainlistTable() {
-        return (HTable) htablePool.getTable(HDomainList.TABLE_NAME);
+    public HTable getDomainlistTable() throws IOException {
+        return getTable(HDomainList.TABLE_NAME);
     }
 
     /**
      * Get an instance of the RecipientRewriteTable table.
      *
      * @return An instance of {@link RecipientRewriteTable}
+     * @throws IOException
      */
-    public HTable getRecipientRewriteTable() {
-        return (HTable) htablePool.getTable(HRecipientRewriteTable.TABLE_NAME);
+    public HTable getRecipientRewriteTable() throws IOException {
+        return getTable(HRecipientRewriteTable.TABLE_NAME);
     }
 
     /**
      * Get an instance of the UsersRepository table.
      *
      * @return An instance of {@link UsersRepository}
+     * @throws IOException
+     */
+    public HTable getUsersRepositoryTable() throws IOException {
+        return getTable(HUsersRepository.TABLE_NAME);
+    }
+
+    /**
+     * Give back a table obtained from this pool. Pending puts are flushed first. The table is
+     * closed if the pool of its name is already full.
+     *
+     * @param table
+     * @throws IOException
      */
-    public HTable getUsersRepositoryTable() {
-        return (HTable) htablePool.getTable(HUsersRepository.TABLE_NAME);
+    public void putTable(HTable table) throws IOException {
+        BlockingDeque<HTable> idle = tables.get(Bytes.toString(table.getTableName()));
+        try {
+            table.flushCommits();
+        } catch (IOException e) {
+            table.close();
+            throw e;
+        }
+        if (idle == null || !idle.offerFirst(table)) {
+            table.close();
+        }
+    }
+
+    /**
+     * Take the most recently used idle table from the pool or create a new one.
+     *
+     * @param tableName
+     * @return table
+     * @throws IOException
+     */
+    private HTable getTable(byte[] tableName) throws IOException {
+        HTable table = tables.get(Bytes.toString(tableName)).pollFirst();
+        if (table == null) {
+            table = new HTable(configuration, tableName);
+            table.setAutoFlush(false);
+            table.setWriteBufferSize(writeBufferSize);
+            table.setScannerCaching(scannerCaching);
+        }
+        return table;
     }
 
     /**
      * Create a table if needed.
      *
+     * Existing tables are left untouched, so a Bloom filter type added to the
+     * definitions only applies to the tables created afterwards.
+     *
      * @param tableName
      * @param columnFamilyName
+     * @param bloomType
      * @throws IOException
      */
-    private static void ensureTable(byte[] tableName, byte[] columnFamilyName) throws IOException {
+    private void ensureTable(byte[] tableName, byte[] columnFamilyName, StoreFile.BloomType bloomType)
+            throws IOException {
         HBaseAdmin hbaseAdmin = new HBaseAdmin(configuration);
-        if (!hbaseAdmin.tableExists(tableName)) {
-            HTableDescriptor desc = new HTableDescriptor(tableName);
-            HColumnDescriptor hColumnDescriptor = new HColumnDescriptor(columnFamilyName);
-            hColumnDescriptor.setMaxVersions(1);
-            desc.addFamily(hColumnDescriptor);
-            hbaseAdmin.createTable(desc);
+        try {
+            if (!hbaseAdmin.tableExists(tableName)) {
+                HTableDescriptor desc = new HTableDescriptor(tableName);
+                HColumnDescriptor hColumnDescriptor = new HColumnDescriptor(columnFamilyName);
+                hColumnDescriptor.setMaxVersions(1);
+                hColumnDescriptor.setBloomFilterType(bloomType);
+                desc.addFamily(hColumnDescriptor);
+                hbaseAdmin.createTable(desc);
+            }
+        } finally {
+            hbaseAdmin.close();
         }
     }
 }
@@ -33,6 +33,7 @@ import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.james.system.hbase.TablePool;
 import org.apache.james.user.api.UsersRepositoryException;
@@ -95,6 +96,7 @@ public class HBaseUsersRepository extends AbstractUsersRepository {
             throw new UsersRepositoryException("Please provide an existing user to update");
         }
         putUser((DefaultUser) user, false);
+        invalidateAuthentication(user.getUserName());
     }
 
     /**
@@ -108,13 +110,14 @@ public class HBaseUsersRepository extends AbstractUsersRepository {
             Delete delete = new Delete(Bytes.toBytes(name));
             table.delete(delete);
             table.flushCommits();
+            invalidateAuthentication(name);
         } catch (IOException e) {
             log.error("Error while deleting user from HBase", e);
             throw new UsersRepositoryException("Error while deleting user from HBase", e);
         } finally {
             if (table != null) {
                 try {
-                    table.close();
+                    TablePool.getInstance().putTable(table);
                 } catch (IOException e) {
                     // Do nothing, we can't get access to the HBaseSchema.
                 }
@@ -136,13 +139,11 @@ public class HBaseUsersRepository extends AbstractUsersRepository {
      */
     @Override
     public boolean test(String name, String password) throws UsersRepositoryException {
-        KeyValue keyValue = getKeyValue(name);
-        if (keyValue != null) {
-            DefaultUser user = new DefaultUser(name, algo);
-            user.setPassword(password);
-            return Bytes.toString(keyValue.getValue()).equals(user.getHashedPassword());
-        }
-        return false;
+        return testPassword(name, password, new UserLoader() {
+            public User load(String name) throws UsersRepositoryException {
+                return getUserByName(name);
+            }
+        });
     }
 
     /**
@@ -155,8 +156,10 @@ public class HBaseUsersRepository extends AbstractUsersRepository {
         try {
             table = TablePool.getInstance().getUsersRepositoryTable();
             Scan scan = new Scan();
-            scan.addFamily(HUsersRepository.COLUMN_FAMILY_NAME);
-            scan.setCaching(table.getScannerCaching() * 2);
+            scan.addColumn(HUsersRepository.COLUMN_FAMILY_NAME, HUsersRepository.COLUMN.PWD);
+            scan.setFilter(new FirstKeyOnlyFilter());
+            scan.setCaching(table.getScannerCaching());
+            scan.setCacheBlocks(false);
             resultScanner = table.getScanner(scan);
             int resultCount = 0;
             Result result = null;
@@ -173,7 +176,7 @@ public class HBaseUsersRepository extends AbstractUsersRepository {
             }
             if (table != null) {
                 try {
-                    table.close();
+                    TablePool.getInstance().putTable(table);
                 } catch (IOException e) {
                     // Do nothing, we can't get access to the HBaseSchema.
                 }
@@ -192,8 +195,10 @@ public class HBaseUsersRepository extends AbstractUsersRepository {
         try {
             table = TablePool.getInstance().getUsersRepositoryTable();
             Scan scan = new Scan();
-            scan.addFamily(HUsersRepository.COLUMN_FAMILY_NAME);
-            scan.setCaching(table.getScannerCaching() * 2);
+            scan.addColumn(HUsersRepository.COLUMN_FAMILY_NAME, HUsersRepository.COLUMN.PWD);
+            scan.setFilter(new FirstKeyOnlyFilter());
+            scan.setCaching(table.getScannerCaching());
+            scan.setCacheBlocks(false);
             resultScanner = table.getScanner(scan);
             Result result;
             while ((result = resultScanner.next()) != null) {
@@ -208,7 +213,7 @@ public class HBaseUsersRepository extends AbstractUsersRepository {
             }
             if (table != null) {
                 try {
-                    table.close();
+                    TablePool.getInstance().putTable(table);
                 } catch (IOException e) {
                     // Do nothing, we can't get access to the HBaseSchema.
                 }
@@ -239,6 +244,7 @@ public class HBaseUsersRepository extends AbstractUsersRepository {
         try {
             table = TablePool.getInstance().getUsersRepositoryTable();
             Get get = new Get(Bytes.toBytes(username));
+            get.addColumn(HUsersRepository.COLUMN_FAMILY_NAME, HUsersRepository.COLUMN.PWD);
             Result result = table.get(get);
             KeyValue keyValue = result.getColumnLatest(HUsersRepository.COLUMN_FAMILY_NAME, HUsersRepository.COLUMN.PWD);
             return keyValue;
@@ -248,7 +254,7 @@ public class HBaseUsersRepository extends AbstractUsersRepository {
         } finally {
             if (table != null) {
                 try {
-                    table.close();
+                    TablePool.getInstance().putTable(table);
                 } catch (IOException e) {
                     // Do nothing, we can't get access to the HBaseSchema.
                 }
@@ -284,7 +290,7 @@ public class HBaseUsersRepository extends AbstractUsersRepository {
         } finally {
             if (table != null) {
                 try {
-                    table.close();
+                    TablePool.getInstance().putTable(table);
                 } catch (IOException e) {
                     // Do nothing, we can't get access to the HBaseSchema.
                 }
@@ -18,6 +18,7 @@
  ****************************************************************/
 package org.apache.james.user.hbase.def;
 
+import org.apache.hadoop.hbase.regionserver.StoreFile;
 import org.apache.hadoop.hbase.util.Bytes;
 
 /**
@@ -30,6 +31,7 @@ public interface HUsersRepository {
 
     byte[] TABLE_NAME = Bytes.toBytes("JAMES_USERS");
     byte[] COLUMN_FAMILY_NAME = Bytes.toBytes("JAMES_USERS");
+    StoreFile.BloomType BLOOM_FILTER_TYPE = StoreFile.BloomType.ROW;
     
     public interface COLUMN {
         byte [] PWD = Bytes.toBytes("pwd");
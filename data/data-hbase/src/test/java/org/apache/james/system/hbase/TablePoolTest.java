@@ -20,6 +20,7 @@ package org.apache.james.system.hbase;
 
 import java.io.IOException;
 import junit.framework.Assert;
+import org.apache.hadoop.hbase.client.HTable;
 import org.apache.james.mailbox.hbase.HBaseClusterSingleton;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -57,4 +58,11 @@ public class TablePoolTest {
     public void testGetUsersRepositoryTable() throws IOException {
         Assert.assertNotNull(TablePool.getInstance().getUsersRepositoryTable());
     }
+
+    @Test
+    public void testPutTableReusesTheTable() throws IOException {
+        HTable table = TablePool.getInstance().getUsersRepositoryTable();
+        TablePool.getInstance().putTable(table);
+        Assert.assertSame(table, TablePool.getInstance().getUsersRepositoryTable());
+    }
 }
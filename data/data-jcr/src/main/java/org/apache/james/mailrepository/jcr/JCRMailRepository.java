@@ -134,6 +134,45 @@ public class JCRMailRepository extends AbstractMailRepository implements MailRep
         }
     }
 
+    /**
+     * Lets the query order the nodes by name and start after the cursor, so
+     * a page only reads the nodes it returns. The names are compared in their
+     * escaped form, which only differs from the order of the keys for keys
+     * holding characters which are illegal in a node name.
+     * 
+     * @see org.apache.james.mailrepository.api.MailRepository#list(String, int)
+     */
+    public Iterator<String> list(String afterKey, int limit) throws MessagingException {
+        try {
+            Session session = login();
+            try {
+                StringBuilder statement = new StringBuilder("SELECT * FROM [james:mail] AS mail WHERE ISDESCENDANTNODE(mail, [/" + MAIL_PATH + "])");
+                if (afterKey != null) {
+                    statement.append(" AND NAME(mail) > $afterKey");
+                }
+                statement.append(" ORDER BY NAME(mail)");
+
+                QueryManager manager = session.getWorkspace().getQueryManager();
+                Query query = manager.createQuery(statement.toString(), Query.JCR_SQL2);
+                if (afterKey != null) {
+                    query.bindValue("afterKey", session.getValueFactory().createValue(Text.escapeIllegalJcrChars(afterKey), PropertyType.NAME));
+                }
+                query.setLimit(limit);
+
+                Collection<String> keys = new ArrayList<String>();
+                NodeIterator iterator = query.execute().getNodes();
+                while (iterator.hasNext()) {
+                    keys.add(Text.unescapeIllegalJcrChars(iterator.nextNode().getName()));
+                }
+                return keys.iterator();
+            } finally {
+                session.logout();
+            }
+        } catch (RepositoryException e) {
+            throw new MessagingException("Unable to list messages", e);
+        }
+    }
+
     public Mail retrieve(String key) throws MessagingException {
         try {
             Session session = login();
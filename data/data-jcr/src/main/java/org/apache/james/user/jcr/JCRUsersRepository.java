@@ -156,6 +156,7 @@ public class JCRUsersRepository extends AbstractUsersRepository {
                         final String hashedSaltedPassword = jcrUser.getHashedSaltedPassword();
                         rootNode.getNode(path).setProperty(PASSWD_PROPERTY, hashedSaltedPassword);
                         session.save();
+                        invalidateAuthentication(userName);
                     } catch (PathNotFoundException e) {
                         // user not found
                         getLogger().debug("User not found");
@@ -191,6 +192,7 @@ public class JCRUsersRepository extends AbstractUsersRepository {
                 try {
                     session.getRootNode().getNode(path).remove();
                     session.save();
+                    invalidateAuthentication(username);
                 } catch (PathNotFoundException e) {
                     // user not found
                     throw new UsersRepositoryException("User " + username + " not exists");
@@ -254,6 +256,24 @@ public class JCRUsersRepository extends AbstractUsersRepository {
      * @since James 1.2.2
      */
     public boolean test(String username, String password) throws UsersRepositoryException {
+        return testPassword(username, password, new UserLoader() {
+            public User load(String name) throws UsersRepositoryException {
+                return loadUser(name);
+            }
+        });
+    }
+
+    /**
+     * Load the user to test the password of. Unlike
+     * {@link #getUserByName(String)} a failure to access the repository is
+     * reported.
+     * 
+     * @param username
+     *            the name of the user to load
+     * @return the user, null if the user doesn't exist
+     * @throws UsersRepositoryException
+     */
+    private User loadUser(String username) throws UsersRepositoryException {
         try {
             final Session session = login();
             try {
@@ -263,16 +283,11 @@ public class JCRUsersRepository extends AbstractUsersRepository {
 
                 try {
                     final Node node = rootNode.getNode(path);
-                    final String current = node.getProperty(PASSWD_PROPERTY).getString();
-                    if (current == null || current.equals("")) {
-                        return password == null || password.equals("");
-                    }
-                    final String hashPassword = JCRUser.hashPassword(username, password);
-                    return current.equals(hashPassword);
+                    return new JCRUser(username, node.getProperty(PASSWD_PROPERTY).getString());
                 } catch (PathNotFoundException e) {
                     // user not found
                     getLogger().debug("User not found");
-                    return false;
+                    return null;
                 }
             } finally {
                 session.logout();
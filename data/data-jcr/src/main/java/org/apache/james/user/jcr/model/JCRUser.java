@@ -84,7 +84,12 @@ public class JCRUser implements User {
 
     public boolean verifyPassword(String pass) {
         final boolean result;
-        result = pass != null && hashedSaltedPassword.equals(hashPassword(userName, pass));
+        if (hashedSaltedPassword == null || hashedSaltedPassword.equals("")) {
+            // no password set
+            result = pass == null || pass.equals("");
+        } else {
+            result = pass != null && hashedSaltedPassword.equals(hashPassword(userName, pass));
+        }
         return result;
     }
 }
@@ -33,6 +33,8 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -51,11 +53,14 @@ import javax.sql.DataSource;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.DefaultConfigurationBuilder;
 import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.james.core.MailAttributesSource;
 import org.apache.james.core.MailImpl;
 import org.apache.james.core.MimeMessageCopyOnWriteProxy;
 import org.apache.james.core.MimeMessageWrapper;
 import org.apache.james.filesystem.api.FileSystem;
 import org.apache.james.mailrepository.lib.AbstractMailRepository;
+import org.apache.james.mailrepository.lib.KeyPage;
+import org.apache.james.mailrepository.lib.PagingKeyIterator;
 import org.apache.james.repository.file.FilePersistentStreamRepository;
 import org.apache.james.util.sql.JDBCUtil;
 import org.apache.james.util.sql.SqlResources;
@@ -91,6 +96,11 @@ import org.apache.mailet.MailAddress;
  */
 public class JDBCMailRepository extends AbstractMailRepository {
 
+    /**
+     * The count of statements sent to the database in one JDBC batch
+     */
+    private static final int BATCH_SIZE = 100;
+
     /**
      * The table name parsed from the destination URL
      */
@@ -211,7 +221,7 @@ public class JDBCMailRepository extends AbstractMailRepository {
             getLogger().debug(logBuffer);
         }
 
-        inMemorySizeLimit = configuration.getInt("inMemorySizeLimit", 409600000);
+        inMemorySizeLimit = configuration.getInt("inMemorySizeLimit", 409600);
 
         filestore = configuration.getString("filestore", null);
         sqlFileName = configuration.getString("sqlFile");
@@ -396,218 +406,303 @@ public class JDBCMailRepository extends AbstractMailRepository {
      * @see org.apache.james.mailrepository.lib.AbstractMailRepository#internalStore(Mail)
      */
     protected void internalStore(Mail mc) throws IOException, MessagingException {
+        internalStoreAll(Collections.singletonList(mc));
+    }
+
+    /**
+     * Stores all mails in a single transaction. The existence checks reuse one
+     * statement, and the inserts of new mails are sent as JDBC batches of
+     * {@link #BATCH_SIZE} statements.
+     * 
+     * @see org.apache.james.mailrepository.lib.AbstractMailRepository#internalStoreAll(Collection)
+     */
+    protected void internalStoreAll(Collection<Mail> mails) throws IOException, MessagingException {
         Connection conn = null;
+        PreparedStatement checkMessageExists = null;
+        PreparedStatement insertMessage = null;
         try {
             conn = datasource.getConnection();
-            // Need to determine whether need to insert this record, or update
-            // it.
-
-            // Determine whether the message body has changed, and possibly
-            // avoid
-            // updating the database.
-            boolean saveBody;
-
-            MimeMessage messageBody = mc.getMessage();
-            // if the message is a CopyOnWrite proxy we check the modified
-            // wrapped object.
-            if (messageBody instanceof MimeMessageCopyOnWriteProxy) {
-                MimeMessageCopyOnWriteProxy messageCow = (MimeMessageCopyOnWriteProxy) messageBody;
-                messageBody = messageCow.getWrappedMessage();
-            }
-            if (messageBody instanceof MimeMessageWrapper) {
-                MimeMessageWrapper message = (MimeMessageWrapper) messageBody;
-                saveBody = message.isModified();
-                if (saveBody) {
-                    message.loadMessage();
-                }
-            } else {
-                saveBody = true;
-            }
-            MessageInputStream is = new MessageInputStream(mc, sr, inMemorySizeLimit, true);
 
             // Begin a transaction
             conn.setAutoCommit(false);
 
-            PreparedStatement checkMessageExists = null;
-            ResultSet rsExists = null;
-            boolean exists = false;
-            try {
-                checkMessageExists = conn.prepareStatement(sqlQueries.getSqlString("checkMessageExistsSQL", true));
-                checkMessageExists.setString(1, mc.getName());
-                checkMessageExists.setString(2, repositoryName);
-                rsExists = checkMessageExists.executeQuery();
-                exists = rsExists.next() && rsExists.getInt(1) > 0;
-            } finally {
-                theJDBCUtil.closeJDBCResultSet(rsExists);
-                theJDBCUtil.closeJDBCStatement(checkMessageExists);
-            }
-
-            if (exists) {
-                // MessageInputStream is = new
-                // MessageInputStream(mc,sr,inMemorySizeLimit, true);
-
-                // Update the existing record
-                PreparedStatement updateMessage = null;
+            checkMessageExists = conn.prepareStatement(sqlQueries.getSqlString("checkMessageExistsSQL", true));
+            String insertMessageSQL = sqlQueries.getSqlString("insertMessageSQL", true);
+            int numberOfParameters = getNumberOfParameters(insertMessageSQL);
+            // names of the mails in the pending batch, which the existence
+            // check can not see yet
+            Set<String> batched = new HashSet<String>();
+
+            for (Mail mc : mails) {
+                if (batched.contains(mc.getName())) {
+                    insertMessage.executeBatch();
+                    batched.clear();
+                }
 
+                // Determine whether the message body has changed, and possibly
+                // avoid
+                // updating the database.
+                boolean saveBody;
+
+                MimeMessage messageBody = mc.getMessage();
+                // if the message is a CopyOnWrite proxy we check the modified
+                // wrapped object.
+                if (messageBody instanceof MimeMessageCopyOnWriteProxy) {
+                    MimeMessageCopyOnWriteProxy messageCow = (MimeMessageCopyOnWriteProxy) messageBody;
+                    messageBody = messageCow.getWrappedMessage();
+                }
+                // a message read from the record which gets overwritten has to
+                // be loaded before, any other one is streamed from its source
+                boolean ownSource = false;
+                if (messageBody instanceof MimeMessageWrapper) {
+                    MimeMessageWrapper message = (MimeMessageWrapper) messageBody;
+                    saveBody = message.isModified();
+                    ownSource = (repositoryName + "/" + mc.getName()).equals(message.getSourceId());
+                    if (saveBody && ownSource) {
+                        message.loadMessage();
+                    }
+                } else {
+                    saveBody = true;
+                }
+                // Need to determine whether need to insert this record, or
+                // update it.
+                boolean exists = exists(checkMessageExists, mc);
+                if (exists && !saveBody && ownSource) {
+                    // the stored body is still current, so it is not read at
+                    // all
+                    updateMessage(conn, mc, false, null);
+                    continue;
+                }
+                MessageInputStream is = new MessageInputStream(mc, sr, inMemorySizeLimit, ownSource);
                 try {
-                    updateMessage = conn.prepareStatement(sqlQueries.getSqlString("updateMessageSQL", true));
-                    updateMessage.setString(1, mc.getState());
-                    updateMessage.setString(2, mc.getErrorMessage());
-                    if (mc.getSender() == null) {
-                        updateMessage.setNull(3, java.sql.Types.VARCHAR);
+                    if (exists) {
+                        updateMessage(conn, mc, saveBody, is);
                     } else {
-                        updateMessage.setString(3, mc.getSender().toString());
-                    }
-                    StringBuilder recipients = new StringBuilder();
-                    for (Iterator<MailAddress> i = mc.getRecipients().iterator(); i.hasNext();) {
-                        recipients.append(i.next().toString());
-                        if (i.hasNext()) {
-                            recipients.append("\r\n");
+                        if (insertMessage == null) {
+                            insertMessage = conn.prepareStatement(insertMessageSQL);
                         }
-                    }
-                    updateMessage.setString(4, recipients.toString());
-                    updateMessage.setString(5, mc.getRemoteHost());
-                    updateMessage.setString(6, mc.getRemoteAddr());
-                    updateMessage.setTimestamp(7, new java.sql.Timestamp(mc.getLastUpdated().getTime()));
-                    updateMessage.setString(8, mc.getName());
-                    updateMessage.setString(9, repositoryName);
-                    updateMessage.execute();
-                } finally {
-                    Statement localUpdateMessage = updateMessage;
-                    // Clear reference to statement
-                    updateMessage = null;
-                    theJDBCUtil.closeJDBCStatement(localUpdateMessage);
-                }
-
-                // Determine whether attributes are used and available for
-                // storing
-                if (jdbcMailAttributesReady && mc.hasAttributes()) {
-                    String updateMessageAttrSql = sqlQueries.getSqlString("updateMessageAttributesSQL", false);
-                    PreparedStatement updateMessageAttr = null;
-                    try {
-                        updateMessageAttr = conn.prepareStatement(updateMessageAttrSql);
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        ObjectOutputStream oos = new ObjectOutputStream(baos);
-                        try {
-                            if (mc instanceof MailImpl) {
-                                oos.writeObject(((MailImpl) mc).getAttributesRaw());
-                            } else {
-                                HashMap temp = new HashMap();
-                                for (Iterator i = mc.getAttributeNames(); i.hasNext();) {
-                                    String hashKey = (String) i.next();
-                                    temp.put(hashKey, mc.getAttribute(hashKey));
-                                }
-                                oos.writeObject(temp);
+                        bindInsertMessage(insertMessage, mc, is, numberOfParameters);
+                        if (is.isInMemory()) {
+                            insertMessage.addBatch();
+                            batched.add(mc.getName());
+                            if (batched.size() >= BATCH_SIZE) {
+                                insertMessage.executeBatch();
+                                batched.clear();
                             }
-                            oos.flush();
-                            ByteArrayInputStream attrInputStream = new ByteArrayInputStream(baos.toByteArray());
-                            updateMessageAttr.setBinaryStream(1, attrInputStream, baos.size());
-                        } finally {
-                            try {
-                                if (oos != null) {
-                                    oos.close();
-                                }
-                            } catch (IOException ioe) {
-                                getLogger().debug("JDBCMailRepository: Unexpected exception while closing output stream.", ioe);
+                        } else {
+                            // the body is read from a file or the message
+                            // source, which should not stay open for the whole
+                            // batch
+                            if (!batched.isEmpty()) {
+                                insertMessage.executeBatch();
+                                batched.clear();
                             }
+                            insertMessage.execute();
                         }
-                        updateMessageAttr.setString(2, mc.getName());
-                        updateMessageAttr.setString(3, repositoryName);
-                        updateMessageAttr.execute();
-                    } catch (SQLException sqle) {
-                        getLogger().info("JDBCMailRepository: Trying to update mail attributes failed.", sqle);
-
-                    } finally {
-                        theJDBCUtil.closeJDBCStatement(updateMessageAttr);
+                    }
+                } finally {
+                    // streams in a pending batch are still to be read
+                    if (!is.isInMemory()) {
+                        is.dispose();
                     }
                 }
+            }
+            if (!batched.isEmpty()) {
+                insertMessage.executeBatch();
+            }
 
-                if (saveBody) {
+            conn.commit();
+            conn.setAutoCommit(true);
+        } catch (SQLException e) {
+            getLogger().debug("Failed to store internal mail", e);
+            rollback(conn);
+            throw new IOException(e.getMessage());
+        } finally {
+            theJDBCUtil.closeJDBCStatement(checkMessageExists);
+            theJDBCUtil.closeJDBCStatement(insertMessage);
+            theJDBCUtil.closeJDBCConnection(conn);
+        }
+    }
 
-                    PreparedStatement updateMessageBody = conn.prepareStatement(sqlQueries.getSqlString("updateMessageBodySQL", true));
-                    try {
-                        updateMessageBody.setBinaryStream(1, is, (int) is.getSize());
-                        updateMessageBody.setString(2, mc.getName());
-                        updateMessageBody.setString(3, repositoryName);
-                        updateMessageBody.execute();
+    private boolean exists(PreparedStatement checkMessageExists, Mail mc) throws SQLException {
+        ResultSet rsExists = null;
+        try {
+            checkMessageExists.setString(1, mc.getName());
+            checkMessageExists.setString(2, repositoryName);
+            rsExists = checkMessageExists.executeQuery();
+            return rsExists.next() && rsExists.getInt(1) > 0;
+        } finally {
+            theJDBCUtil.closeJDBCResultSet(rsExists);
+        }
+    }
 
-                    } finally {
-                        theJDBCUtil.closeJDBCStatement(updateMessageBody);
-                    }
-                }
+    private void updateMessage(Connection conn, Mail mc, boolean saveBody, MessageInputStream is) throws SQLException, IOException {
+        // Update the existing record
+        PreparedStatement updateMessage = null;
 
+        try {
+            updateMessage = conn.prepareStatement(sqlQueries.getSqlString("updateMessageSQL", true));
+            updateMessage.setString(1, mc.getState());
+            updateMessage.setString(2, mc.getErrorMessage());
+            if (mc.getSender() == null) {
+                updateMessage.setNull(3, java.sql.Types.VARCHAR);
             } else {
-                // Insert the record into the database
-                PreparedStatement insertMessage = null;
+                updateMessage.setString(3, mc.getSender().toString());
+            }
+            StringBuilder recipients = new StringBuilder();
+            for (Iterator<MailAddress> i = mc.getRecipients().iterator(); i.hasNext();) {
+                recipients.append(i.next().toString());
+                if (i.hasNext()) {
+                    recipients.append("\r\n");
+                }
+            }
+            updateMessage.setString(4, recipients.toString());
+            updateMessage.setString(5, mc.getRemoteHost());
+            updateMessage.setString(6, mc.getRemoteAddr());
+            updateMessage.setTimestamp(7, new java.sql.Timestamp(mc.getLastUpdated().getTime()));
+            updateMessage.setString(8, mc.getName());
+            updateMessage.setString(9, repositoryName);
+            updateMessage.execute();
+        } finally {
+            Statement localUpdateMessage = updateMessage;
+            // Clear reference to statement
+            updateMessage = null;
+            theJDBCUtil.closeJDBCStatement(localUpdateMessage);
+        }
+
+        // Determine whether attributes are used and available for
+        // storing. Attributes which were never loaded from this record are
+        // still current.
+        if (jdbcMailAttributesReady && !isAttributesSource(mc) && mc.hasAttributes()) {
+            String updateMessageAttrSql = sqlQueries.getSqlString("updateMessageAttributesSQL", false);
+            PreparedStatement updateMessageAttr = null;
+            try {
+                updateMessageAttr = conn.prepareStatement(updateMessageAttrSql);
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                ObjectOutputStream oos = new ObjectOutputStream(baos);
                 try {
-                    String insertMessageSQL = sqlQueries.getSqlString("insertMessageSQL", true);
-                    int number_of_parameters = getNumberOfParameters(insertMessageSQL);
-                    insertMessage = conn.prepareStatement(insertMessageSQL);
-                    insertMessage.setString(1, mc.getName());
-                    insertMessage.setString(2, repositoryName);
-                    insertMessage.setString(3, mc.getState());
-                    insertMessage.setString(4, mc.getErrorMessage());
-                    if (mc.getSender() == null) {
-                        insertMessage.setNull(5, java.sql.Types.VARCHAR);
+                    if (mc instanceof MailImpl) {
+                        oos.writeObject(((MailImpl) mc).getAttributesRaw());
                     } else {
-                        insertMessage.setString(5, mc.getSender().toString());
-                    }
-                    StringBuilder recipients = new StringBuilder();
-                    for (Iterator<MailAddress> i = mc.getRecipients().iterator(); i.hasNext();) {
-                        recipients.append(i.next().toString());
-                        if (i.hasNext()) {
-                            recipients.append("\r\n");
+                        HashMap temp = new HashMap();
+                        for (Iterator i = mc.getAttributeNames(); i.hasNext();) {
+                            String hashKey = (String) i.next();
+                            temp.put(hashKey, mc.getAttribute(hashKey));
                         }
+                        oos.writeObject(temp);
                     }
-                    insertMessage.setString(6, recipients.toString());
-                    insertMessage.setString(7, mc.getRemoteHost());
-                    insertMessage.setString(8, mc.getRemoteAddr());
-                    insertMessage.setTimestamp(9, new java.sql.Timestamp(mc.getLastUpdated().getTime()));
-
-                    insertMessage.setBinaryStream(10, is, (int) is.getSize());
-
-                    // Store attributes
-                    if (number_of_parameters > 10) {
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        ObjectOutputStream oos = new ObjectOutputStream(baos);
-                        try {
-                            if (mc instanceof MailImpl) {
-                                oos.writeObject(((MailImpl) mc).getAttributesRaw());
-                            } else {
-                                HashMap temp = new HashMap();
-                                for (Iterator i = mc.getAttributeNames(); i.hasNext();) {
-                                    String hashKey = (String) i.next();
-                                    temp.put(hashKey, mc.getAttribute(hashKey));
-                                }
-                                oos.writeObject(temp);
-                            }
-                            oos.flush();
-                            ByteArrayInputStream attrInputStream = new ByteArrayInputStream(baos.toByteArray());
-                            insertMessage.setBinaryStream(11, attrInputStream, baos.size());
-                        } finally {
-                            try {
-                                if (oos != null) {
-                                    oos.close();
-                                }
-                            } catch (IOException ioe) {
-                                getLogger().debug("JDBCMailRepository: Unexpected exception while closing output stream.", ioe);
-                            }
+                    oos.flush();
+                    ByteArrayInputStream attrInputStream = new ByteArrayInputStream(baos.toByteArray());
+                    updateMessageAttr.setBinaryStream(1, attrInputStream, baos.size());
+                } finally {
+                    try {
+                        if (oos != null) {
+                            oos.close();
                         }
+                    } catch (IOException ioe) {
+                        getLogger().debug("JDBCMailRepository: Unexpected exception while closing output stream.", ioe);
                     }
+                }
+                updateMessageAttr.setString(2, mc.getName());
+                updateMessageAttr.setString(3, repositoryName);
+                updateMessageAttr.execute();
+            } catch (SQLException sqle) {
+                getLogger().info("JDBCMailRepository: Trying to update mail attributes failed.", sqle);
 
-                    insertMessage.execute();
-                } finally {
-                    theJDBCUtil.closeJDBCStatement(insertMessage);
+            } finally {
+                theJDBCUtil.closeJDBCStatement(updateMessageAttr);
+            }
+        }
+
+        if (saveBody) {
+
+            PreparedStatement updateMessageBody = conn.prepareStatement(sqlQueries.getSqlString("updateMessageBodySQL", true));
+            try {
+                updateMessageBody.setBinaryStream(1, is, (int) is.getSize());
+                updateMessageBody.setString(2, mc.getName());
+                updateMessageBody.setString(3, repositoryName);
+                updateMessageBody.execute();
+
+            } finally {
+                theJDBCUtil.closeJDBCStatement(updateMessageBody);
+            }
+        }
+    }
+
+    /**
+     * Return true if the attributes of the given mail are still to be loaded
+     * from its record in this repository
+     */
+    private boolean isAttributesSource(Mail mc) {
+        if (mc instanceof MailImpl) {
+            MailAttributesSource source = ((MailImpl) mc).getAttributesSource();
+            return source != null && (repositoryName + "/" + mc.getName()).equals(source.getSourceId());
+        }
+        return false;
+    }
+
+    private void bindInsertMessage(PreparedStatement insertMessage, Mail mc, MessageInputStream is, int numberOfParameters) throws SQLException, IOException {
+        insertMessage.setString(1, mc.getName());
+        insertMessage.setString(2, repositoryName);
+        insertMessage.setString(3, mc.getState());
+        insertMessage.setString(4, mc.getErrorMessage());
+        if (mc.getSender() == null) {
+            insertMessage.setNull(5, java.sql.Types.VARCHAR);
+        } else {
+            insertMessage.setString(5, mc.getSender().toString());
+        }
+        StringBuilder recipients = new StringBuilder();
+        for (Iterator<MailAddress> i = mc.getRecipients().iterator(); i.hasNext();) {
+            recipients.append(i.next().toString());
+            if (i.hasNext()) {
+                recipients.append("\r\n");
+            }
+        }
+        insertMessage.setString(6, recipients.toString());
+        insertMessage.setString(7, mc.getRemoteHost());
+        insertMessage.setString(8, mc.getRemoteAddr());
+        insertMessage.setTimestamp(9, new java.sql.Timestamp(mc.getLastUpdated().getTime()));
+
+        insertMessage.setBinaryStream(10, is, (int) is.getSize());
+
+        // Store attributes
+        if (numberOfParameters > 10) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(baos);
+            try {
+                if (mc instanceof MailImpl) {
+                    oos.writeObject(((MailImpl) mc).getAttributesRaw());
+                } else {
+                    HashMap temp = new HashMap();
+                    for (Iterator i = mc.getAttributeNames(); i.hasNext();) {
+                        String hashKey = (String) i.next();
+                        temp.put(hashKey, mc.getAttribute(hashKey));
+                    }
+                    oos.writeObject(temp);
+                }
+                oos.flush();
+                ByteArrayInputStream attrInputStream = new ByteArrayInputStream(baos.toByteArray());
+                insertMessage.setBinaryStream(11, attrInputStream, baos.size());
+            } finally {
+                try {
+                    if (oos != null) {
+                        oos.close();
+                    }
+                } catch (IOException ioe) {
+                    getLogger().debug("JDBCMailRepository: Unexpected exception while closing output stream.", ioe);
                 }
             }
+        }
+    }
 
-            conn.commit();
-            conn.setAutoCommit(true);
-        } catch (SQLException e) {
-            getLogger().debug("Failed to store internal mail", e);
-            throw new IOException(e.getMessage());
-        } finally {
-            theJDBCUtil.closeJDBCConnection(conn);
+    private void rollback(Connection conn) {
+        if (conn != null) {
+            try {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            } catch (SQLException e) {
+                getLogger().debug("Failed to roll back", e);
+            }
         }
     }
 
@@ -641,59 +736,11 @@ public class JDBCMailRepository extends AbstractMailRepository {
                 }
                 return null;
             }
-            // Determine whether attributes are used and retrieve them
-            PreparedStatement retrieveMessageAttr = null;
-            HashMap attributes = null;
+            MailImpl mc = new MailImpl();
+            // the attributes are only read if they are accessed
             if (jdbcMailAttributesReady) {
-                String retrieveMessageAttrSql = sqlQueries.getSqlString("retrieveMessageAttributesSQL", false);
-                ResultSet rsMessageAttr = null;
-                try {
-                    retrieveMessageAttr = conn.prepareStatement(retrieveMessageAttrSql);
-
-                    retrieveMessageAttr.setString(1, key);
-                    retrieveMessageAttr.setString(2, repositoryName);
-                    rsMessageAttr = retrieveMessageAttr.executeQuery();
-
-                    if (rsMessageAttr.next()) {
-                        try {
-                            byte[] serialized_attr;
-                            String getAttributesOption = sqlQueries.getDbOption("getAttributes");
-                            if (getAttributesOption != null && (getAttributesOption.equalsIgnoreCase("useBlob") || getAttributesOption.equalsIgnoreCase("useBinaryStream"))) {
-                                Blob b = rsMessageAttr.getBlob(1);
-                                serialized_attr = b.getBytes(1, (int) b.length());
-                            } else {
-                                serialized_attr = rsMessageAttr.getBytes(1);
-                            }
-                            // this check is for better backwards compatibility
-                            if (serialized_attr != null) {
-                                ByteArrayInputStream bais = new ByteArrayInputStream(serialized_attr);
-                                ObjectInputStream ois = new ObjectInputStream(bais);
-                                attributes = (HashMap) ois.readObject();
-                                ois.close();
-                            }
-                        } catch (IOException ioe) {
-                            if (getLogger().isDebugEnabled()) {
-                                String debugBuffer = "Exception reading attributes " + key + " in " + repositoryName;
-                                getLogger().debug(debugBuffer, ioe);
-                            }
-                        }
-                    } else {
-                        if (getLogger().isDebugEnabled()) {
-                            String debugBuffer = "Did not find a record (attributes) " + key + " in " + repositoryName;
-                            getLogger().debug(debugBuffer);
-                        }
-                    }
-                } catch (SQLException sqle) {
-                    String errorBuffer = "Error retrieving message" + sqle.getMessage() + sqle.getErrorCode() + sqle.getSQLState() + sqle.getNextException();
-                    getLogger().error(errorBuffer);
-                } finally {
-                    theJDBCUtil.closeJDBCResultSet(rsMessageAttr);
-                    theJDBCUtil.closeJDBCStatement(retrieveMessageAttr);
-                }
+                mc.setAttributesSource(new MailAttributesJDBCSource(this, key));
             }
-
-            MailImpl mc = new MailImpl();
-            mc.setAttributesRaw(attributes);
             mc.setName(key);
             mc.setState(rsMessage.getString(1));
             mc.setErrorMessage(rsMessage.getString(2));
@@ -731,6 +778,105 @@ public class JDBCMailRepository extends AbstractMailRepository {
         }
     }
 
+    /**
+     * Read the attributes of the given mail. Called by
+     * {@link MailAttributesJDBCSource} when the attributes of a retrieved mail
+     * are accessed for the first time.
+     * 
+     * @param key
+     *            the key of the mail
+     * @return the attributes, or null if there are none or they could not be
+     *         read
+     */
+    @SuppressWarnings("unchecked")
+    HashMap<String, Object> retrieveAttributes(String key) {
+        Connection conn = null;
+        PreparedStatement retrieveMessageAttr = null;
+        ResultSet rsMessageAttr = null;
+        HashMap<String, Object> attributes = null;
+        try {
+            conn = getConnection();
+            String retrieveMessageAttrSql = sqlQueries.getSqlString("retrieveMessageAttributesSQL", false);
+            retrieveMessageAttr = conn.prepareStatement(retrieveMessageAttrSql);
+
+            retrieveMessageAttr.setString(1, key);
+            retrieveMessageAttr.setString(2, repositoryName);
+            rsMessageAttr = retrieveMessageAttr.executeQuery();
+
+            if (rsMessageAttr.next()) {
+                try {
+                    byte[] serialized_attr;
+                    String getAttributesOption = sqlQueries.getDbOption("getAttributes");
+                    if (getAttributesOption != null && (getAttributesOption.equalsIgnoreCase("useBlob") || getAttributesOption.equalsIgnoreCase("useBinaryStream"))) {
+                        Blob b = rsMessageAttr.getBlob(1);
+                        serialized_attr = b.getBytes(1, (int) b.length());
+                    } else {
+                        serialized_attr = rsMessageAttr.getBytes(1);
+                    }
+                    // this check is for better backwards compatibility
+                    if (serialized_attr != null) {
+                        ByteArrayInputStream bais = new ByteArrayInputStream(serialized_attr);
+                        ObjectInputStream ois = new ObjectInputStream(bais);
+                        attributes = (HashMap<String, Object>) ois.readObject();
+                        ois.close();
+                    }
+                } catch (IOException ioe) {
+                    if (getLogger().isDebugEnabled()) {
+                        String debugBuffer = "Exception reading attributes " + key + " in " + repositoryName;
+                        getLogger().debug(debugBuffer, ioe);
+                    }
+                } catch (ClassNotFoundException cnfe) {
+                    getLogger().error("Unable to deserialize attributes " + key + " in " + repositoryName, cnfe);
+                }
+            } else {
+                // the record was removed before the attributes were accessed
+                getLogger().warn("Did not find a record (attributes) " + key + " in " + repositoryName + ", the mail has no attributes");
+            }
+        } catch (SQLException sqle) {
+            String errorBuffer = "Error retrieving message" + sqle.getMessage() + sqle.getErrorCode() + sqle.getSQLState() + sqle.getNextException();
+            getLogger().error(errorBuffer);
+        } finally {
+            theJDBCUtil.closeJDBCResultSet(rsMessageAttr);
+            theJDBCUtil.closeJDBCStatement(retrieveMessageAttr);
+            theJDBCUtil.closeJDBCConnection(conn);
+        }
+        return attributes;
+    }
+
+    /**
+     * Loads the attributes of the mail before its record is deleted, as they
+     * can not be read afterwards
+     * 
+     * @see org.apache.james.mailrepository.lib.AbstractMailRepository#remove(Mail)
+     */
+    public void remove(Mail mail) throws MessagingException {
+        loadAttributes(mail);
+        super.remove(mail);
+    }
+
+    /**
+     * Loads the attributes of the mails before their records are deleted
+     * 
+     * @see org.apache.james.mailrepository.lib.AbstractMailRepository#remove(Collection)
+     */
+    public void remove(Collection<Mail> mails) throws MessagingException {
+        for (Mail mail : mails) {
+            loadAttributes(mail);
+        }
+        super.remove(mails);
+    }
+
+    /**
+     * Read the attributes of the given mail if they are still to be loaded
+     * from its record in this repository
+     */
+    private void loadAttributes(Mail mail) {
+        if (isAttributesSource(mail)) {
+            // the first access loads them
+            mail.hasAttributes();
+        }
+    }
+
     /**
      * @see org.apache.james.mailrepository.lib.AbstractMailRepository#internalRemove(String)
      */
@@ -756,10 +902,102 @@ public class JDBCMailRepository extends AbstractMailRepository {
     }
 
     /**
+     * Removes all keys in a single transaction with batches of
+     * {@link #BATCH_SIZE} DELETE statements
+     * 
+     * @see org.apache.james.mailrepository.lib.AbstractMailRepository#internalRemoveAll(Collection)
+     */
+    protected void internalRemoveAll(Collection<String> keys) throws MessagingException {
+        Connection conn = null;
+        PreparedStatement removeMessage = null;
+        try {
+            conn = datasource.getConnection();
+            conn.setAutoCommit(false);
+            removeMessage = conn.prepareStatement(sqlQueries.getSqlString("removeMessageSQL", true));
+            int batched = 0;
+            for (String key : keys) {
+                removeMessage.setString(1, key);
+                removeMessage.setString(2, repositoryName);
+                removeMessage.addBatch();
+                if (++batched == BATCH_SIZE) {
+                    removeMessage.executeBatch();
+                    batched = 0;
+                }
+            }
+            if (batched > 0) {
+                removeMessage.executeBatch();
+            }
+            conn.commit();
+            conn.setAutoCommit(true);
+
+            if (sr != null) {
+                for (String key : keys) {
+                    sr.remove(key);
+                }
+            }
+        } catch (Exception me) {
+            rollback(conn);
+            throw new MessagingException("Exception while removing mails: " + me.getMessage(), me);
+        } finally {
+            theJDBCUtil.closeJDBCStatement(removeMessage);
+            theJDBCUtil.closeJDBCConnection(conn);
+        }
+    }
+
+    /**
+     * Return the keys page by page, so the whole repository is never loaded
+     * into memory
+     * 
      * @see org.apache.james.mailrepository.api.MailRepository#list()
      */
-    public Iterator list() throws MessagingException {
-        // System.err.println("listing messages");
+    public Iterator<String> list() throws MessagingException {
+        return new PagingKeyIterator(this);
+    }
+
+    /**
+     * Uses keyset pagination on the primary key, so every page is a range
+     * scan of the index whatever the offset is
+     * 
+     * @see org.apache.james.mailrepository.api.MailRepository#list(String, int)
+     */
+    public Iterator<String> list(String afterKey, int limit) throws MessagingException {
+        // the first page has no key to compare with, as Oracle treats an
+        // empty string as NULL
+        String pageSQL = sqlQueries.getSqlString(afterKey == null ? "listMessagesFirstPageSQL" : "listMessagesPageSQL");
+        if (pageSQL == null) {
+            // sqlResources.xml of an older release, select the page from the
+            // full list
+            return KeyPage.select(listAll().iterator(), afterKey, limit).iterator();
+        }
+        Connection conn = null;
+        PreparedStatement listMessages = null;
+        ResultSet rsListMessages = null;
+        try {
+            conn = datasource.getConnection();
+            listMessages = conn.prepareStatement(pageSQL);
+            listMessages.setString(1, repositoryName);
+            if (afterKey != null) {
+                listMessages.setString(2, afterKey);
+            }
+            listMessages.setMaxRows(limit);
+            listMessages.setFetchSize(Math.min(limit, 1000));
+            rsListMessages = listMessages.executeQuery();
+
+            List<String> messageList = new ArrayList<String>();
+            while (rsListMessages.next() && messageList.size() < limit && !Thread.currentThread().isInterrupted()) {
+                messageList.add(rsListMessages.getString(1));
+            }
+            return messageList.iterator();
+        } catch (Exception me) {
+            throw new MessagingException("Exception while listing mail: " + me.getMessage(), me);
+        } finally {
+            theJDBCUtil.closeJDBCResultSet(rsListMessages);
+            theJDBCUtil.closeJDBCStatement(listMessages);
+            theJDBCUtil.closeJDBCConnection(conn);
+        }
+    }
+
+    private List<String> listAll() throws MessagingException {
         Connection conn = null;
         PreparedStatement listMessages = null;
         ResultSet rsListMessages = null;
@@ -769,11 +1007,11 @@ public class JDBCMailRepository extends AbstractMailRepository {
             listMessages.setString(1, repositoryName);
             rsListMessages = listMessages.executeQuery();
 
-            List messageList = new ArrayList();
+            List<String> messageList = new ArrayList<String>();
             while (rsListMessages.next() && !Thread.currentThread().isInterrupted()) {
                 messageList.add(rsListMessages.getString(1));
             }
-            return messageList.iterator();
+            return messageList;
         } catch (Exception me) {
             throw new MessagingException("Exception while listing mail: " + me.getMessage(), me);
         } finally {
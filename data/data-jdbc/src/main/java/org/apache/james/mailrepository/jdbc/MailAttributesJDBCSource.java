@@ -0,0 +1,64 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailrepository.jdbc;
+
+import java.util.HashMap;
+
+import org.apache.james.core.MailAttributesSource;
+
+/**
+ * This class points to the attributes of a specific message in a repository.
+ * They are read from the database the first time the attributes of the mail
+ * are accessed, so mails whose attributes are never used don't pay for the
+ * query and the deserialization.
+ */
+public class MailAttributesJDBCSource extends MailAttributesSource {
+
+    private final JDBCMailRepository repository;
+    private final String key;
+
+    /**
+     * Construct a MailAttributesJDBCSource pointing to the attributes of the
+     * message with the given key in the given repository
+     * 
+     * @param repository
+     *            the JDBCMailRepository to use
+     * @param key
+     *            the key of the message
+     */
+    public MailAttributesJDBCSource(JDBCMailRepository repository, String key) {
+        this.repository = repository;
+        this.key = key;
+    }
+
+    /**
+     * @see org.apache.james.core.MailAttributesSource#getSourceId()
+     */
+    public String getSourceId() {
+        return repository.repositoryName + "/" + key;
+    }
+
+    /**
+     * @see org.apache.james.core.MailAttributesSource#loadAttributes()
+     */
+    public HashMap<String, Object> loadAttributes() {
+        return repository.retrieveAttributes(key);
+    }
+}
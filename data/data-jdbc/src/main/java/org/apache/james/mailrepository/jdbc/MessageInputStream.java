@@ -28,22 +28,26 @@ import org.apache.mailet.Mail;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 
 /**
  * This class provides an inputStream for a Mail object.<br>
- * If the Mail is larger than 4KB it uses Piped streams and a worker thread,
- * otherwise it simply creates a temporary byte buffer and does not create the
- * worker thread.
+ * If the Mail is not larger than the size limit it is written to a temporary
+ * byte buffer. Larger mails are read straight from the source of the message
+ * when it was not modified, as its size is known then, and spooled to a
+ * temporary file otherwise. So the size of the stream is always known before
+ * it is read, and large mails are never held in memory.
  * 
- * <strong>Note</strong>: Javamail (or the Activation Framework) already uses a
- * worker thread when asked for an inputstream.
+ * <strong>Note</strong>: when a dbfile repository is used only the headers are
+ * provided by the stream, the body is written to the StreamRepository.
  */
 final class MessageInputStream extends InputStream {
 
@@ -52,17 +56,17 @@ final class MessageInputStream extends InputStream {
      */
     private long size = -1;
     /**
-     * The wrapped stream (Piped or Binary)
+     * The wrapped stream (Binary, File or the source of the message)
      */
     private InputStream wrapped;
-    /**
-     * If an excaption happens in the worker threads it's stored here
-     */
-    private Exception caughtException;
     /**
      * Stream repository used for dbfiles (null otherwise)
      */
     private final StreamRepository streamRep;
+    /**
+     * The temporary file the message was spooled to (null otherwise)
+     */
+    private File spoolFile;
 
     /**
      * Main constructor. If srep is not null than we are using dbfiles and we
@@ -73,8 +77,10 @@ final class MessageInputStream extends InputStream {
      * @param srep
      *            the StreamRepository the StreamRepository used for dbfiles.
      * @param sizeLimit
-     *            the sizeLimit which set the limit after which the streaming
-     *            will be disabled
+     *            the sizeLimit above which the message is not held in memory
+     * @param update
+     *            whether the message is read from the record which is written,
+     *            so it must be loaded before
      * @throws IOException
      *             get thrown if an IO error detected
      * @throws MessagingException
@@ -83,38 +89,41 @@ final class MessageInputStream extends InputStream {
      */
     public MessageInputStream(Mail mc, StreamRepository srep, int sizeLimit, final boolean update) throws IOException, MessagingException {
         super();
-        caughtException = null;
         streamRep = srep;
-        size = mc.getMessageSize();
 
-        // we use the pipes only when streamRep is null and the message size is
-        // greater than 4096
-        // Otherwise we should calculate the header size and not the message
-        // size when streamRep is not null (JAMES-475)
+        MimeMessage msg = mc.getMessage();
+        if (msg instanceof MimeMessageCopyOnWriteProxy) {
+            msg = ((MimeMessageCopyOnWriteProxy) msg).getWrappedMessage();
+        }
+
+        // The headers are always kept in memory when streamRep is not null,
+        // so the header size and not the message size counts (JAMES-475)
+        if (streamRep == null && !update && msg instanceof MimeMessageWrapper && !((MimeMessageWrapper) msg).isModified()) {
+            // The size is known by the source, and the message is written
+            // as it was read from there
+            MimeMessageWrapper wrapper = (MimeMessageWrapper) msg;
+            size = wrapper.getMessageSize();
+            if (size > sizeLimit) {
+                wrapped = wrapper.getMessageInputStream();
+                return;
+            }
+        } else if (streamRep == null) {
+            size = mc.getMessageSize();
+        }
+
         if (streamRep == null && size > sizeLimit) {
-            PipedOutputStream headerOut = new PipedOutputStream();
-            new Thread() {
-                private Mail mail;
-
-                private PipedOutputStream out;
-
-                public void run() {
-                    try {
-                        writeStream(mail, out, update);
-                    } catch (IOException e) {
-                        caughtException = e;
-                    } catch (MessagingException e) {
-                        caughtException = e;
-                    }
-                }
-
-                public Thread setParam(Mail mc, PipedOutputStream headerOut) {
-                    this.mail = mc;
-                    this.out = headerOut;
-                    return this;
-                }
-            }.setParam(mc, (PipedOutputStream) headerOut).start();
-            wrapped = new PipedInputStream(headerOut);
+            spoolFile = File.createTempFile("james-jdbc-", ".eml");
+            try {
+                writeStream(mc, new BufferedOutputStream(new FileOutputStream(spoolFile)), update);
+                size = spoolFile.length();
+                wrapped = new FileInputStream(spoolFile);
+            } catch (IOException e) {
+                deleteSpoolFile();
+                throw e;
+            } catch (MessagingException e) {
+                deleteSpoolFile();
+                throw e;
+            }
         } else {
             ByteArrayOutputStream headerOut = new ByteArrayOutputStream();
             writeStream(mc, headerOut, update);
@@ -123,6 +132,16 @@ final class MessageInputStream extends InputStream {
         }
     }
 
+    /**
+     * Returns whether the stream is read from memory, and not from a file or
+     * the source of the message
+     * 
+     * @return inMemory
+     */
+    public boolean isInMemory() {
+        return wrapped instanceof ByteArrayInputStream;
+    }
+
     /**
      * Returns the size of the full message
      * 
@@ -133,8 +152,32 @@ final class MessageInputStream extends InputStream {
     }
 
     /**
-     * Write the full mail to the stream This can be used by this object or by
-     * the worker threads.
+     * Release the wrapped stream and the temporary file, if any, without
+     * failing. This can be called whether the stream was closed or not.
+     */
+    public void dispose() {
+        if (wrapped != null) {
+            try {
+                wrapped.close();
+            } catch (IOException e) {
+                // nothing to do about it
+            }
+            wrapped = null;
+        }
+        deleteSpoolFile();
+    }
+
+    private void deleteSpoolFile() {
+        if (spoolFile != null) {
+            if (!spoolFile.delete()) {
+                spoolFile.deleteOnExit();
+            }
+            spoolFile = null;
+        }
+    }
+
+    /**
+     * Write the full mail to the stream.
      * 
      * @param mail
      *            the Mail used as source
@@ -174,11 +217,13 @@ final class MessageInputStream extends InputStream {
             }
 
             if (msg instanceof MimeMessageWrapper) {
-                ((MimeMessageWrapper) msg).writeTo(out, bodyOut, null, true);
+                // only preload the message when it has to be read before it
+                // is overwritten, otherwise it is copied from its source
+                ((MimeMessageWrapper) msg).writeTo(out, bodyOut, new String[0], update);
             } else {
                 // Write the message to the headerOut and bodyOut. bodyOut goes
                 // straight to the file
-                MimeMessageUtil.writeTo(mail.getMessage(), out, bodyOut);
+                MimeMessageUtil.writeTo(mail.getMessage(), out, bodyOut, new String[0]);
             }
 
             out.flush();
@@ -189,27 +234,8 @@ final class MessageInputStream extends InputStream {
         }
     }
 
-    @SuppressWarnings("serial")
     private void throwException() throws IOException {
-        try {
-            if (wrapped == null) {
-                throw new IOException("wrapped stream does not exists anymore");
-            } else if (caughtException instanceof IOException) {
-                throw (IOException) caughtException;
-            } else {
-                throw new IOException("Exception caugth in worker thread " + caughtException.getMessage()) {
-                    /**
-                     * @see java.lang.Throwable#getCause()
-                     */
-                    public Throwable getCause() {
-                        return caughtException;
-                    }
-                };
-            }
-        } finally {
-            caughtException = null;
-            wrapped = null;
-        }
+        throw new IOException("wrapped stream does not exists anymore");
     }
 
     /**
@@ -242,7 +268,7 @@ final class MessageInputStream extends InputStream {
      * @see java.io.InputStream#available()
      */
     public int available() throws IOException {
-        if (caughtException != null || wrapped == null) {
+        if (wrapped == null) {
             throwException();
         }
         return wrapped.available();
@@ -252,11 +278,15 @@ final class MessageInputStream extends InputStream {
      * @see java.io.InputStream#close()
      */
     public void close() throws IOException {
-        if (caughtException != null || wrapped == null) {
+        if (wrapped == null) {
             throwException();
         }
-        wrapped.close();
-        wrapped = null;
+        try {
+            wrapped.close();
+        } finally {
+            wrapped = null;
+            deleteSpoolFile();
+        }
     }
 
     /**
@@ -277,7 +307,7 @@ final class MessageInputStream extends InputStream {
      * @see java.io.InputStream#read(byte[], int, int)
      */
     public int read(byte[] b, int off, int len) throws IOException {
-        if (caughtException != null || wrapped == null) {
+        if (wrapped == null) {
             throwException();
         }
         return wrapped.read(b, off, len);
@@ -287,7 +317,7 @@ final class MessageInputStream extends InputStream {
      * @see java.io.InputStream#read(byte[])
      */
     public int read(byte[] b) throws IOException {
-        if (caughtException != null || wrapped == null) {
+        if (wrapped == null) {
             throwException();
         }
         return wrapped.read(b);
@@ -297,7 +327,7 @@ final class MessageInputStream extends InputStream {
      * @see java.io.InputStream#reset()
      */
     public synchronized void reset() throws IOException {
-        if (caughtException != null || wrapped == null) {
+        if (wrapped == null) {
             throwException();
         }
         wrapped.reset();
@@ -307,7 +337,7 @@ final class MessageInputStream extends InputStream {
      * @see java.io.InputStream#skip(long)
      */
     public long skip(long n) throws IOException {
-        if (caughtException != null || wrapped == null) {
+        if (wrapped == null) {
             throwException();
         }
         return wrapped.skip(n);
@@ -317,7 +347,7 @@ final class MessageInputStream extends InputStream {
      * @see java.io.InputStream#read()
      */
     public int read() throws IOException {
-        if (caughtException != null || wrapped == null) {
+        if (wrapped == null) {
             throwException();
         }
         return wrapped.read();
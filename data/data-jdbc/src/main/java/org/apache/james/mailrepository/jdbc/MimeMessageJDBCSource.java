@@ -21,9 +21,12 @@ package org.apache.james.mailrepository.jdbc;
 
 import org.apache.james.core.MimeMessageSource;
 import org.apache.james.repository.api.StreamRepository;
+import org.apache.james.repository.file.FilePersistentStreamRepository;
 import org.apache.james.util.sql.JDBCUtil;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.SequenceInputStream;
@@ -37,6 +40,13 @@ import java.sql.SQLException;
  * This class points to a specific message in a repository. This will return an
  * InputStream to the JDBC field/record, possibly sequenced with the file
  * stream.
+ * 
+ * Fields up to {@link #STREAM_THRESHOLD} bytes are copied to memory, so the
+ * connection is released before the stream is returned. Larger fields are
+ * streamed from the database, so the message is never loaded in memory; the
+ * connection is then held until the field is read to its end or the stream is
+ * closed. In dbfile mode the field holds only the headers, so they can be read
+ * without opening the file.
  */
 public class MimeMessageJDBCSource extends MimeMessageSource {
 
@@ -45,6 +55,11 @@ public class MimeMessageJDBCSource extends MimeMessageSource {
      */
     private static final boolean DEEP_DEBUG = false;
 
+    /**
+     * Database fields larger than this are streamed instead of copied
+     */
+    static final int STREAM_THRESHOLD = 64 * 1024;
+
     // Define how to get to the data
     JDBCMailRepository repository = null;
     String key = null;
@@ -52,6 +67,11 @@ public class MimeMessageJDBCSource extends MimeMessageSource {
 
     private long size = -1;
 
+    /**
+     * The size of the database field, or -1 if not known yet
+     */
+    private long databaseSize = -1;
+
     /**
      * SQL used to retrieve the message body
      */
@@ -123,6 +143,8 @@ public class MimeMessageJDBCSource extends MimeMessageSource {
      * is to support a repository with the entire message in the database, which
      * is how James 1.2 worked.
      * 
+     * The file is only opened once the database field was read.
+     * 
      * @see org.apache.james.core.MimeMessageSource#getInputStream()
      */
     public synchronized InputStream getInputStream() throws IOException {
@@ -132,8 +154,6 @@ public class MimeMessageJDBCSource extends MimeMessageSource {
         try {
             conn = repository.getConnection();
 
-            byte[] headers;
-
             long start = 0;
             if (DEEP_DEBUG) {
                 start = System.currentTimeMillis();
@@ -148,26 +168,42 @@ public class MimeMessageJDBCSource extends MimeMessageSource {
                 throw new IOException("Could not find message");
             }
 
+            InputStream field;
             String getBodyOption = repository.sqlQueries.getDbOption("getBody");
             if (getBodyOption != null && getBodyOption.equalsIgnoreCase("useBlob")) {
                 Blob b = rsRetrieveMessageStream.getBlob(1);
-                headers = b.getBytes(1, (int) b.length());
+                field = (b == null) ? null : b.getBinaryStream();
             } else {
-                headers = rsRetrieveMessageStream.getBytes(1);
+                field = rsRetrieveMessageStream.getBinaryStream(1);
             }
             if (DEEP_DEBUG) {
                 System.err.println("stopping");
                 System.err.println(System.currentTimeMillis() - start);
             }
 
-            InputStream in = new ByteArrayInputStream(headers);
-            try {
-                if (sr != null) {
-                    in = new SequenceInputStream(in, sr.get(key));
+            InputStream in;
+            if (field == null) {
+                in = new ByteArrayInputStream(new byte[0]);
+            } else {
+                ByteArrayOutputStream head = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int count = 0;
+                while (head.size() <= STREAM_THRESHOLD && (count = field.read(buffer)) != -1) {
+                    head.write(buffer, 0, count);
+                }
+                if (count == -1) {
+                    field.close();
+                    in = new ByteArrayInputStream(head.toByteArray());
+                } else {
+                    in = new SequenceInputStream(new ByteArrayInputStream(head.toByteArray()), new DatabaseFieldInputStream(field, conn, retrieveMessageStream, rsRetrieveMessageStream));
+                    // the stream closes them now
+                    conn = null;
+                    retrieveMessageStream = null;
+                    rsRetrieveMessageStream = null;
                 }
-            } catch (Exception e) {
-                // ignore this... either sr is null, or the file does not exist
-                // or something else
+            }
+            if (sr != null) {
+                in = new FieldAndFileInputStream(in);
             }
             return in;
         } catch (SQLException sqle) {
@@ -193,6 +229,58 @@ public class MimeMessageJDBCSource extends MimeMessageSource {
             System.err.println("no SQL statement to find size");
             return size = super.getMessageSize();
         }
+        long messageSize = getDatabaseSize();
+
+        InputStream in = null;
+        try {
+            if (sr != null) {
+                if (sr instanceof FilePersistentStreamRepository) {
+                    messageSize += ((FilePersistentStreamRepository) sr).getSize(key);
+                } else {
+                    in = sr.get(key);
+                    int len;
+                    byte[] block = new byte[1024];
+                    while ((len = in.read(block)) > -1) {
+                        messageSize += len;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            // ignore this... either sr is null, or the file does not exist
+            // or something else
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException ioe) {
+                // Ignored - no access to logger at this point in the code
+            }
+        }
+
+        return size = messageSize;
+    }
+
+    /**
+     * In dbfile mode the database field holds exactly the headers, when the
+     * body was written to the file
+     * 
+     * @see org.apache.james.core.MimeMessageSource#getHeaderSize()
+     */
+    public synchronized long getHeaderSize() throws IOException {
+        if (retrieveMessageBodySizeSQL != null && sr instanceof FilePersistentStreamRepository && ((FilePersistentStreamRepository) sr).containsKey(key)) {
+            return getDatabaseSize();
+        }
+        return -1;
+    }
+
+    /**
+     * Return the size of the database field
+     */
+    private long getDatabaseSize() throws IOException {
+        if (databaseSize != -1) {
+            return databaseSize;
+        }
         Connection conn = null;
         PreparedStatement retrieveMessageSize = null;
         ResultSet rsRetrieveMessageSize = null;
@@ -208,36 +296,7 @@ public class MimeMessageJDBCSource extends MimeMessageSource {
                 throw new IOException("Could not find message");
             }
 
-            size = rsRetrieveMessageSize.getLong(1);
-
-            InputStream in = null;
-            try {
-                if (sr != null) {
-                    if (sr instanceof org.apache.james.repository.file.FilePersistentStreamRepository) {
-                        size += ((org.apache.james.repository.file.FilePersistentStreamRepository) sr).getSize(key);
-                    } else {
-                        in = sr.get(key);
-                        int len;
-                        byte[] block = new byte[1024];
-                        while ((len = in.read(block)) > -1) {
-                            size += len;
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                // ignore this... either sr is null, or the file does not exist
-                // or something else
-            } finally {
-                try {
-                    if (in != null) {
-                        in.close();
-                    }
-                } catch (IOException ioe) {
-                    // Ignored - no access to logger at this point in the code
-                }
-            }
-
-            return size;
+            return databaseSize = rsRetrieveMessageSize.getLong(1);
         } catch (SQLException sqle) {
             throw new IOException(sqle.toString());
         } finally {
@@ -247,6 +306,123 @@ public class MimeMessageJDBCSource extends MimeMessageSource {
         }
     }
 
+    /**
+     * Stream of a database field, which releases the JDBC resources once it is
+     * read to its end or closed
+     */
+    private final static class DatabaseFieldInputStream extends FilterInputStream {
+
+        private Connection conn;
+        private PreparedStatement statement;
+        private ResultSet resultSet;
+
+        public DatabaseFieldInputStream(InputStream in, Connection conn, PreparedStatement statement, ResultSet resultSet) {
+            super(in);
+            this.conn = conn;
+            this.statement = statement;
+            this.resultSet = resultSet;
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                release();
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count == -1) {
+                release();
+            }
+            return count;
+        }
+
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                release();
+            }
+        }
+
+        private void release() {
+            if (conn != null) {
+                theJDBCUtil.closeJDBCResultSet(resultSet);
+                theJDBCUtil.closeJDBCStatement(statement);
+                theJDBCUtil.closeJDBCConnection(conn);
+                resultSet = null;
+                statement = null;
+                conn = null;
+            }
+        }
+    }
+
+    /**
+     * The database field followed by the file, which is only opened when the
+     * field was read. Unlike a {@link SequenceInputStream} closing it does not
+     * open the file.
+     */
+    private final class FieldAndFileInputStream extends InputStream {
+
+        private InputStream current;
+        private boolean fileOpened = false;
+
+        public FieldAndFileInputStream(InputStream field) {
+            this.current = field;
+        }
+
+        public int read() throws IOException {
+            while (current != null) {
+                int b = current.read();
+                if (b != -1) {
+                    return b;
+                }
+                nextStream();
+            }
+            return -1;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (current != null) {
+                int count = current.read(b, off, len);
+                if (count != -1) {
+                    return count;
+                }
+                nextStream();
+            }
+            return -1;
+        }
+
+        public int available() throws IOException {
+            return current == null ? 0 : current.available();
+        }
+
+        public void close() throws IOException {
+            fileOpened = true;
+            if (current != null) {
+                InputStream in = current;
+                current = null;
+                in.close();
+            }
+        }
+
+        private void nextStream() throws IOException {
+            current.close();
+            current = null;
+            if (!fileOpened) {
+                fileOpened = true;
+                try {
+                    current = sr.get(key);
+                } catch (Exception e) {
+                    // ignore this... either the file does not exist or
+                    // something else
+                }
+            }
+        }
+    }
+
     /**
      * Check to see whether this is the same repository and the same key
      */
@@ -129,6 +129,7 @@ public abstract class AbstractJdbcUsersRepository extends AbstractJamesUsersRepo
         User user = getUserByName(userName);
         if (user != null) {
             doRemoveUser(user);
+            invalidateAuthentication(userName);
         } else {
             throw new UsersRepositoryException("User " + userName + " does not exist");
         }
@@ -183,8 +184,11 @@ public abstract class AbstractJdbcUsersRepository extends AbstractJamesUsersRepo
      * @since James 1.2.2
      */
     public boolean test(String name, String password) throws UsersRepositoryException {
-        User user = getUserByName(name, ignoreCase);
-        return user != null && user.verifyPassword(password);
+        return testPassword(name, password, new UserLoader() {
+            public User load(String name) throws UsersRepositoryException {
+                return getUserByName(name, ignoreCase);
+            }
+        });
     }
 
     /**
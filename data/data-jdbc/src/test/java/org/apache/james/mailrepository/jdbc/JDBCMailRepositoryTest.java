@@ -19,14 +19,20 @@
 
 package org.apache.james.mailrepository.jdbc;
 
+import static org.junit.Assert.assertEquals;
+
 import javax.sql.DataSource;
 
 import org.apache.commons.configuration.DefaultConfigurationBuilder;
 import org.apache.commons.dbcp.BasicDataSource;
 import org.apache.derby.jdbc.EmbeddedDriver;
+import org.apache.james.core.MailImpl;
 import org.apache.james.filesystem.api.mock.MockFileSystem;
+import org.apache.james.lifecycle.api.LifecycleUtil;
 import org.apache.james.mailrepository.AbstractMailRepositoryTest;
 import org.apache.james.mailrepository.api.MailRepository;
+import org.apache.mailet.Mail;
+import org.junit.Test;
 import org.slf4j.LoggerFactory;
 
 public class JDBCMailRepositoryTest extends AbstractMailRepositoryTest {
@@ -39,6 +45,10 @@ public class JDBCMailRepositoryTest extends AbstractMailRepositoryTest {
      */
     @Override
     protected MailRepository getMailRepository() throws Exception {
+        return getMailRepository(-1);
+    }
+
+    private MailRepository getMailRepository(int inMemorySizeLimit) throws Exception {
         MockFileSystem fs = new MockFileSystem();
         DataSource datasource = getDataSource();
         JDBCMailRepository mr = new JDBCMailRepository();
@@ -47,6 +57,9 @@ public class JDBCMailRepositoryTest extends AbstractMailRepositoryTest {
         defaultConfiguration.addProperty("[@destinationURL]", "db://maildb/mr/testrepo");
         defaultConfiguration.addProperty("sqlFile", "file://conf/sqlResources.xml");
         defaultConfiguration.addProperty("[@type]", "MAIL");
+        if (inMemorySizeLimit >= 0) {
+            defaultConfiguration.addProperty("inMemorySizeLimit", inMemorySizeLimit);
+        }
         mr.setFileSystem(fs);
         mr.setDatasource(datasource);
         mr.setLog(LoggerFactory.getLogger("MockLog"));
@@ -55,6 +68,54 @@ public class JDBCMailRepositoryTest extends AbstractMailRepositoryTest {
         return mr;
     }
 
+    @Test
+    public void testStoreAboveInMemorySizeLimit() throws Exception {
+        MailRepository streamingRepository = getMailRepository(16);
+        // streamed from the source of the message
+        streamingRepository.store(mail);
+        // spooled to a temporary file
+        Mail modified = new MailImpl(mail, "modified");
+        modified.getMessage().setHeader("X-Test", "modified");
+        modified.getMessage().saveChanges();
+        streamingRepository.store(modified);
+
+        Mail m1 = streamingRepository.retrieve(mail.getName());
+        assertEquals(mail.getMessage().getContent().toString(), m1.getMessage().getContent().toString());
+        assertEquals(mail.getMessageSize(), m1.getMessageSize());
+        Mail m2 = streamingRepository.retrieve("modified");
+        assertEquals(mail.getMessage().getContent().toString(), m2.getMessage().getContent().toString());
+        assertEquals("modified", m2.getMessage().getHeader("X-Test")[0]);
+        LifecycleUtil.dispose(m1);
+        LifecycleUtil.dispose(m2);
+        LifecycleUtil.dispose(modified);
+        LifecycleUtil.dispose(streamingRepository);
+    }
+
+    @Test
+    public void testStoreKeepsAttributesWhichWereNotLoaded() throws Exception {
+        mailRepository.store(mail);
+        Mail retrieved = mailRepository.retrieve(mail.getName());
+        // the attributes of the retrieved mail are not accessed
+        retrieved.setState("changed");
+        mailRepository.store(retrieved);
+
+        Mail stored = mailRepository.retrieve(mail.getName());
+        assertEquals("changed", stored.getState());
+        assertEquals("testValue", stored.getAttribute("testAttribute"));
+        LifecycleUtil.dispose(retrieved);
+        LifecycleUtil.dispose(stored);
+    }
+
+    @Test
+    public void testRemoveLoadsAttributes() throws Exception {
+        mailRepository.store(mail);
+        Mail retrieved = mailRepository.retrieve(mail.getName());
+        mailRepository.remove(retrieved);
+
+        assertEquals("testValue", retrieved.getAttribute("testAttribute"));
+        LifecycleUtil.dispose(retrieved);
+    }
+
     protected String getType() {
         return "db";
     }
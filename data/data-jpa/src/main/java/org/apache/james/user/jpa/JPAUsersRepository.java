@@ -119,6 +119,7 @@ public class JPAUsersRepository extends AbstractUsersRepository {
                 transaction.begin();
                 entityManager.merge(user);
                 transaction.commit();
+                invalidateAuthentication(user.getUserName());
             } else {
                 getLogger().debug("User not found");
                 throw new UsersRepositoryException("User " + user.getUserName() + " not found");
@@ -152,6 +153,7 @@ public class JPAUsersRepository extends AbstractUsersRepository {
                 throw new UsersRepositoryException("User " + name + " does not exist");
             } else {
                 transaction.commit();
+                invalidateAuthentication(name);
             }
         } catch (PersistenceException e) {
             getLogger().debug("Failed to remove user", e);
@@ -199,10 +201,11 @@ public class JPAUsersRepository extends AbstractUsersRepository {
      * @since James 1.2.2
      */
     public boolean test(String name, String password) throws UsersRepositoryException {
-        final User user = getUserByName(name);
-        final boolean result;
-        result = user != null && user.verifyPassword(password);
-        return result;
+        return testPassword(name, password, new UserLoader() {
+            public User load(String name) throws UsersRepositoryException {
+                return getUserByName(name);
+            }
+        });
     }
 
     /**
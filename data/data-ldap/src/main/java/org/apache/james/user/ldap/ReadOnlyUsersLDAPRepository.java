@@ -19,25 +19,37 @@
 
 package org.apache.james.user.ldap;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.naming.Context;
+import javax.naming.InterruptedNamingException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
-import javax.naming.directory.Attributes;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
 import javax.naming.ldap.InitialLdapContext;
 import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
 
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.HierarchicalConfiguration;
@@ -48,6 +60,7 @@ import org.apache.james.user.api.UsersRepository;
 import org.apache.james.user.api.UsersRepositoryException;
 import org.apache.james.user.api.model.User;
 import org.apache.james.user.ldap.api.LdapConstants;
+import org.apache.james.user.lib.util.AuthenticationCache;
 import org.apache.james.util.retry.DoublingRetrySchedule;
 import org.apache.james.util.retry.api.RetrySchedule;
 import org.apache.james.util.retry.naming.ldap.RetryingLdapContext;
@@ -213,6 +226,31 @@ import org.slf4j.Logger;
  * <code>com.sun.jndi.ldap.read.timeout</code> to the specified integer value.
  * Applicable to Java 6 and above.
  * </ul>
+ * </p>
+ *
+ * <p>
+ * The following parameters control how the repository uses the LDAP server:
+ * <ul>
+ * <li>
+ * <b>maxConnections:</b> (optional, default = 8) The maximum number of
+ * contexts used at the same time. The contexts are kept in a pool, a thread
+ * waits for a free one if all of them are in use.
+ * <li>
+ * <b>pageSize:</b> (optional, default = 500) The number of users requested per
+ * page when listing or counting the users, using the RFC 2696 paged results
+ * control. Servers which do not support it return all users at once. 0
+ * disables paging.
+ * <li>
+ * <b>userCache:</b> (optional) With a <code>ttl</code> attribute greater than
+ * 0, the users looked up by name, the list of all users and the group
+ * memberships are remembered for <code>ttl</code> milliseconds. At most
+ * <code>maxSize</code> (default = 10000) users are cached.
+ * <li>
+ * <b>authenticationCache:</b> (optional) With a <code>ttl</code> attribute
+ * greater than 0, successful binds are remembered for <code>ttl</code>
+ * milliseconds, keeping only a salted hash of the password. At most
+ * <code>maxSize</code> (default = 10000) users are cached.
+ * </ul>
  *
  * @see ReadOnlyLDAPUser
  * @see ReadOnlyLDAPGroupRestriction
@@ -228,6 +266,10 @@ public class ReadOnlyUsersLDAPRepository implements UsersRepository, Configurabl
     private static final String PROPERTY_NAME_CONNECT_TIMEOUT = "com.sun.jndi.ldap.connect.timeout";
     private static final String PROPERTY_NAME_READ_TIMEOUT = "com.sun.jndi.ldap.read.timeout";
 
+    private static final int DEFAULT_MAX_CONNECTIONS = 8;
+    private static final int DEFAULT_PAGE_SIZE = 500;
+    private static final int DEFAULT_CACHE_MAX_SIZE = 10000;
+
     /**
      * The URL of the LDAP server against which users are to be authenticated.
      * Note that users are actually authenticated by binding against the LDAP
@@ -311,6 +353,31 @@ public class ReadOnlyUsersLDAPRepository implements UsersRepository, Configurabl
     // retries.
     private int maxRetries = 0;
 
+    // Maximum number of contexts in use at the same time. Default is 8.
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    // Users per page when listing the users, 0 disables paging. Default is
+    // 500.
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+    /**
+     * The idle contexts of the pool. At most {@link #maxConnections} contexts
+     * are borrowed at the same time, which is enforced by
+     * {@link #connectionPermits}.
+     */
+    private BlockingQueue<LdapContext> idleContexts = new LinkedBlockingQueue<LdapContext>(DEFAULT_MAX_CONNECTIONS);
+    private Semaphore connectionPermits = new Semaphore(DEFAULT_MAX_CONNECTIONS, true);
+
+    // Milliseconds users and group memberships are cached, 0 disables the
+    // cache. Default is 0.
+    private long userCacheTtl = 0;
+    private int userCacheMaxSize = DEFAULT_CACHE_MAX_SIZE;
+    private final ConcurrentMap<String, Cached<ReadOnlyLDAPUser>> cachedUsers = new ConcurrentHashMap<String, Cached<ReadOnlyLDAPUser>>();
+    private volatile Cached<Map<String, String>> cachedValidUsers;
+    private volatile Cached<Set<String>> cachedGroupMembers;
+
+    private AuthenticationCache authenticationCache;
+
     private Logger log;
 
     /**
@@ -351,6 +418,25 @@ public class ReadOnlyUsersLDAPRepository implements UsersRepository, Configurabl
         int scale = configuration.getInt("[@retryIntervalScale]", 1000); // seconds
         schedule = new DoublingRetrySchedule(retryStartInterval, retryMaxInterval, scale);
 
+        maxConnections = configuration.getInt("[@maxConnections]", DEFAULT_MAX_CONNECTIONS);
+        if (maxConnections < 1) {
+            throw new ConfigurationException("maxConnections must be at least 1");
+        }
+        idleContexts = new LinkedBlockingQueue<LdapContext>(maxConnections);
+        connectionPermits = new Semaphore(maxConnections, true);
+        pageSize = configuration.getInt("[@pageSize]", DEFAULT_PAGE_SIZE);
+
+        userCacheTtl = configuration.getLong("userCache.[@ttl]", 0);
+        userCacheMaxSize = configuration.getInt("userCache.[@maxSize]", DEFAULT_CACHE_MAX_SIZE);
+        try {
+            long ttl = configuration.getLong("authenticationCache.[@ttl]", 0);
+            if (ttl > 0) {
+                authenticationCache = new AuthenticationCache(ttl, configuration.getInt("authenticationCache.[@maxSize]", DEFAULT_CACHE_MAX_SIZE));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException(e.getMessage());
+        }
+
         HierarchicalConfiguration restrictionConfig = null;
         // Check if we have a restriction we can use
         // See JAMES-1204
@@ -375,14 +461,27 @@ public class ReadOnlyUsersLDAPRepository implements UsersRepository, Configurabl
     @PostConstruct
     public void init() throws Exception {
         if (log.isDebugEnabled()) {
-            log.debug(this.getClass().getName() + ".init()" + '\n' + "LDAP host: " + ldapHost + '\n' + "User baseDN: " + userBase + '\n' + "userIdAttribute: " + userIdAttribute + '\n' + "Group restriction: " + restriction + '\n' + "UseConnectionPool: " + useConnectionPool + '\n' + "connectionTimeout: " + connectionTimeout + '\n' + "readTimeout: " + readTimeout + '\n' + "retrySchedule: " + schedule + '\n' + "maxRetries: " + maxRetries + '\n');
+            log.debug(this.getClass().getName() + ".init()" + '\n' + "LDAP host: " + ldapHost + '\n' + "User baseDN: " + userBase + '\n' + "userIdAttribute: " + userIdAttribute + '\n' + "Group restriction: " + restriction + '\n' + "UseConnectionPool: " + useConnectionPool + '\n' + "connectionTimeout: " + connectionTimeout + '\n' + "readTimeout: " + readTimeout + '\n' + "retrySchedule: " + schedule + '\n' + "maxRetries: " + maxRetries + '\n' + "maxConnections: " + maxConnections + '\n' + "pageSize: " + pageSize + '\n' + "userCacheTtl: " + userCacheTtl + '\n');
         }
         // Setup the initial LDAP context
         updateLdapContext();
     }
 
     /**
-     * Answer the LDAP context used to connect with the LDAP server.
+     * Closes the idle contexts of the pool.
+     */
+    @PreDestroy
+    public void dispose() {
+        LdapContext context;
+        while ((context = idleContexts.poll()) != null) {
+            closeLdapContext(context);
+        }
+    }
+
+    /**
+     * Answer the LDAP context used to connect with the LDAP server. It is only
+     * the template for the contexts of the users, searches are done with
+     * contexts borrowed from the pool.
      *
      * @return an <code>LdapContext</code>
      * @throws NamingException
@@ -415,6 +514,65 @@ public class ReadOnlyUsersLDAPRepository implements UsersRepository, Configurabl
         };
     }
 
+    /**
+     * Borrows a context from the pool, creating one with
+     * {@link #computeLdapContext()} if none is idle. Waits while
+     * {@link #maxConnections} contexts are borrowed. The context must be
+     * handed back with {@link #releaseLdapContext(LdapContext, boolean)}.
+     *
+     * @return an <code>LdapContext</code> used by the calling thread only
+     * @throws NamingException
+     *             Propagated from underlying LDAP communication API.
+     */
+    protected LdapContext borrowLdapContext() throws NamingException {
+        try {
+            connectionPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedNamingException("Interrupted while waiting for an LDAP context");
+        }
+        LdapContext context = idleContexts.poll();
+        if (context == null) {
+            try {
+                context = computeLdapContext();
+            } catch (NamingException e) {
+                connectionPermits.release();
+                throw e;
+            } catch (RuntimeException e) {
+                connectionPermits.release();
+                throw e;
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Hands a context back to the pool. A context an operation failed on is
+     * closed instead of being reused.
+     *
+     * @param context
+     *            the context returned by {@link #borrowLdapContext()}
+     * @param failed
+     *            <code>true</code> if an operation on the context failed
+     */
+    protected void releaseLdapContext(LdapContext context, boolean failed) {
+        try {
+            if (failed || !idleContexts.offer(context)) {
+                closeLdapContext(context);
+            }
+        } finally {
+            connectionPermits.release();
+        }
+    }
+
+    private void closeLdapContext(LdapContext context) {
+        try {
+            context.close();
+        } catch (NamingException e) {
+            log.debug("Unable to close LDAP context", e);
+        }
+    }
+
     protected Properties getContextEnvironment()
     {
         final Properties props = new Properties();
@@ -441,88 +599,111 @@ public class ReadOnlyUsersLDAPRepository implements UsersRepository, Configurabl
     }
 
     /**
-     * Indicates if the user with the specified DN can be found in the group
-     * membership map&#45;as encapsulated by the specified parameter map.
+     * Gets the DNs of the members of all the groups of the {@link #restriction}.
+     * The memberships are cached for {@link #userCacheTtl} milliseconds.
      *
-     * @param userDN
-     *            The DN of the user to search for.
-     * @param groupMembershipList
-     *            A map containing the entire group membership lists for the
-     *            configured groups. This is organised as a map of
-     *
-     *            <code>&quot;&lt;groupDN&gt;=&lt;[userDN1,userDN2,...,userDNn]&gt;&quot;</code>
-     *            pairs. In essence, each <code>groupDN</code> string is
-     *            associated to a list of <code>userDNs</code>.
-     * @return <code>True</code> if the specified userDN is associated with at
-     *         least one group in the parameter map, and <code>False</code>
-     *         otherwise.
+     * @param context
+     *            The context to read the groups with.
+     * @return A set containing the DNs of the users which are allowed to
+     *         authenticate.
+     * @throws NamingException
+     *             Propagated from the LDAP communication layer.
      */
-    private boolean userInGroupsMembershipList(String userDN,
-            Map<String, Collection<String>> groupMembershipList) {
-        boolean result = false;
-
-        Collection<Collection<String>> memberLists = groupMembershipList.values();
-        Iterator<Collection<String>> memberListsIterator = memberLists.iterator();
-
-        while (memberListsIterator.hasNext() && !result) {
-            Collection<String> groupMembers = memberListsIterator.next();
-            result = groupMembers.contains(userDN);
+    private Set<String> getGroupMembers(LdapContext context) throws NamingException {
+        Cached<Set<String>> cached = cachedGroupMembers;
+        if (cached != null && !cached.isExpired()) {
+            return cached.value;
         }
 
-        return result;
+        Set<String> members = new HashSet<String>();
+        for (Collection<String> groupMembers : restriction.getGroupMembershipLists(context).values()) {
+            members.addAll(groupMembers);
+        }
+        members = Collections.unmodifiableSet(members);
+        if (userCacheTtl > 0) {
+            cachedGroupMembers = new Cached<Set<String>>(members, userCacheTtl);
+        }
+        return members;
     }
 
     /**
      * Gets all the user entities taken from the LDAP server, as taken from the
      * search-context given by the value of the attribute {@link #userBase}.
+     * The users are fetched in pages of {@link #pageSize} entries.
      *
-     * @return A set containing all the relevant users found in the LDAP
-     *         directory.
+     * @param context
+     *            The context to search with.
+     * @return A map of the DNs of all the relevant users found in the LDAP
+     *         directory to their userIds.
      * @throws NamingException
      *             Propagated from the LDAP communication layer.
      */
-    private Set<String> getAllUsersFromLDAP() throws NamingException {
-        Set<String> result = new HashSet<String>();
+    private Map<String, String> getAllUsersFromLDAP(LdapContext context) throws NamingException {
+        Map<String, String> result = new LinkedHashMap<String, String>();
 
         SearchControls sc = new SearchControls();
         sc.setSearchScope(SearchControls.SUBTREE_SCOPE);
-        sc.setReturningAttributes(new String[] { "distinguishedName" });
-        NamingEnumeration<SearchResult> sr = ldapContext.search(userBase, "(objectClass="
-                + userObjectClass + ")", sc);
-        while (sr.hasMore()) {
-            SearchResult r = sr.next();
-            result.add(r.getNameInNamespace());
+        sc.setReturningAttributes(new String[] { userIdAttribute });
+        String searchFilter = "(objectClass=" + userObjectClass + ")";
+
+        byte[] cookie = null;
+        try {
+            do {
+                if (pageSize > 0) {
+                    context.setRequestControls(new Control[] { newPagedResultsControl(cookie) });
+                }
+                NamingEnumeration<SearchResult> sr = context.search(userBase, searchFilter, sc);
+                try {
+                    while (sr.hasMore()) {
+                        SearchResult r = sr.next();
+                        Attribute userName = r.getAttributes().get(userIdAttribute);
+                        if (userName != null) {
+                            result.put(r.getNameInNamespace(), userName.get().toString());
+                        }
+                    }
+                } finally {
+                    sr.close();
+                }
+                cookie = (pageSize > 0) ? getPagedResultsCookie(context.getResponseControls()) : null;
+            } while (cookie != null && cookie.length > 0);
+        } finally {
+            if (pageSize > 0) {
+                context.setRequestControls(null);
+            }
         }
 
         return result;
     }
 
     /**
-     * Extract the user attributes for the given collection of userDNs, and
-     * encapsulates the user list as a collection of {@link ReadOnlyLDAPUser}s.
-     * This method delegates the extraction of a single user's details to the
-     * method {@link #buildUser(String)}.
-     *
-     * @param userDNs
-     *            The distinguished-names (DNs) of the users whose information
-     *            is to be extracted from the LDAP repository.
-     * @return A collection of {@link ReadOnlyLDAPUser}s as taken from the LDAP
-     *         server.
-     * @throws NamingException
-     *             Propagated from the underlying LDAP communication layer.
+     * Creates the RFC 2696 control requesting the page after the given cookie.
+     * It is not critical, so servers which do not support it return all
+     * entries at once.
      */
-    private Collection<ReadOnlyLDAPUser> buildUserCollection(Collection<String> userDNs)
-            throws NamingException {
-        List<ReadOnlyLDAPUser> results = new ArrayList<ReadOnlyLDAPUser>();
-
-        for (String userDN : userDNs) {
-            ReadOnlyLDAPUser user = buildUser(userDN);
-            results.add(user);
+    private PagedResultsControl newPagedResultsControl(byte[] cookie) throws NamingException {
+        try {
+            return new PagedResultsControl(pageSize, cookie, Control.NONCRITICAL);
+        } catch (IOException e) {
+            NamingException namingException = new NamingException("Unable to create paged results control");
+            namingException.setRootCause(e);
+            throw namingException;
         }
-
-        return results;
     }
 
+    /**
+     * Returns the cookie of the next page, or <code>null</code> if the last
+     * page was read or the server does not support paging.
+     */
+    private byte[] getPagedResultsCookie(Control[] controls) {
+        if (controls != null) {
+            for (Control control : controls) {
+                if (control instanceof PagedResultsResponseControl) {
+                    return ((PagedResultsResponseControl) control).getCookie();
+                }
+            }
+        }
+        return null;
+    }
 
     /**
      * For a given name, this method makes ldap search in userBase with filter {@link #userIdAttribute}=name and objectClass={@link #userObjectClass}
@@ -537,58 +718,43 @@ public class ReadOnlyUsersLDAPRepository implements UsersRepository, Configurabl
      *             Propagated by the underlying LDAP communication layer.
      */
     private ReadOnlyLDAPUser searchAndBuildUser(String name) throws NamingException {
-      SearchControls sc = new SearchControls();
-      sc.setSearchScope(SearchControls.SUBTREE_SCOPE);
-      sc.setReturningAttributes(new String[] { userIdAttribute });
-      sc.setCountLimit(1);
-
-      StringBuilder builderFilter = new StringBuilder("(&(");
-      builderFilter.append(userIdAttribute).append("=").append(name).append(")")
-                   .append("(objectClass=").append(userObjectClass).append(")");
-
-     if(StringUtils.isNotEmpty(filter)){
-    	 builderFilter.append(filter).append(")");
-    	 }
-     else{
-    	 builderFilter.append(")");
-     }
-
-      NamingEnumeration<SearchResult> sr = ldapContext.search(userBase, builderFilter.toString(),
-          sc);
-
-      if (!sr.hasMore())
-        return null;
-
-      SearchResult r = sr.next();
-      Attribute userName = r.getAttributes().get(userIdAttribute);
+        SearchControls sc = new SearchControls();
+        sc.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        sc.setReturningAttributes(new String[] { userIdAttribute });
+        sc.setCountLimit(1);
 
-      if (!restriction.isActivated()
-          || userInGroupsMembershipList(r.getNameInNamespace(), restriction.getGroupMembershipLists(ldapContext)))
-        return new ReadOnlyLDAPUser(userName.get().toString(), r.getNameInNamespace(), ldapContext);
+        StringBuilder builderFilter = new StringBuilder("(&(");
+        builderFilter.append(userIdAttribute).append("=").append(name).append(")")
+                     .append("(objectClass=").append(userObjectClass).append(")");
 
-      return null;
-    }
+        if (StringUtils.isNotEmpty(filter)) {
+            builderFilter.append(filter).append(")");
+        } else {
+            builderFilter.append(")");
+        }
 
-    /**
-     * Given a userDN, this method retrieves the user attributes from the LDAP
-     * server, so as to extract the items that are of interest to James.
-     * Specifically it extracts the userId, which is extracted from the LDAP
-     * attribute whose name is given by the value of the field
-     * {@link #userIdAttribute}.
-     *
-     * @param userDN
-     *            The distinguished-name of the user whose details are to be
-     *            extracted from the LDAP repository.
-     * @return A {@link ReadOnlyLDAPUser} instance which is initialized with the
-     *         userId of this user and ldap connection information with which
-     *         the userDN and attributes were obtained.
-     * @throws NamingException
-     *             Propagated by the underlying LDAP communication layer.
-     */
-    private ReadOnlyLDAPUser buildUser(String userDN) throws NamingException {
-      Attributes userAttributes = ldapContext.getAttributes(userDN);
-      Attribute userName = userAttributes.get(userIdAttribute);
-      return new ReadOnlyLDAPUser(userName.get().toString(), userDN, ldapContext);
+        LdapContext context = borrowLdapContext();
+        boolean failed = true;
+        try {
+            ReadOnlyLDAPUser user = null;
+            NamingEnumeration<SearchResult> sr = context.search(userBase, builderFilter.toString(), sc);
+            try {
+                if (sr.hasMore()) {
+                    SearchResult r = sr.next();
+                    Attribute userName = r.getAttributes().get(userIdAttribute);
+
+                    if (!restriction.isActivated() || getGroupMembers(context).contains(r.getNameInNamespace())) {
+                        user = new ReadOnlyLDAPUser(userName.get().toString(), r.getNameInNamespace(), getLdapContext());
+                    }
+                }
+            } finally {
+                sr.close();
+            }
+            failed = false;
+            return user;
+        } finally {
+            releaseLdapContext(context, failed);
+        }
     }
 
     /**
@@ -640,8 +806,21 @@ public class ReadOnlyUsersLDAPRepository implements UsersRepository, Configurabl
      * @see UsersRepository#getUserByName(java.lang.String)
      */
     public User getUserByName(String name) throws UsersRepositoryException {
+        // the userId attribute is matched ignoring the case
+        String cacheKey = name.toLowerCase(Locale.US);
+        Cached<ReadOnlyLDAPUser> cached = (userCacheTtl > 0) ? cachedUsers.get(cacheKey) : null;
+        if (cached != null && !cached.isExpired()) {
+            return cached.value;
+        }
         try {
-          return searchAndBuildUser(name);
+            ReadOnlyLDAPUser user = searchAndBuildUser(name);
+            if (userCacheTtl > 0) {
+                if (cachedUsers.size() >= userCacheMaxSize) {
+                    cachedUsers.clear();
+                }
+                cachedUsers.put(cacheKey, new Cached<ReadOnlyLDAPUser>(user, userCacheTtl));
+            }
+            return user;
         } catch (NamingException e) {
             log.error("Unable to retrieve user from ldap", e);
             throw new UsersRepositoryException("Unable to retrieve user from ldap", e);
@@ -657,9 +836,9 @@ public class ReadOnlyUsersLDAPRepository implements UsersRepository, Configurabl
      */
     public User getUserByNameCaseInsensitive(String name) throws UsersRepositoryException {
         try {
-            for (ReadOnlyLDAPUser u : buildUserCollection(getValidUsers())) {
-                if (u.getUserName().equalsIgnoreCase(name)) {
-                    return u;
+            for (Map.Entry<String, String> user : getValidUsers().entrySet()) {
+                if (user.getValue().equalsIgnoreCase(name)) {
+                    return new ReadOnlyLDAPUser(user.getValue(), user.getKey(), getLdapContext());
                 }
             }
 
@@ -675,41 +854,42 @@ public class ReadOnlyUsersLDAPRepository implements UsersRepository, Configurabl
      * @see UsersRepository#list()
      */
     public Iterator<String> list() throws UsersRepositoryException {
-        List<String> result = new ArrayList<String>();
         try {
-
-            for (ReadOnlyLDAPUser readOnlyLDAPUser : buildUserCollection(getValidUsers())) {
-                result.add(readOnlyLDAPUser.getUserName());
-            }
+            return new ArrayList<String>(getValidUsers().values()).iterator();
         } catch (NamingException namingException) {
             throw new UsersRepositoryException(
                     "Unable to retrieve users list from LDAP due to unknown naming error.",
                     namingException);
         }
-
-        return result.iterator();
     }
 
-    private Collection<String> getValidUsers() throws NamingException {
-        Set<String> userDNs = getAllUsersFromLDAP();
-        Collection<String> validUserDNs;
-
-        if (restriction.isActivated()) {
-            Map<String, Collection<String>> groupMembershipList = restriction
-                    .getGroupMembershipLists(ldapContext);
-            validUserDNs = new ArrayList<String>();
-
-            Iterator<String> userDNIterator = userDNs.iterator();
-            String userDN;
-            while (userDNIterator.hasNext()) {
-                userDN = userDNIterator.next();
-                if (userInGroupsMembershipList(userDN, groupMembershipList))
-                    validUserDNs.add(userDN);
+    /**
+     * Returns the users which pass the group restriction, as a map of their
+     * DNs to their userIds. The result is cached for {@link #userCacheTtl}
+     * milliseconds.
+     */
+    private Map<String, String> getValidUsers() throws NamingException {
+        Cached<Map<String, String>> cached = cachedValidUsers;
+        if (cached != null && !cached.isExpired()) {
+            return cached.value;
+        }
+
+        LdapContext context = borrowLdapContext();
+        boolean failed = true;
+        try {
+            Map<String, String> users = getAllUsersFromLDAP(context);
+            if (restriction.isActivated()) {
+                users.keySet().retainAll(getGroupMembers(context));
             }
-        } else {
-            validUserDNs = userDNs;
+            users = Collections.unmodifiableMap(users);
+            if (userCacheTtl > 0) {
+                cachedValidUsers = new Cached<Map<String, String>>(users, userCacheTtl);
+            }
+            failed = false;
+            return users;
+        } finally {
+            releaseLdapContext(context, failed);
         }
-        return validUserDNs;
     }
 
     /**
@@ -726,8 +906,20 @@ public class ReadOnlyUsersLDAPRepository implements UsersRepository, Configurabl
      * @see UsersRepository#test(java.lang.String, java.lang.String)
      */
     public boolean test(String name, String password) throws UsersRepositoryException {
+        AuthenticationCache cache = authenticationCache;
+        long generation = 0;
+        if (cache != null) {
+            if (cache.test(name, password)) {
+                return true;
+            }
+            generation = cache.getGeneration();
+        }
         User u = getUserByName(name);
-        return u != null && u.verifyPassword(password);
+        boolean valid = u != null && u.verifyPassword(password);
+        if (valid && cache != null) {
+            cache.put(name, password, generation);
+        }
+        return valid;
     }
 
     /**
@@ -761,4 +953,22 @@ public class ReadOnlyUsersLDAPRepository implements UsersRepository, Configurabl
         return false;
     }
 
+    /**
+     * A value which is cached until it expires
+     */
+    private static final class Cached<V> {
+
+        private final V value;
+        private final long expires;
+
+        Cached(V value, long ttl) {
+            this.value = value;
+            this.expires = System.currentTimeMillis() + ttl;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expires;
+        }
+    }
+
 }
@@ -0,0 +1,204 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.user.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+
+import org.apache.commons.configuration.DefaultConfigurationBuilder;
+import org.apache.james.user.api.UsersRepositoryException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
+
+/**
+ * Runs the repository against an in-memory directory server
+ */
+public class ReadOnlyUsersLDAPRepositoryTest {
+
+    private static final String BASE_DN = "dc=james,dc=apache,dc=org";
+    private static final String USER_BASE = "ou=people," + BASE_DN;
+    private static final String ADMIN_DN = "cn=Directory Manager";
+    private static final String ADMIN_PASSWORD = "secret";
+    private static final int USERS = 12;
+    private static final int PAGE_SIZE = 5;
+
+    private final AtomicInteger searches = new AtomicInteger();
+    private final AtomicInteger pagedSearches = new AtomicInteger();
+    private final AtomicBoolean failNextSearch = new AtomicBoolean();
+    private final AtomicInteger contexts = new AtomicInteger();
+
+    private InMemoryDirectoryServer server;
+    private ReadOnlyUsersLDAPRepository repository;
+
+    @Before
+    public void setUp() throws Exception {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.addAdditionalBindCredentials(ADMIN_DN, ADMIN_PASSWORD);
+        config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", 0));
+        config.addInMemoryOperationInterceptor(new InMemoryOperationInterceptor() {
+
+            @Override
+            public void processSearchRequest(InMemoryInterceptedSearchRequest request) throws LDAPException {
+                searches.incrementAndGet();
+                if (request.getRequest().hasControl(SimplePagedResultsControl.PAGED_RESULTS_OID)) {
+                    pagedSearches.incrementAndGet();
+                }
+                if (failNextSearch.getAndSet(false)) {
+                    throw new LDAPException(ResultCode.OTHER, "Search failed on purpose");
+                }
+            }
+        });
+        server = new InMemoryDirectoryServer(config);
+        server.add("dn: " + BASE_DN, "objectClass: top", "objectClass: domain", "dc: james");
+        server.add("dn: " + USER_BASE, "objectClass: top", "objectClass: organizationalUnit", "ou: people");
+        for (int i = 0; i < USERS; i++) {
+            server.add("dn: uid=user" + i + "," + USER_BASE, "objectClass: top", "objectClass: person", "objectClass: organizationalPerson", "objectClass: inetOrgPerson", "uid: user" + i, "cn: User " + i, "sn: " + i, "userPassword: password" + i);
+        }
+        server.startListening();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (repository != null) {
+            repository.dispose();
+        }
+        server.shutDown(true);
+    }
+
+    private ReadOnlyUsersLDAPRepository createRepository(long userCacheTtl) throws Exception {
+        DefaultConfigurationBuilder configuration = new DefaultConfigurationBuilder();
+        configuration.addProperty("[@ldapHost]", "ldap://localhost:" + server.getListenPort());
+        configuration.addProperty("[@principal]", ADMIN_DN);
+        configuration.addProperty("[@credentials]", ADMIN_PASSWORD);
+        configuration.addProperty("[@userBase]", USER_BASE);
+        configuration.addProperty("[@userIdAttribute]", "uid");
+        configuration.addProperty("[@userObjectClass]", "inetOrgPerson");
+        configuration.addProperty("[@useConnectionPool]", false);
+        configuration.addProperty("[@maxRetries]", 0);
+        configuration.addProperty("[@pageSize]", PAGE_SIZE);
+        configuration.addProperty("userCache.[@ttl]", userCacheTtl);
+
+        repository = new ReadOnlyUsersLDAPRepository() {
+
+            @Override
+            protected LdapContext computeLdapContext() throws NamingException {
+                contexts.incrementAndGet();
+                return super.computeLdapContext();
+            }
+        };
+        repository.setLog(LoggerFactory.getLogger("MockLog"));
+        repository.configure(configuration);
+        repository.init();
+        return repository;
+    }
+
+    @Test
+    public void testListUsersInPages() throws Exception {
+        createRepository(0);
+
+        Set<String> users = new HashSet<String>();
+        for (Iterator<String> i = repository.list(); i.hasNext();) {
+            users.add(i.next());
+        }
+        assertEquals(USERS, users.size());
+        for (int i = 0; i < USERS; i++) {
+            assertTrue(users.contains("user" + i));
+        }
+        assertEquals("One search per page", (USERS + PAGE_SIZE - 1) / PAGE_SIZE, pagedSearches.get());
+
+        assertEquals(USERS, repository.countUsers());
+    }
+
+    @Test
+    public void testFailedContextIsNotReused() throws Exception {
+        createRepository(0);
+        // the template context of the users
+        int created = contexts.get();
+
+        assertNotNull(repository.getUserByName("user1"));
+        assertEquals(created + 1, contexts.get());
+        assertNotNull(repository.getUserByName("user2"));
+        assertEquals("The idle context is reused", created + 1, contexts.get());
+
+        failNextSearch.set(true);
+        try {
+            repository.getUserByName("user3");
+            fail("The search should fail");
+        } catch (UsersRepositoryException e) {
+            // expected
+        }
+        assertNotNull(repository.getUserByName("user3"));
+        assertEquals("The context of the failed search is discarded", created + 2, contexts.get());
+    }
+
+    @Test
+    public void testUserCache() throws Exception {
+        createRepository(60000);
+        int before = searches.get();
+
+        assertEquals("user1", repository.getUserByName("user1").getUserName());
+        assertEquals("user1", repository.getUserByName("user1").getUserName());
+        assertEquals("user1", repository.getUserByName("User1").getUserName());
+        assertEquals("The user is looked up once", before + 1, searches.get());
+
+        assertNull(repository.getUserByName("nobody"));
+        assertNull(repository.getUserByName("nobody"));
+        assertEquals("Unknown users are cached too", before + 2, searches.get());
+    }
+
+    @Test
+    public void testUserCacheExpires() throws Exception {
+        createRepository(100);
+        int before = searches.get();
+
+        assertNotNull(repository.getUserByName("user1"));
+        assertNull(repository.getUserByName("nobody"));
+        assertNotNull(repository.getUserByName("user1"));
+        assertNull(repository.getUserByName("nobody"));
+        assertEquals(before + 2, searches.get());
+
+        Thread.sleep(200);
+        assertNotNull(repository.getUserByName("user1"));
+        assertNull(repository.getUserByName("nobody"));
+        assertEquals("Expired entries are looked up again", before + 4, searches.get());
+    }
+}
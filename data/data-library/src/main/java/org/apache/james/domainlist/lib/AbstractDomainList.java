@@ -22,8 +22,14 @@ package org.apache.james.domainlist.lib;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Resource;
 import javax.inject.Inject;
@@ -42,14 +48,31 @@ import org.slf4j.Logger;
 /**
  * All implementations of the DomainList interface should extends this abstract
  * class
+ * 
+ * With <code>&lt;cache&gt;true&lt;/cache&gt;</code> the domains, including the
+ * autodetected host name and addresses, are kept in an immutable snapshot.
+ * Lookups are answered from the snapshot, which is replaced after every change
+ * done through this instance and reloaded every
+ * <code>refreshInterval</code> milliseconds to see changes done elsewhere.
  */
 public abstract class AbstractDomainList implements DomainList, LogEnabled, Configurable {
+
+    private final static long DEFAULT_CACHE_REFRESH_INTERVAL = 60000;
+
     private DNSService dns;
     private boolean autoDetect = true;
     private boolean autoDetectIP = true;
     private Logger logger;
     private String defaultDomain;
 
+    /**
+     * The interval in ms after which the cached domains are reloaded, or -1 if
+     * they are not cached
+     */
+    private volatile long cacheRefreshInterval = -1;
+    private volatile Snapshot snapshot;
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
     @Inject
     @Resource
     public void setDNSService(@Named("dnsservice") DNSService dns) {
@@ -70,6 +93,11 @@ public abstract class AbstractDomainList implements DomainList, LogEnabled, Conf
 
         setAutoDetect(config.getBoolean("autodetect", true));
         setAutoDetectIP(config.getBoolean("autodetectIP", true));
+        if (config.getBoolean("cache", false)) {
+            setCacheRefreshInterval(config.getLong("cache[@refreshInterval]", DEFAULT_CACHE_REFRESH_INTERVAL));
+        } else {
+            setCacheRefreshInterval(-1);
+        }
     }
 
     @Override
@@ -79,7 +107,45 @@ public abstract class AbstractDomainList implements DomainList, LogEnabled, Conf
 
     @Override
     public String[] getDomains() throws DomainListException {
-        List<String> domains = getDomainListInternal();
+        if (cacheRefreshInterval < 0) {
+            return completeDomains(getDomainListInternal(), null, null);
+        }
+        String[] domains = getSnapshot().domains;
+        return (domains == null) ? null : domains.clone();
+    }
+
+    @Override
+    public boolean containsDomain(String domain) throws DomainListException {
+        if (cacheRefreshInterval < 0) {
+            return containsDomainInternal(domain);
+        }
+        return getSnapshot().stored.contains(domain);
+    }
+
+    @Override
+    public void addDomain(String domain) throws DomainListException {
+        addDomainInternal(domain);
+        domainsChanged();
+    }
+
+    @Override
+    public void removeDomain(String domain) throws DomainListException {
+        removeDomainInternal(domain);
+        domainsChanged();
+    }
+
+    /**
+     * Add the autodetected host name and addresses to the given domains
+     * 
+     * @param domains
+     *            the domains of the service, which get extended
+     * @param knownAddresses
+     *            addresses which were already resolved, or null
+     * @param resolvedAddresses
+     *            receives the resolved addresses, or null
+     * @return the domains, or null if there are none
+     */
+    private String[] completeDomains(List<String> domains, Map<String, List<String>> knownAddresses, Map<String, List<String>> resolvedAddresses) {
         if (domains != null) {
 
             String hostName;
@@ -96,7 +162,7 @@ public abstract class AbstractDomainList implements DomainList, LogEnabled, Conf
             }
 
             if (autoDetectIP) {
-                domains.addAll(getDomainsIP(domains, dns, getLogger()));
+                domains.addAll(getDomainsIP(domains, knownAddresses, resolvedAddresses));
             }
 
             if (getLogger().isInfoEnabled()) {
@@ -114,18 +180,85 @@ public abstract class AbstractDomainList implements DomainList, LogEnabled, Conf
         }
     }
 
+    /**
+     * Return the cached domains, reloading them if they are older than the
+     * refresh interval. Only one thread reloads them, the others keep using
+     * the current snapshot meanwhile.
+     */
+    private Snapshot getSnapshot() throws DomainListException {
+        Snapshot current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                if (snapshot == null) {
+                    snapshot = loadSnapshot(null);
+                }
+                return snapshot;
+            }
+        }
+        if (System.currentTimeMillis() - current.loaded >= cacheRefreshInterval && refreshing.compareAndSet(false, true)) {
+            try {
+                synchronized (this) {
+                    snapshot = loadSnapshot(null);
+                }
+            } catch (DomainListException e) {
+                getLogger().warn("Unable to reload the domains, using the cached ones", e);
+            } finally {
+                refreshing.set(false);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Replace the cached domains after a change. The addresses of the domains
+     * which were known before are not resolved again.
+     */
+    private void domainsChanged() throws DomainListException {
+        if (cacheRefreshInterval >= 0) {
+            synchronized (this) {
+                Snapshot current = snapshot;
+                if (current != null) {
+                    snapshot = loadSnapshot(current.addresses);
+                }
+            }
+        }
+    }
+
+    private Snapshot loadSnapshot(Map<String, List<String>> knownAddresses) throws DomainListException {
+        long loaded = System.currentTimeMillis();
+        List<String> domains = getDomainListInternal();
+        Set<String> stored;
+        if (domains == null) {
+            stored = Collections.emptySet();
+        } else {
+            stored = Collections.unmodifiableSet(new HashSet<String>(domains));
+        }
+        Map<String, List<String>> addresses = new HashMap<String, List<String>>();
+        return new Snapshot(stored, completeDomains(domains, knownAddresses, addresses), addresses, loaded);
+    }
+
     /**
      * Return a List which holds all ipAddress of the domains in the given List
      * 
      * @param domains
      *            List of domains
+     * @param knownAddresses
+     *            addresses which were already resolved, or null
+     * @param resolvedAddresses
+     *            receives the resolved addresses, or null
      * @return domainIP List of ipaddress for domains
      */
-    private static List<String> getDomainsIP(List<String> domains, DNSService dns, Logger log) {
+    private List<String> getDomainsIP(List<String> domains, Map<String, List<String>> knownAddresses, Map<String, List<String>> resolvedAddresses) {
         List<String> domainIP = new ArrayList<String>();
         if (domains.size() > 0) {
             for (String domain : domains) {
-                List<String> domList = getDomainIP(domain, dns, log);
+                List<String> domList = (knownAddresses == null) ? null : knownAddresses.get(domain);
+                if (domList == null) {
+                    domList = getDomainIP(domain, dns, getLogger());
+                }
+                if (resolvedAddresses != null) {
+                    resolvedAddresses.put(domain, domList);
+                }
 
                 for (String aDomList : domList) {
                     if (!domainIP.contains(aDomList)) {
@@ -138,7 +271,7 @@ public abstract class AbstractDomainList implements DomainList, LogEnabled, Conf
     }
 
     /**
-     * @see #getDomainsIP(List, DNSService, Logger)
+     * @see #getDomainsIP(List, Map, Map)
      */
     private static List<String> getDomainIP(String domain, DNSService dns, Logger log) {
         List<String> domainIP = new ArrayList<String>();
@@ -180,6 +313,18 @@ public abstract class AbstractDomainList implements DomainList, LogEnabled, Conf
         this.autoDetectIP = autoDetectIP;
     }
 
+    /**
+     * Set the interval after which the cached domains are reloaded, or -1 to
+     * not cache them. Default is -1
+     * 
+     * @param cacheRefreshInterval
+     *            the interval in milliseconds
+     */
+    public synchronized void setCacheRefreshInterval(long cacheRefreshInterval) {
+        this.cacheRefreshInterval = cacheRefreshInterval;
+        this.snapshot = null;
+    }
+
     /**
      * Return dnsServer
      * 
@@ -196,4 +341,49 @@ public abstract class AbstractDomainList implements DomainList, LogEnabled, Conf
      */
     protected abstract List<String> getDomainListInternal() throws DomainListException;
 
+    /**
+     * Return true if the domain is stored in the service
+     * 
+     * @param domain
+     *            the domain
+     * @return true if the given domain is stored
+     * @see DomainList#containsDomain(String)
+     */
+    protected abstract boolean containsDomainInternal(String domain) throws DomainListException;
+
+    /**
+     * Store the domain in the service
+     * 
+     * @param domain
+     *            domain to add
+     * @see DomainList#addDomain(String)
+     */
+    protected abstract void addDomainInternal(String domain) throws DomainListException;
+
+    /**
+     * Remove the domain from the service
+     * 
+     * @param domain
+     *            domain to remove
+     * @see DomainList#removeDomain(String)
+     */
+    protected abstract void removeDomainInternal(String domain) throws DomainListException;
+
+    /**
+     * The domains of the service at a point in time
+     */
+    private final static class Snapshot {
+        final Set<String> stored;
+        final String[] domains;
+        final Map<String, List<String>> addresses;
+        final long loaded;
+
+        Snapshot(Set<String> stored, String[] domains, Map<String, List<String>> addresses, long loaded) {
+            this.stored = stored;
+            this.domains = domains;
+            this.addresses = addresses;
+            this.loaded = loaded;
+        }
+    }
+
 }
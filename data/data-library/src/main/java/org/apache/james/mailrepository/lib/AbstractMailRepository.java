@@ -30,7 +30,9 @@ import org.slf4j.Logger;
 import javax.mail.MessagingException;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 /**
  * This class represent an AbstractMailRepository. All MailRepositories should
@@ -45,7 +47,7 @@ public abstract class AbstractMailRepository implements MailRepository, LogEnabl
 
     /**
      * A lock used to control access to repository elements, locking access
-     * based on the key
+     * based on the key. Stores of different keys do not contend on it.
      */
     private final Lock lock = new Lock();
 
@@ -60,6 +62,11 @@ public abstract class AbstractMailRepository implements MailRepository, LogEnabl
     }
 
     public void configure(HierarchicalConfiguration configuration) throws ConfigurationException {
+        long lockTimeout = configuration.getLong("[@lockTimeout]", 0);
+        if (lockTimeout < 0) {
+            throw new ConfigurationException("lockTimeout must not be negative");
+        }
+        lock.setTimeout(lockTimeout);
         doConfigure(configuration);
     }
 
@@ -85,16 +92,10 @@ public abstract class AbstractMailRepository implements MailRepository, LogEnabl
      * @see org.apache.james.mailrepository.api.MailRepository#store(Mail)
      */
     public void store(Mail mc) throws MessagingException {
-        boolean wasLocked = true;
         String key = mc.getName();
+        // If it wasn't locked, we want a lock during the store
+        boolean wasLocked = !lock.lockIfFree(key);
         try {
-            synchronized (this) {
-                wasLocked = lock.isLocked(key);
-                if (!wasLocked) {
-                    // If it wasn't locked, we want a lock during the store
-                    lock(key);
-                }
-            }
             internalStore(mc);
         } catch (MessagingException e) {
             getLogger().error("Exception caught while storing mail " + key, e);
@@ -106,9 +107,6 @@ public abstract class AbstractMailRepository implements MailRepository, LogEnabl
             if (!wasLocked) {
                 // If it wasn't locked, we need to unlock now
                 unlock(key);
-                synchronized (this) {
-                    notify();
-                }
             }
         }
     }
@@ -118,6 +116,44 @@ public abstract class AbstractMailRepository implements MailRepository, LogEnabl
      */
     protected abstract void internalStore(Mail mc) throws MessagingException, IOException;
 
+    /**
+     * @see org.apache.james.mailrepository.api.MailRepository#storeAll(Collection)
+     */
+    public void storeAll(Collection<Mail> mails) throws MessagingException {
+        List<String> locked = new ArrayList<String>();
+        try {
+            for (Mail mail : mails) {
+                // Only the mails which weren't locked get a lock during the store
+                if (lock.lockIfFree(mail.getName())) {
+                    locked.add(mail.getName());
+                }
+            }
+            internalStoreAll(mails);
+        } catch (MessagingException e) {
+            getLogger().error("Exception caught while storing " + mails.size() + " mails", e);
+            throw e;
+        } catch (Exception e) {
+            getLogger().error("Exception caught while storing " + mails.size() + " mails", e);
+            throw new MessagingException("Exception caught while storing " + mails.size() + " mails", e);
+        } finally {
+            for (String key : locked) {
+                unlock(key);
+            }
+        }
+    }
+
+    /**
+     * Store the given mails. Subclasses which can store several mails at once
+     * should override this, the default stores them one by one.
+     * 
+     * @see #storeAll(Collection)
+     */
+    protected void internalStoreAll(Collection<Mail> mails) throws MessagingException, IOException {
+        for (Mail mail : mails) {
+            internalStore(mail);
+        }
+    }
+
     /**
      * @see org.apache.james.mailrepository.api.MailRepository#remove(Mail)
      */
@@ -129,8 +165,40 @@ public abstract class AbstractMailRepository implements MailRepository, LogEnabl
      * @see org.apache.james.mailrepository.api.MailRepository#remove(Collection)
      */
     public void remove(Collection<Mail> mails) throws MessagingException {
+        List<String> keys = new ArrayList<String>(mails.size());
         for (Mail mail : mails) {
-            remove(mail);
+            keys.add(mail.getName());
+        }
+        removeAll(keys);
+    }
+
+    /**
+     * Removes all keys which can be locked, and throws a
+     * {@link MessagingException} afterwards if some could not.
+     * 
+     * @see org.apache.james.mailrepository.api.MailRepository#removeAll(Collection)
+     */
+    public void removeAll(Collection<String> keys) throws MessagingException {
+        List<String> locked = new ArrayList<String>(keys.size());
+        List<String> notLocked = new ArrayList<String>();
+        try {
+            for (String key : keys) {
+                if (lock(key)) {
+                    locked.add(key);
+                } else {
+                    notLocked.add(key);
+                }
+            }
+            if (!locked.isEmpty()) {
+                internalRemoveAll(locked);
+            }
+        } finally {
+            for (String key : locked) {
+                unlock(key);
+            }
+        }
+        if (!notLocked.isEmpty()) {
+            throw new MessagingException("Cannot lock " + notLocked + " to remove them");
         }
     }
 
@@ -155,4 +223,17 @@ public abstract class AbstractMailRepository implements MailRepository, LogEnabl
      */
     protected abstract void internalRemove(String key) throws MessagingException;
 
+    /**
+     * Remove the given keys, which are locked by the calling thread.
+     * Subclasses which can remove several mails at once should override this,
+     * the default removes them one by one.
+     * 
+     * @see #removeAll(Collection)
+     */
+    protected void internalRemoveAll(Collection<String> keys) throws MessagingException {
+        for (String key : keys) {
+            internalRemove(key);
+        }
+    }
+
 }
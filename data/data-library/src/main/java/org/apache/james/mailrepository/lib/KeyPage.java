@@ -0,0 +1,73 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailrepository.lib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Helper for repositories which can not page their keys natively. It selects
+ * the smallest keys after a given key from an unordered iteration, holding no
+ * more than one page of keys.
+ */
+public final class KeyPage {
+
+    private KeyPage() {
+    }
+
+    /**
+     * Return the <code>limit</code> smallest keys which are greater than
+     * <code>afterKey</code>, in ascending order
+     * 
+     * @param keys
+     *            the keys, in any order
+     * @param afterKey
+     *            the last key of the previous page, or <code>null</code> for the
+     *            first page
+     * @param limit
+     *            the maximum size of the page
+     * @return page
+     */
+    public static List<String> select(Iterator<String> keys, String afterKey, int limit) {
+        if (limit <= 0) {
+            return Collections.emptyList();
+        }
+        // max-heap, so the greatest key of the page can be replaced cheaply
+        PriorityQueue<String> page = new PriorityQueue<String>(Math.min(limit, 1024), Collections.reverseOrder());
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (key == null || (afterKey != null && key.compareTo(afterKey) <= 0)) {
+                continue;
+            }
+            if (page.size() < limit) {
+                page.add(key);
+            } else if (key.compareTo(page.peek()) < 0) {
+                page.poll();
+                page.add(key);
+            }
+        }
+        List<String> result = new ArrayList<String>(page);
+        Collections.sort(result);
+        return result;
+    }
+}
@@ -19,16 +19,42 @@
 
 package org.apache.james.mailrepository.lib;
 
-import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Provides Lock functionality
+ * 
+ * Locks are owned by the thread which took them and are not reentrant
+ * counted: a thread may lock a key it already holds, and one unlock releases
+ * it. Locking never blocks. The locks live in a {@link ConcurrentHashMap}, so
+ * threads working on different keys do not contend on a common monitor.
+ * 
+ * A lock whose owner thread died is released on the next attempt to take it.
+ * If a timeout is set, a lock held for longer than the timeout is released
+ * too.
  */
 public class Lock {
     /**
-     * An internal hash table of keys to locks
+     * An internal map of keys to lock owners
      */
-    private final Hashtable locks = new Hashtable();
+    private final ConcurrentMap<Object, Owner> locks = new ConcurrentHashMap<Object, Owner>();
+
+    private volatile long timeout;
+
+    /**
+     * Set the time after which a lock may be taken over by another thread. A
+     * value of 0, the default, keeps the locks until they are released.
+     * 
+     * @param timeout
+     *            the timeout in milliseconds
+     */
+    public void setTimeout(long timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Timeout must not be negative");
+        }
+        this.timeout = timeout;
+    }
 
     /**
      * Check to see if the object is locked
@@ -38,7 +64,8 @@ public class Lock {
      * @return true if the object is locked, false otherwise
      */
     public boolean isLocked(final Object key) {
-        return (locks.get(key) != null);
+        Owner owner = locks.get(key);
+        return owner != null && !isStale(owner);
     }
 
     /**
@@ -49,9 +76,9 @@ public class Lock {
      * @return true if the calling thread can lock, false otherwise
      */
     public boolean canI(final Object key) {
-        Object o = locks.get(key);
+        Owner owner = locks.get(key);
 
-        return null == o || o == this.getCallerId();
+        return null == owner || owner.thread == Thread.currentThread() || isStale(owner);
 
     }
 
@@ -63,16 +90,19 @@ public class Lock {
      * @return true if the locking was successful, false otherwise
      */
     public boolean lock(final Object key) {
-        Object theLock;
-
-        synchronized (this) {
-            theLock = locks.get(key);
+        return tryLock(key) != null;
+    }
 
-            if (null == theLock) {
-                locks.put(key, getCallerId());
-                return true;
-            } else return getCallerId() == theLock;
-        }
+    /**
+     * Lock on a given object unless it is locked already, by any thread
+     * including the calling one.
+     * 
+     * @param key
+     *            the Object on which to lock
+     * @return true if the lock was free and is now held by the calling thread
+     */
+    public boolean lockIfFree(final Object key) {
+        return tryLock(key) == Boolean.TRUE;
     }
 
     /**
@@ -83,27 +113,62 @@ public class Lock {
      * @return true if the unlocking was successful, false otherwise
      */
     public boolean unlock(final Object key) {
-        Object theLock;
-        synchronized (this) {
-            theLock = locks.get(key);
-
-            if (null == theLock) {
-                return true;
-            } else if (getCallerId() == theLock) {
-                locks.remove(key);
-                return true;
-            } else {
-                return false;
-            }
+        Owner owner = locks.get(key);
+
+        if (null == owner) {
+            return true;
+        } else if (owner.thread == Thread.currentThread()) {
+            locks.remove(key, owner);
+            return true;
+        } else {
+            return false;
         }
     }
 
     /**
-     * Private helper method to abstract away caller ID.
+     * Try to take the lock for the calling thread
      * 
-     * @return the id of the caller (i.e. the Thread reference)
+     * @return TRUE if the lock was free, FALSE if the calling thread held it
+     *         already, null if another thread holds it
+     */
+    private Boolean tryLock(final Object key) {
+        Thread current = Thread.currentThread();
+        Owner mine = null;
+        while (true) {
+            Owner owner = locks.get(key);
+            if (owner != null) {
+                if (owner.thread == current) {
+                    return Boolean.FALSE;
+                }
+                if (!isStale(owner)) {
+                    return null;
+                }
+            }
+            if (mine == null) {
+                mine = new Owner(current);
+            }
+            if (owner == null ? locks.putIfAbsent(key, mine) == null : locks.replace(key, owner, mine)) {
+                return Boolean.TRUE;
+            }
+            // lost a race with another thread, look again
+        }
+    }
+
+    private boolean isStale(Owner owner) {
+        long timeout = this.timeout;
+        return !owner.thread.isAlive() || (timeout > 0 && System.currentTimeMillis() - owner.since > timeout);
+    }
+
+    /**
+     * The thread holding a lock and the time it took it
      */
-    private Object getCallerId() {
-        return Thread.currentThread();
+    private static final class Owner {
+        private final Thread thread;
+        private final long since;
+
+        private Owner(Thread thread) {
+            this.thread = thread;
+            this.since = System.currentTimeMillis();
+        }
     }
 }
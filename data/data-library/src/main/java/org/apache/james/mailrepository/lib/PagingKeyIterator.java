@@ -0,0 +1,110 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailrepository.lib;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.mail.MessagingException;
+
+import org.apache.james.mailrepository.api.MailRepository;
+
+/**
+ * Iterates over all keys of a {@link MailRepository} by fetching them page by
+ * page with {@link MailRepository#list(String, int)}, so only one page is held
+ * in memory. Keys are returned in ascending order; removing the returned keys
+ * while iterating is safe.
+ * 
+ * As {@link Iterator} can not throw checked exceptions, a
+ * {@link MessagingException} thrown while fetching a page is rethrown wrapped
+ * in an {@link IllegalStateException}.
+ */
+public class PagingKeyIterator implements Iterator<String> {
+
+    /**
+     * The page size used by the repositories for {@link MailRepository#list()}
+     */
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private final MailRepository repository;
+    private final int pageSize;
+    private Iterator<String> page;
+    private String lastKey;
+    private int pageCount;
+    private boolean lastPage;
+
+    public PagingKeyIterator(MailRepository repository, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        this.repository = repository;
+        this.pageSize = pageSize;
+    }
+
+    public PagingKeyIterator(MailRepository repository) {
+        this(repository, DEFAULT_PAGE_SIZE);
+    }
+
+    public boolean hasNext() {
+        if (page != null && page.hasNext()) {
+            return true;
+        }
+        if (lastPage) {
+            return false;
+        }
+        try {
+            page = repository.list(lastKey, pageSize);
+        } catch (MessagingException e) {
+            throw new IllegalStateException("Unable to list the keys after " + lastKey, e);
+        }
+        pageCount = 0;
+        if (!page.hasNext()) {
+            lastPage = true;
+            return false;
+        }
+        return true;
+    }
+
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        lastKey = page.next();
+        if (++pageCount == pageSize) {
+            // a full page, there may be more
+            lastPage = false;
+        } else if (!page.hasNext()) {
+            // a partial page is the last one
+            lastPage = true;
+        }
+        return lastKey;
+    }
+
+    public void remove() {
+        if (lastKey == null) {
+            throw new IllegalStateException();
+        }
+        try {
+            repository.remove(lastKey);
+        } catch (MessagingException e) {
+            throw new IllegalStateException("Unable to remove " + lastKey, e);
+        }
+    }
+}
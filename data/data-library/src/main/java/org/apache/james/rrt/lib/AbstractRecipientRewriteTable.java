@@ -23,6 +23,7 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -45,13 +46,36 @@ import org.slf4j.Logger;
 import com.google.common.annotations.VisibleForTesting;
 
 /**
+ * All implementations of the RecipientRewriteTable interface should extends
+ * this abstract class
  * 
+ * With <code>&lt;index&gt;true&lt;/index&gt;</code> the mappings are looked up
+ * in an immutable {@link RecipientRewriteTableIndex} built from
+ * {@link #getAllMappingsInternal()} instead of querying the backend for every
+ * address, and the resolved mappings are memoized. The index is replaced after
+ * every change done through this instance and reloaded every
+ * <code>refreshInterval</code> milliseconds to see changes done elsewhere.
+ * Wildcards are resolved as by
+ * {@link RecipientRewriteTableUtil#getTargetString(String, String, Map)}, so
+ * the index must only be enabled for backends which return every mapping from
+ * {@link #getAllMappingsInternal()} keyed by user@domain.
  */
 public abstract class AbstractRecipientRewriteTable implements RecipientRewriteTable, LogEnabled, Configurable {
+
+    private final static long DEFAULT_INDEX_REFRESH_INTERVAL = 60000;
+
     // The maximum mappings which will process before throwing exception
-    private int mappingLimit = 10;
+    private volatile int mappingLimit = 10;
+
+    private volatile boolean recursive = true;
 
-    private boolean recursive = true;
+    /**
+     * The interval in ms after which the index is reloaded, or -1 if the
+     * mappings are not indexed
+     */
+    private volatile long indexRefreshInterval = -1;
+    private volatile RecipientRewriteTableIndex index;
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
 
     private Logger logger;
 
@@ -73,6 +97,11 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
         } catch (IllegalArgumentException e) {
             throw new ConfigurationException(e.getMessage());
         }
+        if (config.getBoolean("index", false)) {
+            setIndexRefreshInterval(config.getLong("index[@refreshInterval]", DEFAULT_INDEX_REFRESH_INTERVAL));
+        } else {
+            setIndexRefreshInterval(-1);
+        }
         doConfigure(config);
     }
 
@@ -92,6 +121,7 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
 
     public void setRecursiveMapping(boolean recursive) {
         this.recursive = recursive;
+        clearResolved();
     }
 
     /**
@@ -106,6 +136,19 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
         if (mappingLimit < 1)
             throw new IllegalArgumentException("The minimum mappingLimit is 1");
         this.mappingLimit = mappingLimit;
+        clearResolved();
+    }
+
+    /**
+     * Set the interval after which the index of the mappings is reloaded, or
+     * -1 to not index them. Default is -1
+     * 
+     * @param indexRefreshInterval
+     *            the interval in milliseconds
+     */
+    public synchronized void setIndexRefreshInterval(long indexRefreshInterval) {
+        this.indexRefreshInterval = indexRefreshInterval;
+        this.index = null;
     }
 
     /**
@@ -113,30 +156,63 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
      *      String)
      */
     public Collection<String> getMappings(String user, String domain) throws ErrorMappingException, RecipientRewriteTableException {
-        return getMappings(user, domain, mappingLimit);
+        if (indexRefreshInterval < 0) {
+            return getMappings(null, user, domain, mappingLimit);
+        }
+
+        RecipientRewriteTableIndex current = getIndex();
+        String address = user + "@" + domain;
+        RecipientRewriteTableIndex.Resolved resolved = current.getResolved(address);
+        if (resolved == null) {
+            try {
+                resolved = new RecipientRewriteTableIndex.Resolved(getMappings(current, user, domain, mappingLimit), null);
+            } catch (ErrorMappingException e) {
+                resolved = new RecipientRewriteTableIndex.Resolved(null, e.getMessage());
+            }
+            current.putResolved(address, resolved);
+        }
+        if (resolved.error != null) {
+            throw new ErrorMappingException(resolved.error);
+        }
+        return (resolved.mappings == null) ? null : new ArrayList<String>(resolved.mappings);
     }
 
     public Collection<String> getMappings(String user, String domain, int mappingLimit) throws ErrorMappingException, RecipientRewriteTableException {
+        return getMappings((indexRefreshInterval < 0) ? null : getIndex(), user, domain, mappingLimit);
+    }
+
+    private Collection<String> getMappings(RecipientRewriteTableIndex current, String user, String domain, int mappingLimit) throws ErrorMappingException, RecipientRewriteTableException {
 
         // We have to much mappings throw ErrorMappingException to avoid
         // infinity loop
         if (mappingLimit == 0)
             throw new ErrorMappingException("554 Too many mappings to process");
 
-        String targetString = mapAddress(user, domain);
+        RecipientRewriteTableIndex.Entry entry;
+        if (current != null) {
+            entry = current.lookup(user, domain);
+        } else {
+            String targetString = mapAddress(user, domain);
+            entry = (targetString == null) ? null : new RecipientRewriteTableIndex.Entry(targetString);
+        }
 
         // Only non-null mappings are translated
-        if (targetString != null) {
+        if (entry != null) {
+            String targetString = entry.mappings;
             Collection<String> mappings = new ArrayList<String>();
             if (targetString.startsWith(RecipientRewriteTable.ERROR_PREFIX)) {
                 throw new ErrorMappingException(targetString.substring(RecipientRewriteTable.ERROR_PREFIX.length()));
 
             } else {
 
-                for (String target : RecipientRewriteTableUtil.mappingToCollection(targetString)) {
+                for (RecipientRewriteTableIndex.Target mapping : entry.targets) {
+                    String target = mapping.mapping;
                     if (target.startsWith(RecipientRewriteTable.REGEX_PREFIX)) {
                         try {
-                            target = RecipientRewriteTableUtil.regexMap(new MailAddress(user, domain), target);
+                            if (mapping.invalid != null) {
+                                throw mapping.invalid;
+                            }
+                            target = RecipientRewriteTableUtil.regexMap(new MailAddress(user, domain), mapping.pattern, mapping.replacement);
                         } catch (PatternSyntaxException e) {
                             getLogger().error("Exception during regexMap processing: ", e);
                         } catch (ParseException e) {
@@ -175,7 +251,7 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
                             return null;
                         }
 
-                        Collection<String> childMappings = getMappings(userName, domainName, mappingLimit - 1);
+                        Collection<String> childMappings = getMappings(current, userName, domainName, mappingLimit - 1);
 
                         if (childMappings == null) {
                             // add mapping
@@ -211,6 +287,7 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
         checkMapping(user, domain, regex);
         getLogger().info("Add regex mapping => " + regex + " for user: " + user + " domain: " + domain);
         addMappingInternal(user, domain, RecipientRewriteTable.REGEX_PREFIX + regex);
+        mappingsChanged();
 
     }
 
@@ -221,6 +298,7 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
     public void removeRegexMapping(String user, String domain, String regex) throws RecipientRewriteTableException {
         getLogger().info("Remove regex mapping => " + regex + " for user: " + user + " domain: " + domain);
         removeMappingInternal(user, domain, RecipientRewriteTable.REGEX_PREFIX + regex);
+        mappingsChanged();
     }
 
     /**
@@ -243,6 +321,7 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
         checkMapping(user, domain, address);
         getLogger().info("Add address mapping => " + address + " for user: " + user + " domain: " + domain);
         addMappingInternal(user, domain, address);
+        mappingsChanged();
 
     }
 
@@ -260,6 +339,7 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
         }
         getLogger().info("Remove address mapping => " + address + " for user: " + user + " domain: " + domain);
         removeMappingInternal(user, domain, address);
+        mappingsChanged();
     }
 
     /**
@@ -270,6 +350,7 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
         checkMapping(user, domain, error);
         getLogger().info("Add error mapping => " + error + " for user: " + user + " domain: " + domain);
         addMappingInternal(user, domain, RecipientRewriteTable.ERROR_PREFIX + error);
+        mappingsChanged();
 
     }
 
@@ -280,6 +361,7 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
     public void removeErrorMapping(String user, String domain, String error) throws RecipientRewriteTableException {
         getLogger().info("Remove error mapping => " + error + " for user: " + user + " domain: " + domain);
         removeMappingInternal(user, domain, RecipientRewriteTable.ERROR_PREFIX + error);
+        mappingsChanged();
     }
 
     /**
@@ -355,6 +437,7 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
     public void addAliasDomainMapping(String aliasDomain, String realDomain) throws RecipientRewriteTableException {
         getLogger().info("Add domain mapping: " + aliasDomain + " => " + realDomain);
         addMappingInternal(null, aliasDomain, RecipientRewriteTable.ALIASDOMAIN_PREFIX + realDomain);
+        mappingsChanged();
     }
 
     /**
@@ -364,12 +447,67 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
     public void removeAliasDomainMapping(String aliasDomain, String realDomain) throws RecipientRewriteTableException {
         getLogger().info("Remove domain mapping: " + aliasDomain + " => " + realDomain);
         removeMappingInternal(null, aliasDomain, RecipientRewriteTable.ALIASDOMAIN_PREFIX + realDomain);
+        mappingsChanged();
     }
 
     protected Logger getLogger() {
         return logger;
     }
 
+    /**
+     * Return the index of the mappings, reloading it if it is older than the
+     * refresh interval. Only one thread reloads it, the others keep using the
+     * current index meanwhile.
+     */
+    private RecipientRewriteTableIndex getIndex() throws RecipientRewriteTableException {
+        RecipientRewriteTableIndex current = index;
+        if (current == null) {
+            synchronized (this) {
+                if (index == null) {
+                    index = loadIndex();
+                }
+                return index;
+            }
+        }
+        if (System.currentTimeMillis() - current.loaded >= indexRefreshInterval && refreshing.compareAndSet(false, true)) {
+            try {
+                synchronized (this) {
+                    index = loadIndex();
+                }
+            } catch (RecipientRewriteTableException e) {
+                getLogger().warn("Unable to reload the mappings, using the indexed ones", e);
+            } finally {
+                refreshing.set(false);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Replace the index after a change
+     */
+    private void mappingsChanged() throws RecipientRewriteTableException {
+        if (indexRefreshInterval >= 0) {
+            synchronized (this) {
+                if (index != null) {
+                    index = loadIndex();
+                }
+            }
+        }
+    }
+
+    private RecipientRewriteTableIndex loadIndex() throws RecipientRewriteTableException {
+        long loaded = System.currentTimeMillis();
+        return RecipientRewriteTableIndex.build(getAllMappingsInternal(), loaded);
+    }
+
+    private void clearResolved() {
+        RecipientRewriteTableIndex current = index;
+        if (current != null) {
+            current.clearResolved();
+        }
+    }
+
     /**
      * Add new mapping
      * 
@@ -0,0 +1,202 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.rrt.lib;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.james.rrt.api.RecipientRewriteTable;
+
+/**
+ * Immutable snapshot of all mappings of a RecipientRewriteTable, built from
+ * {@link AbstractRecipientRewriteTable#getAllMappingsInternal()}.
+ * 
+ * The mappings are split into hash tables for the exact user@domain keys, the
+ * user@* keys and the *@domain keys, which also hold the alias domains. They
+ * are looked up in the same order as
+ * {@link RecipientRewriteTableUtil#getTargetString(String, String, Map)}. The
+ * targets of every key are parsed once, with the alias domains first and the
+ * regular-expressions compiled.
+ * 
+ * The resolved mappings of the addresses looked up are memoized until the
+ * snapshot is replaced.
+ */
+final class RecipientRewriteTableIndex {
+
+    /** The maximum of resolved addresses kept before they are all dropped */
+    private final static int MAX_RESOLVED = 10000;
+
+    private final Map<String, Entry> exact;
+    private final Map<String, Entry> wildcardDomain;
+    private final Map<String, Entry> wildcardUser;
+    private final ConcurrentMap<String, Resolved> resolved = new ConcurrentHashMap<String, Resolved>();
+    final long loaded;
+
+    private RecipientRewriteTableIndex(Map<String, Entry> exact, Map<String, Entry> wildcardDomain, Map<String, Entry> wildcardUser, long loaded) {
+        this.exact = exact;
+        this.wildcardDomain = wildcardDomain;
+        this.wildcardUser = wildcardUser;
+        this.loaded = loaded;
+    }
+
+    /**
+     * Build the index of the given mappings
+     * 
+     * @param mappings
+     *            the mappings keyed by user@domain, may be null
+     * @param loaded
+     *            the time the mappings were read
+     * @return the index
+     */
+    static RecipientRewriteTableIndex build(Map<String, Collection<String>> mappings, long loaded) {
+        Map<String, Entry> exact = new HashMap<String, Entry>();
+        Map<String, Entry> wildcardDomain = new HashMap<String, Entry>();
+        Map<String, Entry> wildcardUser = new HashMap<String, Entry>();
+        if (mappings != null) {
+            for (Map.Entry<String, Collection<String>> mapping : mappings.entrySet()) {
+                String key = mapping.getKey();
+                int at = key.indexOf('@');
+                if (at < 0 || mapping.getValue() == null || mapping.getValue().isEmpty()) {
+                    continue;
+                }
+                String user = key.substring(0, at);
+                String domain = key.substring(at + 1);
+                Entry entry = new Entry(AbstractRecipientRewriteTable.sortMappings(RecipientRewriteTableUtil.CollectionToMapping(mapping.getValue())));
+                if (RecipientRewriteTable.WILDCARD.equals(user)) {
+                    wildcardUser.put(domain, entry);
+                } else if (RecipientRewriteTable.WILDCARD.equals(domain)) {
+                    wildcardDomain.put(user, entry);
+                } else {
+                    exact.put(key, entry);
+                }
+            }
+        }
+        return new RecipientRewriteTableIndex(exact, wildcardDomain, wildcardUser, loaded);
+    }
+
+    /**
+     * Return the mappings of the given user and domain, or null if there are
+     * none
+     */
+    Entry lookup(String user, String domain) {
+        Entry entry = exact.get(user + "@" + domain);
+        if (entry == null) {
+            entry = wildcardDomain.get(user);
+        }
+        if (entry == null) {
+            entry = wildcardUser.get(domain);
+        }
+        return entry;
+    }
+
+    /**
+     * Return the memoized resolution of the given address, or null if it was
+     * not resolved yet
+     */
+    Resolved getResolved(String address) {
+        return resolved.get(address);
+    }
+
+    void putResolved(String address, Resolved resolution) {
+        if (resolved.size() >= MAX_RESOLVED) {
+            resolved.clear();
+        }
+        resolved.put(address, resolution);
+    }
+
+    /**
+     * Drop the memoized resolutions, as the settings they depend on changed
+     */
+    void clearResolved() {
+        resolved.clear();
+    }
+
+    /**
+     * The mappings of one key
+     */
+    static final class Entry {
+
+        /** The mappings with the alias domains first, as returned by the backend */
+        final String mappings;
+        final List<Target> targets;
+
+        Entry(String mappings) {
+            this.mappings = mappings;
+            List<Target> targets = new ArrayList<Target>();
+            for (String target : RecipientRewriteTableUtil.mappingToCollection(mappings)) {
+                targets.add(new Target(target));
+            }
+            this.targets = Collections.unmodifiableList(targets);
+        }
+    }
+
+    /**
+     * A single mapping, with the regular-expression already compiled
+     */
+    static final class Target {
+
+        final String mapping;
+        final Pattern pattern;
+        final String replacement;
+        final PatternSyntaxException invalid;
+
+        Target(String mapping) {
+            this.mapping = mapping;
+            Pattern pattern = null;
+            String replacement = null;
+            PatternSyntaxException invalid = null;
+            if (mapping.startsWith(RecipientRewriteTable.REGEX_PREFIX)) {
+                try {
+                    int msgPos = RecipientRewriteTableUtil.regexSeparator(mapping);
+                    pattern = Pattern.compile(mapping.substring(RecipientRewriteTable.REGEX_PREFIX.length(), msgPos));
+                    replacement = mapping.substring(msgPos + 1);
+                } catch (PatternSyntaxException e) {
+                    invalid = e;
+                }
+            }
+            this.pattern = pattern;
+            this.replacement = replacement;
+            this.invalid = invalid;
+        }
+    }
+
+    /**
+     * The memoized result of resolving an address: either the mappings, which
+     * are null if the address is not mapped, or the message of the error
+     * mapping
+     */
+    static final class Resolved {
+
+        final Collection<String> mappings;
+        final String error;
+
+        Resolved(Collection<String> mappings, String error) {
+            this.mappings = (mappings == null) ? null : Collections.unmodifiableCollection(new ArrayList<String>(mappings));
+            this.error = error;
+        }
+    }
+}
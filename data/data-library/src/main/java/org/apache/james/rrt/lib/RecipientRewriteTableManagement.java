@@ -20,26 +20,38 @@ package org.apache.james.rrt.lib;
 
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Resource;
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.management.MBeanNotificationInfo;
 import javax.management.NotCompliantMBeanException;
-import javax.management.StandardMBean;
+import javax.management.Notification;
+import javax.management.NotificationBroadcasterSupport;
+import javax.management.StandardEmitterMBean;
 
 import org.apache.james.rrt.api.RecipientRewriteTable;
 import org.apache.james.rrt.api.RecipientRewriteTableException;
 import org.apache.james.rrt.api.RecipientRewriteTableManagementMBean;
 
 /**
- * Management for RecipientRewriteTables
+ * Management for RecipientRewriteTables. Every change of a mapping is
+ * published as a {@link #MAPPINGS_CHANGED} notification, so caches of the
+ * mappings can be invalidated.
  */
-public class RecipientRewriteTableManagement extends StandardMBean implements RecipientRewriteTableManagementMBean {
+public class RecipientRewriteTableManagement extends StandardEmitterMBean implements RecipientRewriteTableManagementMBean {
+
+    /** Type of the notification sent when a mapping was added or removed */
+    public static final String MAPPINGS_CHANGED = "james.recipientrewritetable.changed";
 
     private RecipientRewriteTable rrt;
 
+    private final AtomicLong sequence = new AtomicLong();
+
     protected RecipientRewriteTableManagement() throws NotCompliantMBeanException {
-        super(RecipientRewriteTableManagementMBean.class);
+        super(RecipientRewriteTableManagementMBean.class, new NotificationBroadcasterSupport(new MBeanNotificationInfo(new String[] { MAPPINGS_CHANGED }, Notification.class.getName(),
+                "A mapping was added or removed")));
     }
 
     @Inject
@@ -56,6 +68,7 @@ public class RecipientRewriteTableManagement extends StandardMBean implements Re
     public void addRegexMapping(String user, String domain, String regex) throws Exception {
         try {
             rrt.addRegexMapping(user, domain, regex);
+            mappingsChanged(user + "@" + domain);
         } catch (RecipientRewriteTableException e) {
             throw new Exception(e.getMessage());
         }
@@ -69,6 +82,7 @@ public class RecipientRewriteTableManagement extends StandardMBean implements Re
     public void removeRegexMapping(String user, String domain, String regex) throws Exception {
         try {
             rrt.removeRegexMapping(user, domain, regex);
+            mappingsChanged(user + "@" + domain);
         } catch (RecipientRewriteTableException e) {
             throw new Exception(e.getMessage());
         }
@@ -82,6 +96,7 @@ public class RecipientRewriteTableManagement extends StandardMBean implements Re
     public void addAddressMapping(String user, String domain, String address) throws Exception {
         try {
             rrt.addAddressMapping(user, domain, address);
+            mappingsChanged(user + "@" + domain);
         } catch (RecipientRewriteTableException e) {
             throw new Exception(e.getMessage());
         }
@@ -95,6 +110,7 @@ public class RecipientRewriteTableManagement extends StandardMBean implements Re
     public void removeAddressMapping(String user, String domain, String address) throws Exception {
         try {
             rrt.removeAddressMapping(user, domain, address);
+            mappingsChanged(user + "@" + domain);
         } catch (RecipientRewriteTableException e) {
             throw new Exception(e.getMessage());
         }
@@ -108,6 +124,7 @@ public class RecipientRewriteTableManagement extends StandardMBean implements Re
     public void addErrorMapping(String user, String domain, String error) throws Exception {
         try {
             rrt.addErrorMapping(user, domain, error);
+            mappingsChanged(user + "@" + domain);
         } catch (RecipientRewriteTableException e) {
             throw new Exception(e.getMessage());
         }
@@ -121,6 +138,7 @@ public class RecipientRewriteTableManagement extends StandardMBean implements Re
     public void removeErrorMapping(String user, String domain, String error) throws Exception {
         try {
             rrt.removeErrorMapping(user, domain, error);
+            mappingsChanged(user + "@" + domain);
         } catch (RecipientRewriteTableException e) {
             throw new Exception(e.getMessage());
         }
@@ -129,6 +147,7 @@ public class RecipientRewriteTableManagement extends StandardMBean implements Re
     public void addDomainMapping(String domain, String targetDomain) throws Exception {
         try {
             rrt.addAliasDomainMapping(domain, targetDomain);
+            mappingsChanged("*@" + domain);
         } catch (RecipientRewriteTableException e) {
             throw new Exception(e.getMessage());
         }
@@ -137,6 +156,7 @@ public class RecipientRewriteTableManagement extends StandardMBean implements Re
     public void removeDomainMapping(String domain, String targetDomain) throws Exception {
         try {
             rrt.removeAliasDomainMapping(domain, targetDomain);
+            mappingsChanged("*@" + domain);
         } catch (RecipientRewriteTableException e) {
             throw new Exception(e.getMessage());
         }
@@ -162,6 +182,7 @@ public class RecipientRewriteTableManagement extends StandardMBean implements Re
     public void addMapping(String user, String domain, String mapping) throws Exception {
         try {
             rrt.addMapping(user, domain, mapping);
+            mappingsChanged(user + "@" + domain);
         } catch (RecipientRewriteTableException e) {
             throw new Exception(e.getMessage());
         }
@@ -175,6 +196,7 @@ public class RecipientRewriteTableManagement extends StandardMBean implements Re
     public void removeMapping(String user, String domain, String mapping) throws Exception {
         try {
             rrt.removeMapping(user, domain, mapping);
+            mappingsChanged(user + "@" + domain);
         } catch (RecipientRewriteTableException e) {
             throw new Exception(e.getMessage());
         }
@@ -192,4 +214,9 @@ public class RecipientRewriteTableManagement extends StandardMBean implements Re
         }
     }
 
+    private void mappingsChanged(String address) {
+        Notification notification = new Notification(MAPPINGS_CHANGED, this, sequence.incrementAndGet(), "Mappings of " + address + " changed");
+        notification.setUserData(address);
+        sendNotification(notification);
+    }
 }
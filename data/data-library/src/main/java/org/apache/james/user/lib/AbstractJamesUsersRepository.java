@@ -112,6 +112,7 @@ public abstract class AbstractJamesUsersRepository extends AbstractUsersReposito
             throw new UsersRepositoryException("User " + user.getUserName() + " does not exist");
         } else {
             doUpdateUser(user);
+            invalidateAuthentication(user.getUserName());
         }
     }
 
@@ -31,6 +31,9 @@ import org.apache.james.lifecycle.api.Configurable;
 import org.apache.james.lifecycle.api.LogEnabled;
 import org.apache.james.user.api.UsersRepository;
 import org.apache.james.user.api.UsersRepositoryException;
+import org.apache.james.user.api.model.User;
+import org.apache.james.user.lib.util.AuthenticationCache;
+import org.apache.james.user.lib.util.PasswordHashingExecutor;
 import org.slf4j.Logger;
 
 public abstract class AbstractUsersRepository implements UsersRepository, LogEnabled, Configurable {
@@ -38,6 +41,8 @@ public abstract class AbstractUsersRepository implements UsersRepository, LogEna
     private DomainList domainList;
     private boolean virtualHosting;
     private Logger logger;
+    private AuthenticationCache authenticationCache;
+    private PasswordHashingExecutor passwordHashingExecutor;
 
     protected Logger getLogger() {
         return logger;
@@ -58,6 +63,19 @@ public abstract class AbstractUsersRepository implements UsersRepository, LogEna
 
         virtualHosting = configuration.getBoolean("enableVirtualHosting", false);
 
+        try {
+            long ttl = configuration.getLong("authenticationCache.[@ttl]", 0);
+            if (ttl > 0) {
+                setAuthenticationCache(new AuthenticationCache(ttl, configuration.getInt("authenticationCache.[@maxSize]", 10000)));
+            }
+            int threads = configuration.getInt("passwordHashing.[@threads]", 0);
+            if (threads > 0) {
+                setPasswordHashingExecutor(new PasswordHashingExecutor(threads, configuration.getInt("passwordHashing.[@queueSize]", 100), configuration.getLong("passwordHashing.[@timeout]", 5000)));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException(e.getMessage());
+        }
+
         doConfigure(configuration);
     }
 
@@ -69,6 +87,26 @@ public abstract class AbstractUsersRepository implements UsersRepository, LogEna
         this.virtualHosting = virtualHosting;
     }
 
+    /**
+     * Set the cache of successful authentications, <code>null</code> to
+     * disable caching
+     * 
+     * @param authenticationCache
+     */
+    public void setAuthenticationCache(AuthenticationCache authenticationCache) {
+        this.authenticationCache = authenticationCache;
+    }
+
+    /**
+     * Set the executor which verifies passwords, <code>null</code> to verify
+     * them on the calling thread
+     * 
+     * @param passwordHashingExecutor
+     */
+    public void setPasswordHashingExecutor(PasswordHashingExecutor passwordHashingExecutor) {
+        this.passwordHashingExecutor = passwordHashingExecutor;
+    }
+
     @Inject
     @Resource
     public void setDomainList(@Named("domainlist") DomainList domainList) {
@@ -122,6 +160,66 @@ public abstract class AbstractUsersRepository implements UsersRepository, LogEna
         return virtualHosting;
     }
 
+    /**
+     * Test the password of a user with the authentication cache and the
+     * password hashing executor, if configured. The user is only loaded if the
+     * authentication is not cached.
+     * 
+     * @param name
+     *            the user name
+     * @param password
+     *            the password
+     * @param loader
+     *            loads the user
+     * @return true if the password matches
+     * @throws UsersRepositoryException
+     */
+    protected boolean testPassword(String name, String password, UserLoader loader) throws UsersRepositoryException {
+        AuthenticationCache cache = authenticationCache;
+        long generation = 0;
+        if (cache != null) {
+            if (cache.test(name, password)) {
+                return true;
+            }
+            generation = cache.getGeneration();
+        }
+        User user = loader.load(name);
+        if (user == null) {
+            return false;
+        }
+        PasswordHashingExecutor executor = passwordHashingExecutor;
+        boolean valid = executor == null ? user.verifyPassword(password) : executor.verifyPassword(user, password);
+        if (valid && cache != null) {
+            cache.put(name, password, generation);
+        }
+        return valid;
+    }
+
+    /**
+     * Forget the cached authentication of the given user. Must be called when
+     * the password of a user changes or the user is removed.
+     * 
+     * @param name
+     *            the user name
+     */
+    protected void invalidateAuthentication(String name) {
+        AuthenticationCache cache = authenticationCache;
+        if (cache != null) {
+            cache.invalidate(name);
+        }
+    }
+
+    /**
+     * Loads a user for {@link AbstractUsersRepository#testPassword(String, String, UserLoader)}
+     */
+    protected interface UserLoader {
+
+        /**
+         * Return the user or <code>null</code> if it does not exist
+         */
+        User load(String name) throws UsersRepositoryException;
+    }
+
     /**
      * Add the user with the given username and password
      * 
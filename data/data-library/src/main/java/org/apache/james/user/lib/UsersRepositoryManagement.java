@@ -27,13 +27,25 @@ import org.apache.james.user.api.model.User;
 import javax.annotation.Resource;
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.management.MBeanNotificationInfo;
 import javax.management.NotCompliantMBeanException;
-import javax.management.StandardMBean;
+import javax.management.Notification;
+import javax.management.NotificationBroadcasterSupport;
+import javax.management.StandardEmitterMBean;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class UsersRepositoryManagement extends StandardMBean implements UsersRepositoryManagementMBean {
+/**
+ * Management for UsersRepositories. Adding and removing a user is published
+ * as a {@link #USERS_CHANGED} notification, so caches of the users can be
+ * invalidated.
+ */
+public class UsersRepositoryManagement extends StandardEmitterMBean implements UsersRepositoryManagementMBean {
+
+    /** Type of the notification sent when a user was added or removed */
+    public static final String USERS_CHANGED = "james.usersrepository.changed";
 
     /**
      * The administered UsersRepository
@@ -46,8 +58,11 @@ public class UsersRepositoryManagement extends StandardMBean implements UsersRep
         this.usersRepository = usersRepository;
     }
 
+    private final AtomicLong sequence = new AtomicLong();
+
     public UsersRepositoryManagement() throws NotCompliantMBeanException {
-        super(UsersRepositoryManagementMBean.class);
+        super(UsersRepositoryManagementMBean.class, new NotificationBroadcasterSupport(new MBeanNotificationInfo(new String[] { USERS_CHANGED }, Notification.class.getName(),
+                "A user was added or removed")));
     }
 
     private JamesUser getJamesUser(String userName) throws UsersRepositoryException {
@@ -64,6 +79,7 @@ public class UsersRepositoryManagement extends StandardMBean implements UsersRep
     public void addUser(String userName, String password) throws Exception {
         try {
             usersRepository.addUser(userName, password);
+            usersChanged(userName);
         } catch (UsersRepositoryException e) {
             throw new Exception(e.getMessage());
         }
@@ -73,6 +89,7 @@ public class UsersRepositoryManagement extends StandardMBean implements UsersRep
     public void deleteUser(String userName) throws Exception {
         try {
             usersRepository.removeUser(userName);
+            usersChanged(userName);
         } catch (UsersRepositoryException e) {
             throw new Exception(e.getMessage());
         }
@@ -190,4 +207,10 @@ public class UsersRepositoryManagement extends StandardMBean implements UsersRep
             throw new Exception(e.getMessage());
         }
     }
+
+    private void usersChanged(String userName) {
+        Notification notification = new Notification(USERS_CHANGED, this, sequence.incrementAndGet(), "User " + userName + " changed");
+        notification.setUserData(userName);
+        sendNotification(notification);
+    }
 }
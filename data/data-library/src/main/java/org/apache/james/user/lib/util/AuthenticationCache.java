@@ -0,0 +1,226 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.user.lib.util;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Short lived cache of successful password checks. The password itself is not
+ * kept, only a SHA-256 hash of it with a random salt per entry, so a later
+ * login with the same password can be confirmed without loading the user and
+ * digesting the stored password again.
+ * 
+ * Entries are looked up by the lower cased user name, so
+ * {@link #invalidate(String)} removes them regardless of the case used at
+ * login, but a hit requires the exact user name of the cached login.
+ * 
+ * To not cache a check which raced with a password change, take
+ * {@link #getGeneration()} before loading the user and hand it to
+ * {@link #put(String, String, long)}.
+ */
+public class AuthenticationCache {
+
+    private static final String DIGEST = "SHA-256";
+
+    private static final int SALT_LENGTH = 16;
+
+    private final long ttl;
+
+    private final int maxSize;
+
+    private final SecureRandom random = new SecureRandom();
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /** Incremented on every invalidation */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Create a cache
+     * 
+     * @param ttl
+     *            milliseconds a successful check is remembered
+     * @param maxSize
+     *            the maximal number of cached users
+     */
+    public AuthenticationCache(long ttl, int maxSize) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("ttl must be positive");
+        }
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be at least 1");
+        }
+        this.ttl = ttl;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Return true if the given user was successfully authenticated with the
+     * given password within the ttl
+     * 
+     * @param username
+     *            the user name
+     * @param password
+     *            the password
+     * @return cached
+     */
+    public boolean test(String username, String password) {
+        if (username == null || password == null) {
+            return false;
+        }
+        String key = username.toLowerCase(Locale.US);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.expires <= now()) {
+            entries.remove(key, entry);
+            return false;
+        }
+        return entry.username.equals(username) && MessageDigest.isEqual(entry.hash, hash(entry.salt, username, password));
+    }
+
+    /**
+     * Return the current generation, which changes on every invalidation
+     * 
+     * @return generation
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Remember a successful authentication, unless an invalidation happened
+     * since the given generation was taken
+     * 
+     * @param username
+     *            the user name
+     * @param password
+     *            the password
+     * @param generation
+     *            the generation taken before the password was checked
+     */
+    public void put(String username, String password, long generation) {
+        if (username == null || password == null) {
+            return;
+        }
+        if (this.generation.get() != generation) {
+            return;
+        }
+        if (entries.size() >= maxSize) {
+            evict();
+        }
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        String key = username.toLowerCase(Locale.US);
+        entries.put(key, new Entry(username, salt, hash(salt, username, password), now() + ttl));
+        if (this.generation.get() != generation) {
+            // invalidated while adding
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Forget the authentication of the given user, to be called when the
+     * password is changed or the user is removed
+     * 
+     * @param username
+     *            the user name
+     */
+    public void invalidate(String username) {
+        if (username != null) {
+            generation.incrementAndGet();
+            entries.remove(username.toLowerCase(Locale.US));
+        }
+    }
+
+    /**
+     * Forget all authentications
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Return the current time in milliseconds
+     * 
+     * @return now
+     */
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    private synchronized void evict() {
+        if (entries.size() < maxSize) {
+            return;
+        }
+        long now = now();
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+            if (it.next().expires <= now) {
+                it.remove();
+            }
+        }
+        if (entries.size() >= maxSize) {
+            entries.clear();
+        }
+    }
+
+    private static byte[] hash(byte[] salt, String username, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(DIGEST);
+            digest.update(salt);
+            digest.update(username.getBytes("UTF-8"));
+            digest.update((byte) 0);
+            digest.update(password.getBytes("UTF-8"));
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST + " is not supported", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
+
+    private static final class Entry {
+        private final String username;
+        private final byte[] salt;
+        private final byte[] hash;
+        private final long expires;
+
+        private Entry(String username, byte[] salt, byte[] hash, long expires) {
+            this.username = username;
+            this.salt = salt;
+            this.hash = hash;
+            this.expires = expires;
+        }
+    }
+}
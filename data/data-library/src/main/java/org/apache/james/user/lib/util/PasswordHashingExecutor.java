@@ -0,0 +1,133 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.user.lib.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.user.api.UsersRepositoryException;
+import org.apache.james.user.api.model.User;
+
+/**
+ * Bounded pool of threads which verify passwords. Digesting a password costs
+ * CPU, so the number of concurrent checks is limited to the number of threads
+ * and the number of waiting checks to the queue size. Checks which do not fit
+ * in the queue or do not finish within the timeout fail at once with a
+ * {@link UsersRepositoryException}, instead of piling up on the threads of the
+ * protocol servers.
+ */
+public class PasswordHashingExecutor {
+
+    private final ThreadPoolExecutor executor;
+
+    private final long timeout;
+
+    /**
+     * Create an executor
+     * 
+     * @param threads
+     *            the number of threads
+     * @param queueSize
+     *            the number of checks which may wait for a thread
+     * @param timeout
+     *            milliseconds to wait for the result of a check
+     */
+    public PasswordHashingExecutor(int threads, int queueSize, long timeout) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("queueSize must be at least 1");
+        }
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        this.timeout = timeout;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PasswordHashing-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Verify the password of the given user on one of the threads
+     * 
+     * @param user
+     *            the user
+     * @param password
+     *            the password
+     * @return true if the password matches
+     * @throws UsersRepositoryException
+     *             if the executor is saturated, the check timed out or failed
+     */
+    public boolean verifyPassword(final User user, final String password) throws UsersRepositoryException {
+        Future<Boolean> result;
+        try {
+            result = executor.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    return user.verifyPassword(password);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            throw new UsersRepositoryException("Too many concurrent password checks", e);
+        }
+        try {
+            return result.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            throw new UsersRepositoryException("Password check of " + user.getUserName() + " timed out", e);
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new UsersRepositoryException("Interrupted while checking the password of " + user.getUserName(), e);
+        } catch (ExecutionException e) {
+            throw new UsersRepositoryException("Unable to check the password of " + user.getUserName(), e.getCause());
+        }
+    }
+
+    /**
+     * Return the number of checks running or waiting
+     * 
+     * @return pending
+     */
+    public int getPendingCount() {
+        return executor.getActiveCount() + executor.getQueue().size();
+    }
+
+    /**
+     * Stop the threads
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
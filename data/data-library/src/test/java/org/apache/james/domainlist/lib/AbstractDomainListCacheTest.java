@@ -0,0 +1,152 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.domainlist.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.james.dnsservice.api.mock.MockDNSService;
+import org.apache.james.domainlist.api.DomainListException;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test the caching of the domains in {@link AbstractDomainList}.
+ */
+public class AbstractDomainListCacheTest {
+
+    private MemoryDomainList domainList;
+    private int addressLookups;
+
+    @Before
+    public void setUp() throws Exception {
+        addressLookups = 0;
+        domainList = new MemoryDomainList();
+        domainList.setLog(LoggerFactory.getLogger("MockLog"));
+        domainList.setDNSService(new MockDNSService() {
+
+            @Override
+            public String getHostName(InetAddress inet) {
+                return "mail.example.org";
+            }
+
+            @Override
+            public InetAddress[] getAllByName(String name) throws UnknownHostException {
+                addressLookups++;
+                return new InetAddress[] { InetAddress.getByName("127.0.0.1") };
+            }
+
+            @Override
+            public InetAddress getLocalHost() throws UnknownHostException {
+                return InetAddress.getByName("127.0.0.1");
+            }
+        });
+        domainList.setCacheRefreshInterval(60000);
+        domainList.addDomain("domain1.tld");
+    }
+
+    @Test
+    public void testLookupsAreCached() throws DomainListException {
+        for (int i = 0; i < 10; i++) {
+            assertTrue(domainList.containsDomain("domain1.tld"));
+            assertFalse(domainList.containsDomain("domain2.tld"));
+            assertEquals(3, domainList.getDomains().length);
+        }
+        assertEquals(1, domainList.loads);
+        assertEquals(0, domainList.lookups);
+        // domain1.tld and mail.example.org
+        assertEquals(2, addressLookups);
+    }
+
+    @Test
+    public void testChangesAreWrittenThrough() throws DomainListException {
+        assertFalse(domainList.containsDomain("domain2.tld"));
+
+        domainList.addDomain("domain2.tld");
+        assertTrue(domainList.containsDomain("domain2.tld"));
+        assertEquals(4, domainList.getDomains().length);
+
+        domainList.removeDomain("domain1.tld");
+        assertFalse(domainList.containsDomain("domain1.tld"));
+        assertEquals(3, domainList.getDomains().length);
+
+        // only the address of the added domain was looked up again
+        assertEquals(3, addressLookups);
+    }
+
+    @Test
+    public void testChangesElsewhereAreSeenAfterRefresh() throws DomainListException {
+        assertTrue(domainList.containsDomain("domain1.tld"));
+        domainList.domains.add("domain2.tld");
+        assertFalse(domainList.containsDomain("domain2.tld"));
+
+        domainList.setCacheRefreshInterval(0);
+        assertTrue(domainList.containsDomain("domain2.tld"));
+        domainList.domains.add("domain3.tld");
+        assertTrue(domainList.containsDomain("domain3.tld"));
+    }
+
+    @Test
+    public void testWithoutCache() throws DomainListException {
+        domainList.setCacheRefreshInterval(-1);
+        assertTrue(domainList.containsDomain("domain1.tld"));
+        domainList.getDomains();
+        domainList.getDomains();
+        assertEquals(1, domainList.lookups);
+        assertEquals(2, domainList.loads);
+        assertEquals(4, addressLookups);
+    }
+
+    private final static class MemoryDomainList extends AbstractDomainList {
+
+        private final List<String> domains = new ArrayList<String>();
+        private int loads;
+        private int lookups;
+
+        @Override
+        protected List<String> getDomainListInternal() throws DomainListException {
+            loads++;
+            return new ArrayList<String>(domains);
+        }
+
+        @Override
+        protected boolean containsDomainInternal(String domain) throws DomainListException {
+            lookups++;
+            return domains.contains(domain);
+        }
+
+        @Override
+        protected void addDomainInternal(String domain) throws DomainListException {
+            domains.add(domain);
+        }
+
+        @Override
+        protected void removeDomainInternal(String domain) throws DomainListException {
+            domains.remove(domain);
+        }
+    }
+}
@@ -21,7 +21,10 @@ package org.apache.james.mailrepository;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 import javax.mail.util.SharedByteArrayInputStream;
@@ -120,6 +123,70 @@ public abstract class AbstractMailRepositoryTest {
                 i.hasNext());
     }
 
+    @Test
+    public void testListPage() throws MessagingException {
+        for (int i = 1; i <= 5; i++) {
+            Mail copy = new MailImpl(mail, "page" + i);
+            mailRepository.store(copy);
+            LifecycleUtil.dispose(copy);
+        }
+        assertPage(mailRepository.list(null, 2), "page1", "page2");
+        assertPage(mailRepository.list("page2", 2), "page3", "page4");
+        assertPage(mailRepository.list("page4", 2), "page5");
+        assertPage(mailRepository.list("page5", 2));
+
+        // removing keys of a previous page does not shift the next one
+        mailRepository.remove("page1");
+        assertPage(mailRepository.list("page2", 2), "page3", "page4");
+
+        // keys removed while walking the pages are skipped
+        assertPage(mailRepository.list(null, 1), "page2");
+        mailRepository.remove("page3");
+        assertPage(mailRepository.list("page2", 2), "page4", "page5");
+    }
+
+    @Test
+    public void testStoreAllAndRemoveAll() throws MessagingException {
+        List<Mail> mails = new ArrayList<Mail>();
+        for (int i = 0; i < 20; i++) {
+            mails.add(new MailImpl(mail, "bulk" + i));
+        }
+        mailRepository.storeAll(mails);
+        Set<String> keys = new HashSet<String>();
+        for (Iterator<String> i = mailRepository.list(); i.hasNext();) {
+            keys.add(i.next());
+        }
+        assertEquals(20, keys.size());
+        Mail retrieved = mailRepository.retrieve("bulk7");
+        assertEquals(mail.getMessageSize(), retrieved.getMessageSize());
+        LifecycleUtil.dispose(retrieved);
+
+        // storing again updates the existing mails
+        mails.get(3).setState("updated");
+        mailRepository.storeAll(mails);
+        retrieved = mailRepository.retrieve("bulk3");
+        assertEquals("updated", retrieved.getState());
+        LifecycleUtil.dispose(retrieved);
+
+        keys.remove("bulk0");
+        mailRepository.removeAll(keys);
+        Iterator<String> i = mailRepository.list();
+        assertEquals("bulk0", i.next());
+        assertFalse(i.hasNext());
+
+        for (Mail m : mails) {
+            LifecycleUtil.dispose(m);
+        }
+    }
+
+    private void assertPage(Iterator<String> page, String... keys) {
+        for (String key : keys) {
+            assertTrue("Missing key " + key, page.hasNext());
+            assertEquals(key, page.next());
+        }
+        assertFalse(page.hasNext());
+    }
+
     /**
      * This test has been written as a proof to:
      * http://issues.apache.org/jira/browse/JAMES-559
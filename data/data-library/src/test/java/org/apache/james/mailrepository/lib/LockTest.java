@@ -0,0 +1,144 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailrepository.lib;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class LockTest {
+
+    private final Lock lock = new Lock();
+
+    @Test
+    public void testLockIsOwnedByThread() throws Exception {
+        assertTrue(lock.lock("key"));
+        assertTrue(lock.isLocked("key"));
+        assertTrue(lock.canI("key"));
+
+        assertFalse(inOtherThread(new Action() {
+            public boolean run() {
+                return lock.lock("key");
+            }
+        }));
+        assertFalse(inOtherThread(new Action() {
+            public boolean run() {
+                return lock.unlock("key");
+            }
+        }));
+        assertFalse(inOtherThread(new Action() {
+            public boolean run() {
+                return lock.canI("key");
+            }
+        }));
+        assertTrue(inOtherThread(new Action() {
+            public boolean run() {
+                return lock.lock("other");
+            }
+        }));
+
+        assertTrue(lock.unlock("key"));
+        assertFalse(lock.isLocked("key"));
+        assertTrue(lock.unlock("key"));
+    }
+
+    @Test
+    public void testRelockNeedsOneUnlock() {
+        assertTrue(lock.lock("key"));
+        assertTrue(lock.lock("key"));
+        assertTrue(lock.unlock("key"));
+        assertFalse(lock.isLocked("key"));
+    }
+
+    @Test
+    public void testLockIfFree() {
+        assertTrue(lock.lockIfFree("key"));
+        assertFalse(lock.lockIfFree("key"));
+        assertTrue(lock.isLocked("key"));
+        assertTrue(lock.unlock("key"));
+        assertTrue(lock.lockIfFree("key"));
+    }
+
+    @Test
+    public void testLockOfDeadThreadIsReleased() throws Exception {
+        assertTrue(inOtherThread(new Action() {
+            public boolean run() {
+                return lock.lock("key");
+            }
+        }));
+        assertFalse(lock.isLocked("key"));
+        assertTrue(lock.lock("key"));
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        final AtomicBoolean release = new AtomicBoolean();
+        Thread owner = new Thread() {
+            public void run() {
+                lock.lock("key");
+                synchronized (release) {
+                    while (!release.get()) {
+                        try {
+                            release.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+        };
+        owner.start();
+        try {
+            while (!lock.isLocked("key")) {
+                Thread.sleep(1);
+            }
+            assertFalse(lock.lock("key"));
+
+            lock.setTimeout(1);
+            Thread.sleep(10);
+            assertTrue(lock.lock("key"));
+        } finally {
+            synchronized (release) {
+                release.set(true);
+                release.notifyAll();
+            }
+            owner.join();
+        }
+    }
+
+    private interface Action {
+        boolean run();
+    }
+
+    private static boolean inOtherThread(final Action action) throws InterruptedException {
+        final AtomicBoolean result = new AtomicBoolean();
+        Thread thread = new Thread() {
+            public void run() {
+                result.set(action.run());
+            }
+        };
+        thread.start();
+        thread.join();
+        return result.get();
+    }
+}
@@ -0,0 +1,209 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailrepository.lib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.mail.MessagingException;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.apache.james.core.MailImpl;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the stores per second of {@link AbstractMailRepository} with the
+ * per-key {@link Lock} against the former locking, which took the repository
+ * monitor and a global lock monitor for every store, when several threads store
+ * into the same repository.
+ * 
+ * This is not run as part of the test suite, start it with
+ * <code>java org.apache.james.mailrepository.lib.MailRepositoryStoreBenchmark</code>
+ */
+public class MailRepositoryStoreBenchmark {
+
+    private static final int STORES_PER_THREAD = 200000;
+
+    private static final int[] THREADS = { 1, 2, 4, 8, 16 };
+
+    public static void main(String[] args) throws Exception {
+        List<Mail> mails = new ArrayList<Mail>();
+        for (int i = 0; i < 1000; i++) {
+            mails.add(createMail("mail" + i));
+        }
+        for (int threads : THREADS) {
+            // warmup
+            run(new MemoryMailRepository(), threads, mails);
+            run(new MonitorMailRepository(), threads, mails);
+
+            double striped = run(new MemoryMailRepository(), threads, mails);
+            double monitor = run(new MonitorMailRepository(), threads, mails);
+            System.out.println(String.format("%2d threads: per-key lock %10.1f stores/s, monitor %10.1f stores/s", threads, striped, monitor));
+        }
+    }
+
+    private static double run(final AbstractMailRepository repository, int threads, final List<Mail> mails) throws InterruptedException {
+        repository.setLog(LoggerFactory.getLogger("MailRepository"));
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final int offset = i * 7;
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < STORES_PER_THREAD; j++) {
+                            repository.store(mails.get((offset + j) % mails.size()));
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        return (double) threads * STORES_PER_THREAD / ((System.nanoTime() - startTime) / 1000000000d);
+    }
+
+    private static Mail createMail(String name) throws MessagingException {
+        Collection<MailAddress> recipients = new ArrayList<MailAddress>();
+        recipients.add(new MailAddress("rec1", "domain.com"));
+        return new MailImpl(name, new MailAddress("sender", "domain.com"), recipients, new SharedByteArrayInputStream("Subject: test\r\n\r\nbody\r\n".getBytes()));
+    }
+
+    /**
+     * Keeps the size of the stored messages in memory, reading the message
+     * like a real repository would write it
+     */
+    private static class MemoryMailRepository extends AbstractMailRepository {
+
+        private final ConcurrentMap<String, Long> sizes = new ConcurrentHashMap<String, Long>();
+
+        @Override
+        protected void internalStore(Mail mc) throws MessagingException, IOException {
+            CountingOutputStream out = new CountingOutputStream();
+            mc.getMessage().writeTo(out);
+            sizes.put(mc.getName(), out.count);
+        }
+
+        @Override
+        protected void internalRemove(String key) throws MessagingException {
+            sizes.remove(key);
+        }
+
+        public Iterator<String> list() throws MessagingException {
+            return sizes.keySet().iterator();
+        }
+
+        public Iterator<String> list(String afterKey, int limit) throws MessagingException {
+            return KeyPage.select(sizes.keySet().iterator(), afterKey, limit).iterator();
+        }
+
+        public Mail retrieve(String key) throws MessagingException {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Stores like {@link AbstractMailRepository} did before the per-key lock,
+     * with a copy of the former {@link Lock} which synchronized on itself
+     */
+    private static class MonitorMailRepository extends MemoryMailRepository {
+
+        private final Hashtable<Object, Object> locks = new Hashtable<Object, Object>();
+
+        @Override
+        public void store(Mail mc) throws MessagingException {
+            boolean wasLocked;
+            String key = mc.getName();
+            synchronized (this) {
+                wasLocked = locks.get(key) != null;
+                if (!wasLocked) {
+                    monitorLock(key);
+                }
+            }
+            try {
+                internalStore(mc);
+            } catch (IOException e) {
+                throw new MessagingException("Exception caught while storing mail " + key, e);
+            } finally {
+                if (!wasLocked) {
+                    monitorUnlock(key);
+                    synchronized (this) {
+                        notify();
+                    }
+                }
+            }
+        }
+
+        private boolean monitorLock(Object key) {
+            synchronized (locks) {
+                Object theLock = locks.get(key);
+                if (null == theLock) {
+                    locks.put(key, Thread.currentThread());
+                    return true;
+                }
+                return Thread.currentThread() == theLock;
+            }
+        }
+
+        private boolean monitorUnlock(Object key) {
+            synchronized (locks) {
+                Object theLock = locks.get(key);
+                if (null == theLock) {
+                    return true;
+                } else if (Thread.currentThread() == theLock) {
+                    locks.remove(key);
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
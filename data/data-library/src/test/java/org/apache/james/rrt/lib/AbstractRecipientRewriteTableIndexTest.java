@@ -0,0 +1,174 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.rrt.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.james.rrt.api.RecipientRewriteTable.ErrorMappingException;
+import org.apache.james.rrt.api.RecipientRewriteTableException;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test the index of the mappings in {@link AbstractRecipientRewriteTable}.
+ */
+public class AbstractRecipientRewriteTableIndexTest {
+
+    private MemoryRecipientRewriteTable virtualUserTable;
+
+    @Before
+    public void setUp() throws Exception {
+        virtualUserTable = new MemoryRecipientRewriteTable();
+        virtualUserTable.setLog(LoggerFactory.getLogger("MockLog"));
+        virtualUserTable.addAddressMapping("user1", "domain1.tld", "user2@domain2.tld");
+        virtualUserTable.addAddressMapping("user2", "domain2.tld", "user3@domain3.tld");
+        virtualUserTable.addAddressMapping("user2", "domain2.tld", "user4@domain4.tld");
+        virtualUserTable.addAddressMapping("user5", "*", "user5@domain5.tld");
+        virtualUserTable.addAliasDomainMapping("alias.tld", "domain1.tld");
+        virtualUserTable.addRegexMapping("*", "regex.tld", "(.*)@regex.tld:${1}@domain3.tld");
+        virtualUserTable.addErrorMapping("error", "domain1.tld", "550 no such user");
+    }
+
+    @Test
+    public void testIndexResolvesLikeBackend() throws Exception {
+        String[][] addresses = { { "user1", "domain1.tld" }, { "user2", "domain2.tld" }, { "user5", "domain6.tld" }, { "user1", "alias.tld" }, { "user6", "regex.tld" }, { "user6", "domain6.tld" }, { "error", "domain1.tld" }, { "error", "alias.tld" } };
+
+        Map<String, String> expected = new HashMap<String, String>();
+        for (String[] address : addresses) {
+            expected.put(address[0] + "@" + address[1], resolve(address[0], address[1]));
+        }
+        virtualUserTable.setIndexRefreshInterval(60000);
+        for (int i = 0; i < 2; i++) {
+            for (String[] address : addresses) {
+                assertEquals(expected.get(address[0] + "@" + address[1]), resolve(address[0], address[1]));
+            }
+        }
+        assertEquals("error:550 no such user", expected.get("error@alias.tld"));
+        assertEquals("[user3@domain3.tld, user4@domain4.tld]", expected.get("user1@alias.tld"));
+    }
+
+    @Test
+    public void testLookupsAreIndexed() throws Exception {
+        virtualUserTable.setIndexRefreshInterval(60000);
+        virtualUserTable.lookups = 0;
+        for (int i = 0; i < 10; i++) {
+            assertEquals(2, virtualUserTable.getMappings("user1", "domain1.tld").size());
+            assertNull(virtualUserTable.getMappings("user6", "domain6.tld"));
+        }
+        assertEquals(1, virtualUserTable.loads);
+        assertEquals(0, virtualUserTable.lookups);
+    }
+
+    @Test
+    public void testChangesAreWrittenThrough() throws Exception {
+        virtualUserTable.setIndexRefreshInterval(60000);
+        assertNull(virtualUserTable.getMappings("user6", "domain6.tld"));
+
+        virtualUserTable.addAddressMapping("user6", "domain6.tld", "user1@domain1.tld");
+        assertEquals(2, virtualUserTable.getMappings("user6", "domain6.tld").size());
+
+        virtualUserTable.removeAddressMapping("user2", "domain2.tld", "user4@domain4.tld");
+        assertEquals(1, virtualUserTable.getMappings("user6", "domain6.tld").size());
+    }
+
+    @Test
+    public void testChangesElsewhereAreSeenAfterRefresh() throws Exception {
+        virtualUserTable.setIndexRefreshInterval(60000);
+        assertNull(virtualUserTable.getMappings("user6", "domain6.tld"));
+        virtualUserTable.addMappingInternal("user6", "domain6.tld", "user6@domain1.tld");
+        assertNull(virtualUserTable.getMappings("user6", "domain6.tld"));
+
+        virtualUserTable.setIndexRefreshInterval(0);
+        assertEquals(1, virtualUserTable.getMappings("user6", "domain6.tld").size());
+    }
+
+    private String resolve(String user, String domain) throws RecipientRewriteTableException {
+        try {
+            Collection<String> mappings = virtualUserTable.getMappings(user, domain);
+            return (mappings == null) ? null : mappings.toString();
+        } catch (ErrorMappingException e) {
+            return "error:" + e.getMessage();
+        }
+    }
+
+    private final static class MemoryRecipientRewriteTable extends AbstractRecipientRewriteTable {
+
+        private final Map<String, Collection<String>> mappings = new HashMap<String, Collection<String>>();
+        private int loads;
+        private int lookups;
+
+        @Override
+        protected void addMappingInternal(String user, String domain, String mapping) throws RecipientRewriteTableException {
+            String key = getFixedUser(user) + "@" + getFixedDomain(domain);
+            Collection<String> targets = mappings.get(key);
+            if (targets == null) {
+                targets = new ArrayList<String>();
+                mappings.put(key, targets);
+            }
+            targets.add(mapping);
+        }
+
+        @Override
+        protected void removeMappingInternal(String user, String domain, String mapping) throws RecipientRewriteTableException {
+            String key = getFixedUser(user) + "@" + getFixedDomain(domain);
+            Collection<String> targets = mappings.get(key);
+            if (targets != null) {
+                targets.remove(mapping);
+                if (targets.isEmpty()) {
+                    mappings.remove(key);
+                }
+            }
+        }
+
+        @Override
+        protected Collection<String> getUserDomainMappingsInternal(String user, String domain) throws RecipientRewriteTableException {
+            return mappings.get(getFixedUser(user) + "@" + getFixedDomain(domain));
+        }
+
+        @Override
+        protected Map<String, Collection<String>> getAllMappingsInternal() throws RecipientRewriteTableException {
+            loads++;
+            Map<String, Collection<String>> all = new HashMap<String, Collection<String>>();
+            for (Map.Entry<String, Collection<String>> entry : mappings.entrySet()) {
+                all.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+            }
+            return all;
+        }
+
+        @Override
+        protected String mapAddressInternal(String user, String domain) throws RecipientRewriteTableException {
+            lookups++;
+            Map<String, String> targets = new HashMap<String, String>();
+            for (Map.Entry<String, Collection<String>> entry : mappings.entrySet()) {
+                targets.put(entry.getKey(), RecipientRewriteTableUtil.CollectionToMapping(entry.getValue()));
+            }
+            return RecipientRewriteTableUtil.getTargetString(user, domain, targets);
+        }
+    }
+}
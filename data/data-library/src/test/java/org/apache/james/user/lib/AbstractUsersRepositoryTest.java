@@ -25,6 +25,7 @@ import org.apache.james.lifecycle.api.LifecycleUtil;
 import org.apache.james.user.api.UsersRepository;
 import org.apache.james.user.api.UsersRepositoryException;
 import org.apache.james.user.api.model.User;
+import org.apache.james.user.lib.util.AuthenticationCache;
 import org.junit.After;
 import static org.junit.Assert.*;
 import org.junit.Before;
@@ -194,6 +195,21 @@ public abstract class AbstractUsersRepositoryTest {
         }
     }
 
+    @Test
+    public void testCachedAuthenticationIsInvalidated() throws UsersRepositoryException {
+        ((AbstractUsersRepository) usersRepository).setAuthenticationCache(new AuthenticationCache(60000, 100));
+        usersRepository.addUser("username", "password");
+        assertTrue("didn't accept the correct password", usersRepository.test("username", "password"));
+        assertTrue("didn't accept the cached password", usersRepository.test("username", "password"));
+        User user = usersRepository.getUserByName("username");
+        user.setPassword("newpass");
+        usersRepository.updateUser(user);
+        assertFalse("cached old password accepted", usersRepository.test("username", "password"));
+        assertTrue("new password rejected", usersRepository.test("username", "newpass"));
+        usersRepository.removeUser("username");
+        assertFalse("cached password of a removed user accepted", usersRepository.test("username", "newpass"));
+    }
+
     /**
      * Dispose the repository
      *
@@ -0,0 +1,184 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.user.lib.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.user.api.UsersRepositoryException;
+import org.apache.james.user.api.model.User;
+import org.junit.Test;
+
+public class AuthenticationCacheTest {
+
+    private final class ManualClockAuthenticationCache extends AuthenticationCache {
+        private long now = 1000000;
+
+        private ManualClockAuthenticationCache(long ttl, int maxSize) {
+            super(ttl, maxSize);
+        }
+
+        @Override
+        protected long now() {
+            return now;
+        }
+    }
+
+    private final class SimpleUser implements User {
+        private final String name;
+        private String password;
+        private final CountDownLatch latch;
+
+        private SimpleUser(String name, String password, CountDownLatch latch) {
+            this.name = name;
+            this.password = password;
+            this.latch = latch;
+        }
+
+        public String getUserName() {
+            return name;
+        }
+
+        public boolean verifyPassword(String pass) {
+            if (latch != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return password.equals(pass);
+        }
+
+        public boolean setPassword(String newPass) {
+            password = newPass;
+            return true;
+        }
+    }
+
+    @Test
+    public void testCachedPassword() {
+        ManualClockAuthenticationCache cache = new ManualClockAuthenticationCache(1000, 10);
+        assertFalse(cache.test("user", "secret"));
+
+        cache.put("user", "secret", cache.getGeneration());
+        assertTrue(cache.test("user", "secret"));
+        assertFalse(cache.test("user", "wrong"));
+        assertFalse(cache.test("User", "secret"));
+        assertFalse(cache.test("other", "secret"));
+
+        cache.now += 1000;
+        assertFalse(cache.test("user", "secret"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testInvalidate() {
+        ManualClockAuthenticationCache cache = new ManualClockAuthenticationCache(1000, 10);
+        cache.put("User", "secret", cache.getGeneration());
+        cache.invalidate("user");
+        assertFalse(cache.test("User", "secret"));
+    }
+
+    @Test
+    public void testPutAfterInvalidateIsIgnored() {
+        ManualClockAuthenticationCache cache = new ManualClockAuthenticationCache(1000, 10);
+        long generation = cache.getGeneration();
+        // the password changed while the old one was checked
+        cache.invalidate("user");
+        cache.put("user", "old", generation);
+        assertFalse(cache.test("user", "old"));
+    }
+
+    @Test
+    public void testMaxSize() {
+        ManualClockAuthenticationCache cache = new ManualClockAuthenticationCache(1000, 2);
+        cache.put("user1", "secret", cache.getGeneration());
+        cache.put("user2", "secret", cache.getGeneration());
+        cache.put("user3", "secret", cache.getGeneration());
+        assertTrue(cache.size() <= 2);
+        assertTrue(cache.test("user3", "secret"));
+    }
+
+    @Test
+    public void testHashingExecutor() throws Exception {
+        PasswordHashingExecutor executor = new PasswordHashingExecutor(1, 1, 5000);
+        try {
+            assertTrue(executor.verifyPassword(new SimpleUser("user", "secret", null), "secret"));
+            assertFalse(executor.verifyPassword(new SimpleUser("user", "secret", null), "wrong"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testHashingExecutorSaturated() throws Exception {
+        final PasswordHashingExecutor executor = new PasswordHashingExecutor(1, 1, 5000);
+        final CountDownLatch latch = new CountDownLatch(1);
+        try {
+            // one check running and one waiting fill the executor
+            for (int i = 0; i < 2; i++) {
+                new Thread() {
+                    public void run() {
+                        try {
+                            executor.verifyPassword(new SimpleUser("blocked", "secret", latch), "secret");
+                        } catch (UsersRepositoryException e) {
+                            // ignore
+                        }
+                    }
+                }.start();
+            }
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+            while (executor.getPendingCount() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            try {
+                executor.verifyPassword(new SimpleUser("user", "secret", null), "secret");
+                fail("The saturated executor must reject the check");
+            } catch (UsersRepositoryException e) {
+                // expected
+            }
+        } finally {
+            latch.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testHashingExecutorTimeout() throws Exception {
+        PasswordHashingExecutor executor = new PasswordHashingExecutor(1, 1, 50);
+        CountDownLatch latch = new CountDownLatch(1);
+        try {
+            executor.verifyPassword(new SimpleUser("user", "secret", latch), "secret");
+            fail("The check must time out");
+        } catch (UsersRepositoryException e) {
+            // expected
+        } finally {
+            latch.countDown();
+            executor.shutdown();
+        }
+    }
+}
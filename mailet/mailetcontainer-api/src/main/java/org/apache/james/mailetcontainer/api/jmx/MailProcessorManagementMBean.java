@@ -67,4 +67,25 @@ public interface MailProcessorManagementMBean {
      */
     long getLastProcessing();
 
+    /**
+     * Return the average time in ms of the processing
+     * 
+     * @return average
+     */
+    double getAverageProcessing();
+
+    /**
+     * Return the median time in ms of the processing
+     * 
+     * @return median
+     */
+    double getMedianProcessing();
+
+    /**
+     * Return the time in ms which 99% of the processing did not exceed
+     * 
+     * @return percentile
+     */
+    double getProcessingPercentile99();
+
 }
@@ -19,6 +19,7 @@
 
 package org.apache.james.mailetcontainer.impl.jmx;
 
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.NotCompliantMBeanException;
@@ -26,6 +27,7 @@ import javax.management.StandardMBean;
 
 import org.apache.james.mailetcontainer.api.MailProcessor;
 import org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean;
+import org.apache.james.util.concurrent.TaskStatistics;
 
 /**
  * Wrapper which helps to expose JMX statistics for {@link MailProcessor} and
@@ -38,6 +40,7 @@ public class MailProcessorManagement extends StandardMBean implements MailProces
     private final AtomicLong fastestProcessing = new AtomicLong(-1);
     private final AtomicLong slowestProcessing = new AtomicLong(-1);
     private final AtomicLong lastProcessing = new AtomicLong(-1);
+    private final TaskStatistics times = new TaskStatistics();
 
     public MailProcessorManagement(String processorName) throws NotCompliantMBeanException {
         super(MailProcessorManagementMBean.class);
@@ -51,6 +54,7 @@ public class MailProcessorManagement extends StandardMBean implements MailProces
      * @param success
      */
     public void update(long processTime, boolean success) {
+        times.record(processTime, TimeUnit.MILLISECONDS);
         long fastest = fastestProcessing.get();
 
         if (fastest > processTime || fastest == -1) {
@@ -125,4 +129,24 @@ public class MailProcessorManagement extends StandardMBean implements MailProces
         return lastProcessing.get();
     }
 
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#getAverageProcessing()
+     */
+    public double getAverageProcessing() {
+        return times.getAverageTime();
+    }
+
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#getMedianProcessing()
+     */
+    public double getMedianProcessing() {
+        return times.getPercentile(0.5);
+    }
+
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#getProcessingPercentile99()
+     */
+    public double getProcessingPercentile99() {
+        return times.getPercentile(0.99);
+    }
 }
@@ -21,12 +21,14 @@ package org.apache.james.mailetcontainer.impl.jmx;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.NotCompliantMBeanException;
 import javax.management.StandardMBean;
 
 import org.apache.james.mailetcontainer.api.jmx.MailetManagementMBean;
+import org.apache.james.util.concurrent.TaskStatistics;
 import org.apache.mailet.MailetConfig;
 
 public final class MailetManagement extends StandardMBean implements MailetManagementMBean {
@@ -36,6 +38,7 @@ public final class MailetManagement extends StandardMBean implements MailetManag
     private final AtomicLong fastestProcessing = new AtomicLong(-1);
     private final AtomicLong slowestProcessing = new AtomicLong(-1);
     private final AtomicLong lastProcessing = new AtomicLong(-1);
+    private final TaskStatistics times = new TaskStatistics();
 
     private final MailetConfig config;
 
@@ -46,6 +49,7 @@ public final class MailetManagement extends StandardMBean implements MailetManag
     }
 
     public void update(long processTime, boolean success) {
+        times.record(processTime, TimeUnit.MILLISECONDS);
         long fastest = fastestProcessing.get();
 
         if (fastest > processTime || fastest == -1) {
@@ -131,4 +135,24 @@ public final class MailetManagement extends StandardMBean implements MailetManag
         return lastProcessing.get();
     }
 
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#getAverageProcessing()
+     */
+    public double getAverageProcessing() {
+        return times.getAverageTime();
+    }
+
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#getMedianProcessing()
+     */
+    public double getMedianProcessing() {
+        return times.getPercentile(0.5);
+    }
+
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#getProcessingPercentile99()
+     */
+    public double getProcessingPercentile99() {
+        return times.getPercentile(0.99);
+    }
 }
@@ -18,12 +18,14 @@
  ****************************************************************/
 package org.apache.james.mailetcontainer.impl.jmx;
 
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.NotCompliantMBeanException;
 import javax.management.StandardMBean;
 
 import org.apache.james.mailetcontainer.api.jmx.MatcherManagementMBean;
+import org.apache.james.util.concurrent.TaskStatistics;
 import org.apache.mailet.MatcherConfig;
 
 public final class MatcherManagement extends StandardMBean implements MatcherManagementMBean {
@@ -35,6 +37,7 @@ public final class MatcherManagement extends StandardMBean implements MatcherMan
     private final AtomicLong matchedCount = new AtomicLong(0);
     private final AtomicLong notMatchedCount = new AtomicLong(0);
     private final AtomicLong lastProcessing = new AtomicLong(-1);
+    private final TaskStatistics times = new TaskStatistics();
 
     public MatcherManagement(MatcherConfig matcherConfig) throws NotCompliantMBeanException {
         super(MatcherManagementMBean.class);
@@ -43,6 +46,7 @@ public final class MatcherManagement extends StandardMBean implements MatcherMan
     }
 
     public void update(long processTime, boolean success, boolean matched) {
+        times.record(processTime, TimeUnit.MILLISECONDS);
         long fastest = fastestProcessing.get();
 
         if (fastest > processTime || fastest == -1) {
@@ -143,4 +147,25 @@ public final class MatcherManagement extends StandardMBean implements MatcherMan
     public long getLastProcessing() {
         return lastProcessing.get();
     }
+
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#getAverageProcessing()
+     */
+    public double getAverageProcessing() {
+        return times.getAverageTime();
+    }
+
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#getMedianProcessing()
+     */
+    public double getMedianProcessing() {
+        return times.getPercentile(0.5);
+    }
+
+    /**
+     * @see org.apache.james.mailetcontainer.api.jmx.MailProcessorManagementMBean#getProcessingPercentile99()
+     */
+    public double getProcessingPercentile99() {
+        return times.getPercentile(0.99);
+    }
 }
@@ -43,6 +43,9 @@ import org.apache.mailet.base.GenericMailet;
  */
 public class FromRepository extends GenericMailet {
 
+    /** The count of keys read from the repository at once */
+    private static final int PAGE_SIZE = 1000;
+
     /** The repository from where this mailet spools mail. */
     private MailRepository repository;
 
@@ -91,40 +94,47 @@ public class FromRepository extends GenericMailet {
      */
     public void service(Mail trigger) throws MessagingException {
         trigger.setState(Mail.GHOST);
-        java.util.Collection processed = new java.util.ArrayList();
-        Iterator list = repository.list();
-        while (list.hasNext()) {
-            String key = (String) list.next();
-            try {
-                Mail mail = repository.retrieve(key);
-                if (mail != null && mail.getRecipients() != null) {
-                    log((new StringBuffer(160).append("Spooling mail ").append(mail.getName()).append(" from ").append(repositoryPath)).toString());
-
-                    /*
-                     * log("Return-Path: " +
-                     * mail.getMessage().getHeader(RFC2822Headers.RETURN_PATH,
-                     * ", ")); log("Sender: " + mail.getSender()); log("To: " +
-                     * mail.getMessage().getHeader(RFC2822Headers.TO, ", "));
-                     * log("Recipients: "); for (Iterator i =
-                     * mail.getRecipients().iterator(); i.hasNext(); ) {
-                     * log("    " + ((MailAddress)i.next()).toString()); };
-                     */
-
-                    mail.setAttribute("FromRepository", Boolean.TRUE);
-                    mail.setState(processor);
-                    getMailetContext().sendMail(mail);
-                    if (delete)
-                        processed.add(key);
-                    LifecycleUtil.dispose(mail);
+        // walk the repository page by page, so the keys of large repositories
+        // are never loaded at once
+        String lastKey = null;
+        while (true) {
+            java.util.Collection<String> processed = new java.util.ArrayList<String>();
+            Iterator<String> list = repository.list(lastKey, PAGE_SIZE);
+            if (!list.hasNext()) {
+                break;
+            }
+            while (list.hasNext()) {
+                String key = list.next();
+                lastKey = key;
+                try {
+                    Mail mail = repository.retrieve(key);
+                    if (mail != null && mail.getRecipients() != null) {
+                        log((new StringBuffer(160).append("Spooling mail ").append(mail.getName()).append(" from ").append(repositoryPath)).toString());
+
+                        /*
+                         * log("Return-Path: " +
+                         * mail.getMessage().getHeader(RFC2822Headers.RETURN_PATH,
+                         * ", ")); log("Sender: " + mail.getSender()); log("To: " +
+                         * mail.getMessage().getHeader(RFC2822Headers.TO, ", "));
+                         * log("Recipients: "); for (Iterator i =
+                         * mail.getRecipients().iterator(); i.hasNext(); ) {
+                         * log("    " + ((MailAddress)i.next()).toString()); };
+                         */
+
+                        mail.setAttribute("FromRepository", Boolean.TRUE);
+                        mail.setState(processor);
+                        getMailetContext().sendMail(mail);
+                        if (delete)
+                            processed.add(key);
+                        LifecycleUtil.dispose(mail);
+                    }
+                } catch (MessagingException e) {
+                    log((new StringBuffer(160).append("Unable to re-spool mail ").append(key).append(" from ").append(repositoryPath)).toString(), e);
                 }
-            } catch (MessagingException e) {
-                log((new StringBuffer(160).append("Unable to re-spool mail ").append(key).append(" from ").append(repositoryPath)).toString(), e);
             }
-        }
 
-        if (delete) {
-            for (Object aProcessed : processed) {
-                repository.remove((String) aProcessed);
+            if (delete && !processed.isEmpty()) {
+                repository.removeAll(processed);
             }
         }
     }
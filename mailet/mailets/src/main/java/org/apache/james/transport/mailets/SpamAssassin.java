@@ -20,11 +20,16 @@
 package org.apache.james.transport.mailets;
 
 import org.apache.james.util.scanner.SpamAssassinInvoker;
+import org.apache.james.util.scanner.SpamdClient;
 import org.apache.mailet.base.GenericMailet;
 import org.apache.mailet.Mail;
 
+import java.lang.management.ManagementFactory;
+
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * Sends the message through daemonized SpamAssassin (spamd), visit <a
@@ -49,6 +54,12 @@ import javax.mail.internet.MimeMessage;
  * &lt;spamdHost&gt;localhost&lt;/spamdHost&gt;
  * &lt;spamdPort&gt;783&lt;/spamdPort&gt;
  * </pre>
+ * 
+ * spamdHost can list several spamd daemons as host or host:port separated by
+ * comma, which are used round robin with failover. The optional parameters
+ * spamdMaxConnections, spamdConnectTimeout, spamdReadTimeout,
+ * spamdRetryInterval and spamdMaxMessageSize tune the connections, see
+ * {@link SpamdClient}. The statistics of the client are exported in JMX.
  */
 public class SpamAssassin extends GenericMailet {
 
@@ -56,6 +67,12 @@ public class SpamAssassin extends GenericMailet {
 
     int spamdPort;
 
+    private SpamdClient client;
+
+    private MBeanServer mbeanServer;
+
+    private ObjectName mbeanName;
+
     /**
      * @see org.apache.mailet.base.GenericMailet#init()
      */
@@ -76,6 +93,38 @@ public class SpamAssassin extends GenericMailet {
                 throw new MessagingException("Please configure a valid port. Not valid: " + spamdPort);
             }
         }
+
+        try {
+            client = new SpamdClient(spamdHost.split(","), spamdPort, getIntParameter("spamdMaxConnections", SpamdClient.DEFAULT_MAX_CONNECTIONS));
+            client.setConnectTimeout(getIntParameter("spamdConnectTimeout", SpamdClient.DEFAULT_CONNECT_TIMEOUT));
+            client.setReadTimeout(getIntParameter("spamdReadTimeout", SpamdClient.DEFAULT_READ_TIMEOUT));
+            client.setRetryInterval(getIntParameter("spamdRetryInterval", (int) SpamdClient.DEFAULT_RETRY_INTERVAL));
+            client.setMaxMessageSize(getIntParameter("spamdMaxMessageSize", 0));
+        } catch (IllegalArgumentException e) {
+            throw new MessagingException("Invalid spamd configuration: " + e.getMessage());
+        }
+
+        mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName("org.apache.james:type=component,name=spamassassin,mailet=" + ObjectName.quote(getMailetName()));
+            mbeanServer.registerMBean(client, name);
+            mbeanName = name;
+        } catch (Exception e) {
+            // the same mailet may be configured more than once
+            log("Unable to register the spamd client in JMX: " + e.getMessage());
+        }
+    }
+
+    private int getIntParameter(String name, int defaultValue) throws MessagingException {
+        String value = getInitParameter(name);
+        if (value == null || value.equals("")) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new MessagingException("Please configure a valid " + name + ". Not valid: " + value);
+        }
     }
 
     /**
@@ -86,8 +135,8 @@ public class SpamAssassin extends GenericMailet {
             MimeMessage message = mail.getMessage();
 
             // Invoke spamassian connection and scan the message
-            SpamAssassinInvoker sa = new SpamAssassinInvoker(spamdHost, spamdPort);
-            sa.scanMail(message);
+            SpamAssassinInvoker sa = new SpamAssassinInvoker(client);
+            sa.scanMail(message, mail.getMessageSize());
 
             // Add headers as attribute to mail object
             for (String key : sa.getHeadersAsAttribute().keySet()) {
@@ -101,6 +150,20 @@ public class SpamAssassin extends GenericMailet {
 
     }
 
+    /**
+     * @see org.apache.mailet.base.GenericMailet#destroy()
+     */
+    public void destroy() {
+        if (mbeanName != null) {
+            try {
+                mbeanServer.unregisterMBean(mbeanName);
+            } catch (Exception e) {
+                // ignore here
+            }
+            mbeanName = null;
+        }
+    }
+
     /**
      * @see org.apache.mailet.base.GenericMailet#getMailetInfo()
      */
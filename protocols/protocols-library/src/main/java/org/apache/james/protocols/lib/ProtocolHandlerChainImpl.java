@@ -30,6 +30,7 @@ import org.apache.james.protocols.lib.handler.HandlersPackage;
 import org.apache.james.protocols.lib.handler.ProtocolHandlerLoader;
 import org.apache.james.protocols.lib.lifecycle.InitializingLifecycleAwareProtocolHandler;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -54,6 +55,15 @@ public class ProtocolHandlerChainImpl implements ProtocolHandlerChain {
     public void init() throws Exception {
         List<org.apache.commons.configuration.HierarchicalConfiguration> children = handlerchainConfig.configurationsAt("handler");
 
+        // let the configured handlers which register MBeans name them after
+        // the server, like the handlers of the jmx package
+        for (HierarchicalConfiguration hConf : children) {
+            if (hConf.getString("jmxName", null) == null) {
+                hConf.addProperty("jmxName", jmxName);
+            }
+        }
+        List<HierarchicalConfiguration> configured = new ArrayList<HierarchicalConfiguration>(children);
+
         // check if the coreHandlersPackage was specified in the config, if
         // not add the default
         if (handlerchainConfig.getString("[@coreHandlersPackage]") == null)
@@ -67,14 +77,14 @@ public class ProtocolHandlerChainImpl implements ProtocolHandlerChain {
         String jmxHandlersPackage = handlerchainConfig.getString("[@jmxHandlersPackage]");
 
         HandlersPackage handlersPackage = (HandlersPackage) loader.load(coreHandlersPackage, addHandler(coreHandlersPackage));
-        registerHandlersPackage(handlersPackage, null, children);
+        registerHandlersPackage(handlersPackage, null, configured, children);
 
         if (handlerchainConfig.getBoolean("[@enableJmx]", true)) {
             DefaultConfigurationBuilder builder = new DefaultConfigurationBuilder();
             builder.addProperty("jmxName", jmxName);
             HandlersPackage jmxPackage = (HandlersPackage) loader.load(jmxHandlersPackage, addHandler(jmxHandlersPackage));
 
-            registerHandlersPackage(jmxPackage, builder, children);
+            registerHandlersPackage(jmxPackage, builder, configured, children);
         }
 
         for (HierarchicalConfiguration hConf : children) {
@@ -103,13 +113,29 @@ public class ProtocolHandlerChainImpl implements ProtocolHandlerChain {
     }
 
 
-    private void registerHandlersPackage(HandlersPackage handlersPackage, HierarchicalConfiguration handlerConfig, List<HierarchicalConfiguration> children) throws ConfigurationException {
+    /**
+     * Add the handlers of the package to the children. A handler of the
+     * package which is also configured in the chain gets that configuration
+     * instead of being loaded twice.
+     */
+    private void registerHandlersPackage(HandlersPackage handlersPackage, HierarchicalConfiguration handlerConfig, List<HierarchicalConfiguration> configured, List<HierarchicalConfiguration> children) throws ConfigurationException {
         List<String> c = handlersPackage.getHandlers();
 
         for (String cName : c) {
             try {
                 CombinedConfiguration conf = new CombinedConfiguration();
-                HierarchicalConfiguration cmdConf = addHandler(cName);
+                HierarchicalConfiguration cmdConf = null;
+                for (HierarchicalConfiguration hConf : configured) {
+                    if (cName.equals(hConf.getString("[@class]", null))) {
+                        cmdConf = hConf;
+                    }
+                }
+                if (cmdConf == null) {
+                    cmdConf = addHandler(cName);
+                } else {
+                    configured.remove(cmdConf);
+                    children.remove(cmdConf);
+                }
                 conf.addConfiguration(cmdConf);
                 if (handlerConfig != null) {
                     conf.addConfiguration(handlerConfig);
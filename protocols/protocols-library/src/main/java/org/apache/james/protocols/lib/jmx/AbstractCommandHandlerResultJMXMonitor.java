@@ -55,7 +55,7 @@ public abstract class AbstractCommandHandlerResultJMXMonitor<S extends ProtocolS
             String name = handler.getClass().getName();
             AbstractCommandHandlerStats stats = cStats.get(name);
             if (stats != null) {
-                stats.increment(response);
+                stats.increment(response, executionTime);
             }
         }
         return response;
@@ -19,6 +19,7 @@
 package org.apache.james.protocols.lib.jmx;
 
 import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.InstanceAlreadyExistsException;
@@ -32,6 +33,7 @@ import javax.management.StandardMBean;
 import org.apache.james.lifecycle.api.Disposable;
 import org.apache.james.protocols.api.Response;
 import org.apache.james.protocols.api.handler.CommandHandler;
+import org.apache.james.util.concurrent.TaskStatistics;
 
 /**
  * Expose statistics for {@link CommandHandler} via JMX
@@ -40,6 +42,7 @@ public abstract class AbstractCommandHandlerStats extends StandardMBean implemen
 
     private final AtomicLong all = new AtomicLong(0);
     private final AtomicLong disconnect = new AtomicLong();
+    private final TaskStatistics times = new TaskStatistics();
 
     private String name;
     private String handlerName;
@@ -61,8 +64,11 @@ public abstract class AbstractCommandHandlerStats extends StandardMBean implemen
      * Increment stats based on the given response
      * 
      * @param response
+     * @param executionTime
+     *            the execution time of the handler (in ms)
      */
-    public void increment(Response response) {
+    public void increment(Response response, long executionTime) {
+        times.record(executionTime, TimeUnit.MILLISECONDS);
         if (response.isEndSession()) {
             disconnect.incrementAndGet();
         }
@@ -116,4 +122,32 @@ public abstract class AbstractCommandHandlerStats extends StandardMBean implemen
     public long getDisconnect() {
         return disconnect.get();
     }
+
+    /**
+     * @see org.apache.james.protocols.lib.jmx.HandlerStatsMBean#getAverageTime()
+     */
+    public double getAverageTime() {
+        return times.getAverageTime();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.jmx.HandlerStatsMBean#getMedianTime()
+     */
+    public double getMedianTime() {
+        return times.getPercentile(0.5);
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.jmx.HandlerStatsMBean#getTimePercentile99()
+     */
+    public double getTimePercentile99() {
+        return times.getPercentile(0.99);
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.jmx.HandlerStatsMBean#getMaximalTime()
+     */
+    public double getMaximalTime() {
+        return times.getMaxTime();
+    }
 }
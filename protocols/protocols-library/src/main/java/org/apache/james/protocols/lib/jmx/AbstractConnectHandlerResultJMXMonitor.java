@@ -67,7 +67,7 @@ public abstract class AbstractConnectHandlerResultJMXMonitor<R extends Response,
      */
     public Response onResponse(ProtocolSession session, Response response, long executionTime, ProtocolHandler handler) {
         if (handler instanceof ConnectHandler) {
-            cStats.get(handler.getClass().getName()).increment(response);
+            cStats.get(handler.getClass().getName()).increment(response, executionTime);
         }
         return response;
     }
@@ -44,4 +44,32 @@ public interface HandlerStatsMBean {
      */
     long getDisconnect();
 
+    /**
+     * Return the average execution time of the handler (in ms)
+     * 
+     * @return averageTime
+     */
+    double getAverageTime();
+
+    /**
+     * Return the median execution time of the handler (in ms)
+     * 
+     * @return medianTime
+     */
+    double getMedianTime();
+
+    /**
+     * Return the execution time which 99% of the calls did not exceed (in ms)
+     * 
+     * @return percentileTime
+     */
+    double getTimePercentile99();
+
+    /**
+     * Return the maximal execution time of the handler (in ms)
+     * 
+     * @return maximalTime
+     */
+    double getMaximalTime();
+
 }
@@ -19,6 +19,7 @@
 package org.apache.james.protocols.lib.jmx;
 
 import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.InstanceAlreadyExistsException;
@@ -31,6 +32,7 @@ import javax.management.StandardMBean;
 
 import org.apache.james.lifecycle.api.Disposable;
 import org.apache.james.protocols.api.Response;
+import org.apache.james.util.concurrent.TaskStatistics;
 
 /**
  * Gather stats for LineHandlers
@@ -42,6 +44,7 @@ public class LineHandlerStats extends StandardMBean implements HandlerStatsMBean
     private MBeanServer mbeanserver;
     private final AtomicLong all = new AtomicLong(0);
     private final AtomicLong disconnect = new AtomicLong(0);
+    private final TaskStatistics times = new TaskStatistics();
 
     public LineHandlerStats(String jmxName, String handlerName) throws NotCompliantMBeanException, MalformedObjectNameException, NullPointerException, InstanceAlreadyExistsException, MBeanRegistrationException {
         super(HandlerStatsMBean.class);
@@ -57,8 +60,11 @@ public class LineHandlerStats extends StandardMBean implements HandlerStatsMBean
      * Increment the stats
      * 
      * @param response
+     * @param executionTime
+     *            the execution time of the handler (in ms)
      */
-    public void increment(Response response) {
+    public void increment(Response response, long executionTime) {
+        times.record(executionTime, TimeUnit.MILLISECONDS);
         all.incrementAndGet();
         if (response.isEndSession()) {
             disconnect.incrementAndGet();
@@ -97,4 +103,31 @@ public class LineHandlerStats extends StandardMBean implements HandlerStatsMBean
         }
     }
 
+    /**
+     * @see org.apache.james.protocols.lib.jmx.HandlerStatsMBean#getAverageTime()
+     */
+    public double getAverageTime() {
+        return times.getAverageTime();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.jmx.HandlerStatsMBean#getMedianTime()
+     */
+    public double getMedianTime() {
+        return times.getPercentile(0.5);
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.jmx.HandlerStatsMBean#getTimePercentile99()
+     */
+    public double getTimePercentile99() {
+        return times.getPercentile(0.99);
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.jmx.HandlerStatsMBean#getMaximalTime()
+     */
+    public double getMaximalTime() {
+        return times.getMaxTime();
+    }
 }
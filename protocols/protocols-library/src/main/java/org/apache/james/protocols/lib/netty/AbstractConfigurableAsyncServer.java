@@ -48,6 +48,8 @@ import org.apache.james.protocols.lib.jmx.ServerMBean;
 import org.apache.james.protocols.netty.AbstractAsyncServer;
 import org.apache.james.util.concurrent.JMXEnabledThreadPoolExecutor;
 import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.DirectChannelBufferFactory;
+import org.jboss.netty.channel.AdaptiveReceiveBufferSizePredictorFactory;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.ChannelUpstreamHandler;
 import org.jboss.netty.channel.group.ChannelGroup;
@@ -74,6 +76,18 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
     public static final String HELLO_NAME = "helloName";
 
     public static final int DEFAULT_MAX_EXECUTOR_COUNT = 16;
+
+    /** Allocate the per-connection buffers on the heap */
+    public static final String HEAP_BUFFER_FACTORY = "heap";
+
+    /** Slice the per-connection buffers out of preallocated direct memory chunks */
+    public static final String DIRECT_BUFFER_FACTORY = "direct";
+
+    public static final int DEFAULT_MIN_READ_BUFFER_SIZE = 64;
+
+    public static final int DEFAULT_INITIAL_READ_BUFFER_SIZE = 1024;
+
+    public static final int DEFAULT_MAX_READ_BUFFER_SIZE = 65536;
     
     // By default, use the Sun X509 algorithm that comes with the Sun JCE
     // provider for SSL
@@ -114,6 +128,22 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
 
     private int maxExecutorThreads;
 
+    private long maxChannelMemorySize;
+
+    private long maxTotalMemorySize;
+
+    private boolean useDirectBuffers;
+
+    private int minReadBufferSize;
+
+    private int initialReadBufferSize;
+
+    private int maxReadBufferSize;
+
+    private int receiveBufferSize;
+
+    private int sendBufferSize;
+
     private MBeanServer mbeanServer;
 
     @Inject
@@ -195,7 +225,10 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
         setIoWorkerCount(ioWorker);
 
         maxExecutorThreads = config.getInt("maxExecutorCount", DEFAULT_MAX_EXECUTOR_COUNT);
+        maxChannelMemorySize = config.getLong("maxChannelMemorySize", 0);
+        maxTotalMemorySize = config.getLong("maxTotalMemorySize", 0);
 
+        configureBuffers(config);
         
         configureHelloName(config);
 
@@ -328,6 +361,37 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
         return fileSystem;
     }
 
+    /**
+     * Configure the buffers used by the connections of the server
+     * 
+     * @param config
+     * @throws ConfigurationException
+     */
+    private void configureBuffers(Configuration config) throws ConfigurationException {
+        String bufferFactory = config.getString("bufferFactory", HEAP_BUFFER_FACTORY);
+        if (DIRECT_BUFFER_FACTORY.equalsIgnoreCase(bufferFactory)) {
+            useDirectBuffers = true;
+        } else if (HEAP_BUFFER_FACTORY.equalsIgnoreCase(bufferFactory)) {
+            useDirectBuffers = false;
+        } else {
+            throw new ConfigurationException("Unknown bufferFactory " + bufferFactory + ", must be " + HEAP_BUFFER_FACTORY + " or " + DIRECT_BUFFER_FACTORY);
+        }
+
+        minReadBufferSize = config.getInt("minReadBufferSize", DEFAULT_MIN_READ_BUFFER_SIZE);
+        initialReadBufferSize = config.getInt("initialReadBufferSize", DEFAULT_INITIAL_READ_BUFFER_SIZE);
+        maxReadBufferSize = config.getInt("maxReadBufferSize", DEFAULT_MAX_READ_BUFFER_SIZE);
+        if (minReadBufferSize <= 0 || initialReadBufferSize < minReadBufferSize || maxReadBufferSize < initialReadBufferSize) {
+            throw new ConfigurationException("Read buffer sizes must be 0 < minReadBufferSize <= initialReadBufferSize <= maxReadBufferSize");
+        }
+
+        // 0 keeps the default of the operating system
+        receiveBufferSize = config.getInt("receiveBufferSize", 0);
+        sendBufferSize = config.getInt("sendBufferSize", 0);
+
+        getLogger().info(new StringBuilder(128).append(getServiceType()).append(" uses ").append(useDirectBuffers ? DIRECT_BUFFER_FACTORY : HEAP_BUFFER_FACTORY).append(" buffers, read buffer size between ")
+                .append(minReadBufferSize).append(" and ").append(maxReadBufferSize).append(" bytes").toString());
+    }
+
     /**
      * Configure the helloName for the given Configuration
      * 
@@ -554,6 +618,18 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
         
         // enable tcp keep-alives
         bootstrap.setOption("child.keepAlive", true);
+
+        if (useDirectBuffers) {
+            bootstrap.setOption("child.bufferFactory", DirectChannelBufferFactory.getInstance());
+        }
+        // only used by the NIO transport, the blocking one reads into a fixed buffer
+        bootstrap.setOption("child.receiveBufferSizePredictorFactory", new AdaptiveReceiveBufferSizePredictorFactory(minReadBufferSize, initialReadBufferSize, maxReadBufferSize));
+        if (receiveBufferSize > 0) {
+            bootstrap.setOption("child.receiveBufferSize", receiveBufferSize);
+        }
+        if (sendBufferSize > 0) {
+            bootstrap.setOption("child.sendBufferSize", sendBufferSize);
+        }
     }
     
     /**
@@ -562,7 +638,7 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
      * @return ehandler
      */
     protected ExecutionHandler createExecutionHander() {
-        return new ExecutionHandler(new JMXEnabledOrderedMemoryAwareThreadPoolExecutor(maxExecutorThreads, 0, 0, getThreadPoolJMXPath(), "executor"));
+        return new ExecutionHandler(new JMXEnabledOrderedMemoryAwareThreadPoolExecutor(maxExecutorThreads, maxChannelMemorySize, maxTotalMemorySize, getThreadPoolJMXPath(), "executor"));
     }
 
     /**
@@ -19,8 +19,6 @@
 package org.apache.james.protocols.lib.netty;
 
 import java.lang.management.ManagementFactory;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -28,6 +26,7 @@ import javax.management.MBeanServer;
 import javax.management.ObjectName;
 
 import org.apache.james.util.concurrent.NamedThreadFactory;
+import org.apache.james.util.concurrent.TaskStatistics;
 import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 
 /**
@@ -36,10 +35,7 @@ import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 public class JMXEnabledOrderedMemoryAwareThreadPoolExecutor extends OrderedMemoryAwareThreadPoolExecutor implements JMXEnabledOrderedMemoryAwareThreadPoolExecutorMBean{
 
     private final String jmxPath;
-    private final List<Runnable> inProgress = Collections.synchronizedList(new ArrayList<Runnable>());
-    private final ThreadLocal<Long> startTime = new ThreadLocal<Long>();
-    private long totalTime;
-    private int totalTasks;
+    private final TaskStatistics statistics = new TaskStatistics();
     private MBeanServer mbeanServer;
     private String mbeanName;
     
@@ -52,18 +48,12 @@ public class JMXEnabledOrderedMemoryAwareThreadPoolExecutor extends OrderedMemor
     @Override
     protected void beforeExecute(Thread t, Runnable r) {
         super.beforeExecute(t, r);
-        inProgress.add(r);
-        startTime.set(System.currentTimeMillis());
+        statistics.taskStarted();
     }
 
     @Override
     protected void afterExecute(Runnable r, Throwable t) {
-        long time = System.currentTimeMillis() - startTime.get();
-        synchronized (this) {
-            totalTime += time;
-            ++totalTasks;
-        }
-        inProgress.remove(r);
+        statistics.taskCompleted();
         super.afterExecute(r, t);
     }
 
@@ -115,15 +105,36 @@ public class JMXEnabledOrderedMemoryAwareThreadPoolExecutor extends OrderedMemor
     /**
      * @see org.apache.james.util.concurrent.JMXEnabledThreadPoolExecutorMBean#getTotalTasks()
      */
-    public synchronized int getTotalTasks() {
-        return totalTasks;
+    public int getTotalTasks() {
+        return (int) statistics.getTaskCount();
     }
 
     /**
      * @see org.apache.james.util.concurrent.JMXEnabledThreadPoolExecutorMBean#getAverageTaskTime()
      */
-    public synchronized double getAverageTaskTime() {
-        return (totalTasks == 0) ? 0 : totalTime / totalTasks;
+    public double getAverageTaskTime() {
+        return statistics.getAverageTime();
+    }
+
+    /**
+     * @see org.apache.james.util.concurrent.JMXEnabledThreadPoolExecutorMBean#getMedianTaskTime()
+     */
+    public double getMedianTaskTime() {
+        return statistics.getPercentile(0.5);
+    }
+
+    /**
+     * @see org.apache.james.util.concurrent.JMXEnabledThreadPoolExecutorMBean#getTaskTimePercentile99()
+     */
+    public double getTaskTimePercentile99() {
+        return statistics.getPercentile(0.99);
+    }
+
+    /**
+     * @see org.apache.james.util.concurrent.JMXEnabledThreadPoolExecutorMBean#getMaximalTaskTime()
+     */
+    public double getMaximalTaskTime() {
+        return statistics.getMaxTime();
     }
 
     /**
@@ -137,7 +148,8 @@ public class JMXEnabledOrderedMemoryAwareThreadPoolExecutor extends OrderedMemor
      * @see org.apache.james.util.concurrent.JMXEnabledThreadPoolExecutorMBean#getActiveTasks()
      */
     public int getActiveTasks() {
-        return getActiveCount();
+        // avoid getActiveCount(), which takes the main lock of the pool
+        return (int) statistics.getInFlightCount();
     }
 
     /**
@@ -41,7 +41,7 @@ public class POP3CommandHandlerStats extends AbstractCommandHandlerStats impleme
     /**
      * @see
      * org.apache.james.protocols.lib.jmx.AbstractCommandHandlerStats
-     * #increment(org.apache.james.protocols.api.Response)
+     * #increment(org.apache.james.protocols.api.Response, long)
      */
     protected void incrementStats(Response response) {
         String code = response.getRetCode();
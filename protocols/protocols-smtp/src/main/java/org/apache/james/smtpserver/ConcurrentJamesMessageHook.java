@@ -0,0 +1,39 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+/**
+ * Marker for {@link JamesMessageHook}s which can run concurrently with the
+ * other message hooks of the chain.
+ * 
+ * When the message is received, the hooks implementing this interface are
+ * started at once on a bounded thread pool, while the others still run one
+ * after the other on the calling thread. The results are combined in the
+ * configured order, so the first hook which returns a response still wins and
+ * the remaining ones get cancelled. A cancelled hook is interrupted and may
+ * find the message already disposed, its result is ignored.
+ * 
+ * Such a hook must not depend on changes done by the hooks before it. It may
+ * read the mail and set mail attributes, which are applied to the mail when
+ * its result is taken, but it must not modify the mail in any other way or
+ * change the state of the {@link org.apache.james.protocols.smtp.SMTPSession}.
+ */
+public interface ConcurrentJamesMessageHook extends JamesMessageHook {
+
+}
@@ -19,6 +19,8 @@
 
 package org.apache.james.smtpserver;
 
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
 import org.apache.james.core.MailImpl;
 import org.apache.james.core.MimeMessageCopyOnWriteProxy;
 import org.apache.james.core.MimeMessageInputStream;
@@ -29,6 +31,7 @@ import org.apache.james.protocols.api.Response;
 import org.apache.james.protocols.api.handler.ExtensibleHandler;
 import org.apache.james.protocols.api.handler.LineHandler;
 import org.apache.james.protocols.api.handler.WiringException;
+import org.apache.james.protocols.lib.lifecycle.InitializingLifecycleAwareProtocolHandler;
 import org.apache.james.protocols.smtp.MailAddress;
 import org.apache.james.protocols.smtp.MailAddressException;
 import org.apache.james.protocols.smtp.MailEnvelope;
@@ -43,42 +46,98 @@ import org.apache.james.protocols.smtp.hook.HookResultHook;
 import org.apache.james.protocols.smtp.hook.MessageHook;
 import org.apache.james.smtpserver.model.MailetMailAddressAdapter;
 import org.apache.james.smtpserver.model.ProtocolMailAddressAdapter;
+import org.apache.james.util.concurrent.NamedThreadFactory;
 import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.AddressException;
+import javax.mail.internet.MimeMessage;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Handles the calling of JamesMessageHooks
+ * 
+ * {@link ConcurrentJamesMessageHook}s are started together on a bounded
+ * thread pool as soon as the message was received, so their time overlaps
+ * with the other hooks. If the pool is saturated they run on the calling
+ * thread.
+ * 
+ * The pool is configured by listing the handler in the handler chain:
+ * 
+ * <pre>
+ * &lt;handler class="org.apache.james.smtpserver.DataLineJamesMessageHookHandler"&gt;
+ *   &lt;hookThreads&gt;16&lt;/hookThreads&gt;
+ *   &lt;hookQueueSize&gt;256&lt;/hookQueueSize&gt;
+ * &lt;/handler&gt;
+ * </pre>
  */
-public class DataLineJamesMessageHookHandler implements DataLineFilter, ExtensibleHandler {
+public class DataLineJamesMessageHookHandler implements DataLineFilter, ExtensibleHandler, InitializingLifecycleAwareProtocolHandler {
+
+    /** The default maximal count of threads running concurrent message hooks */
+    private final static int DEFAULT_HOOK_THREADS = 16;
+
+    /** The default maximal count of concurrent message hooks waiting for a thread */
+    private final static int DEFAULT_HOOK_QUEUE_SIZE = 256;
+
+    private int hookThreads = DEFAULT_HOOK_THREADS;
+
+    private int hookQueueSize = DEFAULT_HOOK_QUEUE_SIZE;
 
     private List<JamesMessageHook> messageHandlers;
 
+    private ExecutorService hookExecutor;
+
     private List<HookResultHook> rHooks;
 
     private List<MessageHook> mHandlers;
 
-    public Response onLine(SMTPSession session, ByteBuffer lineByteBuffer, LineHandler<SMTPSession> next) {
+    /**
+     * Scratch buffer used to drain lines which are not backed by an accessible
+     * array (for example direct buffers). Lines backed by a heap array are
+     * written straight from it without any copy.
+     */
+    private static final ThreadLocal<byte[]> COPY_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[8192];
+        }
+    };
 
-        byte[] line = new byte[lineByteBuffer.remaining()];
-        lineByteBuffer.get(line, 0, line.length);
+    public Response onLine(SMTPSession session, ByteBuffer lineByteBuffer, LineHandler<SMTPSession> next) {
 
         MimeMessageInputStreamSource mmiss = (MimeMessageInputStreamSource) session.getAttachment(SMTPConstants.DATA_MIMEMESSAGE_STREAMSOURCE, State.Transaction);
 
         try {
             OutputStream out = mmiss.getWritableOutputStream();
 
+            int start = lineByteBuffer.position();
+            int length = lineByteBuffer.remaining();
+
             // 46 is "."
             // Stream terminated
-            if (line.length == 3 && line[0] == 46) {
+            if (length == 3 && lineByteBuffer.get(start) == 46) {
                 out.flush();
                 out.close();
 
@@ -121,14 +180,15 @@ public class DataLineJamesMessageHookHandler implements DataLineFilter, Extensib
                 }
 
                 // DotStuffing.
-            } else if (line[0] == 46 && line[1] == 46) {
-                out.write(line, 1, line.length - 1);
+            } else if (length > 1 && lineByteBuffer.get(start) == 46 && lineByteBuffer.get(start + 1) == 46) {
+                lineByteBuffer.position(start + 1);
+                writeLine(out, lineByteBuffer);
                 // Standard write
             } else {
                 // TODO: maybe we should handle the Header/Body recognition here
                 // and if needed let a filter to cache the headers to apply some
                 // transformation before writing them to output.
-                out.write(line);
+                writeLine(out, lineByteBuffer);
             }
         } catch (IOException e) {
             LifecycleUtil.dispose(mmiss);
@@ -144,6 +204,28 @@ public class DataLineJamesMessageHookHandler implements DataLineFilter, Extensib
         return null;
     }
 
+    /**
+     * Write the remaining bytes of the given line to the output stream, without
+     * materializing the line as a new byte array.
+     *
+     * @param out  the stream to write to
+     * @param line the line to write, consumed by this call
+     * @throws IOException
+     */
+    private void writeLine(OutputStream out, ByteBuffer line) throws IOException {
+        if (line.hasArray()) {
+            out.write(line.array(), line.arrayOffset() + line.position(), line.remaining());
+            line.position(line.limit());
+        } else {
+            byte[] chunk = COPY_BUFFER.get();
+            while (line.hasRemaining()) {
+                int len = Math.min(chunk.length, line.remaining());
+                line.get(chunk, 0, len);
+                out.write(chunk, 0, len);
+            }
+        }
+    }
+
     protected Response processExtensions(SMTPSession session, Mail mail) {
         if (mail != null && messageHandlers != null) {
             try {
@@ -173,24 +255,60 @@ public class DataLineJamesMessageHookHandler implements DataLineFilter, Extensib
                     }
                 }
 
-                for (JamesMessageHook messageHandler : messageHandlers) {
-                    session.getLogger().debug("executing james message handler " + messageHandler);
-                    long start = System.currentTimeMillis();
-                    HookResult hRes = messageHandler.onMessage(session, mail);
-                    long executionTime = System.currentTimeMillis() - start;
-                    if (rHooks != null) {
-                        for (HookResultHook rHook : rHooks) {
-                            session.getLogger().debug("executing hook " + rHook);
-                            hRes = rHook.onHookResult(session, hRes, executionTime, messageHandler);
+                List<ConcurrentHookMail> hookMails = new ArrayList<ConcurrentHookMail>();
+                List<Future<HookExecution>> pending = startConcurrentHooks(session, mail, hookMails);
+                try {
+                    int index = 0;
+                    for (JamesMessageHook messageHandler : messageHandlers) {
+                        Future<HookExecution> future = pending == null ? null : pending.get(index++);
+                        HookResult hRes;
+                        long executionTime;
+                        if (future != null) {
+                            HookExecution execution;
+                            try {
+                                execution = getExecution(future);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                return new SMTPResponse(SMTPRetCode.LOCAL_ERROR, DSNStatus.getStatus(DSNStatus.TRANSIENT, DSNStatus.UNDEFINED_STATUS) + " Interrupted while processing the message");
+                            }
+                            execution.mail.applyAttributes();
+                            hRes = execution.result;
+                            executionTime = execution.executionTime;
+                        } else {
+                            session.getLogger().debug("executing james message handler " + messageHandler);
+                            long start = System.currentTimeMillis();
+                            hRes = messageHandler.onMessage(session, mail);
+                            executionTime = System.currentTimeMillis() - start;
+                        }
+                        if (rHooks != null) {
+                            for (HookResultHook rHook : rHooks) {
+                                session.getLogger().debug("executing hook " + rHook);
+                                hRes = rHook.onHookResult(session, hRes, executionTime, messageHandler);
+                            }
                         }
-                    }
 
-                    SMTPResponse response = AbstractHookableCmdHandler.calcDefaultSMTPResponse(hRes);
+                        SMTPResponse response = AbstractHookableCmdHandler.calcDefaultSMTPResponse(hRes);
 
-                    // if the response is received, stop processing of command
-                    // handlers
-                    if (response != null) {
-                        return response;
+                        // if the response is received, stop processing of command
+                        // handlers
+                        if (response != null) {
+                            return response;
+                        }
+                    }
+                } finally {
+                    // the hooks after the one which returned a response must
+                    // not take effect
+                    if (pending != null) {
+                        for (Future<HookExecution> future : pending) {
+                            if (future != null) {
+                                future.cancel(true);
+                            }
+                        }
+                    }
+                    // the mail and its message are disposed next, so wait for
+                    // the hooks which already started
+                    for (ConcurrentHookMail hookMail : hookMails) {
+                        hookMail.release();
                     }
                 }
             } finally {
@@ -206,6 +324,88 @@ public class DataLineJamesMessageHookHandler implements DataLineFilter, Extensib
         return null;
     }
 
+    /**
+     * Start all {@link ConcurrentJamesMessageHook}s of the chain.
+     * 
+     * @param hookMails the views of the mail handed to the started hooks, which
+     *        must be released once their results are no longer needed
+     * @return the executions by position in the chain, with null for the hooks
+     *         to run on the calling thread, or null if no hook was started
+     */
+    private List<Future<HookExecution>> startConcurrentHooks(final SMTPSession session, Mail mail, List<ConcurrentHookMail> hookMails) {
+        if (hookExecutor == null) {
+            return null;
+        }
+        List<Future<HookExecution>> pending = new ArrayList<Future<HookExecution>>(messageHandlers.size());
+        for (final JamesMessageHook messageHandler : messageHandlers) {
+            if (messageHandler instanceof ConcurrentJamesMessageHook) {
+                final ConcurrentHookMail hookMail;
+                try {
+                    hookMail = new ConcurrentHookMail(mail);
+                } catch (MessagingException e) {
+                    session.getLogger().info("Unable to copy the message for " + messageHandler + ", running it on the calling thread", e);
+                    pending.add(null);
+                    continue;
+                }
+                hookMails.add(hookMail);
+                pending.add(hookExecutor.submit(new Callable<HookExecution>() {
+                    public HookExecution call() {
+                        if (!hookMail.start()) {
+                            // released before it was started
+                            return null;
+                        }
+                        try {
+                            session.getLogger().debug("executing concurrent james message handler " + messageHandler);
+                            long start = System.currentTimeMillis();
+                            HookResult result = messageHandler.onMessage(session, hookMail);
+                            return new HookExecution(hookMail, result, System.currentTimeMillis() - start);
+                        } finally {
+                            hookMail.finish();
+                        }
+                    }
+                }));
+            } else {
+                pending.add(null);
+            }
+        }
+        return pending;
+    }
+
+    private HookExecution getExecution(Future<HookExecution> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // rethrow like the hook had run on the calling thread
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    @Override
+    public void init(Configuration config) throws ConfigurationException {
+        hookThreads = config.getInt("hookThreads", DEFAULT_HOOK_THREADS);
+        if (hookThreads < 1) {
+            throw new ConfigurationException("hookThreads must be at least 1");
+        }
+        hookQueueSize = config.getInt("hookQueueSize", DEFAULT_HOOK_QUEUE_SIZE);
+        if (hookQueueSize < 1) {
+            throw new ConfigurationException("hookQueueSize must be at least 1");
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (hookExecutor != null) {
+            hookExecutor.shutdownNow();
+            hookExecutor = null;
+        }
+    }
+
     @Override
     public void wireExtensions(Class interfaceName, List extension) throws WiringException {
         if (JamesMessageHook.class.equals(interfaceName)) {
@@ -213,6 +413,18 @@ public class DataLineJamesMessageHookHandler implements DataLineFilter, Extensib
             if (messageHandlers == null || messageHandlers.size() == 0) {
                 throw new WiringException("No messageHandler configured");
             }
+            int concurrent = 0;
+            for (JamesMessageHook messageHandler : messageHandlers) {
+                if (messageHandler instanceof ConcurrentJamesMessageHook) {
+                    concurrent++;
+                }
+            }
+            // a single hook has nothing to overlap with
+            if (concurrent > 0 && messageHandlers.size() > 1 && hookExecutor == null) {
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(hookThreads, hookThreads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(hookQueueSize), new NamedThreadFactory("SMTPMessageHook"), new ThreadPoolExecutor.CallerRunsPolicy());
+                executor.allowCoreThreadTimeOut(true);
+                hookExecutor = executor;
+            }
         } else if (MessageHook.class.equals(interfaceName)) {
             this.mHandlers = extension;
         } else if (HookResultHook.class.equals(interfaceName)) {
@@ -230,6 +442,199 @@ public class DataLineJamesMessageHookHandler implements DataLineFilter, Extensib
         return classes;
     }
 
+    /**
+     * The result of a hook which ran on the hook executor
+     */
+    private final static class HookExecution {
+        private final ConcurrentHookMail mail;
+        private final HookResult result;
+        private final long executionTime;
+
+        private HookExecution(ConcurrentHookMail mail, HookResult result, long executionTime) {
+            this.mail = mail;
+            this.result = result;
+            this.executionTime = executionTime;
+        }
+    }
+
+    /**
+     * The view of the mail for a {@link ConcurrentJamesMessageHook}. It reads
+     * through to the mail, but works on a copy of the attributes which is
+     * applied to the mail once the result of the hook is taken on the calling
+     * thread, and on its own copy on write view of the message, whose changes
+     * are discarded. All other modifications are refused.
+     */
+    private final static class ConcurrentHookMail implements Mail {
+        private static final long serialVersionUID = 1L;
+
+        private final static int NEW = 0;
+        private final static int RUNNING = 1;
+        private final static int RELEASED = 2;
+
+        private final Mail mail;
+        private final MimeMessage message;
+        private final Map<String, Serializable> original = new HashMap<String, Serializable>();
+        private final Map<String, Serializable> attributes;
+        private final AtomicInteger state = new AtomicInteger(NEW);
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        private ConcurrentHookMail(Mail mail) throws MessagingException {
+            this.mail = mail;
+            MimeMessage message = mail.getMessage();
+            this.message = message == null ? null : new MimeMessageCopyOnWriteProxy(message);
+            Iterator<?> names = mail.getAttributeNames();
+            while (names.hasNext()) {
+                String name = (String) names.next();
+                original.put(name, mail.getAttribute(name));
+            }
+            this.attributes = new HashMap<String, Serializable>(original);
+        }
+
+        /**
+         * Mark the hook as running
+         * 
+         * @return false if the view was already released and the hook must not
+         *         run
+         */
+        private boolean start() {
+            return state.compareAndSet(NEW, RUNNING);
+        }
+
+        private void finish() {
+            finished.countDown();
+        }
+
+        /**
+         * Wait for the hook if it already started, then dispose the message
+         * view. A hook which did not start yet will not run anymore.
+         */
+        private void release() {
+            if (!state.compareAndSet(NEW, RELEASED)) {
+                boolean interrupted = false;
+                while (true) {
+                    try {
+                        finished.await();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            LifecycleUtil.dispose(message);
+        }
+
+        private synchronized void applyAttributes() {
+            for (String name : original.keySet()) {
+                if (!attributes.containsKey(name)) {
+                    mail.removeAttribute(name);
+                }
+            }
+            for (Map.Entry<String, Serializable> entry : attributes.entrySet()) {
+                if (original.get(entry.getKey()) != entry.getValue()) {
+                    mail.setAttribute(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        private UnsupportedOperationException readOnly() {
+            return new UnsupportedOperationException("Concurrent message hooks must not modify the mail");
+        }
+
+        public String getName() {
+            return mail.getName();
+        }
+
+        public void setName(String newName) {
+            throw readOnly();
+        }
+
+        public MimeMessage getMessage() throws MessagingException {
+            return message;
+        }
+
+        @SuppressWarnings("rawtypes")
+        public Collection getRecipients() {
+            return mail.getRecipients();
+        }
+
+        @SuppressWarnings("rawtypes")
+        public void setRecipients(Collection recipients) {
+            throw readOnly();
+        }
+
+        public MailAddress getSender() {
+            return mail.getSender();
+        }
+
+        public String getState() {
+            return mail.getState();
+        }
+
+        public String getRemoteHost() {
+            return mail.getRemoteHost();
+        }
+
+        public String getRemoteAddr() {
+            return mail.getRemoteAddr();
+        }
+
+        public String getErrorMessage() {
+            return mail.getErrorMessage();
+        }
+
+        public void setErrorMessage(String msg) {
+            throw readOnly();
+        }
+
+        public void setMessage(MimeMessage message) {
+            throw readOnly();
+        }
+
+        public void setState(String state) {
+            throw readOnly();
+        }
+
+        public synchronized Serializable getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        @SuppressWarnings("rawtypes")
+        public synchronized Iterator getAttributeNames() {
+            return new ArrayList<String>(attributes.keySet()).iterator();
+        }
+
+        public synchronized boolean hasAttributes() {
+            return !attributes.isEmpty();
+        }
+
+        public synchronized Serializable removeAttribute(String name) {
+            return attributes.remove(name);
+        }
+
+        public synchronized void removeAllAttributes() {
+            attributes.clear();
+        }
+
+        public synchronized Serializable setAttribute(String name, Serializable object) {
+            return attributes.put(name, object);
+        }
+
+        public long getMessageSize() throws MessagingException {
+            return mail.getMessageSize();
+        }
+
+        public Date getLastUpdated() {
+            return mail.getLastUpdated();
+        }
+
+        public void setLastUpdated(Date lastUpdated) {
+            throw readOnly();
+        }
+    }
+
     protected class MailToMailEnvelopeWrapper implements MailEnvelope {
         private final Mail mail;
         private final OutputStream out;
@@ -0,0 +1,78 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.fastfail;
+
+import java.sql.SQLException;
+
+/**
+ * Storage of the greylist triplets used by {@link JDBCGreylistHandler}.
+ */
+public interface GreylistStore {
+
+    /**
+     * Return the stored triplet or <code>null</code> if it was never seen or
+     * is expired
+     * 
+     * @param ipAddress
+     *            the remote address
+     * @param sender
+     *            the sender
+     * @param recip
+     *            the recipient
+     * @return triplet or <code>null</code>
+     * @throws SQLException
+     */
+    GreylistTriplet get(String ipAddress, String sender, String recip) throws SQLException;
+
+    /**
+     * Store a triplet which was not seen before
+     * 
+     * @param triplet
+     *            the triplet
+     * @throws SQLException
+     */
+    void insert(GreylistTriplet triplet) throws SQLException;
+
+    /**
+     * Replace the count and the timestamp of a stored triplet
+     * 
+     * @param triplet
+     *            the triplet
+     * @throws SQLException
+     */
+    void update(GreylistTriplet triplet) throws SQLException;
+
+    /**
+     * Remove all triplets which were only seen once before the given time
+     * 
+     * @param before
+     *            the time in milliseconds
+     * @throws SQLException
+     */
+    void removeUnseen(long before) throws SQLException;
+
+    /**
+     * Remove all triplets which were last seen before the given time
+     * 
+     * @param before
+     *            the time in milliseconds
+     * @throws SQLException
+     */
+    void removeAutoWhiteListed(long before) throws SQLException;
+}
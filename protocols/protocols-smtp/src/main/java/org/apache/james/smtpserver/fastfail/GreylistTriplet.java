@@ -0,0 +1,74 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.fastfail;
+
+/**
+ * Immutable state of a (ipaddress, sender, recipient) greylist triplet
+ */
+public final class GreylistTriplet {
+
+    private final String ipAddress;
+    private final String sender;
+    private final String recip;
+    private final int count;
+    private final long createTime;
+
+    public GreylistTriplet(String ipAddress, String sender, String recip, int count, long createTime) {
+        this.ipAddress = ipAddress;
+        this.sender = sender;
+        this.recip = recip;
+        this.count = count;
+        this.createTime = createTime;
+    }
+
+    public String getIpAddress() {
+        return ipAddress;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getRecip() {
+        return recip;
+    }
+
+    /**
+     * Return how often the triplet was accepted after the temporary block
+     * 
+     * @return count
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Return the time in milliseconds the triplet was last seen
+     * 
+     * @return createTime
+     */
+    public long getCreateTime() {
+        return createTime;
+    }
+
+    @Override
+    public String toString() {
+        return ipAddress + " | " + sender + " | " + recip + " -> count: " + count + " timestamp: " + createTime;
+    }
+}
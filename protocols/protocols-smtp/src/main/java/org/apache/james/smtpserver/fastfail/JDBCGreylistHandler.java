@@ -22,11 +22,9 @@ import java.io.File;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -54,7 +52,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * GreylistHandler which can be used to activate Greylisting
+ * GreylistHandler which can be used to activate Greylisting.
+ * 
+ * By default every RCPT queries the database. With <code>writeBehind</code>
+ * enabled the triplets are kept in a {@link MemoryGreylistStore} which is
+ * loaded from the database on startup and writes its changes back in batches.
  */
 public class JDBCGreylistHandler extends AbstractGreylistHandler implements InitializingLifecycleAwareProtocolHandler {
 
@@ -81,6 +83,8 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
 
     private String updateQuery;
 
+    private String selectAllQuery;
+
     /**
      * Contains all of the sql strings for this component.
      */
@@ -96,6 +100,14 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
 
     private NetMatcher wNetworks;
 
+    private long unseenLifeTime;
+
+    private long autoWhiteListLifeTime;
+
+    private GreylistStore store;
+
+    private MemoryGreylistStore memoryStore;
+
     /**
      * Gets the file system service.
      * 
@@ -155,7 +167,8 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
      *            The lifeTime
      */
     public void setAutoWhiteListLifeTime(String autoWhiteListLifeTime) {
-        setAutoWhiteListLifeTime(TimeConverter.getMilliSeconds(autoWhiteListLifeTime));
+        this.autoWhiteListLifeTime = TimeConverter.getMilliSeconds(autoWhiteListLifeTime);
+        setAutoWhiteListLifeTime(this.autoWhiteListLifeTime);
     }
 
     /**
@@ -166,7 +179,8 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
      *            The lifetime
      */
     public void setUnseenLifeTime(String unseenLifeTime) {
-        setUnseenLifeTime(TimeConverter.getMilliSeconds(unseenLifeTime));
+        this.unseenLifeTime = TimeConverter.getMilliSeconds(unseenLifeTime);
+        setUnseenLifeTime(this.unseenLifeTime);
     }
 
     @Inject
@@ -181,35 +195,30 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
     protected NetMatcher getWhiteListedNetworks() {
         return wNetworks;
     }
+
+    /**
+     * Set the store which holds the triplets. It is created on
+     * {@link #init(Configuration)} if not set before.
+     * 
+     * @param store
+     *            the store
+     */
+    public void setGreylistStore(GreylistStore store) {
+        this.store = store;
+    }
     
     /**
      * @see org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler#getGreyListData(java.lang.String,
      *      java.lang.String, java.lang.String)
      */
     protected Iterator<String> getGreyListData(String ipAddress, String sender, String recip) throws SQLException {
-        Collection<String> data = new ArrayList<String>(2);
-        PreparedStatement mappingStmt = null;
-        Connection conn = datasource.getConnection();
-        try {
-            mappingStmt = conn.prepareStatement(selectQuery);
-            ResultSet mappingRS = null;
-            try {
-                mappingStmt.setString(1, ipAddress);
-                mappingStmt.setString(2, sender);
-                mappingStmt.setString(3, recip);
-                mappingRS = mappingStmt.executeQuery();
-
-                if (mappingRS.next()) {
-                    data.add(String.valueOf(mappingRS.getTimestamp(1).getTime()));
-                    data.add(String.valueOf(mappingRS.getInt(2)));
-                }
-            } finally {
-                theJDBCUtil.closeJDBCResultSet(mappingRS);
-            }
-        } finally {
-            theJDBCUtil.closeJDBCStatement(mappingStmt);
-            theJDBCUtil.closeJDBCConnection(conn);
+        GreylistTriplet triplet = store.get(ipAddress, sender, recip);
+        if (triplet == null) {
+            return Collections.<String> emptyList().iterator();
         }
+        List<String> data = new ArrayList<String>(2);
+        data.add(String.valueOf(triplet.getCreateTime()));
+        data.add(String.valueOf(triplet.getCount()));
         return data.iterator();
     }
 
@@ -218,23 +227,7 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
      *      java.lang.String, java.lang.String, int, long)
      */
     protected void insertTriplet(String ipAddress, String sender, String recip, int count, long createTime) throws SQLException {
-        Connection conn = datasource.getConnection();
-
-        PreparedStatement mappingStmt = null;
-
-        try {
-            mappingStmt = conn.prepareStatement(insertQuery);
-
-            mappingStmt.setString(1, ipAddress);
-            mappingStmt.setString(2, sender);
-            mappingStmt.setString(3, recip);
-            mappingStmt.setInt(4, count);
-            mappingStmt.setTimestamp(5, new Timestamp(createTime));
-            mappingStmt.executeUpdate();
-        } finally {
-            theJDBCUtil.closeJDBCStatement(mappingStmt);
-            theJDBCUtil.closeJDBCConnection(conn);
-        }
+        store.insert(new GreylistTriplet(ipAddress, sender, recip, count, createTime));
     }
 
     /**
@@ -242,60 +235,21 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
      *      java.lang.String, java.lang.String, int, long)
      */
     protected void updateTriplet(String ipAddress, String sender, String recip, int count, long time) throws SQLException {
-        Connection conn = datasource.getConnection();
-        PreparedStatement mappingStmt = null;
-
-        try {
-            mappingStmt = conn.prepareStatement(updateQuery);
-            mappingStmt.setTimestamp(1, new Timestamp(time));
-            mappingStmt.setInt(2, (count + 1));
-            mappingStmt.setString(3, ipAddress);
-            mappingStmt.setString(4, sender);
-            mappingStmt.setString(5, recip);
-            mappingStmt.executeUpdate();
-        } finally {
-            theJDBCUtil.closeJDBCStatement(mappingStmt);
-            theJDBCUtil.closeJDBCConnection(conn);
-        }
+        store.update(new GreylistTriplet(ipAddress, sender, recip, count + 1, time));
     }
 
     /**
      * @see org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler#cleanupAutoWhiteListGreyList(long)
      */
     protected void cleanupAutoWhiteListGreyList(long time) throws SQLException {
-        PreparedStatement mappingStmt = null;
-        Connection conn = datasource.getConnection();
-
-        try {
-            mappingStmt = conn.prepareStatement(deleteAutoWhiteListQuery);
-
-            mappingStmt.setTimestamp(1, new Timestamp(time));
-
-            mappingStmt.executeUpdate();
-        } finally {
-            theJDBCUtil.closeJDBCStatement(mappingStmt);
-            theJDBCUtil.closeJDBCConnection(conn);
-        }
+        store.removeAutoWhiteListed(time);
     }
 
     /**
      * @see org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler#cleanupGreyList(long)
      */
     protected void cleanupGreyList(long time) throws SQLException {
-        Connection conn = datasource.getConnection();
-
-        PreparedStatement mappingStmt = null;
-
-        try {
-            mappingStmt = conn.prepareStatement(deleteQuery);
-
-            mappingStmt.setTimestamp(1, new Timestamp(time));
-
-            mappingStmt.executeUpdate();
-        } finally {
-            theJDBCUtil.closeJDBCStatement(mappingStmt);
-            theJDBCUtil.closeJDBCConnection(conn);
-        }
+        store.removeUnseen(time);
     }
 
     /**
@@ -338,6 +292,7 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
             deleteQuery = sqlQueries.getSqlString("deleteQuery", true);
             deleteAutoWhiteListQuery = sqlQueries.getSqlString("deleteAutoWhitelistQuery", true);
             updateQuery = sqlQueries.getSqlString("updateQuery", true);
+            selectAllQuery = sqlQueries.getSqlString("selectAllQuery", false);
 
         } finally {
             theJDBCUtil.closeJDBCConnection(conn);
@@ -454,10 +409,35 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
         } catch (Exception e) {
             throw new RuntimeException("Unable to init datasource", e);
         }
+
+        if (store == null) {
+            JDBCGreylistStore jdbcStore = new JDBCGreylistStore(datasource, selectQuery, selectAllQuery, insertQuery, updateQuery, deleteQuery, deleteAutoWhiteListQuery, serviceLog);
+            if (handlerConfiguration.getBoolean("writeBehind", false)) {
+                int shards = handlerConfiguration.getInt("writeBehind.[@shards]", MemoryGreylistStore.DEFAULT_SHARDS);
+                long flushInterval = handlerConfiguration.getLong("writeBehind.[@flushInterval]", MemoryGreylistStore.DEFAULT_FLUSH_INTERVAL);
+                int batchSize = handlerConfiguration.getInt("writeBehind.[@batchSize]", MemoryGreylistStore.DEFAULT_BATCH_SIZE);
+                try {
+                    memoryStore = new MemoryGreylistStore(shards, unseenLifeTime, autoWhiteListLifeTime, jdbcStore, flushInterval, batchSize, serviceLog);
+                } catch (IllegalArgumentException e) {
+                    throw new ConfigurationException(e.getMessage());
+                }
+                try {
+                    memoryStore.start();
+                } catch (SQLException e) {
+                    throw new RuntimeException("Unable to load greylist triplets", e);
+                }
+                store = memoryStore;
+            } else {
+                store = jdbcStore;
+            }
+        }
     }
 
     @Override
     public void destroy() {
-        // nothing todo
+        if (memoryStore != null) {
+            memoryStore.stop();
+            memoryStore = null;
+        }
     }
 }
@@ -0,0 +1,329 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.fastfail;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.apache.james.util.sql.JDBCUtil;
+import org.slf4j.Logger;
+
+/**
+ * {@link GreylistStore} which executes every operation directly against the
+ * greylist table. It also offers the bulk operations used by
+ * {@link MemoryGreylistStore} to load the table and write changes back in
+ * batches.
+ */
+public class JDBCGreylistStore implements GreylistStore {
+
+    /** Used when the sqlResources.xml file does not define selectAllQuery */
+    public static final String DEFAULT_SELECT_ALL_QUERY = "SELECT ipaddress,sender,recip,count,create_time FROM greylist";
+
+    private final DataSource datasource;
+
+    private final String selectQuery;
+
+    private final String selectAllQuery;
+
+    private final String insertQuery;
+
+    private final String updateQuery;
+
+    private final String deleteQuery;
+
+    private final String deleteAutoWhiteListQuery;
+
+    private final Logger log;
+
+    /**
+     * The JDBCUtil helper class
+     */
+    private final JDBCUtil theJDBCUtil = new JDBCUtil() {
+        protected void delegatedLog(String logString) {
+            log.debug("JDBCGreylistStore: " + logString);
+        }
+    };
+
+    public JDBCGreylistStore(DataSource datasource, String selectQuery, String selectAllQuery, String insertQuery, String updateQuery, String deleteQuery, String deleteAutoWhiteListQuery, Logger log) {
+        this.datasource = datasource;
+        this.selectQuery = selectQuery;
+        this.selectAllQuery = selectAllQuery == null ? DEFAULT_SELECT_ALL_QUERY : selectAllQuery;
+        this.insertQuery = insertQuery;
+        this.updateQuery = updateQuery;
+        this.deleteQuery = deleteQuery;
+        this.deleteAutoWhiteListQuery = deleteAutoWhiteListQuery;
+        this.log = log;
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.GreylistStore#get(java.lang.String,
+     *      java.lang.String, java.lang.String)
+     */
+    public GreylistTriplet get(String ipAddress, String sender, String recip) throws SQLException {
+        PreparedStatement mappingStmt = null;
+        Connection conn = datasource.getConnection();
+        try {
+            mappingStmt = conn.prepareStatement(selectQuery);
+            ResultSet mappingRS = null;
+            try {
+                mappingStmt.setString(1, ipAddress);
+                mappingStmt.setString(2, sender);
+                mappingStmt.setString(3, recip);
+                mappingRS = mappingStmt.executeQuery();
+
+                if (mappingRS.next()) {
+                    return new GreylistTriplet(ipAddress, sender, recip, mappingRS.getInt(2), mappingRS.getTimestamp(1).getTime());
+                }
+                return null;
+            } finally {
+                theJDBCUtil.closeJDBCResultSet(mappingRS);
+            }
+        } finally {
+            theJDBCUtil.closeJDBCStatement(mappingStmt);
+            theJDBCUtil.closeJDBCConnection(conn);
+        }
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.GreylistStore#insert(org.apache.james.smtpserver.fastfail.GreylistTriplet)
+     */
+    public void insert(GreylistTriplet triplet) throws SQLException {
+        Connection conn = datasource.getConnection();
+        PreparedStatement mappingStmt = null;
+
+        try {
+            mappingStmt = conn.prepareStatement(insertQuery);
+            setInsertParameters(mappingStmt, triplet);
+            mappingStmt.executeUpdate();
+        } finally {
+            theJDBCUtil.closeJDBCStatement(mappingStmt);
+            theJDBCUtil.closeJDBCConnection(conn);
+        }
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.GreylistStore#update(org.apache.james.smtpserver.fastfail.GreylistTriplet)
+     */
+    public void update(GreylistTriplet triplet) throws SQLException {
+        Connection conn = datasource.getConnection();
+        PreparedStatement mappingStmt = null;
+
+        try {
+            mappingStmt = conn.prepareStatement(updateQuery);
+            setUpdateParameters(mappingStmt, triplet);
+            mappingStmt.executeUpdate();
+        } finally {
+            theJDBCUtil.closeJDBCStatement(mappingStmt);
+            theJDBCUtil.closeJDBCConnection(conn);
+        }
+    }
+
+    /**
+     * Write a single triplet, updating its row or inserting it if there is
+     * none yet
+     * 
+     * @param triplet
+     *            the triplet to write
+     * @throws SQLException
+     */
+    public void write(GreylistTriplet triplet) throws SQLException {
+        Connection conn = datasource.getConnection();
+        PreparedStatement mappingStmt = null;
+
+        try {
+            mappingStmt = conn.prepareStatement(updateQuery);
+            setUpdateParameters(mappingStmt, triplet);
+            if (mappingStmt.executeUpdate() == 0) {
+                theJDBCUtil.closeJDBCStatement(mappingStmt);
+                mappingStmt = conn.prepareStatement(insertQuery);
+                setInsertParameters(mappingStmt, triplet);
+                mappingStmt.executeUpdate();
+            }
+        } finally {
+            theJDBCUtil.closeJDBCStatement(mappingStmt);
+            theJDBCUtil.closeJDBCConnection(conn);
+        }
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.GreylistStore#removeUnseen(long)
+     */
+    public void removeUnseen(long before) throws SQLException {
+        delete(deleteQuery, before);
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.GreylistStore#removeAutoWhiteListed(long)
+     */
+    public void removeAutoWhiteListed(long before) throws SQLException {
+        delete(deleteAutoWhiteListQuery, before);
+    }
+
+    private void delete(String query, long before) throws SQLException {
+        Connection conn = datasource.getConnection();
+        PreparedStatement mappingStmt = null;
+
+        try {
+            mappingStmt = conn.prepareStatement(query);
+            mappingStmt.setTimestamp(1, new Timestamp(before));
+            mappingStmt.executeUpdate();
+        } finally {
+            theJDBCUtil.closeJDBCStatement(mappingStmt);
+            theJDBCUtil.closeJDBCConnection(conn);
+        }
+    }
+
+    /**
+     * Load all stored triplets
+     * 
+     * @return triplets
+     * @throws SQLException
+     */
+    public List<GreylistTriplet> loadAll() throws SQLException {
+        List<GreylistTriplet> triplets = new ArrayList<GreylistTriplet>();
+        Connection conn = datasource.getConnection();
+        PreparedStatement mappingStmt = null;
+        ResultSet mappingRS = null;
+        try {
+            mappingStmt = conn.prepareStatement(selectAllQuery);
+            mappingRS = mappingStmt.executeQuery();
+            while (mappingRS.next()) {
+                triplets.add(new GreylistTriplet(mappingRS.getString(1), mappingRS.getString(2), mappingRS.getString(3), mappingRS.getInt(4), mappingRS.getTimestamp(5).getTime()));
+            }
+        } finally {
+            theJDBCUtil.closeJDBCResultSet(mappingRS);
+            theJDBCUtil.closeJDBCStatement(mappingStmt);
+            theJDBCUtil.closeJDBCConnection(conn);
+        }
+        return triplets;
+    }
+
+    /**
+     * Write the given changes in one transaction using JDBC batches. Updates
+     * which do not match a row, because it was removed from the table in the
+     * meantime, are inserted again. The deletes are executed before the writes
+     * and are skipped for a time of 0.
+     * 
+     * @param inserts
+     *            the new triplets
+     * @param updates
+     *            the changed triplets
+     * @param unseenBefore
+     *            remove the triplets only seen once before this time
+     * @param autoWhiteListBefore
+     *            remove all triplets seen before this time
+     * @throws SQLException
+     */
+    public void writeBatch(Collection<GreylistTriplet> inserts, Collection<GreylistTriplet> updates, long unseenBefore, long autoWhiteListBefore) throws SQLException {
+        Connection conn = datasource.getConnection();
+        boolean autoCommit = conn.getAutoCommit();
+        PreparedStatement insertStmt = null;
+        PreparedStatement updateStmt = null;
+        PreparedStatement deleteStmt = null;
+        try {
+            conn.setAutoCommit(false);
+
+            if (unseenBefore > 0) {
+                deleteStmt = conn.prepareStatement(deleteQuery);
+                deleteStmt.setTimestamp(1, new Timestamp(unseenBefore));
+                deleteStmt.executeUpdate();
+                theJDBCUtil.closeJDBCStatement(deleteStmt);
+                deleteStmt = null;
+            }
+            if (autoWhiteListBefore > 0) {
+                deleteStmt = conn.prepareStatement(deleteAutoWhiteListQuery);
+                deleteStmt.setTimestamp(1, new Timestamp(autoWhiteListBefore));
+                deleteStmt.executeUpdate();
+            }
+
+            List<GreylistTriplet> missing = new ArrayList<GreylistTriplet>();
+            if (!updates.isEmpty()) {
+                updateStmt = conn.prepareStatement(updateQuery);
+                for (GreylistTriplet triplet : updates) {
+                    setUpdateParameters(updateStmt, triplet);
+                    updateStmt.addBatch();
+                }
+                int[] results = updateStmt.executeBatch();
+                int i = 0;
+                for (GreylistTriplet triplet : updates) {
+                    if (i < results.length && results[i] == 0) {
+                        missing.add(triplet);
+                    }
+                    i++;
+                }
+            }
+
+            if (!inserts.isEmpty() || !missing.isEmpty()) {
+                insertStmt = conn.prepareStatement(insertQuery);
+                for (GreylistTriplet triplet : inserts) {
+                    setInsertParameters(insertStmt, triplet);
+                    insertStmt.addBatch();
+                }
+                for (GreylistTriplet triplet : missing) {
+                    setInsertParameters(insertStmt, triplet);
+                    insertStmt.addBatch();
+                }
+                insertStmt.executeBatch();
+            }
+
+            conn.commit();
+        } catch (SQLException e) {
+            try {
+                conn.rollback();
+            } catch (SQLException e2) {
+                log.debug("Unable to rollback greylist batch", e2);
+            }
+            throw e;
+        } finally {
+            theJDBCUtil.closeJDBCStatement(insertStmt);
+            theJDBCUtil.closeJDBCStatement(updateStmt);
+            theJDBCUtil.closeJDBCStatement(deleteStmt);
+            try {
+                conn.setAutoCommit(autoCommit);
+            } catch (SQLException e) {
+                log.debug("Unable to restore auto commit", e);
+            }
+            theJDBCUtil.closeJDBCConnection(conn);
+        }
+    }
+
+    private void setInsertParameters(PreparedStatement stmt, GreylistTriplet triplet) throws SQLException {
+        stmt.setString(1, triplet.getIpAddress());
+        stmt.setString(2, triplet.getSender());
+        stmt.setString(3, triplet.getRecip());
+        stmt.setInt(4, triplet.getCount());
+        stmt.setTimestamp(5, new Timestamp(triplet.getCreateTime()));
+    }
+
+    private void setUpdateParameters(PreparedStatement stmt, GreylistTriplet triplet) throws SQLException {
+        stmt.setTimestamp(1, new Timestamp(triplet.getCreateTime()));
+        stmt.setInt(2, triplet.getCount());
+        stmt.setString(3, triplet.getIpAddress());
+        stmt.setString(4, triplet.getSender());
+        stmt.setString(5, triplet.getRecip());
+    }
+}
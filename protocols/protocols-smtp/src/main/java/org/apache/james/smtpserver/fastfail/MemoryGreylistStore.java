@@ -0,0 +1,644 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.fastfail;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+/**
+ * {@link GreylistStore} which keeps all triplets in memory. The triplets are
+ * spread over shards which are locked independently, so RCPT commands of
+ * different connections rarely contend and never wait for a database.
+ * 
+ * Expired triplets are never returned and are removed from memory by a
+ * periodic sweep. If a {@link JDBCGreylistStore} is given, the table is loaded
+ * on {@link #start()} and all changes are written back in batches by a
+ * background thread (write-behind). As the table is not read again after the
+ * start, the write-behind mode must only be used if no other server updates the
+ * same table.
+ * 
+ * If a batch fails its triplets are written one at a time, so a single bad row
+ * does not hold back the others. A triplet which can not be written
+ * {@link #MAX_WRITE_ATTEMPTS} times is dropped from the write queue. It is kept
+ * in memory.
+ */
+public class MemoryGreylistStore implements GreylistStore {
+
+    public static final int DEFAULT_SHARDS = 64;
+
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    public static final long DEFAULT_SWEEP_INTERVAL = 60 * 1000;
+
+    /** Attempts to write a triplet before it is given up */
+    public static final int MAX_WRITE_ATTEMPTS = 3;
+
+    private final Shard[] shards;
+
+    private final int mask;
+
+    private final long unseenLifeTime;
+
+    private final long autoWhiteListLifeTime;
+
+    private final JDBCGreylistStore persistence;
+
+    private final long flushInterval;
+
+    private final int batchSize;
+
+    private final Logger log;
+
+    /** Keys of the triplets which were changed since the last flush */
+    private final ConcurrentLinkedQueue<Key> dirty = new ConcurrentLinkedQueue<Key>();
+
+    private final AtomicInteger dirtyCount = new AtomicInteger();
+
+    /** Cut off times requested by removeUnseen / removeAutoWhiteListed */
+    private final AtomicLong unseenCutoff = new AtomicLong();
+
+    private final AtomicLong autoWhiteListCutoff = new AtomicLong();
+
+    /** Cut off times which still need to be applied to the table */
+    private final AtomicLong pendingUnseenDelete = new AtomicLong();
+
+    private final AtomicLong pendingAutoWhiteListDelete = new AtomicLong();
+
+    private final Object flushLock = new Object();
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Create a store without persistence
+     * 
+     * @param shards
+     *            the number of shards, rounded up to a power of two
+     * @param unseenLifeTime
+     *            the lifetime of triplets seen only once, 0 to disable
+     * @param autoWhiteListLifeTime
+     *            the lifetime of all triplets, 0 to disable
+     * @param log
+     *            the logger
+     */
+    public MemoryGreylistStore(int shards, long unseenLifeTime, long autoWhiteListLifeTime, Logger log) {
+        this(shards, unseenLifeTime, autoWhiteListLifeTime, null, DEFAULT_FLUSH_INTERVAL, DEFAULT_BATCH_SIZE, log);
+    }
+
+    /**
+     * Create a store which writes its changes to the given persistence
+     * 
+     * @param shards
+     *            the number of shards, rounded up to a power of two
+     * @param unseenLifeTime
+     *            the lifetime of triplets seen only once, 0 to disable
+     * @param autoWhiteListLifeTime
+     *            the lifetime of all triplets, 0 to disable
+     * @param persistence
+     *            the table to load from and write to, may be <code>null</code>
+     * @param flushInterval
+     *            the milliseconds between two flushes
+     * @param batchSize
+     *            the maximal number of rows per JDBC batch
+     * @param log
+     *            the logger
+     */
+    public MemoryGreylistStore(int shards, long unseenLifeTime, long autoWhiteListLifeTime, JDBCGreylistStore persistence, long flushInterval, int batchSize, Logger log) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("shards must be at least 1");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+        int size = 1;
+        while (size < shards) {
+            size <<= 1;
+        }
+        this.shards = new Shard[size];
+        for (int i = 0; i < size; i++) {
+            this.shards[i] = new Shard();
+        }
+        this.mask = size - 1;
+        this.unseenLifeTime = unseenLifeTime;
+        this.autoWhiteListLifeTime = autoWhiteListLifeTime;
+        this.persistence = persistence;
+        this.flushInterval = flushInterval;
+        this.batchSize = batchSize;
+        this.log = log;
+    }
+
+    /**
+     * Load the table, if persistence is used, and start the background sweep
+     * and flush. Expired rows are deleted from the table, so they can not
+     * collide with triplets inserted later.
+     * 
+     * @throws SQLException
+     *             if the table can not be loaded
+     */
+    public void start() throws SQLException {
+        if (persistence != null) {
+            long now = System.currentTimeMillis();
+            long unseenBefore = unseenBefore(now);
+            long autoWhiteListBefore = autoWhiteListBefore(now);
+            if (unseenBefore > 0) {
+                persistence.removeUnseen(unseenBefore);
+            }
+            if (autoWhiteListBefore > 0) {
+                persistence.removeAutoWhiteListed(autoWhiteListBefore);
+            }
+            int loaded = 0;
+            for (GreylistTriplet triplet : persistence.loadAll()) {
+                if (!isExpired(triplet.getCount(), triplet.getCreateTime(), unseenBefore, autoWhiteListBefore)) {
+                    Key key = new Key(triplet.getIpAddress(), triplet.getSender(), triplet.getRecip());
+                    Record record = new Record(triplet.getCount(), triplet.getCreateTime());
+                    record.persisted = true;
+                    Shard shard = shardFor(key);
+                    synchronized (shard) {
+                        shard.records.put(key, record);
+                    }
+                    loaded++;
+                }
+            }
+            log.info("Loaded " + loaded + " greylist triplets");
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GreylistStore");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long sweepInterval = DEFAULT_SWEEP_INTERVAL;
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    sweep();
+                } catch (RuntimeException e) {
+                    log.error("Unable to remove expired greylist triplets", e);
+                }
+            }
+        }, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+        if (persistence != null) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        flush();
+                    } catch (RuntimeException e) {
+                        log.error("Unable to write greylist triplets", e);
+                    }
+                }
+            }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop the background threads and write all pending changes
+     */
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(flushInterval + 10000, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            scheduler = null;
+        }
+        if (persistence != null) {
+            sweep();
+            flush();
+        }
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.GreylistStore#get(java.lang.String,
+     *      java.lang.String, java.lang.String)
+     */
+    public GreylistTriplet get(String ipAddress, String sender, String recip) {
+        Key key = new Key(ipAddress, sender, recip);
+        Shard shard = shardFor(key);
+        synchronized (shard) {
+            Record record = shard.records.get(key);
+            if (record == null || isExpired(record.count, record.createTime, System.currentTimeMillis())) {
+                return null;
+            }
+            return new GreylistTriplet(ipAddress, sender, recip, record.count, record.createTime);
+        }
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.GreylistStore#insert(org.apache.james.smtpserver.fastfail.GreylistTriplet)
+     */
+    public void insert(GreylistTriplet triplet) {
+        store(triplet);
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.GreylistStore#update(org.apache.james.smtpserver.fastfail.GreylistTriplet)
+     */
+    public void update(GreylistTriplet triplet) {
+        store(triplet);
+    }
+
+    private void store(GreylistTriplet triplet) {
+        Key key = new Key(triplet.getIpAddress(), triplet.getSender(), triplet.getRecip());
+        Shard shard = shardFor(key);
+        boolean queue = false;
+        synchronized (shard) {
+            Record record = shard.records.get(key);
+            if (record == null) {
+                record = new Record(triplet.getCount(), triplet.getCreateTime());
+                shard.records.put(key, record);
+            } else {
+                record.count = triplet.getCount();
+                record.createTime = triplet.getCreateTime();
+            }
+            if (persistence != null && !record.dirty) {
+                record.dirty = true;
+                queue = true;
+            }
+        }
+        if (queue) {
+            dirty.add(key);
+            dirtyCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * The triplets are hidden immediately and removed by the next sweep.
+     * 
+     * @see org.apache.james.smtpserver.fastfail.GreylistStore#removeUnseen(long)
+     */
+    public void removeUnseen(long before) {
+        raise(unseenCutoff, before);
+    }
+
+    /**
+     * The triplets are hidden immediately and removed by the next sweep.
+     * 
+     * @see org.apache.james.smtpserver.fastfail.GreylistStore#removeAutoWhiteListed(long)
+     */
+    public void removeAutoWhiteListed(long before) {
+        raise(autoWhiteListCutoff, before);
+    }
+
+    /**
+     * Remove all expired triplets from memory and remember the cut off times
+     * for the next flush.
+     */
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        long unseenBefore = unseenBefore(now);
+        long autoWhiteListBefore = autoWhiteListBefore(now);
+        int removed = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                Iterator<Record> records = shard.records.values().iterator();
+                while (records.hasNext()) {
+                    Record record = records.next();
+                    if (isExpired(record.count, record.createTime, unseenBefore, autoWhiteListBefore)) {
+                        records.remove();
+                        removed++;
+                    }
+                }
+            }
+        }
+        if (persistence != null) {
+            raise(pendingUnseenDelete, unseenBefore);
+            raise(pendingAutoWhiteListDelete, autoWhiteListBefore);
+        }
+        if (removed > 0) {
+            log.debug("Removed " + removed + " expired greylist triplets");
+        }
+    }
+
+    /**
+     * Write all changed triplets and the pending deletes to the persistence.
+     * If a batch fails its triplets are written one at a time. Those which
+     * fail again are kept for the next flush.
+     */
+    public void flush() {
+        if (persistence == null) {
+            return;
+        }
+        synchronized (flushLock) {
+            // only write what was queued when the flush started, the rest
+            // goes with the next flush
+            int remaining = dirtyCount.get();
+            boolean first = true;
+            boolean more = true;
+            while (more) {
+                List<Key> insertedKeys = new ArrayList<Key>();
+                List<Key> updatedKeys = new ArrayList<Key>();
+                List<GreylistTriplet> inserts = new ArrayList<GreylistTriplet>();
+                List<GreylistTriplet> updates = new ArrayList<GreylistTriplet>();
+                Key key;
+                while (inserts.size() + updates.size() < batchSize && (key = dirty.poll()) != null) {
+                    dirtyCount.decrementAndGet();
+                    Shard shard = shardFor(key);
+                    synchronized (shard) {
+                        Record record = shard.records.get(key);
+                        if (record != null && record.dirty) {
+                            record.dirty = false;
+                            GreylistTriplet triplet = new GreylistTriplet(key.ipAddress, key.sender, key.recip, record.count, record.createTime);
+                            if (record.persisted) {
+                                updates.add(triplet);
+                                updatedKeys.add(key);
+                            } else {
+                                inserts.add(triplet);
+                                insertedKeys.add(key);
+                                record.persisted = true;
+                            }
+                        }
+                    }
+                }
+                remaining -= batchSize;
+                more = remaining > 0 && !dirty.isEmpty();
+
+                // The deletes go with the first batch, before the writes, so
+                // a swept triplet which was seen again can be inserted again
+                long unseenBefore = first ? pendingUnseenDelete.getAndSet(0) : 0;
+                long autoWhiteListBefore = first ? pendingAutoWhiteListDelete.getAndSet(0) : 0;
+                first = false;
+                if (inserts.isEmpty() && updates.isEmpty() && unseenBefore == 0 && autoWhiteListBefore == 0) {
+                    return;
+                }
+                try {
+                    persistence.writeBatch(inserts, updates, unseenBefore, autoWhiteListBefore);
+                    resetFailures(insertedKeys);
+                    resetFailures(updatedKeys);
+                } catch (SQLException e) {
+                    log.warn("Unable to write a batch of " + (inserts.size() + updates.size()) + " greylist triplets, writing them one at a time", e);
+                    // the whole transaction was rolled back
+                    if (!deleteExpired(unseenBefore, autoWhiteListBefore)) {
+                        raise(pendingUnseenDelete, unseenBefore);
+                        raise(pendingAutoWhiteListDelete, autoWhiteListBefore);
+                    }
+                    List<Key> keys = new ArrayList<Key>(insertedKeys);
+                    keys.addAll(updatedKeys);
+                    List<GreylistTriplet> triplets = new ArrayList<GreylistTriplet>(inserts);
+                    triplets.addAll(updates);
+                    if (!writeOneByOne(keys, triplets)) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean deleteExpired(long unseenBefore, long autoWhiteListBefore) {
+        try {
+            if (unseenBefore > 0) {
+                persistence.removeUnseen(unseenBefore);
+            }
+            if (autoWhiteListBefore > 0) {
+                persistence.removeAutoWhiteListed(autoWhiteListBefore);
+            }
+            return true;
+        } catch (SQLException e) {
+            log.error("Unable to delete expired greylist triplets, retry on next flush", e);
+            return false;
+        }
+    }
+
+    /**
+     * Write the triplets of a failed batch one at a time. A failure counts
+     * against a triplet if the error is about its data, or if other triplets
+     * could be written, otherwise the database is considered unavailable and
+     * all failed triplets are kept for the next flush.
+     * 
+     * @return true if at least one triplet was written
+     */
+    private boolean writeOneByOne(List<Key> keys, List<GreylistTriplet> triplets) {
+        List<Key> failedKeys = new ArrayList<Key>();
+        List<SQLException> failures = new ArrayList<SQLException>();
+        boolean written = false;
+        for (int i = 0; i < keys.size(); i++) {
+            try {
+                persistence.write(triplets.get(i));
+                written = true;
+                resetFailures(Collections.singletonList(keys.get(i)));
+            } catch (SQLException e) {
+                failedKeys.add(keys.get(i));
+                failures.add(e);
+            }
+        }
+        SQLException unavailable = null;
+        int kept = 0;
+        for (int i = 0; i < failedKeys.size(); i++) {
+            Key key = failedKeys.get(i);
+            SQLException e = failures.get(i);
+            if (written || isDataError(e)) {
+                if (!requeue(key, true)) {
+                    log.warn("Giving up writing greylist triplet " + key + " after " + MAX_WRITE_ATTEMPTS + " attempts", e);
+                }
+            } else {
+                requeue(key, false);
+                unavailable = e;
+                kept++;
+            }
+        }
+        if (unavailable != null) {
+            log.error("Unable to write " + kept + " greylist triplets, retry on next flush", unavailable);
+        }
+        return written;
+    }
+
+    /**
+     * Return true for SQL states of the data exception (22) and integrity
+     * constraint violation (23) classes, which are caused by the row itself
+     */
+    private static boolean isDataError(SQLException e) {
+        String state = e.getSQLState();
+        return state != null && (state.startsWith("22") || state.startsWith("23"));
+    }
+
+    private void resetFailures(List<Key> keys) {
+        for (Key key : keys) {
+            Shard shard = shardFor(key);
+            synchronized (shard) {
+                Record record = shard.records.get(key);
+                if (record != null) {
+                    record.persisted = true;
+                    record.failures = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue a triplet which could not be written again
+     * 
+     * @param countFailure
+     *            true if the failure counts against the triplet
+     * @return false if the triplet was given up
+     */
+    private boolean requeue(Key key, boolean countFailure) {
+        Shard shard = shardFor(key);
+        boolean queue = false;
+        synchronized (shard) {
+            Record record = shard.records.get(key);
+            if (record != null) {
+                if (countFailure && ++record.failures >= MAX_WRITE_ATTEMPTS) {
+                    record.failures = 0;
+                    return false;
+                }
+                if (!record.dirty) {
+                    record.dirty = true;
+                    queue = true;
+                }
+            }
+        }
+        if (queue) {
+            dirty.add(key);
+            dirtyCount.incrementAndGet();
+        }
+        return true;
+    }
+
+    /**
+     * Return the number of triplets in memory, including expired ones which
+     * were not swept yet.
+     * 
+     * @return size
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                size += shard.records.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Return the number of changed triplets which were not written yet
+     * 
+     * @return pending
+     */
+    public int getPendingWrites() {
+        return dirtyCount.get();
+    }
+
+    private Shard shardFor(Key key) {
+        return shards[key.hash & mask];
+    }
+
+    private boolean isExpired(int count, long createTime, long now) {
+        return isExpired(count, createTime, unseenBefore(now), autoWhiteListBefore(now));
+    }
+
+    private boolean isExpired(int count, long createTime, long unseenBefore, long autoWhiteListBefore) {
+        return createTime < autoWhiteListBefore || (count == 0 && createTime < unseenBefore);
+    }
+
+    private long unseenBefore(long now) {
+        return Math.max(unseenCutoff.get(), unseenLifeTime > 0 ? now - unseenLifeTime : 0);
+    }
+
+    private long autoWhiteListBefore(long now) {
+        return Math.max(autoWhiteListCutoff.get(), autoWhiteListLifeTime > 0 ? now - autoWhiteListLifeTime : 0);
+    }
+
+    private static void raise(AtomicLong value, long to) {
+        long current;
+        do {
+            current = value.get();
+            if (current >= to) {
+                return;
+            }
+        } while (!value.compareAndSet(current, to));
+    }
+
+    private static final class Shard {
+        private final Map<Key, Record> records = new HashMap<Key, Record>();
+    }
+
+    private static final class Key {
+        private final String ipAddress;
+        private final String sender;
+        private final String recip;
+        private final int hash;
+
+        private Key(String ipAddress, String sender, String recip) {
+            this.ipAddress = ipAddress;
+            this.sender = sender;
+            this.recip = recip;
+            int h = ipAddress.hashCode();
+            h = 31 * h + sender.hashCode();
+            h = 31 * h + recip.hashCode();
+            // spread the bits, the low ones select the shard
+            h ^= (h >>> 20) ^ (h >>> 12);
+            this.hash = h ^ (h >>> 7) ^ (h >>> 4);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return ipAddress + " " + sender + " " + recip;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && ipAddress.equals(other.ipAddress) && sender.equals(other.sender) && recip.equals(other.recip);
+        }
+    }
+
+    /** Guarded by the lock of the shard which holds it */
+    private static final class Record {
+        private int count;
+        private long createTime;
+        private boolean dirty;
+        private boolean persisted;
+        private int failures;
+
+        private Record(int count, long createTime) {
+            this.count = count;
+            this.createTime = createTime;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.fastfail;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.james.dnsservice.api.DNSService;
+import org.apache.james.dnsservice.library.netmatcher.NetMatcher;
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.handler.ConnectHandler;
+import org.apache.james.protocols.lib.lifecycle.InitializingLifecycleAwareProtocolHandler;
+import org.apache.james.protocols.smtp.MailAddress;
+import org.apache.james.protocols.smtp.SMTPResponse;
+import org.apache.james.protocols.smtp.SMTPRetCode;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.dsn.DSNStatus;
+import org.apache.james.protocols.smtp.hook.AuthHook;
+import org.apache.james.protocols.smtp.hook.HookResult;
+import org.apache.james.protocols.smtp.hook.HookReturnCode;
+import org.apache.james.protocols.smtp.hook.MailHook;
+import org.apache.james.protocols.smtp.hook.RcptHook;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the rate of connections, MAIL, RCPT and AUTH commands with a
+ * {@link RateLimiter} per command.
+ * 
+ * Requests are keyed by the authenticated user if there is one, else by the
+ * configured network which contains the remote address, else by the remote
+ * address itself. A request over the rate is deferred with a temporary error
+ * by default. With the tarpit action it is delayed up to
+ * <code>tarpitMaxDelay</code> instead. The delay blocks a thread of the
+ * server's executor, so at most <code>tarpitMaxSessions</code> requests are
+ * delayed at once and any further request is deferred. Every limiter is
+ * exported via JMX, named after the owning server, with the keys which
+ * offended most.
+ * 
+ * Example:
+ * 
+ * <pre>
+ * &lt;handler class="org.apache.james.smtpserver.fastfail.RateLimitHandler"&gt;
+ *   &lt;connect permitsPerMinute="60" burst="20"/&gt;
+ *   &lt;mail permitsPerMinute="30" burst="10"/&gt;
+ *   &lt;rcpt permitsPerMinute="300" burst="100"/&gt;
+ *   &lt;auth permitsPerMinute="10" burst="5"/&gt;
+ *   &lt;networks&gt;192.168.0.0/16, 10.0.0.0/8&lt;/networks&gt;
+ *   &lt;action&gt;tarpit&lt;/action&gt;
+ *   &lt;tarpitMaxDelay&gt;5000&lt;/tarpitMaxDelay&gt;
+ *   &lt;tarpitMaxSessions&gt;4&lt;/tarpitMaxSessions&gt;
+ * &lt;/handler&gt;
+ * </pre>
+ * 
+ * Commands without a configured rate are not limited.
+ */
+public class RateLimitHandler implements ConnectHandler<SMTPSession>, MailHook, RcptHook, AuthHook, InitializingLifecycleAwareProtocolHandler {
+
+    /** This log is the fall back shared by all instances */
+    private static final Logger FALLBACK_LOG = LoggerFactory.getLogger(RateLimitHandler.class);
+
+    private static final String[] COMMANDS = { "connect", "mail", "rcpt", "auth" };
+
+    private static final String TARPIT = "tarpit";
+
+    private static final String DEFER = "defer";
+
+    private static final int DEFAULT_MAX_KEYS = 100000;
+
+    private static final int DEFAULT_TOP_OFFENDERS = 10;
+
+    private static final long DEFAULT_TARPIT_MAX_DELAY = 5000;
+
+    private static final int DEFAULT_TARPIT_MAX_SESSIONS = 4;
+
+    /**
+     * Non context specific log should only be used when no context specific
+     * log is available
+     */
+    private Logger serviceLog = FALLBACK_LOG;
+
+    private DNSService dnsService;
+
+    private RateLimiter connectLimiter;
+
+    private RateLimiter mailLimiter;
+
+    private RateLimiter rcptLimiter;
+
+    private RateLimiter authLimiter;
+
+    private final List<String> networkNames = new ArrayList<String>();
+
+    private final List<NetMatcher> networks = new ArrayList<NetMatcher>();
+
+    private long maxDelay = 0;
+
+    private Semaphore tarpitSlots = new Semaphore(DEFAULT_TARPIT_MAX_SESSIONS);
+
+    private MBeanServer mbeanServer;
+
+    private final List<ObjectName> mbeanNames = new ArrayList<ObjectName>();
+
+    /**
+     * Sets the service log.<br>
+     * Where available, a context sensitive log should be used.
+     * 
+     * @param log
+     *            not null
+     */
+    public void setLog(Logger log) {
+        this.serviceLog = log;
+    }
+
+    /**
+     * Sets the DNS service.
+     * 
+     * @param dnsService
+     *            the dnsService to set
+     */
+    @Inject
+    public final void setDNSService(@Named("dnsservice") DNSService dnsService) {
+        this.dnsService = dnsService;
+    }
+
+    /**
+     * Set the networks which share one limit for all their addresses
+     * 
+     * @param nets
+     *            the networks, in a format understood by {@link NetMatcher}
+     */
+    public void setNetworks(List<String> nets) {
+        networkNames.clear();
+        networks.clear();
+        for (final String net : nets) {
+            networkNames.add(net);
+            networks.add(new NetMatcher(new String[] { net }, dnsService) {
+                protected void log(String s) {
+                    serviceLog.debug(s);
+                }
+            });
+        }
+    }
+
+    /**
+     * Set the maximal time in ms a request over the rate is delayed. 0
+     * defers these requests with a temporary error instead.
+     * 
+     * @param maxDelay
+     *            the delay
+     */
+    public void setTarpitMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Set how many requests may be delayed at the same time. Every delayed
+     * request blocks a thread of the server's executor, so requests over this
+     * count are deferred instead.
+     * 
+     * @param maxSessions
+     *            the count of concurrently delayed requests
+     */
+    public void setTarpitMaxSessions(int maxSessions) {
+        this.tarpitSlots = new Semaphore(maxSessions);
+    }
+
+    public void setConnectLimiter(RateLimiter connectLimiter) {
+        this.connectLimiter = connectLimiter;
+    }
+
+    public void setMailLimiter(RateLimiter mailLimiter) {
+        this.mailLimiter = mailLimiter;
+    }
+
+    public void setRcptLimiter(RateLimiter rcptLimiter) {
+        this.rcptLimiter = rcptLimiter;
+    }
+
+    public void setAuthLimiter(RateLimiter authLimiter) {
+        this.authLimiter = authLimiter;
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.handler.ConnectHandler#onConnect(org.apache.james.protocols.api.ProtocolSession)
+     */
+    public Response onConnect(SMTPSession session) {
+        if (connectLimiter != null && !acquire(connectLimiter, addressKey(session), session)) {
+            SMTPResponse response = new SMTPResponse(SMTPRetCode.SERVICE_NOT_AVAILABLE, DSNStatus.getStatus(DSNStatus.TRANSIENT, DSNStatus.SECURITY_OTHER) + " Too many connections, try again later");
+            response.setEndSession(true);
+            return response;
+        }
+        return null;
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.hook.MailHook#doMail(org.apache.james.protocols.smtp.SMTPSession,
+     *      org.apache.james.protocols.smtp.MailAddress)
+     */
+    public HookResult doMail(SMTPSession session, MailAddress sender) {
+        return check(mailLimiter, session, "Too many messages");
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.hook.RcptHook#doRcpt(org.apache.james.protocols.smtp.SMTPSession,
+     *      org.apache.james.protocols.smtp.MailAddress,
+     *      org.apache.james.protocols.smtp.MailAddress)
+     */
+    public HookResult doRcpt(SMTPSession session, MailAddress sender, MailAddress rcpt) {
+        return check(rcptLimiter, session, "Too many recipients");
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.hook.AuthHook#doAuth(org.apache.james.protocols.smtp.SMTPSession,
+     *      java.lang.String, java.lang.String)
+     */
+    public HookResult doAuth(SMTPSession session, String username, String password) {
+        // the user is not authenticated yet, so the attempts count for the address
+        if (authLimiter != null && !acquire(authLimiter, addressKey(session), session)) {
+            return new HookResult(HookReturnCode.DENYSOFT, SMTPRetCode.LOCAL_ERROR, DSNStatus.getStatus(DSNStatus.TRANSIENT, DSNStatus.SECURITY_AUTH) + " Too many authentication attempts, try again later");
+        }
+        return new HookResult(HookReturnCode.DECLINED);
+    }
+
+    private HookResult check(RateLimiter limiter, SMTPSession session, String reason) {
+        if (limiter != null && !acquire(limiter, key(session), session)) {
+            return new HookResult(HookReturnCode.DENYSOFT, SMTPRetCode.LOCAL_ERROR, DSNStatus.getStatus(DSNStatus.TRANSIENT, DSNStatus.SECURITY_OTHER) + " " + reason + ", try again later");
+        }
+        return new HookResult(HookReturnCode.DECLINED);
+    }
+
+    /**
+     * Take a permit, sleeping if it is due later and a tarpit slot is free
+     * 
+     * @return false if the request has to be deferred
+     */
+    private boolean acquire(RateLimiter limiter, String key, SMTPSession session) {
+        long delay = limiter.acquire(key, maxDelay);
+        if (delay < 0) {
+            session.getLogger().info("Rate limit exceeded for " + key);
+            return false;
+        }
+        if (delay > 0) {
+            Semaphore slots = tarpitSlots;
+            if (!slots.tryAcquire()) {
+                session.getLogger().info("Rate limit exceeded for " + key + ", all tarpit slots are in use");
+                return false;
+            }
+            try {
+                if (session.getLogger().isDebugEnabled()) {
+                    session.getLogger().debug("Rate limit exceeded for " + key + ", tarpitting for " + delay + " ms");
+                }
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                slots.release();
+            }
+        }
+        return true;
+    }
+
+    private String key(SMTPSession session) {
+        String user = session.getUser();
+        if (user != null) {
+            return "user:" + user;
+        }
+        return addressKey(session);
+    }
+
+    private String addressKey(SMTPSession session) {
+        InetAddress address = session.getRemoteAddress().getAddress();
+        for (int i = 0; i < networks.size(); i++) {
+            if (networks.get(i).matchInetNetwork(address)) {
+                return "net:" + networkNames.get(i);
+            }
+        }
+        return "ip:" + address.getHostAddress();
+    }
+
+    @Override
+    public void init(Configuration config) throws ConfigurationException {
+        int maxKeys = config.getInt("maxKeys", DEFAULT_MAX_KEYS);
+        int topOffenders = config.getInt("topOffenders", DEFAULT_TOP_OFFENDERS);
+
+        RateLimiter[] limiters = new RateLimiter[COMMANDS.length];
+        for (int i = 0; i < COMMANDS.length; i++) {
+            double rate = config.getDouble(COMMANDS[i] + ".[@permitsPerMinute]", 0);
+            if (rate > 0) {
+                int burst = config.getInt(COMMANDS[i] + ".[@burst]", (int) Math.max(1, Math.ceil(rate / 6)));
+                limiters[i] = new RateLimiter(rate, burst, maxKeys, topOffenders);
+                serviceLog.info("Limit " + COMMANDS[i] + " to " + rate + " per minute with a burst of " + burst);
+            }
+        }
+        if (limiters[0] == null && limiters[1] == null && limiters[2] == null && limiters[3] == null) {
+            throw new ConfigurationException("Please configure the permitsPerMinute of at least one of " + COMMANDS[0] + ", " + COMMANDS[1] + ", " + COMMANDS[2] + " or " + COMMANDS[3]);
+        }
+        setConnectLimiter(limiters[0]);
+        setMailLimiter(limiters[1]);
+        setRcptLimiter(limiters[2]);
+        setAuthLimiter(limiters[3]);
+
+        String nets = config.getString("networks", null);
+        if (nets != null) {
+            List<String> netList = new ArrayList<String>();
+            for (String net : nets.split(",")) {
+                if (net.trim().length() > 0) {
+                    netList.add(net.trim());
+                }
+            }
+            setNetworks(netList);
+        }
+
+        String action = config.getString("action", DEFER);
+        if (DEFER.equalsIgnoreCase(action)) {
+            setTarpitMaxDelay(0);
+        } else if (TARPIT.equalsIgnoreCase(action)) {
+            setTarpitMaxDelay(config.getLong("tarpitMaxDelay", DEFAULT_TARPIT_MAX_DELAY));
+            setTarpitMaxSessions(config.getInt("tarpitMaxSessions", DEFAULT_TARPIT_MAX_SESSIONS));
+        } else {
+            throw new ConfigurationException("Unknown action " + action + ", must be " + TARPIT + " or " + DEFER);
+        }
+
+        // the handler chain passes the jmxName of the owning server
+        registerMBeans(config.getString("jmxName", "smtpserver"), limiters);
+    }
+
+    private void registerMBeans(String jmxName, RateLimiter[] limiters) throws ConfigurationException {
+        mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        for (int i = 0; i < COMMANDS.length; i++) {
+            if (limiters[i] != null) {
+                try {
+                    ObjectName name = new ObjectName("org.apache.james:type=server,name=" + jmxName + ",chain=handlerchain,handler=ratelimit,command=" + COMMANDS[i]);
+                    mbeanServer.registerMBean(limiters[i], name);
+                    mbeanNames.add(name);
+                } catch (Exception e) {
+                    throw new ConfigurationException("Unable to register the rate limiter of " + COMMANDS[i] + " in JMX", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        for (ObjectName name : mbeanNames) {
+            try {
+                mbeanServer.unregisterMBean(name);
+            } catch (Exception e) {
+                // ignore here
+            }
+        }
+        mbeanNames.clear();
+    }
+}
@@ -0,0 +1,274 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.fastfail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket rate limiter with one bucket per key, like a remote IP address,
+ * a network or a user name.
+ * 
+ * Every key gets <code>permitsPerMinute</code> permits per minute and can save
+ * up to <code>burst</code> permits while it is idle. A request which finds no
+ * permit can be delayed until the next permit is due, as long as that is not
+ * more than the given delay, otherwise it is denied.
+ * 
+ * The buckets are kept in a concurrent map which is bounded by
+ * <code>maxKeys</code>. When it is full, the buckets which refilled completely
+ * (the keys which were idle long enough to be forgotten) are removed first and
+ * then the least recently used ones.
+ */
+public class RateLimiter implements RateLimiterMBean {
+
+    private final double permitsPerMinute;
+    private final double permitsPerMilli;
+    private final int burst;
+    private final int maxKeys;
+    private final int topOffenders;
+    private final long idleTime;
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+    private final AtomicLong delayed = new AtomicLong();
+    private final AtomicLong denied = new AtomicLong();
+    private final Object evictionLock = new Object();
+
+    /**
+     * @param permitsPerMinute
+     *            the count of permits a key gets per minute
+     * @param burst
+     *            the count of permits a key can save up
+     * @param maxKeys
+     *            the maximal count of tracked keys
+     * @param topOffenders
+     *            the count of keys returned by {@link #getTopOffenders()}
+     */
+    public RateLimiter(double permitsPerMinute, int burst, int maxKeys, int topOffenders) {
+        if (permitsPerMinute <= 0 || burst < 1 || maxKeys < 1) {
+            throw new IllegalArgumentException("permitsPerMinute, burst and maxKeys must be positive");
+        }
+        this.permitsPerMinute = permitsPerMinute;
+        this.permitsPerMilli = permitsPerMinute / 60000;
+        this.burst = burst;
+        this.maxKeys = maxKeys;
+        this.topOffenders = topOffenders;
+        this.idleTime = (long) Math.ceil(burst / permitsPerMilli);
+    }
+
+    /**
+     * Take a permit for the given key.
+     * 
+     * @param key
+     *            the key
+     * @param maxDelay
+     *            the maximal time in ms the caller is willing to wait for the
+     *            permit, 0 to take only a permit which is available now
+     * @return 0 if a permit was available, the time in ms the caller has to
+     *         wait before using the permit it got, or -1 if no permit is due
+     *         within maxDelay
+     */
+    public long acquire(String key, long maxDelay) {
+        long now = now();
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= maxKeys) {
+                evict(now);
+            }
+            bucket = new Bucket(burst, now);
+            Bucket existing = buckets.putIfAbsent(key, bucket);
+            if (existing != null) {
+                bucket = existing;
+            }
+        }
+        long delay = bucket.acquire(now, permitsPerMilli, burst, maxDelay);
+        if (delay > 0) {
+            delayed.incrementAndGet();
+        } else if (delay < 0) {
+            denied.incrementAndGet();
+        }
+        return delay;
+    }
+
+    /**
+     * Return the current time in ms
+     * 
+     * @return now
+     */
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Make room for new keys. Only one thread evicts at a time, the others go
+     * on and may let the map grow slightly over maxKeys meanwhile.
+     */
+    private void evict(long now) {
+        synchronized (evictionLock) {
+            if (buckets.size() < maxKeys) {
+                return;
+            }
+            Iterator<Bucket> it = buckets.values().iterator();
+            while (it.hasNext()) {
+                if (now - it.next().getLastUsed() >= idleTime) {
+                    it.remove();
+                }
+            }
+
+            // still full, so drop the least recently used tenth
+            int target = maxKeys - Math.max(1, maxKeys / 10);
+            if (buckets.size() > target) {
+                List<Map.Entry<String, Bucket>> entries = new ArrayList<Map.Entry<String, Bucket>>(buckets.entrySet());
+                Collections.sort(entries, new Comparator<Map.Entry<String, Bucket>>() {
+                    public int compare(Map.Entry<String, Bucket> e1, Map.Entry<String, Bucket> e2) {
+                        long l1 = e1.getValue().getLastUsed();
+                        long l2 = e2.getValue().getLastUsed();
+                        return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+                    }
+                });
+                for (int i = 0; i < entries.size() - target; i++) {
+                    buckets.remove(entries.get(i).getKey(), entries.get(i).getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.RateLimiterMBean#getPermitsPerMinute()
+     */
+    public double getPermitsPerMinute() {
+        return permitsPerMinute;
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.RateLimiterMBean#getBurst()
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.RateLimiterMBean#getTrackedKeys()
+     */
+    public int getTrackedKeys() {
+        return buckets.size();
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.RateLimiterMBean#getMaxKeys()
+     */
+    public int getMaxKeys() {
+        return maxKeys;
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.RateLimiterMBean#getDelayedCount()
+     */
+    public long getDelayedCount() {
+        return delayed.get();
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.RateLimiterMBean#getDeniedCount()
+     */
+    public long getDeniedCount() {
+        return denied.get();
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.RateLimiterMBean#getTopOffenders()
+     */
+    public String[] getTopOffenders() {
+        final List<String> keys = new ArrayList<String>();
+        final List<Long> offences = new ArrayList<Long>();
+        for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+            long count = entry.getValue().getOffences();
+            if (count == 0) {
+                continue;
+            }
+            // insertion into the sorted top list
+            int pos = offences.size();
+            while (pos > 0 && offences.get(pos - 1) < count) {
+                pos--;
+            }
+            if (pos < topOffenders) {
+                keys.add(pos, entry.getKey());
+                offences.add(pos, count);
+                if (keys.size() > topOffenders) {
+                    keys.remove(topOffenders);
+                    offences.remove(topOffenders);
+                }
+            }
+        }
+        String[] result = new String[keys.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = keys.get(i) + " " + offences.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * The token bucket of one key
+     */
+    private final static class Bucket {
+        private double tokens;
+        private long updated;
+        private volatile long lastUsed;
+        private volatile long offences;
+
+        private Bucket(int burst, long now) {
+            this.tokens = burst;
+            this.updated = now;
+            this.lastUsed = now;
+        }
+
+        private synchronized long acquire(long now, double permitsPerMilli, int burst, long maxDelay) {
+            if (now > updated) {
+                tokens = Math.min(burst, tokens + (now - updated) * permitsPerMilli);
+                updated = now;
+            }
+            lastUsed = now;
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            }
+            offences++;
+            long delay = (long) Math.ceil((1 - tokens) / permitsPerMilli);
+            if (delay <= maxDelay) {
+                // the permit is taken now and becomes usable after the delay
+                tokens--;
+                return delay;
+            }
+            return -1;
+        }
+
+        private long getLastUsed() {
+            return lastUsed;
+        }
+
+        private long getOffences() {
+            return offences;
+        }
+    }
+}
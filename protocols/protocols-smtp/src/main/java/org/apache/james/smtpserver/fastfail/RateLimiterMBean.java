@@ -0,0 +1,76 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.fastfail;
+
+/**
+ * JMX Bean which shows the state of a {@link RateLimiter}
+ */
+public interface RateLimiterMBean {
+
+    /**
+     * Return the count of permits a key gets per minute
+     * 
+     * @return rate
+     */
+    double getPermitsPerMinute();
+
+    /**
+     * Return the count of permits a key can take at once after being idle
+     * 
+     * @return burst
+     */
+    int getBurst();
+
+    /**
+     * Return the count of keys which are tracked at the moment
+     * 
+     * @return keys
+     */
+    int getTrackedKeys();
+
+    /**
+     * Return the maximal count of keys which are tracked
+     * 
+     * @return maxKeys
+     */
+    int getMaxKeys();
+
+    /**
+     * Return how many requests were delayed because their key was over the
+     * rate
+     * 
+     * @return delayed
+     */
+    long getDelayedCount();
+
+    /**
+     * Return how many requests were denied because their key was over the rate
+     * 
+     * @return denied
+     */
+    long getDeniedCount();
+
+    /**
+     * Return the tracked keys with the most delayed or denied requests, with
+     * the most offending key first
+     * 
+     * @return offenders
+     */
+    String[] getTopOffenders();
+}
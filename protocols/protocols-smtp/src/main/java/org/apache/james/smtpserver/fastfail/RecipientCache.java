@@ -0,0 +1,152 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.fastfail;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of recipient lookups with separate time to live for valid and invalid
+ * recipients. When the cache is full the expired entries are removed, then the
+ * invalid ones, so a dictionary attack can not push out the valid recipients.
+ */
+public class RecipientCache {
+
+    private final long positiveTTL;
+
+    private final long negativeTTL;
+
+    private final int maxSize;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Create a cache
+     * 
+     * @param positiveTTL
+     *            milliseconds to cache valid recipients, 0 to not cache them
+     * @param negativeTTL
+     *            milliseconds to cache invalid recipients, 0 to not cache them
+     * @param maxSize
+     *            the maximal number of cached recipients
+     */
+    public RecipientCache(long positiveTTL, long negativeTTL, int maxSize) {
+        if (positiveTTL < 0 || negativeTTL < 0) {
+            throw new IllegalArgumentException("TTL must not be negative");
+        }
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be at least 1");
+        }
+        this.positiveTTL = positiveTTL;
+        this.negativeTTL = negativeTTL;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Return if the recipient is valid, or <code>null</code> if it is not
+     * cached
+     * 
+     * @param recipient
+     *            the recipient
+     * @return valid
+     */
+    public Boolean get(String recipient) {
+        Entry entry = entries.get(recipient);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires <= now()) {
+            entries.remove(recipient, entry);
+            return null;
+        }
+        return entry.valid;
+    }
+
+    /**
+     * Cache the result of a lookup
+     * 
+     * @param recipient
+     *            the recipient
+     * @param valid
+     *            true if the recipient is valid
+     */
+    public void put(String recipient, boolean valid) {
+        long ttl = valid ? positiveTTL : negativeTTL;
+        if (ttl == 0) {
+            return;
+        }
+        if (entries.size() >= maxSize) {
+            evict();
+        }
+        entries.put(recipient, new Entry(valid, now() + ttl));
+    }
+
+    /**
+     * Remove all cached recipients
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Return the current time in milliseconds
+     * 
+     * @return now
+     */
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    private synchronized void evict() {
+        if (entries.size() < maxSize) {
+            return;
+        }
+        long now = now();
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+            if (it.next().expires <= now) {
+                it.remove();
+            }
+        }
+        if (entries.size() >= maxSize) {
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+                if (!it.next().valid) {
+                    it.remove();
+                }
+            }
+        }
+        if (entries.size() >= maxSize) {
+            entries.clear();
+        }
+    }
+
+    private static final class Entry {
+        private final boolean valid;
+        private final long expires;
+
+        private Entry(boolean valid, long expires) {
+            this.valid = valid;
+            this.expires = expires;
+        }
+    }
+}
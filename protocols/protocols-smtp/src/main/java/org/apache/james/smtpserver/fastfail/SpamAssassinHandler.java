@@ -19,19 +19,25 @@
 
 package org.apache.james.smtpserver.fastfail;
 
+import java.lang.management.ManagementFactory;
+
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
-import org.apache.james.protocols.api.ProtocolSession.State;
 import org.apache.james.protocols.lib.lifecycle.InitializingLifecycleAwareProtocolHandler;
 import org.apache.james.protocols.smtp.SMTPSession;
 import org.apache.james.protocols.smtp.dsn.DSNStatus;
 import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
-import org.apache.james.smtpserver.JamesMessageHook;
+import org.apache.james.smtpserver.ConcurrentJamesMessageHook;
 import org.apache.james.util.scanner.SpamAssassinInvoker;
+import org.apache.james.util.scanner.SpamdClient;
 import org.apache.mailet.Mail;
 
 /**
@@ -62,8 +68,21 @@ import org.apache.mailet.Mail;
  * </pre>
  * 
  * </p>
+ * <p>
+ * spamdHost can list several spamd daemons as host or host:port separated by
+ * comma, which are used round robin. A daemon which fails is skipped for
+ * spamdRetryInterval ms. At most spamdMaxConnections connections are open to
+ * every daemon. spamdConnectTimeout and spamdReadTimeout limit the time to get
+ * a connection and to wait for the result (in ms). Messages bigger than
+ * spamdMaxMessageSize bytes are not scanned. The statistics of the client are
+ * exported in JMX under the jmxName of the server.
+ * </p>
+ * <p>
+ * The handler runs concurrently with the other message hooks, see
+ * {@link ConcurrentJamesMessageHook}.
+ * </p>
  */
-public class SpamAssassinHandler implements JamesMessageHook, InitializingLifecycleAwareProtocolHandler {
+public class SpamAssassinHandler implements ConcurrentJamesMessageHook, InitializingLifecycleAwareProtocolHandler {
 
     /** The port spamd is listen on */
     private int spamdPort = 783;
@@ -74,14 +93,32 @@ public class SpamAssassinHandler implements JamesMessageHook, InitializingLifecy
     /** The hits on which the message get rejected */
     private double spamdRejectionHits = 0.0;
 
+    private int spamdMaxConnections = SpamdClient.DEFAULT_MAX_CONNECTIONS;
+
+    private int spamdConnectTimeout = SpamdClient.DEFAULT_CONNECT_TIMEOUT;
+
+    private int spamdReadTimeout = SpamdClient.DEFAULT_READ_TIMEOUT;
+
+    private long spamdRetryInterval = SpamdClient.DEFAULT_RETRY_INTERVAL;
+
+    private long spamdMaxMessageSize = 0;
+
+    /** The client shared by all sessions, created on first use */
+    private SpamdClient client;
+
+    private MBeanServer mbeanServer;
+
+    private ObjectName mbeanName;
+
     /**
      * Set the host the spamd daemon is running at
      * 
      * @param spamdHost
      *            The spamdHost
      */
-    public void setSpamdHost(String spamdHost) {
+    public synchronized void setSpamdHost(String spamdHost) {
         this.spamdHost = spamdHost;
+        this.client = null;
     }
 
     /**
@@ -90,8 +127,9 @@ public class SpamAssassinHandler implements JamesMessageHook, InitializingLifecy
      * @param spamdPort
      *            the spamdPort
      */
-    public void setSpamdPort(int spamdPort) {
+    public synchronized void setSpamdPort(int spamdPort) {
         this.spamdPort = spamdPort;
+        this.client = null;
     }
 
     /**
@@ -105,6 +143,82 @@ public class SpamAssassinHandler implements JamesMessageHook, InitializingLifecy
 
     }
 
+    /**
+     * Set the maximal count of connections open to every spamd daemon
+     * 
+     * @param spamdMaxConnections
+     *            the maximal count of connections
+     */
+    public synchronized void setSpamdMaxConnections(int spamdMaxConnections) {
+        this.spamdMaxConnections = spamdMaxConnections;
+        this.client = null;
+    }
+
+    /**
+     * Set the timeout to get a connection to spamd (in ms)
+     * 
+     * @param spamdConnectTimeout
+     *            the timeout
+     */
+    public synchronized void setSpamdConnectTimeout(int spamdConnectTimeout) {
+        this.spamdConnectTimeout = spamdConnectTimeout;
+        this.client = null;
+    }
+
+    /**
+     * Set the timeout to wait for the result of spamd (in ms)
+     * 
+     * @param spamdReadTimeout
+     *            the timeout
+     */
+    public synchronized void setSpamdReadTimeout(int spamdReadTimeout) {
+        this.spamdReadTimeout = spamdReadTimeout;
+        this.client = null;
+    }
+
+    /**
+     * Set the time a failed spamd daemon is skipped (in ms)
+     * 
+     * @param spamdRetryInterval
+     *            the interval
+     */
+    public synchronized void setSpamdRetryInterval(long spamdRetryInterval) {
+        this.spamdRetryInterval = spamdRetryInterval;
+        this.client = null;
+    }
+
+    /**
+     * Set the size above which messages are not scanned. 0 disable the limit
+     * 
+     * @param spamdMaxMessageSize
+     *            the size in bytes
+     */
+    public synchronized void setSpamdMaxMessageSize(long spamdMaxMessageSize) {
+        this.spamdMaxMessageSize = spamdMaxMessageSize;
+        this.client = null;
+    }
+
+    private synchronized SpamdClient getClient() {
+        if (client == null) {
+            SpamdClient c = new SpamdClient(spamdHost.split(","), spamdPort, spamdMaxConnections);
+            c.setConnectTimeout(spamdConnectTimeout);
+            c.setReadTimeout(spamdReadTimeout);
+            c.setRetryInterval(spamdRetryInterval);
+            c.setMaxMessageSize(spamdMaxMessageSize);
+            client = c;
+            if (mbeanName != null) {
+                // keep exporting the client which is actually used
+                try {
+                    mbeanServer.unregisterMBean(mbeanName);
+                    mbeanServer.registerMBean(c, mbeanName);
+                } catch (JMException e) {
+                    // ignore here, the statistics are not essential
+                }
+            }
+        }
+        return client;
+    }
+
     /**
      * @see org.apache.james.smtpserver.JamesMessageHook#onMessage(org.apache.james.protocols.smtp.SMTPSession,
      *      org.apache.mailet.Mail)
@@ -113,8 +227,8 @@ public class SpamAssassinHandler implements JamesMessageHook, InitializingLifecy
 
         try {
             MimeMessage message = mail.getMessage();
-            SpamAssassinInvoker sa = new SpamAssassinInvoker(spamdHost, spamdPort);
-            sa.scanMail(message);
+            SpamAssassinInvoker sa = new SpamAssassinInvoker(getClient());
+            sa.scanMail(message, mail.getMessageSize());
 
             // Add the headers
             for (String key : sa.getHeadersAsAttribute().keySet()) {
@@ -129,7 +243,7 @@ public class SpamAssassinHandler implements JamesMessageHook, InitializingLifecy
                     // if the hits are bigger the rejectionHits reject the
                     // message
                     if (spamdRejectionHits <= hits) {
-                        String buffer = "Rejected message from " + session.getAttachment(SMTPSession.SENDER, State.Transaction).toString() + " from host " + session.getRemoteAddress().getHostName() + " (" + session.getRemoteAddress().getAddress().getHostAddress() + ") This message reach the spam hits treshold. Required rejection hits: " + spamdRejectionHits + " hits: " + hits;
+                        String buffer = "Rejected message from " + (mail.getSender() == null ? "<>" : mail.getSender().toString()) + " from host " + session.getRemoteAddress().getHostName() + " (" + session.getRemoteAddress().getAddress().getHostAddress() + ") This message reach the spam hits treshold. Required rejection hits: " + spamdRejectionHits + " hits: " + hits;
                         session.getLogger().info(buffer);
 
                         // Message reject .. abort it!
@@ -150,10 +264,54 @@ public class SpamAssassinHandler implements JamesMessageHook, InitializingLifecy
         setSpamdHost(config.getString("spamdHost", "localhost"));
         setSpamdPort(config.getInt("spamdPort", 783));
         setSpamdRejectionHits(config.getDouble("spamdRejectionHits", 0.0));        
+        setSpamdMaxConnections(config.getInt("spamdMaxConnections", SpamdClient.DEFAULT_MAX_CONNECTIONS));
+        setSpamdConnectTimeout(config.getInt("spamdConnectTimeout", SpamdClient.DEFAULT_CONNECT_TIMEOUT));
+        setSpamdReadTimeout(config.getInt("spamdReadTimeout", SpamdClient.DEFAULT_READ_TIMEOUT));
+        setSpamdRetryInterval(config.getLong("spamdRetryInterval", SpamdClient.DEFAULT_RETRY_INTERVAL));
+        setSpamdMaxMessageSize(config.getLong("spamdMaxMessageSize", 0));
+
+        SpamdClient c;
+        try {
+            c = getClient();
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("Invalid spamd configuration", e);
+        }
+
+        registerMBean(config.getString("jmxName", "smtpserver"), c);
+    }
+
+    /**
+     * Register the client in JMX. The handler chain passes the jmxName of the
+     * owning server, an instance number is added if the handler is
+     * configured more than once for the same name.
+     */
+    private synchronized void registerMBean(String jmxName, SpamdClient c) throws ConfigurationException {
+        mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        String baseName = "org.apache.james:type=server,name=" + jmxName + ",chain=handlerchain,handler=spamassassin";
+        try {
+            ObjectName name = new ObjectName(baseName);
+            for (int instance = 2; mbeanName == null; instance++) {
+                try {
+                    mbeanServer.registerMBean(c, name);
+                    mbeanName = name;
+                } catch (InstanceAlreadyExistsException e) {
+                    name = new ObjectName(baseName + ",instance=" + instance);
+                }
+            }
+        } catch (JMException e) {
+            throw new ConfigurationException("Unable to register the spamd client in JMX", e);
+        }
     }
 
     @Override
-    public void destroy() {
-        // nothing to-do
+    public synchronized void destroy() {
+        if (mbeanName != null) {
+            try {
+                mbeanServer.unregisterMBean(mbeanName);
+            } catch (Exception e) {
+                // ignore here
+            }
+            mbeanName = null;
+        }
     }
 }
@@ -0,0 +1,329 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.fastfail;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.james.util.PublicSuffixList;
+
+/**
+ * Extracts the registrar domains of the URIs, schemeless www / ftp hosts and
+ * email addresses found in text, without building the whole text as one
+ * String.
+ * 
+ * The text is read in chunks and split into tokens on characters which can not
+ * be part of a URI (whitespace, quotes, angle brackets...). Each token is then
+ * inspected for a known scheme followed by an authority, a leading
+ * <code>www.</code> or <code>ftp.</code> host, or an <code>@</code> followed by
+ * a host. Found hosts are reduced to their registrar domain with
+ * {@link URIScanner#domainFromHost(String, PublicSuffixList)}.
+ * 
+ * The amount of characters scanned and the amount of domains collected can be
+ * bounded, to keep the cost of huge messages under control. Instances are not
+ * thread-safe and are meant to be used for one message.
+ */
+public class StreamingURIScanner {
+
+    /** Tokens longer than this are truncated, hosts are found at their start */
+    private final static int MAX_TOKEN_LENGTH = 2048;
+
+    /** Count of hosts remembered to avoid reducing the same host twice */
+    private final static int MAX_SEEN_HOSTS = 1024;
+
+    private final static String[] SCHEMES = { "http", "https", "ftp", "file" };
+
+    private final long maxChars;
+    private final int maxDomains;
+    private final PublicSuffixList suffixes;
+    private final Set<String> domains = new HashSet<String>();
+    private final Set<String> seenHosts = new HashSet<String>();
+    private final char[] buffer = new char[4096];
+    private final StringBuilder token = new StringBuilder();
+    private long scanned;
+
+    /**
+     * @param maxChars
+     *            the maximal count of characters to scan over all calls of
+     *            {@link #scan(Reader)}, or a value &lt;= 0 for no limit
+     * @param maxDomains
+     *            the maximal count of domains to collect, or a value &lt;= 0
+     *            for no limit
+     */
+    public StreamingURIScanner(long maxChars, int maxDomains) {
+        this(maxChars, maxDomains, PublicSuffixList.getDefault());
+    }
+
+    /**
+     * @param maxChars
+     *            the maximal count of characters to scan over all calls of
+     *            {@link #scan(Reader)}, or a value &lt;= 0 for no limit
+     * @param maxDomains
+     *            the maximal count of domains to collect, or a value &lt;= 0
+     *            for no limit
+     * @param suffixes
+     *            the public suffixes used to find the registrar domains
+     */
+    public StreamingURIScanner(long maxChars, int maxDomains, PublicSuffixList suffixes) {
+        this.maxChars = maxChars;
+        this.maxDomains = maxDomains;
+        this.suffixes = suffixes;
+    }
+
+    /**
+     * Scan the given text for domains. The reader is consumed until its end or
+     * until one of the limits is reached, it is not closed.
+     * 
+     * @param reader
+     *            the text to scan
+     * @throws IOException
+     */
+    public void scan(Reader reader) throws IOException {
+        token.setLength(0);
+        while (!isExhausted()) {
+            int len = buffer.length;
+            if (maxChars > 0) {
+                len = (int) Math.min(len, maxChars - scanned);
+            }
+            int read = reader.read(buffer, 0, len);
+            if (read == -1) {
+                break;
+            }
+            scanned += read;
+            for (int i = 0; i < read; i++) {
+                char c = buffer[i];
+                if (isTokenChar(c)) {
+                    if (token.length() < MAX_TOKEN_LENGTH) {
+                        token.append(c);
+                    }
+                } else if (token.length() > 0) {
+                    inspectToken();
+                }
+            }
+        }
+        if (token.length() > 0) {
+            inspectToken();
+        }
+    }
+
+    /**
+     * Return true if no more text will be scanned because one of the limits
+     * was reached
+     * 
+     * @return exhausted
+     */
+    public boolean isExhausted() {
+        return (maxChars > 0 && scanned >= maxChars) || isFull();
+    }
+
+    private boolean isFull() {
+        return maxDomains > 0 && domains.size() >= maxDomains;
+    }
+
+    /**
+     * Return the domains found so far
+     * 
+     * @return domains
+     */
+    public Set<String> getDomains() {
+        return domains;
+    }
+
+    /**
+     * Return the count of characters scanned so far
+     * 
+     * @return scanned
+     */
+    public long getScannedChars() {
+        return scanned;
+    }
+
+    private void inspectToken() {
+        int length = token.length();
+
+        // scheme based URIs, possibly embedded like in href=http://...
+        int index = indexOf("://", 0);
+        while (index != -1) {
+            if (hasSchemeBefore(index)) {
+                addHostOfAuthority(index + 3);
+            }
+            index = indexOf("://", index + 3);
+        }
+
+        // schemeless hosts, only at the start of the token
+        int start = 0;
+        while (start < length && !isHostChar(token.charAt(start))) {
+            start++;
+        }
+        if (startsWithWww(start) || regionMatches(start, "ftp.")) {
+            addHost(start);
+        }
+
+        // mail addresses, with or without mailto:
+        index = token.indexOf("@");
+        while (index != -1) {
+            if (index > 0 && isLocalPartChar(token.charAt(index - 1))) {
+                addHost(index + 1);
+            }
+            index = token.indexOf("@", index + 1);
+        }
+        token.setLength(0);
+    }
+
+    private boolean hasSchemeBefore(int index) {
+        for (String scheme : SCHEMES) {
+            int start = index - scheme.length();
+            if (start >= 0 && regionMatches(start, scheme) && (start == 0 || !Character.isLetterOrDigit(token.charAt(start - 1)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean startsWithWww(int start) {
+        if (!regionMatches(start, "www")) {
+            return false;
+        }
+        int i = start + 3;
+        while (i < token.length() && Character.isDigit(token.charAt(i))) {
+            i++;
+        }
+        return i < token.length() && token.charAt(i) == '.';
+    }
+
+    /**
+     * Add the host of the authority starting at the given index, skipping the
+     * user info if there is one
+     */
+    private void addHostOfAuthority(int start) {
+        int end = start;
+        int hostStart = start;
+        while (end < token.length()) {
+            char c = token.charAt(end);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
+            }
+            if (c == '@') {
+                hostStart = end + 1;
+            }
+            end++;
+        }
+        addHost(hostStart);
+    }
+
+    private void addHost(int start) {
+        if (isFull()) {
+            return;
+        }
+        int end = start;
+        while (end < token.length() && isHostChar(token.charAt(end))) {
+            end++;
+        }
+        // strip dots and dashes which are not part of the host
+        while (start < end && (token.charAt(start) == '.' || token.charAt(start) == '-')) {
+            start++;
+        }
+        while (end > start && (token.charAt(end - 1) == '.' || token.charAt(end - 1) == '-')) {
+            end--;
+        }
+        if (end - start < 3 || token.lastIndexOf(".", end - 1) < start) {
+            return;
+        }
+        String host = token.substring(start, end).toLowerCase(Locale.US);
+        if (host.indexOf("..") != -1 || seenHosts.contains(host)) {
+            return;
+        }
+        if (seenHosts.size() < MAX_SEEN_HOSTS) {
+            seenHosts.add(host);
+        }
+        String domain = URIScanner.domainFromHost(host, suffixes);
+        if (domain != null) {
+            domains.add(domain);
+        }
+    }
+
+    private boolean regionMatches(int start, String value) {
+        int length = value.length();
+        if (start + length > token.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (Character.toLowerCase(token.charAt(start + i)) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Case-insensitive search of a lower case value
+     */
+    private int indexOf(String value, int from) {
+        int last = token.length() - value.length();
+        for (int i = from; i <= last; i++) {
+            if (regionMatches(i, value)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isHostChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '-';
+    }
+
+    private static boolean isLocalPartChar(char c) {
+        return isHostChar(c) || c == '_' || c == '+' || c == '%' || c == '=' || c == '!' || c == '~';
+    }
+
+    /**
+     * Characters which may be part of a URI, see RFC 3986
+     */
+    private static boolean isTokenChar(char c) {
+        if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9') {
+            return true;
+        }
+        switch (c) {
+        case '-':
+        case '.':
+        case '_':
+        case '~':
+        case ':':
+        case '/':
+        case '?':
+        case '#':
+        case '@':
+        case '!':
+        case '$':
+        case '&':
+        case '*':
+        case '+':
+        case ',':
+        case ';':
+        case '=':
+        case '%':
+            return true;
+        default:
+            return false;
+        }
+    }
+}
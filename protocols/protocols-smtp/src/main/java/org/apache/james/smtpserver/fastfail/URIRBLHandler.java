@@ -19,23 +19,29 @@
 package org.apache.james.smtpserver.fastfail;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.UnknownHostException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.Iterator;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.mail.MessagingException;
+import javax.mail.internet.ContentType;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 import javax.mail.internet.MimePart;
+import javax.mail.internet.MimeUtility;
 
 import org.apache.commons.configuration.Configuration;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.james.dnsservice.api.DNSService;
+import org.apache.james.filesystem.api.FileSystem;
 import org.apache.james.protocols.api.ProtocolSession.State;
 import org.apache.james.protocols.lib.lifecycle.InitializingLifecycleAwareProtocolHandler;
 import org.apache.james.protocols.smtp.SMTPSession;
@@ -43,6 +49,7 @@ import org.apache.james.protocols.smtp.dsn.DSNStatus;
 import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
 import org.apache.james.smtpserver.JamesMessageHook;
+import org.apache.james.util.PublicSuffixList;
 import org.apache.mailet.Mail;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -68,10 +75,26 @@ public class URIRBLHandler implements JamesMessageHook, InitializingLifecycleAwa
 
     private DNSService dnsService;
 
+    private FileSystem fileSystem;
+
     private Collection<String> uriRbl;
 
     private boolean getDetail = false;
 
+    private final static Charset DEFAULT_CHARSET = Charset.forName("ISO-8859-1");
+
+    /** 1mb of decoded text is scanned per message by default */
+    private final static long DEFAULT_MAX_SCAN_SIZE = 1024 * 1024;
+
+    /** 50 domains are looked up per message by default */
+    private final static int DEFAULT_MAX_DOMAINS = 50;
+
+    private long maxScanSize = DEFAULT_MAX_SCAN_SIZE;
+
+    private int maxDomains = DEFAULT_MAX_DOMAINS;
+
+    private PublicSuffixList publicSuffixList = PublicSuffixList.getDefault();
+
     /**
      * Gets the DNS service.
      * 
@@ -92,6 +115,17 @@ public class URIRBLHandler implements JamesMessageHook, InitializingLifecycleAwa
         this.dnsService = dnsService;
     }
 
+    /**
+     * Sets the filesystem service
+     * 
+     * @param fileSystem
+     *            The filesystem service
+     */
+    @Inject
+    public void setFileSystem(@Named("filesystem") FileSystem fileSystem) {
+        this.fileSystem = fileSystem;
+    }
+
     /**
      * Set the UriRBL Servers
      * 
@@ -112,6 +146,37 @@ public class URIRBLHandler implements JamesMessageHook, InitializingLifecycleAwa
         this.getDetail = getDetail;
     }
 
+    /**
+     * Set the maximal amount of decoded text characters to scan per message
+     * 
+     * @param maxScanSize
+     *            the size, or 0 for no limit
+     */
+    public void setMaxScanSize(long maxScanSize) {
+        this.maxScanSize = maxScanSize;
+    }
+
+    /**
+     * Set the maximal count of domains to lookup per message
+     * 
+     * @param maxDomains
+     *            the count, or 0 for no limit
+     */
+    public void setMaxDomains(int maxDomains) {
+        this.maxDomains = maxDomains;
+    }
+
+    /**
+     * Set the public suffixes used to reduce the found hosts to the domains
+     * which are looked up
+     * 
+     * @param publicSuffixList
+     *            the public suffixes
+     */
+    public void setPublicSuffixList(PublicSuffixList publicSuffixList) {
+        this.publicSuffixList = publicSuffixList;
+    }
+
     /**
      * @see org.apache.james.smtpserver.JamesMessageHook#onMessage(org.apache.james.protocols.smtp.SMTPSession,
      *      org.apache.mailet.Mail)
@@ -147,26 +212,34 @@ public class URIRBLHandler implements JamesMessageHook, InitializingLifecycleAwa
 
     /**
      * Recursively scans all MimeParts of an email for domain strings. Domain
-     * strings that are found are added to the supplied HashSet.
+     * strings that are found are added to the scanner. The decoded content of
+     * text parts is streamed to the scanner, so it is never materialized as a
+     * whole.
      * 
      * @param part
      *            MimePart to scan
+     * @param scanner
+     *            the scanner which collects the domains
      * @param session
      *            not null
-     * @return domains The HashSet that contains the domains which were
-     *         extracted
      */
-    private HashSet<String> scanMailForDomains(MimePart part, SMTPSession session) throws MessagingException, IOException {
-        HashSet<String> domains = new HashSet<String>();
-        session.getLogger().debug("mime type is: \"" + part.getContentType() + "\"");
+    private void scanMailForDomains(MimePart part, StreamingURIScanner scanner, SMTPSession session) throws MessagingException, IOException {
+        if (scanner.isExhausted()) {
+            return;
+        }
+        if (session.getLogger().isDebugEnabled()) {
+            session.getLogger().debug("mime type is: \"" + part.getContentType() + "\"");
+        }
 
         if (part.isMimeType("text/plain") || part.isMimeType("text/html")) {
-            session.getLogger().debug("scanning: \"" + part.getContent().toString() + "\"");
-            HashSet<String> newDom = URIScanner.scanContentForDomains(domains, part.getContent().toString());
-
-            // Check if new domains are found and add the domains
-            if (newDom != null && newDom.size() > 0) {
-                domains.addAll(newDom);
+            Reader reader = new InputStreamReader(part.getInputStream(), getCharset(part));
+            try {
+                scanner.scan(reader);
+            } finally {
+                IOUtils.closeQuietly(reader);
+            }
+            if (session.getLogger().isDebugEnabled()) {
+                session.getLogger().debug("scanned " + scanner.getScannedChars() + " characters, domains found so far: " + scanner.getDomains());
             }
         } else if (part.isMimeType("multipart/*")) {
             MimeMultipart multipart = (MimeMultipart) part.getContent();
@@ -176,15 +249,27 @@ public class URIRBLHandler implements JamesMessageHook, InitializingLifecycleAwa
             for (int index = 0; index < count; index++) {
                 session.getLogger().debug("recursing index: " + index);
                 MimeBodyPart mimeBodyPart = (MimeBodyPart) multipart.getBodyPart(index);
-                HashSet<String> newDomains = scanMailForDomains(mimeBodyPart, session);
+                scanMailForDomains(mimeBodyPart, scanner, session);
+            }
+        }
+    }
 
-                // Check if new domains are found and add the domains
-                if (newDomains != null && newDomains.size() > 0) {
-                    domains.addAll(newDomains);
-                }
+    /**
+     * Return the charset of the given text part. Falls back to ISO-8859-1, which
+     * maps every byte, if none or an unsupported one is given.
+     */
+    private Charset getCharset(MimePart part) {
+        try {
+            String charset = new ContentType(part.getContentType()).getParameter("charset");
+            if (charset != null) {
+                return Charset.forName(MimeUtility.javaCharset(charset));
             }
+        } catch (MessagingException e) {
+            // use the default
+        } catch (IllegalArgumentException e) {
+            // illegal or unsupported charset name, use the default
         }
-        return domains;
+        return DEFAULT_CHARSET;
     }
 
     /**
@@ -196,9 +281,10 @@ public class URIRBLHandler implements JamesMessageHook, InitializingLifecycleAwa
         try {
             message = mail.getMessage();
 
-            HashSet<String> domains = scanMailForDomains(message, session);
+            StreamingURIScanner scanner = new StreamingURIScanner(maxScanSize, maxDomains, publicSuffixList);
+            scanMailForDomains(message, scanner, session);
 
-            for (String domain : domains) {
+            for (String domain : scanner.getDomains()) {
                 Iterator<String> uRbl = uriRbl.iterator();
                 String target = domain;
 
@@ -248,7 +334,21 @@ public class URIRBLHandler implements JamesMessageHook, InitializingLifecycleAwa
             throw new ConfigurationException("Please provide at least one server");
         }
 
-        setGetDetail(config.getBoolean("getDetail", false));        
+        setGetDetail(config.getBoolean("getDetail", false));
+        setMaxScanSize(config.getLong("maxScanSize", DEFAULT_MAX_SCAN_SIZE));
+        setMaxDomains(config.getInt("maxDomains", DEFAULT_MAX_DOMAINS));
+
+        String suffixFile = config.getString("publicSuffixList", null);
+        if (suffixFile != null) {
+            try {
+                setPublicSuffixList(PublicSuffixList.load(fileSystem.getFile(suffixFile)));
+            } catch (IOException e) {
+                throw new ConfigurationException("Unable to load public suffix list " + suffixFile, e);
+            }
+            if (serviceLog.isInfoEnabled()) {
+                serviceLog.info("Loaded " + publicSuffixList.size() + " public suffix rules from " + suffixFile);
+            }
+        }
     }
 
     @Override
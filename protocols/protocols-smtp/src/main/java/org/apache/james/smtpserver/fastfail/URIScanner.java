@@ -25,7 +25,7 @@ import java.util.HashSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.apache.james.smtpserver.TLDLookup;
+import org.apache.james.util.PublicSuffixList;
 
 public class URIScanner {
 
@@ -112,60 +112,12 @@ public class URIScanner {
     /** Simple reqular expression to match an octet part of an IP address */
     static private final String octet = "(?:[1-2][0-9][0-9])|(?:[1-9][0-9])|(?:[0-9])";
 
-    /**
-     * Simple regular expression to match a part of a domain string in the
-     * TLDLookup cache.
-     */
-    static private final String tld = "[A-Za-z0-9\\-]*";
-
-    /** Simple regular expression that matches a two-part TLD */
-    static private final String tld2 = tld + "\\." + tld;
-
-    /** Simple regular expression that matches a three-part TLD */
-    static private final String tld3 = tld + "\\." + tld + "\\." + tld;
-
-    /**
-     * Regular expression that matches and captures parts of a possible one-part
-     * TLD domain string
-     */
-    static private final String tldCap = "(" + tld + "\\.(" + tld + "))$";
-
-    /**
-     * Regular expression that matches and captures parts of a possible two-part
-     * TLD domain string
-     */
-    static private final String tld2Cap = "(" + tld + "\\.(" + tld2 + "))$";
-
-    /**
-     * Regular expression that matches and captures parts of a possible
-     * three-part TLD domain string
-     */
-    static private final String tld3Cap = "(" + tld + "\\.(" + tld3 + "))$";
-
     /** Regular expression that matches and captures parts of an IP address */
     static private final String ipCap = "((" + octet + ")\\.(" + octet + ")\\.(" + octet + ")\\.(" + octet + "))$";
 
     /** Pre-compiled pattern that matches IP addresses */
     static private final Pattern ipCapPattern = Pattern.compile(ipCap);
 
-    /**
-     * Pre-compiled pattern that matches domain string that is possibly
-     * contained in a one-part TLD
-     */
-    static private final Pattern tldCapPattern = Pattern.compile(tldCap);
-
-    /**
-     * Pre-compiled pattern that matches domain string that is possibly
-     * contained in a two-part TLD
-     */
-    static private final Pattern tld2CapPattern = Pattern.compile(tld2Cap);
-
-    /**
-     * Pre-compiled pattern that matches domain string that is possibly
-     * contained in a three-part TLD
-     */
-    static private final Pattern tld3CapPattern = Pattern.compile(tld3Cap);
-
     /**
      * <p>
      * Scans a character sequence for URIs. Then add all unique domain strings
@@ -304,12 +256,27 @@ public class URIScanner {
      * @return the registrar domain portion of the supplied host string
      */
     static protected String domainFromHost(String host) {
+        return domainFromHost(host, PublicSuffixList.getDefault());
+    }
+
+    /**
+     * Extracts and returns the registrar domain portion of a host string, using
+     * the given public suffixes.
+     * 
+     * @param host
+     *            a string containing a host name
+     * @param suffixes
+     *            the public suffixes to check
+     * @return the registrar domain portion of the supplied host string, or
+     *         null if the host is a public suffix itself
+     * @see #domainFromHost(String)
+     */
+    static protected String domainFromHost(String host, PublicSuffixList suffixes) {
         debugOut("domainFromHost(\"" + host + "\")");
-        String domain = null;
-        Matcher mat;
+        String domain;
 
         // IP addrs
-        mat = ipCapPattern.matcher(host);
+        Matcher mat = ipCapPattern.matcher(host);
         if (mat.find()) {
             // reverse the octets now
             domain = mat.group(5) + "." + mat.group(4) + "." + mat.group(3) + "." + mat.group(2);
@@ -317,36 +284,8 @@ public class URIScanner {
             return domain;
         }
 
-        // 3-part TLDs
-        mat = tld3CapPattern.matcher(host);
-        if (mat.find()) {
-            String tld = mat.group(2);
-            if (TLDLookup.isThreePartTLD(tld)) {
-                domain = mat.group(1);
-                debugOut("domain=\"" + domain + ", tld=\"" + tld + "\"");
-                return domain;
-            }
-        }
-
-        // 2-part TLDs
-        mat = tld2CapPattern.matcher(host);
-        if (mat.find()) {
-            String tld = mat.group(2);
-            if (TLDLookup.isTwoPartTLD(tld)) {
-                domain = mat.group(1);
-                debugOut("domain=\"" + domain + ", tld=\"" + tld + "\"");
-                return domain;
-            }
-        }
-
-        // 1-part TLDs
-        mat = tldCapPattern.matcher(host);
-        if (mat.find()) {
-            String tld = mat.group(2);
-            domain = mat.group(1);
-            debugOut("domain=\"" + domain + ", tld=\"" + tld + "\"");
-            return domain;
-        }
+        domain = suffixes.getRegistrableDomain(host);
+        debugOut("domain=\"" + domain + "\"");
         return domain;
     }
 
@@ -18,10 +18,27 @@
  ****************************************************************/
 package org.apache.james.smtpserver.fastfail;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
@@ -36,12 +53,39 @@ import org.apache.james.rrt.api.RecipientRewriteTable.ErrorMappingException;
 import org.apache.james.rrt.api.RecipientRewriteTableException;
 import org.apache.james.user.api.UsersRepository;
 import org.apache.james.user.api.UsersRepositoryException;
+import org.apache.james.util.BloomFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * Handler which reject invalid recipients
+ * Handler which reject invalid recipients.
+ * 
+ * The results of the lookups can be cached, with separate time to live for
+ * valid and invalid recipients. Optionally a bloom filter of all users and
+ * mapping sources is built in the background and refreshed periodically.
+ * Recipients which are not in the filter are rejected without asking the
+ * UsersRepository and RecipientRewriteTable, which keeps dictionary attacks
+ * away from the backends. Changes done through the UsersRepository and
+ * RecipientRewriteTable management MBeans clear the cache and rebuild the
+ * filter at once.
  */
 public class ValidRcptHandler extends AbstractValidRcptHandler implements InitializingLifecycleAwareProtocolHandler {
 
+    /** This log is the fall back shared by all instances */
+    private static final Logger FALLBACK_LOG = LoggerFactory.getLogger(ValidRcptHandler.class);
+
+    private static final String[] MANAGEMENT_MBEANS = { "org.apache.james:type=component,name=usersrepository", "org.apache.james:type=component,name=recipientrewritetable" };
+
+    public static final long DEFAULT_FILTER_REFRESH_INTERVAL = 10 * 60 * 1000;
+
+    public static final double DEFAULT_FILTER_FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    /**
+     * Non context specific log should only be used when no context specific log
+     * is available
+     */
+    private Logger serviceLog = FALLBACK_LOG;
+
     private UsersRepository users;
 
     private RecipientRewriteTable vut;
@@ -50,6 +94,33 @@ public class ValidRcptHandler extends AbstractValidRcptHandler implements Initia
 
     private DomainList domains;
 
+    private RecipientCache cache;
+
+    private boolean useFilter;
+
+    private long filterRefreshInterval = DEFAULT_FILTER_REFRESH_INTERVAL;
+
+    private double filterFalsePositiveProbability = DEFAULT_FILTER_FALSE_POSITIVE_PROBABILITY;
+
+    /** Current filter, null if it is not built or not usable */
+    private volatile BloomFilter filter;
+
+    private volatile boolean virtualHosting;
+
+    /** Incremented on every invalidation, a filter built before is dropped */
+    private final AtomicInteger generation = new AtomicInteger();
+
+    private ScheduledExecutorService scheduler;
+
+    private final List<ObjectName> listeningTo = new ArrayList<ObjectName>();
+
+    private final NotificationListener invalidationListener = new NotificationListener() {
+        public void handleNotification(Notification notification, Object handback) {
+            serviceLog.debug("Invalidate recipient cache: " + notification.getMessage());
+            invalidate();
+        }
+    };
+
     /**
      * Gets the users repository.
      * 
@@ -90,8 +161,59 @@ public class ValidRcptHandler extends AbstractValidRcptHandler implements Initia
         this.useVut = useVut;
     }
 
+    /**
+     * Set the cache for recipient lookups, <code>null</code> to disable
+     * caching
+     * 
+     * @param cache
+     *            the cache
+     */
+    public void setRecipientCache(RecipientCache cache) {
+        this.cache = cache;
+    }
+
+    public void setLog(Logger log) {
+        this.serviceLog = log;
+    }
+
     @Override
     protected boolean isValidRecipient(SMTPSession session, MailAddress recipient) {
+        String key = recipient.toString().toLowerCase(Locale.US);
+        RecipientCache cache = this.cache;
+        if (cache != null) {
+            Boolean valid = cache.get(key);
+            if (valid != null) {
+                return valid;
+            }
+        }
+
+        BloomFilter filter = this.filter;
+        if (filter != null && !mightBeValid(filter, recipient)) {
+            session.getLogger().debug("Recipient " + recipient + " is not in the recipient filter");
+            if (cache != null) {
+                cache.put(key, false);
+            }
+            return false;
+        }
+
+        Boolean valid = lookupRecipient(session, recipient);
+        if (valid == null) {
+            // the backend failed, do not remember that
+            return false;
+        }
+        if (cache != null) {
+            cache.put(key, valid);
+        }
+        return valid;
+    }
+
+    /**
+     * Check the recipient against the UsersRepository and the
+     * RecipientRewriteTable
+     * 
+     * @return valid or <code>null</code> if the lookup failed
+     */
+    private Boolean lookupRecipient(SMTPSession session, MailAddress recipient) {
 
         String username = recipient.toString();
 
@@ -119,7 +241,7 @@ public class ValidRcptHandler extends AbstractValidRcptHandler implements Initia
                         return false;
                     } catch (RecipientRewriteTableException e) {
                         session.getLogger().info("Unable to access RecipientRewriteTable", e);
-                        return false;
+                        return null;
                     }
                 }
 
@@ -127,8 +249,142 @@ public class ValidRcptHandler extends AbstractValidRcptHandler implements Initia
             }
         } catch (UsersRepositoryException e) {
             session.getLogger().info("Unable to access UsersRepository", e);
+            return null;
+
+        }
+    }
+
+    /**
+     * Return false if neither the user nor a mapping of the recipient is in
+     * the filter
+     */
+    private boolean mightBeValid(BloomFilter filter, MailAddress recipient) {
+        String localPart = recipient.getLocalPart().toLowerCase(Locale.US);
+        String domain = recipient.getDomain().toLowerCase(Locale.US);
+        String address = localPart + "@" + domain;
+        if (filter.mightContain(virtualHosting ? address : localPart)) {
+            return true;
+        }
+        return useVut && (filter.mightContain(address) || filter.mightContain(RecipientRewriteTable.WILDCARD + "@" + domain) || filter.mightContain(localPart + "@" + RecipientRewriteTable.WILDCARD));
+    }
+
+    /**
+     * Build a new filter of all users and mapping sources and publish it if
+     * no invalidation happened in the meantime. This is done periodically if
+     * the filter is enabled.
+     */
+    public void refreshFilter() {
+        registerInvalidationListeners();
+
+        int startGeneration = generation.get();
+        BloomFilter newFilter;
+        boolean newVirtualHosting;
+        try {
+            newVirtualHosting = users.supportVirtualHosting();
+            List<String> names = new ArrayList<String>();
+            Iterator<String> it = users.list();
+            while (it.hasNext()) {
+                names.add(it.next().toLowerCase(Locale.US));
+            }
+            Map<String, Collection<String>> mappings = null;
+            if (useVut) {
+                mappings = vut.getAllMappings();
+            }
+            newFilter = new BloomFilter(names.size() + (mappings == null ? 0 : mappings.size()), filterFalsePositiveProbability);
+            for (String name : names) {
+                newFilter.put(name);
+            }
+            if (mappings != null) {
+                for (String source : mappings.keySet()) {
+                    source = source.toLowerCase(Locale.US);
+                    // a catch all or a sql pattern can not be checked with the filter
+                    if (source.equals(RecipientRewriteTable.WILDCARD + "@" + RecipientRewriteTable.WILDCARD) || source.indexOf('%') != -1) {
+                        serviceLog.info("Mapping " + source + " matches all recipients, recipient filter disabled");
+                        publishFilter(startGeneration, null, newVirtualHosting);
+                        return;
+                    }
+                    newFilter.put(source);
+                }
+            }
+        } catch (UsersRepositoryException e) {
+            serviceLog.warn("Unable to build recipient filter", e);
+            publishFilter(startGeneration, null, false);
+            return;
+        } catch (RecipientRewriteTableException e) {
+            serviceLog.warn("Unable to build recipient filter", e);
+            publishFilter(startGeneration, null, false);
+            return;
+        }
+        if (publishFilter(startGeneration, newFilter, newVirtualHosting)) {
+            serviceLog.debug("Built recipient filter of " + newFilter.size() + " entries");
+        }
+    }
+
+    private synchronized boolean publishFilter(int startGeneration, BloomFilter newFilter, boolean newVirtualHosting) {
+        if (generation.get() != startGeneration) {
             return false;
+        }
+        virtualHosting = newVirtualHosting;
+        filter = newFilter;
+        return true;
+    }
 
+    /**
+     * Clear the cache and rebuild the filter
+     */
+    public void invalidate() {
+        synchronized (this) {
+            generation.incrementAndGet();
+            filter = null;
+        }
+        RecipientCache cache = this.cache;
+        if (cache != null) {
+            cache.clear();
+        }
+        ScheduledExecutorService scheduler = this.scheduler;
+        if (useFilter && scheduler != null && !scheduler.isShutdown()) {
+            scheduler.execute(new Runnable() {
+                public void run() {
+                    refreshFilter();
+                }
+            });
+        }
+    }
+
+    /**
+     * Listen to the notifications of the management MBeans, if they are
+     * registered already
+     */
+    private void registerInvalidationListeners() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (String name : MANAGEMENT_MBEANS) {
+            try {
+                ObjectName objectName = new ObjectName(name);
+                synchronized (listeningTo) {
+                    if (!listeningTo.contains(objectName) && server.isRegistered(objectName)) {
+                        server.addNotificationListener(objectName, invalidationListener, null, null);
+                        listeningTo.add(objectName);
+                    }
+                }
+            } catch (MalformedObjectNameException e) {
+                throw new IllegalStateException(e);
+            } catch (JMException e) {
+                serviceLog.debug("Unable to listen to " + name, e);
+            }
+        }
+    }
+
+    private void unregisterInvalidationListeners() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        synchronized (listeningTo) {
+            for (ObjectName objectName : listeningTo) {
+                try {
+                    server.removeNotificationListener(objectName, invalidationListener);
+                } catch (JMException e) {
+                    serviceLog.debug("Unable to stop listening to " + objectName, e);
+                }
+            }
+            listeningTo.clear();
         }
     }
 
@@ -150,11 +406,58 @@ public class ValidRcptHandler extends AbstractValidRcptHandler implements Initia
     @Override
     public void init(Configuration config) throws ConfigurationException {
         setRecipientRewriteTableSupport(config.getBoolean("enableRecipientRewriteTable", true));
-        
+
+        long positiveTTL = config.getLong("cache.[@positiveTTL]", 0);
+        long negativeTTL = config.getLong("cache.[@negativeTTL]", 0);
+        if (positiveTTL > 0 || negativeTTL > 0) {
+            try {
+                setRecipientCache(new RecipientCache(positiveTTL, negativeTTL, config.getInt("cache.[@maxSize]", 100000)));
+            } catch (IllegalArgumentException e) {
+                throw new ConfigurationException(e.getMessage());
+            }
+        }
+
+        useFilter = config.getBoolean("filter", false);
+        filterRefreshInterval = config.getLong("filter.[@refreshInterval]", DEFAULT_FILTER_REFRESH_INTERVAL);
+        filterFalsePositiveProbability = config.getDouble("filter.[@falsePositiveProbability]", DEFAULT_FILTER_FALSE_POSITIVE_PROBABILITY);
+        if (filterRefreshInterval < 1) {
+            throw new ConfigurationException("filter refreshInterval must be at least 1");
+        }
+        if (filterFalsePositiveProbability <= 0 || filterFalsePositiveProbability >= 1) {
+            throw new ConfigurationException("filter falsePositiveProbability must be between 0 and 1");
+        }
+
+        if (useFilter || cache != null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ValidRcptHandler");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        if (useFilter) {
+                            refreshFilter();
+                        } else {
+                            registerInvalidationListeners();
+                        }
+                    } catch (RuntimeException e) {
+                        serviceLog.warn("Unable to build recipient filter", e);
+                        publishFilter(generation.get(), null, false);
+                    }
+                }
+            }, 0, filterRefreshInterval, TimeUnit.MILLISECONDS);
+        }
     }
 
     @Override
     public void destroy() {
-        // nothing to-do
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        unregisterInvalidationListeners();
     }
 }
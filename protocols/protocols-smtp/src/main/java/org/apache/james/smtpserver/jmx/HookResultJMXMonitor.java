@@ -54,7 +54,7 @@ public class HookResultJMXMonitor implements HookResultHook, ExtensibleHandler,
         String hookName = hook.getClass().getName();
         HookStats stats = hookStats.get(hookName);
         if (stats != null) {
-            stats.increment(result.getResult());
+            stats.increment(result.getResult(), executionTime);
         }
         return result;
     }
@@ -19,6 +19,7 @@
 package org.apache.james.smtpserver.jmx;
 
 import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.InstanceAlreadyExistsException;
@@ -31,6 +32,7 @@ import javax.management.StandardMBean;
 
 import org.apache.james.lifecycle.api.Disposable;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
+import org.apache.james.util.concurrent.TaskStatistics;
 
 /**
  * JMX Bean which keep track of statistics for a given Hook
@@ -42,6 +44,7 @@ public class HookStats extends StandardMBean implements HookStatsMBean, Disposab
     private final AtomicLong deny = new AtomicLong(0);
     private final AtomicLong denysoft = new AtomicLong(0);
     private final AtomicLong all = new AtomicLong(0);
+    private final TaskStatistics times = new TaskStatistics();
 
     private String name;
     private MBeanServer mbeanserver;
@@ -56,7 +59,16 @@ public class HookStats extends StandardMBean implements HookStatsMBean, Disposab
         mbeanserver.registerMBean(this, baseObjectName);
     }
 
-    public void increment(int code) {
+    /**
+     * Increment the stats
+     * 
+     * @param code
+     *            the return code of the hook
+     * @param executionTime
+     *            the execution time of the hook (in ms)
+     */
+    public void increment(int code, long executionTime) {
+        times.record(executionTime, TimeUnit.MILLISECONDS);
         if ((code & HookReturnCode.OK) == HookReturnCode.OK) {
             ok.incrementAndGet();
         }
@@ -125,4 +137,32 @@ public class HookStats extends StandardMBean implements HookStatsMBean, Disposab
     public long getAll() {
         return all.get();
     }
+
+    /**
+     * @see org.apache.james.smtpserver.jmx.HookStatsMBean#getAverageTime()
+     */
+    public double getAverageTime() {
+        return times.getAverageTime();
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.jmx.HookStatsMBean#getMedianTime()
+     */
+    public double getMedianTime() {
+        return times.getPercentile(0.5);
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.jmx.HookStatsMBean#getTimePercentile99()
+     */
+    public double getTimePercentile99() {
+        return times.getPercentile(0.99);
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.jmx.HookStatsMBean#getMaximalTime()
+     */
+    public double getMaximalTime() {
+        return times.getMaxTime();
+    }
 }
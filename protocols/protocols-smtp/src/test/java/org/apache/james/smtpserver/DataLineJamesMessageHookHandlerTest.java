@@ -0,0 +1,278 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.james.core.MimeMessageInputStreamSource;
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.logger.Logger;
+import org.apache.james.protocols.api.logger.ProtocolLoggerAdapter;
+import org.apache.james.protocols.smtp.SMTPRetCode;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.hook.HookResult;
+import org.apache.james.protocols.smtp.hook.HookReturnCode;
+import org.apache.james.protocols.smtp.hook.MessageHook;
+import org.apache.james.protocols.smtp.utils.BaseFakeSMTPSession;
+import org.apache.james.smtpserver.mock.mailet.MockMail;
+import org.apache.mailet.Mail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.helpers.NOPLogger;
+
+public class DataLineJamesMessageHookHandlerTest {
+
+    private MimeMessageInputStreamSource mmiss;
+    private SMTPSession session;
+    private DataLineJamesMessageHookHandler handler;
+
+    @Before
+    public void setUp() throws Exception {
+        mmiss = new MimeMessageInputStreamSource("test");
+        session = new BaseFakeSMTPSession() {
+
+            @Override
+            public Object getAttachment(String key, State state) {
+                if (SMTPConstants.DATA_MIMEMESSAGE_STREAMSOURCE.equals(key)) {
+                    return mmiss;
+                }
+                return null;
+            }
+
+            @Override
+            public Logger getLogger() {
+                return new ProtocolLoggerAdapter(NOPLogger.NOP_LOGGER);
+            }
+
+            @Override
+            public void resetState() {
+            }
+        };
+        handler = new DataLineJamesMessageHookHandler();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        handler.destroy();
+        LifecycleUtil.dispose(mmiss);
+    }
+
+    /**
+     * Hook which takes some time, sets an attribute and records its call and
+     * the message it saw
+     */
+    private class SlowHook implements JamesMessageHook {
+        private final String name;
+        private final HookReturnCode code;
+        private volatile boolean called;
+        private volatile boolean finished;
+        private volatile MimeMessage message;
+
+        private SlowHook(String name, HookReturnCode code) {
+            this.name = name;
+            this.code = code;
+        }
+
+        public HookResult onMessage(SMTPSession session, Mail mail) {
+            called = true;
+            try {
+                message = mail.getMessage();
+                Thread.sleep(300);
+            } catch (MessagingException e) {
+                throw new RuntimeException(e);
+            } catch (InterruptedException e) {
+                return new HookResult(HookReturnCode.DECLINED);
+            } finally {
+                finished = true;
+            }
+            mail.setAttribute(name, name);
+            return new HookResult(code);
+        }
+    }
+
+    private class ConcurrentSlowHook extends SlowHook implements ConcurrentJamesMessageHook {
+        private ConcurrentSlowHook(String name, HookReturnCode code) {
+            super(name, code);
+        }
+    }
+
+    private String content() throws IOException {
+        mmiss.getWritableOutputStream().flush();
+        return IOUtils.toString(mmiss.getInputStream(), "US-ASCII");
+    }
+
+    private static ByteBuffer heapLine(String line) throws IOException {
+        return ByteBuffer.wrap(line.getBytes("US-ASCII"));
+    }
+
+    private static ByteBuffer directLine(String line) throws IOException {
+        byte[] bytes = line.getBytes("US-ASCII");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void testConcurrentHooksOverlap() throws Exception {
+        List<JamesMessageHook> hooks = new ArrayList<JamesMessageHook>();
+        hooks.add(new ConcurrentSlowHook("first", HookReturnCode.DECLINED));
+        hooks.add(new SlowHook("second", HookReturnCode.DECLINED));
+        hooks.add(new ConcurrentSlowHook("third", HookReturnCode.DECLINED));
+        handler.wireExtensions(JamesMessageHook.class, hooks);
+        handler.wireExtensions(MessageHook.class, new ArrayList<MessageHook>());
+
+        MockMail mail = new MockMail();
+        long start = System.currentTimeMillis();
+        assertNull(handler.processExtensions(session, mail));
+        long time = System.currentTimeMillis() - start;
+
+        // run one after the other the hooks take 900ms
+        assertTrue("Took " + time + "ms", time < 800);
+        assertEquals("first", mail.getAttribute("first"));
+        assertEquals("second", mail.getAttribute("second"));
+        assertEquals("third", mail.getAttribute("third"));
+    }
+
+    @Test
+    public void testFirstResponseInChainOrderWins() throws Exception {
+        SlowHook last = new SlowHook("last", HookReturnCode.DECLINED);
+        List<JamesMessageHook> hooks = new ArrayList<JamesMessageHook>();
+        hooks.add(new SlowHook("first", HookReturnCode.DECLINED));
+        hooks.add(new ConcurrentSlowHook("deny", HookReturnCode.DENY));
+        hooks.add(new ConcurrentSlowHook("denysoft", HookReturnCode.DENYSOFT));
+        hooks.add(last);
+        handler.wireExtensions(JamesMessageHook.class, hooks);
+        handler.wireExtensions(MessageHook.class, new ArrayList<MessageHook>());
+
+        MockMail mail = new MockMail();
+        Response response = handler.processExtensions(session, mail);
+
+        assertEquals(SMTPRetCode.TRANSACTION_FAILED, response.getRetCode());
+        assertEquals("deny", mail.getAttribute("deny"));
+        // the hooks after the deny take no effect
+        assertNull(mail.getAttribute("denysoft"));
+        assertFalse(last.called);
+    }
+
+    @Test
+    public void testStartedHooksFinishBeforeTheMailIsDisposed() throws Exception {
+        ConcurrentSlowHook late = new ConcurrentSlowHook("late", HookReturnCode.DECLINED);
+        List<JamesMessageHook> hooks = new ArrayList<JamesMessageHook>();
+        hooks.add(new SlowHook("deny", HookReturnCode.DENY));
+        hooks.add(late);
+        handler.wireExtensions(JamesMessageHook.class, hooks);
+        handler.wireExtensions(MessageHook.class, new ArrayList<MessageHook>());
+
+        MockMail mail = new MockMail();
+        Response response = handler.processExtensions(session, mail);
+
+        assertEquals(SMTPRetCode.TRANSACTION_FAILED, response.getRetCode());
+        assertTrue(late.called);
+        assertTrue(late.finished);
+        assertNull(mail.getAttribute("late"));
+    }
+
+    @Test
+    public void testConcurrentHooksGetTheirOwnMessage() throws Exception {
+        ConcurrentSlowHook first = new ConcurrentSlowHook("first", HookReturnCode.DECLINED);
+        ConcurrentSlowHook second = new ConcurrentSlowHook("second", HookReturnCode.DECLINED);
+        List<JamesMessageHook> hooks = new ArrayList<JamesMessageHook>();
+        hooks.add(first);
+        hooks.add(second);
+        handler.wireExtensions(JamesMessageHook.class, hooks);
+        handler.wireExtensions(MessageHook.class, new ArrayList<MessageHook>());
+
+        MimeMessage message = new MimeMessage(Session.getDefaultInstance(new Properties()));
+        MockMail mail = new MockMail();
+        mail.setMessage(message);
+        assertNull(handler.processExtensions(session, mail));
+
+        assertNotSame(message, first.message);
+        assertNotSame(message, second.message);
+        assertNotSame(first.message, second.message);
+    }
+
+    @Test
+    public void testHeapLinesAreWritten() throws Exception {
+        assertNull(handler.onLine(session, heapLine("Subject: test\r\n"), null));
+        assertNull(handler.onLine(session, heapLine("\r\n"), null));
+        assertNull(handler.onLine(session, heapLine("body\r\n"), null));
+
+        assertEquals("Subject: test\r\n\r\nbody\r\n", content());
+    }
+
+    @Test
+    public void testDirectLinesAreWritten() throws Exception {
+        assertNull(handler.onLine(session, directLine("Subject: test\r\n"), null));
+        assertNull(handler.onLine(session, directLine("\r\n"), null));
+        assertNull(handler.onLine(session, directLine("body\r\n"), null));
+
+        assertEquals("Subject: test\r\n\r\nbody\r\n", content());
+    }
+
+    @Test
+    public void testDotStuffingIsRemoved() throws Exception {
+        assertNull(handler.onLine(session, heapLine("..leading dot\r\n"), null));
+        assertNull(handler.onLine(session, directLine("...\r\n"), null));
+        assertNull(handler.onLine(session, heapLine(".single\r\n"), null));
+
+        assertEquals(".leading dot\r\n..\r\n.single\r\n", content());
+    }
+
+    @Test
+    public void testSlicedLineHonorsBufferOffsets() throws Exception {
+        byte[] frame = "xxx..line\r\nyyy".getBytes("US-ASCII");
+        ByteBuffer line = ByteBuffer.wrap(frame, 3, 8).slice();
+
+        assertNull(handler.onLine(session, line, null));
+
+        assertEquals(".line\r\n", content());
+    }
+
+    @Test
+    public void testLargeDirectLineIsWrittenCompletely() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        builder.append("\r\n");
+
+        assertNull(handler.onLine(session, directLine(builder.toString()), null));
+
+        assertEquals(builder.toString(), content());
+    }
+}
@@ -0,0 +1,112 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import java.nio.ByteBuffer;
+
+import org.apache.james.core.MimeMessageInputStreamSource;
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.utils.BaseFakeSMTPSession;
+
+/**
+ * Measures the throughput of the DATA line path for messages from 10KB to
+ * 50MB. The lines are handed to {@link DataLineJamesMessageHookHandler} as
+ * views on one big frame buffer, the same way the netty decoder does, so only
+ * the cost of un-dot-stuffing and spooling is measured.
+ *
+ * This is not run as part of the test suite, start it with
+ * <code>java org.apache.james.smtpserver.DataLineThroughputBenchmark [heap|direct]</code>
+ */
+public class DataLineThroughputBenchmark {
+
+    private static final int[] SIZES = { 10 * 1024, 100 * 1024, 1024 * 1024, 10 * 1024 * 1024, 50 * 1024 * 1024 };
+
+    private static final int WARMUP_ROUNDS = 3;
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        boolean direct = args.length > 0 && "direct".equals(args[0]);
+        DataLineJamesMessageHookHandler handler = new DataLineJamesMessageHookHandler();
+
+        for (int size : SIZES) {
+            ByteBuffer frame = createMessage(size, direct);
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                run(handler, frame);
+            }
+            long elapsed = 0;
+            for (int i = 0; i < ROUNDS; i++) {
+                elapsed += run(handler, frame);
+            }
+            double seconds = elapsed / 1000000000d / ROUNDS;
+            System.out.println(String.format("%10d bytes: %10.3f ms/message %10.2f MB/s", size, seconds * 1000, size / seconds / (1024 * 1024)));
+        }
+    }
+
+    private static long run(DataLineJamesMessageHookHandler handler, ByteBuffer frame) throws Exception {
+        final MimeMessageInputStreamSource mmiss = new MimeMessageInputStreamSource("benchmark");
+        SMTPSession session = new BaseFakeSMTPSession() {
+
+            @Override
+            public Object getAttachment(String key, State state) {
+                return mmiss;
+            }
+        };
+        try {
+            long start = System.nanoTime();
+            int lineStart = 0;
+            int end = frame.limit();
+            for (int i = 0; i < end; i++) {
+                if (frame.get(i) == '\n') {
+                    ByteBuffer line = frame.duplicate();
+                    line.limit(i + 1);
+                    line.position(lineStart);
+                    handler.onLine(session, line, null);
+                    lineStart = i + 1;
+                }
+            }
+            mmiss.getWritableOutputStream().flush();
+            return System.nanoTime() - start;
+        } finally {
+            LifecycleUtil.dispose(mmiss);
+        }
+    }
+
+    private static ByteBuffer createMessage(int size, boolean direct) {
+        ByteBuffer frame = direct ? ByteBuffer.allocateDirect(size + 80) : ByteBuffer.allocate(size + 80);
+        byte[] header = "Subject: benchmark\r\n\r\n".getBytes();
+        frame.put(header);
+        int lineNumber = 0;
+        while (frame.position() < size) {
+            // Every 10th line starts with a dot to exercise the dot-stuffing path
+            if (lineNumber++ % 10 == 0) {
+                frame.put((byte) '.');
+                frame.put((byte) '.');
+            }
+            for (int i = 0; i < 74; i++) {
+                frame.put((byte) ('A' + i % 26));
+            }
+            frame.put((byte) '\r');
+            frame.put((byte) '\n');
+        }
+        frame.flip();
+        return frame;
+    }
+}
@@ -0,0 +1,168 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import java.net.InetSocketAddress;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.james.protocols.api.logger.Logger;
+import org.apache.james.protocols.api.logger.ProtocolLoggerAdapter;
+import org.apache.james.protocols.smtp.MailAddress;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.utils.BaseFakeSMTPSession;
+import org.apache.james.smtpserver.fastfail.GreylistTriplet;
+import org.apache.james.smtpserver.fastfail.JDBCGreylistHandler;
+import org.apache.james.smtpserver.fastfail.JDBCGreylistStore;
+import org.apache.james.smtpserver.fastfail.MemoryGreylistStore;
+import org.apache.james.util.concurrent.TaskStatistics;
+import org.slf4j.LoggerFactory;
+import org.slf4j.helpers.NOPLogger;
+
+/**
+ * Drives {@link JDBCGreylistHandler} with a {@link MemoryGreylistStore} at a
+ * fixed rate of RCPT commands (10000/s by default) from several threads and
+ * reports the reached rate and the latency of the RCPT hook. The database is
+ * replaced by a write-behind target which sleeps for the given milliseconds
+ * per batch, to check that a slow database does not slow down RCPT.
+ * 
+ * This is not run as part of the test suite, start it with
+ * <code>java org.apache.james.smtpserver.GreylistLoadBenchmark [rcptPerSecond] [seconds] [threads] [batchLatencyMs]</code>
+ */
+public class GreylistLoadBenchmark {
+
+    private static final int TRIPLETS = 100000;
+
+    private static final int IPS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        int rate = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        final long batchLatency = args.length > 3 ? Long.parseLong(args[3]) : 20;
+
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong batches = new AtomicLong();
+        JDBCGreylistStore persistence = new JDBCGreylistStore(null, null, null, null, null, null, null, LoggerFactory.getLogger(GreylistLoadBenchmark.class)) {
+
+            @Override
+            public List<GreylistTriplet> loadAll() throws SQLException {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public void writeBatch(Collection<GreylistTriplet> inserts, Collection<GreylistTriplet> updates, long unseenBefore, long autoWhiteListBefore) throws SQLException {
+                try {
+                    Thread.sleep(batchLatency);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                rows.addAndGet(inserts.size() + updates.size());
+                batches.incrementAndGet();
+            }
+        };
+        MemoryGreylistStore store = new MemoryGreylistStore(MemoryGreylistStore.DEFAULT_SHARDS, 4 * 60 * 60 * 1000L, 36 * 24 * 60 * 60 * 1000L, persistence, 1000, MemoryGreylistStore.DEFAULT_BATCH_SIZE,
+                LoggerFactory.getLogger(GreylistLoadBenchmark.class));
+        store.start();
+
+        final JDBCGreylistHandler handler = new JDBCGreylistHandler();
+        handler.setTempBlockTime("1 secs");
+        handler.setUnseenLifeTime("4 hours");
+        handler.setAutoWhiteListLifeTime("36 days");
+        handler.setGreylistStore(store);
+
+        final SMTPSession[] sessions = new SMTPSession[IPS];
+        for (int i = 0; i < IPS; i++) {
+            sessions[i] = createSession("10." + (i >> 8 & 0xff) + "." + (i & 0xff) + ".1");
+        }
+        final MailAddress[] senders = new MailAddress[TRIPLETS];
+        final MailAddress[] rcpts = new MailAddress[TRIPLETS];
+        for (int i = 0; i < TRIPLETS; i++) {
+            senders[i] = new MailAddress("sender" + (i % 1000) + "@example" + (i % 97) + ".com");
+            rcpts[i] = new MailAddress("user" + i + "@localhost");
+        }
+
+        final TaskStatistics statistics = new TaskStatistics();
+        final long intervalNanos = TimeUnit.SECONDS.toNanos(1) * threads / rate;
+        final long commandsPerThread = (long) rate * seconds / threads;
+        final CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            final long threadStart = start;
+            new Thread("greylist-load-" + t) {
+                public void run() {
+                    try {
+                        for (long i = 0; i < commandsPerThread; i++) {
+                            // open loop, each command has its own start time
+                            long due = threadStart + i * intervalNanos;
+                            long wait = due - System.nanoTime();
+                            if (wait > 0) {
+                                LockSupport.parkNanos(wait);
+                            }
+                            int n = (int) ((i * 7919 + offset * 104729) % TRIPLETS);
+                            statistics.taskStarted();
+                            handler.doRcpt(sessions[n % IPS], senders[n], rcpts[n]);
+                            statistics.taskCompleted();
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+        double elapsed = (System.nanoTime() - start) / 1000000000d;
+        int pending = store.getPendingWrites();
+        store.stop();
+
+        System.out.println(String.format("target %d RCPT/s, reached %.0f RCPT/s with %d threads", rate, statistics.getTaskCount() / elapsed, threads));
+        System.out.println(String.format("RCPT latency avg %.3f ms, p50 %.3f ms, p99 %.3f ms, max %.3f ms", statistics.getAverageTime(), statistics.getPercentile(0.5), statistics.getPercentile(0.99),
+                statistics.getMaxTime()));
+        System.out.println(String.format("%d triplets, %d rows written in %d batches, %d pending before stop", store.size(), rows.get(), batches.get(), pending));
+    }
+
+    private static SMTPSession createSession(final String ip) {
+        final Logger logger = new ProtocolLoggerAdapter(NOPLogger.NOP_LOGGER);
+        final InetSocketAddress address = new InetSocketAddress(ip, 25);
+        return new BaseFakeSMTPSession() {
+
+            @Override
+            public InetSocketAddress getRemoteAddress() {
+                return address;
+            }
+
+            @Override
+            public boolean isRelayingAllowed() {
+                return false;
+            }
+
+            @Override
+            public Logger getLogger() {
+                return logger;
+            }
+        };
+    }
+}
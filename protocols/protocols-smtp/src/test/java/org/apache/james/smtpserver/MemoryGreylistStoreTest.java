@@ -0,0 +1,266 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.james.smtpserver.fastfail.GreylistTriplet;
+import org.apache.james.smtpserver.fastfail.JDBCGreylistStore;
+import org.apache.james.smtpserver.fastfail.MemoryGreylistStore;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class MemoryGreylistStoreTest {
+
+    private final class RecordingPersistence extends JDBCGreylistStore {
+        private final List<GreylistTriplet> loaded = new ArrayList<GreylistTriplet>();
+        private final List<GreylistTriplet> inserts = new ArrayList<GreylistTriplet>();
+        private final List<GreylistTriplet> updates = new ArrayList<GreylistTriplet>();
+        private final List<GreylistTriplet> rows = new ArrayList<GreylistTriplet>();
+        private final List<Long> unseenDeletes = new ArrayList<Long>();
+        private int batches;
+        private boolean fail;
+        private boolean failBatches;
+        private String badSender;
+        private String rowFailureState;
+
+        private RecordingPersistence() {
+            super(null, null, null, null, null, null, null, LoggerFactory.getLogger(MemoryGreylistStoreTest.class));
+        }
+
+        @Override
+        public List<GreylistTriplet> loadAll() throws SQLException {
+            return loaded;
+        }
+
+        @Override
+        public void writeBatch(Collection<GreylistTriplet> inserts, Collection<GreylistTriplet> updates, long unseenBefore, long autoWhiteListBefore) throws SQLException {
+            if (fail || failBatches) {
+                fail = false;
+                throw new SQLException("test");
+            }
+            batches++;
+            this.inserts.addAll(inserts);
+            this.updates.addAll(updates);
+            if (unseenBefore > 0) {
+                unseenDeletes.add(unseenBefore);
+            }
+        }
+
+        @Override
+        public void write(GreylistTriplet triplet) throws SQLException {
+            if (rowFailureState != null && (badSender == null || badSender.equals(triplet.getSender()))) {
+                throw new SQLException("test", rowFailureState);
+            }
+            rows.add(triplet);
+        }
+
+        @Override
+        public void removeUnseen(long before) throws SQLException {
+            unseenDeletes.add(before);
+        }
+
+        @Override
+        public void removeAutoWhiteListed(long before) throws SQLException {
+        }
+    }
+
+    private MemoryGreylistStore createStore(RecordingPersistence persistence, int batchSize) {
+        return new MemoryGreylistStore(4, 0, 0, persistence, 1000, batchSize, LoggerFactory.getLogger(MemoryGreylistStoreTest.class));
+    }
+
+    @Test
+    public void testInsertUpdate() {
+        MemoryGreylistStore store = createStore(null, 10);
+        assertNull(store.get("127.0.0.1", "sender@localhost", "rcpt@localhost"));
+
+        store.insert(new GreylistTriplet("127.0.0.1", "sender@localhost", "rcpt@localhost", 0, 1000));
+        GreylistTriplet triplet = store.get("127.0.0.1", "sender@localhost", "rcpt@localhost");
+        assertNotNull(triplet);
+        assertEquals(0, triplet.getCount());
+        assertEquals(1000, triplet.getCreateTime());
+
+        store.update(new GreylistTriplet("127.0.0.1", "sender@localhost", "rcpt@localhost", 1, 2000));
+        triplet = store.get("127.0.0.1", "sender@localhost", "rcpt@localhost");
+        assertEquals(1, triplet.getCount());
+        assertEquals(2000, triplet.getCreateTime());
+
+        assertNull(store.get("127.0.0.1", "", "rcpt@localhost"));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testRemove() {
+        MemoryGreylistStore store = createStore(null, 10);
+        store.insert(new GreylistTriplet("127.0.0.1", "unseen@localhost", "rcpt@localhost", 0, 1000));
+        store.insert(new GreylistTriplet("127.0.0.1", "seen@localhost", "rcpt@localhost", 1, 1000));
+        store.insert(new GreylistTriplet("127.0.0.1", "recent@localhost", "rcpt@localhost", 1, 5000));
+
+        store.removeUnseen(2000);
+        assertNull(store.get("127.0.0.1", "unseen@localhost", "rcpt@localhost"));
+        assertNotNull(store.get("127.0.0.1", "seen@localhost", "rcpt@localhost"));
+
+        store.removeAutoWhiteListed(2000);
+        assertNull(store.get("127.0.0.1", "seen@localhost", "rcpt@localhost"));
+        assertNotNull(store.get("127.0.0.1", "recent@localhost", "rcpt@localhost"));
+
+        assertEquals(3, store.size());
+        store.sweep();
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testLifeTime() {
+        long now = System.currentTimeMillis();
+        MemoryGreylistStore store = new MemoryGreylistStore(4, 60000, 3600000, LoggerFactory.getLogger(MemoryGreylistStoreTest.class));
+        store.insert(new GreylistTriplet("127.0.0.1", "unseen@localhost", "rcpt@localhost", 0, now - 120000));
+        store.insert(new GreylistTriplet("127.0.0.1", "seen@localhost", "rcpt@localhost", 1, now - 120000));
+        store.insert(new GreylistTriplet("127.0.0.1", "old@localhost", "rcpt@localhost", 3, now - 7200000));
+
+        assertNull(store.get("127.0.0.1", "unseen@localhost", "rcpt@localhost"));
+        assertNotNull(store.get("127.0.0.1", "seen@localhost", "rcpt@localhost"));
+        assertNull(store.get("127.0.0.1", "old@localhost", "rcpt@localhost"));
+        store.sweep();
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testWriteBehindCoalesces() {
+        RecordingPersistence persistence = new RecordingPersistence();
+        MemoryGreylistStore store = createStore(persistence, 10);
+        store.insert(new GreylistTriplet("127.0.0.1", "sender@localhost", "rcpt@localhost", 0, 1000));
+        store.update(new GreylistTriplet("127.0.0.1", "sender@localhost", "rcpt@localhost", 1, 2000));
+        assertEquals(1, store.getPendingWrites());
+
+        store.flush();
+        assertEquals(0, store.getPendingWrites());
+        assertEquals(1, persistence.inserts.size());
+        assertEquals(1, persistence.inserts.get(0).getCount());
+        assertEquals(2000, persistence.inserts.get(0).getCreateTime());
+        assertEquals(0, persistence.updates.size());
+
+        store.update(new GreylistTriplet("127.0.0.1", "sender@localhost", "rcpt@localhost", 2, 3000));
+        store.flush();
+        assertEquals(1, persistence.inserts.size());
+        assertEquals(1, persistence.updates.size());
+        assertEquals(2, persistence.updates.get(0).getCount());
+
+        // nothing changed, nothing written
+        store.flush();
+        assertEquals(2, persistence.batches);
+    }
+
+    @Test
+    public void testWriteBehindBatches() {
+        RecordingPersistence persistence = new RecordingPersistence();
+        MemoryGreylistStore store = createStore(persistence, 10);
+        for (int i = 0; i < 25; i++) {
+            store.insert(new GreylistTriplet("127.0.0.1", "sender" + i + "@localhost", "rcpt@localhost", 0, 1000));
+        }
+        store.flush();
+        assertEquals(3, persistence.batches);
+        assertEquals(25, persistence.inserts.size());
+    }
+
+    @Test
+    public void testWriteBehindRetry() {
+        RecordingPersistence persistence = new RecordingPersistence();
+        MemoryGreylistStore store = createStore(persistence, 10);
+        store.insert(new GreylistTriplet("127.0.0.1", "sender@localhost", "rcpt@localhost", 0, 1000));
+        persistence.fail = true;
+        // the database is not available, so the row is kept without counting a failure
+        persistence.rowFailureState = "08001";
+        for (int i = 0; i < MemoryGreylistStore.MAX_WRITE_ATTEMPTS + 1; i++) {
+            persistence.fail = true;
+            store.flush();
+            assertEquals(1, store.getPendingWrites());
+        }
+        assertEquals(0, persistence.inserts.size());
+
+        persistence.rowFailureState = null;
+        store.flush();
+        assertEquals(0, store.getPendingWrites());
+        assertEquals(1, persistence.inserts.size() + persistence.updates.size());
+    }
+
+    @Test
+    public void testBadTripletDoesNotBlockOthers() {
+        RecordingPersistence persistence = new RecordingPersistence();
+        MemoryGreylistStore store = createStore(persistence, 10);
+        store.insert(new GreylistTriplet("127.0.0.1", "bad@localhost", "rcpt@localhost", 0, 1000));
+        store.insert(new GreylistTriplet("127.0.0.1", "sender@localhost", "rcpt@localhost", 0, 1000));
+        persistence.failBatches = true;
+        persistence.badSender = "bad@localhost";
+        persistence.rowFailureState = "22001";
+
+        store.flush();
+        assertEquals(1, persistence.rows.size());
+        assertEquals("sender@localhost", persistence.rows.get(0).getSender());
+        assertEquals(1, store.getPendingWrites());
+
+        for (int i = 1; i < MemoryGreylistStore.MAX_WRITE_ATTEMPTS; i++) {
+            store.flush();
+        }
+        // given up, but still in memory
+        assertEquals(0, store.getPendingWrites());
+        assertNotNull(store.get("127.0.0.1", "bad@localhost", "rcpt@localhost"));
+    }
+
+    @Test
+    public void testStartDeletesExpiredRows() throws Exception {
+        RecordingPersistence persistence = new RecordingPersistence();
+        persistence.loaded.add(new GreylistTriplet("127.0.0.1", "sender@localhost", "rcpt@localhost", 0, 1000));
+        MemoryGreylistStore store = new MemoryGreylistStore(4, 60000, 0, persistence, 1000, 10, LoggerFactory.getLogger(MemoryGreylistStoreTest.class));
+        store.start();
+        try {
+            assertEquals(0, store.size());
+            assertEquals(1, persistence.unseenDeletes.size());
+        } finally {
+            store.stop();
+        }
+    }
+
+    @Test
+    public void testWriteBehindDeletes() throws Exception {
+        RecordingPersistence persistence = new RecordingPersistence();
+        persistence.loaded.add(new GreylistTriplet("127.0.0.1", "sender@localhost", "rcpt@localhost", 0, 1000));
+        MemoryGreylistStore store = createStore(persistence, 10);
+        store.start();
+        try {
+            assertNotNull(store.get("127.0.0.1", "sender@localhost", "rcpt@localhost"));
+
+            store.removeUnseen(2000);
+            store.sweep();
+            assertEquals(0, store.size());
+            store.flush();
+            assertEquals(1, persistence.unseenDeletes.size());
+            assertEquals(2000, persistence.unseenDeletes.get(0).longValue());
+            assertEquals(0, persistence.inserts.size());
+        } finally {
+            store.stop();
+        }
+    }
+}
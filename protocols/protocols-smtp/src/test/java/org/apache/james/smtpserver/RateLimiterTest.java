@@ -0,0 +1,125 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.james.smtpserver.fastfail.RateLimiter;
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+    private final class ManualClockRateLimiter extends RateLimiter {
+        private long now = 1000000;
+
+        private ManualClockRateLimiter(double permitsPerMinute, int burst, int maxKeys) {
+            super(permitsPerMinute, burst, maxKeys, 3);
+        }
+
+        @Override
+        protected long now() {
+            return now;
+        }
+    }
+
+    @Test
+    public void testBurstThenDeny() {
+        ManualClockRateLimiter limiter = new ManualClockRateLimiter(60, 3, 100);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.acquire("ip:1.2.3.4", 0));
+        }
+        assertEquals(-1, limiter.acquire("ip:1.2.3.4", 0));
+        assertEquals(1, limiter.getDeniedCount());
+
+        // other keys have their own bucket
+        assertEquals(0, limiter.acquire("ip:1.2.3.5", 0));
+    }
+
+    @Test
+    public void testRefill() {
+        ManualClockRateLimiter limiter = new ManualClockRateLimiter(60, 2, 100);
+        assertEquals(0, limiter.acquire("key", 0));
+        assertEquals(0, limiter.acquire("key", 0));
+        assertEquals(-1, limiter.acquire("key", 0));
+
+        // one permit per second
+        limiter.now += 1000;
+        assertEquals(0, limiter.acquire("key", 0));
+        assertEquals(-1, limiter.acquire("key", 0));
+
+        // never more than the burst
+        limiter.now += 60000;
+        assertEquals(0, limiter.acquire("key", 0));
+        assertEquals(0, limiter.acquire("key", 0));
+        assertEquals(-1, limiter.acquire("key", 0));
+    }
+
+    @Test
+    public void testTarpitDelay() {
+        ManualClockRateLimiter limiter = new ManualClockRateLimiter(60, 1, 100);
+        assertEquals(0, limiter.acquire("key", 5000));
+        assertEquals(1000, limiter.acquire("key", 5000));
+        // the delayed permit was reserved, so the next one is due later
+        assertEquals(2000, limiter.acquire("key", 5000));
+        assertEquals(-1, limiter.acquire("key", 1500));
+        assertEquals(2, limiter.getDelayedCount());
+        assertEquals(1, limiter.getDeniedCount());
+    }
+
+    @Test
+    public void testBoundedKeys() {
+        ManualClockRateLimiter limiter = new ManualClockRateLimiter(60, 1, 10);
+        for (int i = 0; i < 100; i++) {
+            limiter.now++;
+            limiter.acquire("ip:10.0.0." + i, 0);
+            assertTrue(limiter.getTrackedKeys() <= 10);
+        }
+    }
+
+    @Test
+    public void testIdleKeysAreEvictedFirst() {
+        ManualClockRateLimiter limiter = new ManualClockRateLimiter(60, 1, 3);
+        limiter.acquire("idle", 0);
+        limiter.now += 2000;
+        limiter.acquire("busy1", 0);
+        limiter.acquire("busy2", 0);
+        limiter.acquire("new", 0);
+        // busy keys are still exhausted
+        assertEquals(-1, limiter.acquire("busy1", 0));
+        assertEquals(-1, limiter.acquire("busy2", 0));
+        assertEquals(3, limiter.getTrackedKeys());
+    }
+
+    @Test
+    public void testTopOffenders() {
+        ManualClockRateLimiter limiter = new ManualClockRateLimiter(60, 1, 100);
+        String[] keys = { "a", "b", "c", "d" };
+        for (int i = 0; i < keys.length; i++) {
+            for (int j = 0; j <= i + 1; j++) {
+                limiter.acquire(keys[i], 0);
+            }
+        }
+        String[] top = limiter.getTopOffenders();
+        assertEquals(3, top.length);
+        assertEquals("d 4", top[0]);
+        assertEquals("c 3", top[1]);
+        assertEquals("b 2", top[2]);
+    }
+}
@@ -0,0 +1,82 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.james.smtpserver.fastfail.RecipientCache;
+import org.junit.Test;
+
+public class RecipientCacheTest {
+
+    private final class ManualClockRecipientCache extends RecipientCache {
+        private long now = 1000000;
+
+        private ManualClockRecipientCache(long positiveTTL, long negativeTTL, int maxSize) {
+            super(positiveTTL, negativeTTL, maxSize);
+        }
+
+        @Override
+        protected long now() {
+            return now;
+        }
+    }
+
+    @Test
+    public void testTTL() {
+        ManualClockRecipientCache cache = new ManualClockRecipientCache(1000, 100, 10);
+        cache.put("valid@localhost", true);
+        cache.put("invalid@localhost", false);
+        assertEquals(Boolean.TRUE, cache.get("valid@localhost"));
+        assertEquals(Boolean.FALSE, cache.get("invalid@localhost"));
+        assertNull(cache.get("unknown@localhost"));
+
+        cache.now += 100;
+        assertEquals(Boolean.TRUE, cache.get("valid@localhost"));
+        assertNull(cache.get("invalid@localhost"));
+
+        cache.now += 900;
+        assertNull(cache.get("valid@localhost"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testDisabledTTL() {
+        ManualClockRecipientCache cache = new ManualClockRecipientCache(1000, 0, 10);
+        cache.put("invalid@localhost", false);
+        assertNull(cache.get("invalid@localhost"));
+    }
+
+    @Test
+    public void testEvictInvalidFirst() {
+        ManualClockRecipientCache cache = new ManualClockRecipientCache(1000, 1000, 4);
+        cache.put("valid1@localhost", true);
+        cache.put("valid2@localhost", true);
+        cache.put("invalid1@localhost", false);
+        cache.put("invalid2@localhost", false);
+
+        cache.put("invalid3@localhost", false);
+        assertEquals(Boolean.TRUE, cache.get("valid1@localhost"));
+        assertEquals(Boolean.TRUE, cache.get("valid2@localhost"));
+        assertNull(cache.get("invalid1@localhost"));
+        assertEquals(Boolean.FALSE, cache.get("invalid3@localhost"));
+        assertEquals(3, cache.size());
+    }
+}
@@ -432,6 +432,34 @@ public class SMTPServerTest {
         assertNotNull("mail received by mail server", queue.getLastMail());
     }
 
+    @Test
+    public void testSimpleMailSendWithDirectBuffers() throws Exception {
+        smtpConfiguration.addProperty("bufferFactory", "direct");
+        smtpConfiguration.addProperty("minReadBufferSize", 16);
+        smtpConfiguration.addProperty("initialReadBufferSize", 16);
+        smtpConfiguration.addProperty("maxReadBufferSize", 128);
+        init(smtpConfiguration);
+
+        SMTPClient smtpProtocol = new SMTPClient();
+        smtpProtocol.connect("127.0.0.1", smtpListenerPort);
+
+        smtpProtocol.sendCommand("EHLO " + InetAddress.getLocalHost());
+        smtpProtocol.setSender("mail@localhost");
+        smtpProtocol.addRecipient("mail@localhost");
+
+        StringBuilder body = new StringBuilder("Subject: test\r\n\r\n");
+        for (int i = 0; i < 1000; i++) {
+            body.append("Line ").append(i).append(" of a body which is read through small buffers\r\n");
+        }
+        smtpProtocol.sendShortMessageData(body.toString());
+        smtpProtocol.quit();
+        smtpProtocol.disconnect();
+
+        MimeMessage message = queue.getLastMail().getMessage();
+        assertEquals("test", message.getSubject());
+        assertTrue(((String) message.getContent()).contains("Line 999 of a body"));
+    }
+
     @Test
     public void testStartTLSInEHLO() throws Exception {
         smtpConfiguration.setStartTLS();
@@ -0,0 +1,164 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.net.smtp.SMTPClient;
+import org.apache.commons.net.smtp.SMTPReply;
+import org.apache.james.protocols.lib.netty.AbstractConfigurableAsyncServer;
+import org.apache.james.smtpserver.netty.OioSMTPServer;
+import org.apache.james.smtpserver.netty.SMTPServer;
+
+/**
+ * Compares the connections per second and the bytes per second the
+ * {@link SMTPServer} handles with the NIO transport and heap or direct
+ * buffers, and with the blocking transport of {@link OioSMTPServer}.
+ * 
+ * This is not run as part of the test suite, start it with
+ * <code>java org.apache.james.smtpserver.SMTPServerTransportBenchmark</code>
+ */
+public class SMTPServerTransportBenchmark extends SMTPServerTest {
+
+    private static final int CONNECTIONS = 2000;
+
+    private static final int CLIENT_THREADS = 8;
+
+    private static final int MESSAGES = 20;
+
+    private static final int MESSAGE_SIZE = 1024 * 1024;
+
+    private final boolean blocking;
+
+    private final String bufferFactory;
+
+    public SMTPServerTransportBenchmark(boolean blocking, String bufferFactory) {
+        this.blocking = blocking;
+        this.bufferFactory = bufferFactory;
+    }
+
+    @Override
+    protected SMTPServer createSMTPServer() {
+        return blocking ? new OioSMTPServer() : new SMTPServer();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String message = createMessage();
+        run("nio heap", new SMTPServerTransportBenchmark(false, AbstractConfigurableAsyncServer.HEAP_BUFFER_FACTORY), message);
+        run("nio direct", new SMTPServerTransportBenchmark(false, AbstractConfigurableAsyncServer.DIRECT_BUFFER_FACTORY), message);
+        run("oio", new SMTPServerTransportBenchmark(true, AbstractConfigurableAsyncServer.HEAP_BUFFER_FACTORY), message);
+    }
+
+    private static void run(String name, SMTPServerTransportBenchmark benchmark, String message) throws Exception {
+        benchmark.setUp();
+        benchmark.smtpConfiguration.addProperty("bufferFactory", benchmark.bufferFactory);
+        benchmark.init(benchmark.smtpConfiguration);
+        try {
+            // warmup
+            benchmark.connect(CONNECTIONS / 10);
+            benchmark.send(message, 2);
+
+            long start = System.nanoTime();
+            benchmark.connect(CONNECTIONS);
+            double connectionsPerSecond = CONNECTIONS / ((System.nanoTime() - start) / 1000000000d);
+
+            start = System.nanoTime();
+            benchmark.send(message, MESSAGES);
+            double bytesPerSecond = (double) MESSAGES * message.length() / ((System.nanoTime() - start) / 1000000000d);
+
+            System.out.println(String.format("%-10s: %8.1f connections/s, %8.1f MB/s", name, connectionsPerSecond, bytesPerSecond / (1024 * 1024)));
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    /**
+     * Open and close the given count of connections from several threads,
+     * reading the greeting and the reply to QUIT of each
+     */
+    private void connect(int connections) throws Exception {
+        final AtomicInteger remaining = new AtomicInteger(connections);
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(CLIENT_THREADS);
+        for (int i = 0; i < CLIENT_THREADS; i++) {
+            new Thread() {
+                public void run() {
+                    while (remaining.getAndDecrement() > 0) {
+                        try {
+                            Socket socket = new Socket("127.0.0.1", smtpListenerPort);
+                            try {
+                                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                                OutputStream out = socket.getOutputStream();
+                                in.readLine();
+                                out.write("QUIT\r\n".getBytes("US-ASCII"));
+                                out.flush();
+                                in.readLine();
+                            } finally {
+                                socket.close();
+                            }
+                        } catch (Exception e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        if (failures.get() > 0) {
+            throw new IllegalStateException(failures.get() + " connections failed");
+        }
+    }
+
+    /**
+     * Send the message the given count of times over one connection
+     */
+    private void send(String message, int count) throws Exception {
+        SMTPClient client = new SMTPClient();
+        client.connect("127.0.0.1", smtpListenerPort);
+        try {
+            client.helo("localhost");
+            for (int i = 0; i < count; i++) {
+                client.setSender("mail@localhost");
+                client.addRecipient("mail@localhost");
+                if (!client.sendShortMessageData(message) || !SMTPReply.isPositiveCompletion(client.getReplyCode())) {
+                    throw new IllegalStateException("Message rejected: " + client.getReplyString());
+                }
+                queue.clear();
+            }
+            client.quit();
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    private static String createMessage() {
+        StringBuilder builder = new StringBuilder(MESSAGE_SIZE + 128);
+        builder.append("Subject: transport benchmark\r\n\r\n");
+        while (builder.length() < MESSAGE_SIZE) {
+            builder.append("Lorem ipsum dolor sit amet, consectetur adipisicing elit, sed do eiusmod tempor incididunt.\r\n");
+        }
+        return builder.toString();
+    }
+}
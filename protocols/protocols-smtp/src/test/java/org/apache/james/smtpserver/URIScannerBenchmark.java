@@ -0,0 +1,92 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import java.io.StringReader;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.james.smtpserver.fastfail.StreamingURIScanner;
+import org.apache.james.smtpserver.fastfail.URIScanner;
+
+/**
+ * Compares the regular expression based {@link URIScanner} with the
+ * {@link StreamingURIScanner} on generated HTML newsletters of growing size.
+ * 
+ * This is not run as part of the test suite, start it with
+ * <code>java org.apache.james.smtpserver.URIScannerBenchmark</code>
+ */
+public class URIScannerBenchmark {
+
+    private static final int[] SIZES = { 10 * 1024, 100 * 1024, 1024 * 1024, 5 * 1024 * 1024 };
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        for (int size : SIZES) {
+            String content = createNewsletter(size);
+
+            // warmup
+            regex(content);
+            streaming(content);
+
+            long regexTime = 0;
+            long streamingTime = 0;
+            Set<String> regexDomains = null;
+            Set<String> streamingDomains = null;
+            for (int i = 0; i < ROUNDS; i++) {
+                long start = System.nanoTime();
+                regexDomains = regex(content);
+                regexTime += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                streamingDomains = streaming(content);
+                streamingTime += System.nanoTime() - start;
+            }
+            System.out.println(String.format("%10d chars: regex %10.3f ms (%d domains), streaming %10.3f ms (%d domains)", content.length(),
+                    regexTime / 1000000d / ROUNDS, regexDomains.size(), streamingTime / 1000000d / ROUNDS, streamingDomains.size()));
+        }
+    }
+
+    private static Set<String> regex(String content) {
+        return URIScanner.scanContentForDomains(new HashSet<String>(), content);
+    }
+
+    private static Set<String> streaming(String content) throws Exception {
+        StreamingURIScanner scanner = new StreamingURIScanner(0, 0);
+        scanner.scan(new StringReader(content));
+        return scanner.getDomains();
+    }
+
+    private static String createNewsletter(int size) {
+        StringBuilder builder = new StringBuilder(size + 256);
+        builder.append("<html><body><table>");
+        int i = 0;
+        while (builder.length() < size) {
+            builder.append("<tr><td style=\"font-family: Arial, sans-serif; color: #333333;\">");
+            builder.append("<a href=\"http://click").append(i % 100).append(".example").append(i % 7).append(".com/track?id=").append(i).append("&amp;u=42\">");
+            builder.append("Read the full article number ").append(i).append(" on our website</a> ");
+            builder.append("or write to news").append(i % 10).append("@example.org for questions.");
+            builder.append("<img src=\"https://img.example.net/pixel.gif\" width=\"1\" height=\"1\"></td></tr>\r\n");
+            i++;
+        }
+        builder.append("</table></body></html>");
+        return builder.toString();
+    }
+}
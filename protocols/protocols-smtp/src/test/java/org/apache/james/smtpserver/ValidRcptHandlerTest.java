@@ -22,6 +22,8 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+
+import org.apache.commons.configuration.BaseConfiguration;
 import org.apache.james.domainlist.api.mock.SimpleDomainList;
 import org.apache.james.protocols.api.ProtocolSession.State;
 import org.apache.james.protocols.smtp.MailAddress;
@@ -31,6 +33,7 @@ import org.apache.james.protocols.smtp.hook.HookReturnCode;
 import org.apache.james.protocols.smtp.utils.BaseFakeSMTPSession;
 import org.apache.james.rrt.api.RecipientRewriteTable;
 import org.apache.james.rrt.api.RecipientRewriteTableException;
+import org.apache.james.smtpserver.fastfail.RecipientCache;
 import org.apache.james.smtpserver.fastfail.ValidRcptHandler;
 import org.apache.james.user.api.UsersRepository;
 import org.apache.james.user.lib.mock.MockUsersRepository;
@@ -48,6 +51,7 @@ public class ValidRcptHandlerTest {
     private final static String USER2 = "user2";
     UsersRepository users;
     ValidRcptHandler handler;
+    int mappingLookups;
 
     @Before
     public void setUp() throws Exception {
@@ -113,6 +117,7 @@ public class ValidRcptHandlerTest {
             @Override
             public Collection<String> getMappings(String user, String domain) throws ErrorMappingException,
                     RecipientRewriteTableException {
+                mappingLookups++;
                 Collection<String> mappings = new ArrayList<String>();
                 if (user.equals(USER1)) {
                     mappings.add("address@localhost");
@@ -181,7 +186,14 @@ public class ValidRcptHandlerTest {
 
             @Override
             public Map<String, Collection<String>> getAllMappings() throws RecipientRewriteTableException {
-                throw new UnsupportedOperationException("Not implemented");
+                Map<String, Collection<String>> mappings = new HashMap<String, Collection<String>>();
+                Collection<String> user1Mappings = new ArrayList<String>();
+                user1Mappings.add("address@localhost");
+                mappings.put(USER1 + "@" + VALID_DOMAIN, user1Mappings);
+                Collection<String> user2Mappings = new ArrayList<String>();
+                user2Mappings.add("error:554 BOUNCE");
+                mappings.put(USER2 + "@" + VALID_DOMAIN, user2Mappings);
+                return mappings;
             }
 
             @Override
@@ -300,5 +312,55 @@ public class ValidRcptHandlerTest {
         assertNull("Valid Error mapping", session.getAttachment("VALID_USER", State.Transaction));
         assertEquals("Error mapping", rCode, HookReturnCode.DENY);
     }
-    
+
+    @Test
+    public void testCacheInvalidUser() throws Exception {
+        handler.setRecipientCache(new RecipientCache(60000, 60000, 100));
+        MailAddress mailAddress = new MailAddress(INVALID_USER + "@localhost");
+
+        for (int i = 0; i < 3; i++) {
+            SMTPSession session = setupMockedSMTPSession(setupMockedSMTPConfiguration(), mailAddress, false);
+            assertEquals("Rejected", HookReturnCode.DENY, handler.doRcpt(session, null, mailAddress).getResult());
+        }
+        assertEquals(1, mappingLookups);
+
+        handler.invalidate();
+        SMTPSession session = setupMockedSMTPSession(setupMockedSMTPConfiguration(), mailAddress, false);
+        assertEquals("Rejected", HookReturnCode.DENY, handler.doRcpt(session, null, mailAddress).getResult());
+        assertEquals(2, mappingLookups);
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        BaseConfiguration config = new BaseConfiguration();
+        config.addProperty("filter", "true");
+        config.addProperty("filter.[@refreshInterval]", "3600000");
+        handler.init(config);
+        try {
+            handler.refreshFilter();
+            mappingLookups = 0;
+
+            MailAddress mailAddress = new MailAddress(INVALID_USER + "@localhost");
+            SMTPSession session = setupMockedSMTPSession(setupMockedSMTPConfiguration(), mailAddress, false);
+            assertEquals("Rejected", HookReturnCode.DENY, handler.doRcpt(session, null, mailAddress).getResult());
+            assertEquals("Rejected by the filter", 0, mappingLookups);
+
+            mailAddress = new MailAddress(VALID_USER + "@localhost");
+            session = setupMockedSMTPSession(setupMockedSMTPConfiguration(), mailAddress, false);
+            assertEquals("Not rejected", HookReturnCode.DECLINED, handler.doRcpt(session, null, mailAddress).getResult());
+
+            mailAddress = new MailAddress(USER1 + "@localhost");
+            session = setupMockedSMTPSession(setupMockedSMTPConfiguration(), mailAddress, false);
+            assertEquals("Not rejected", HookReturnCode.DECLINED, handler.doRcpt(session, null, mailAddress).getResult());
+
+            // new users are seen after the next refresh
+            users.addUser("newuser", "xxx");
+            handler.refreshFilter();
+            mailAddress = new MailAddress("newuser@localhost");
+            session = setupMockedSMTPSession(setupMockedSMTPConfiguration(), mailAddress, false);
+            assertEquals("Not rejected", HookReturnCode.DECLINED, handler.doRcpt(session, null, mailAddress).getResult());
+        } finally {
+            handler.destroy();
+        }
+    }
 }
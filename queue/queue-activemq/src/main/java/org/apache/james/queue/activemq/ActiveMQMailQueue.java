@@ -186,6 +186,7 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
                     
                 // store the queue name in the props
                 props.put(JAMES_QUEUE_NAME, queueName);
+                props.put(JAMES_MAIL_HEADER_SIZE, getHeaderSize(mail.getMessage()));
 
                 Queue queue = session.createQueue(queueName);
 
@@ -33,10 +33,16 @@ public class MimeMessageBlobMessageSource extends MimeMessageSource implements A
 
     private String sourceId;
     private final BlobMessage message;
+    private final long headerSize;
 
     public MimeMessageBlobMessageSource(BlobMessage message) throws JMSException {
         this.message = message;
         this.sourceId = message.getJMSMessageID();
+        if (message.propertyExists(JAMES_MAIL_HEADER_SIZE)) {
+            this.headerSize = message.getLongProperty(JAMES_MAIL_HEADER_SIZE);
+        } else {
+            this.headerSize = -1;
+        }
     }
 
     /**
@@ -57,6 +63,11 @@ public class MimeMessageBlobMessageSource extends MimeMessageSource implements A
         return sourceId;
     }
 
+    @Override
+    public long getHeaderSize() throws IOException {
+        return headerSize;
+    }
+
     @Override
     public long getMessageSize() throws IOException {
         try {
@@ -19,8 +19,10 @@
 package org.apache.james.queue.jms;
 
 import com.google.common.io.Closeables;
+import org.apache.james.core.HeaderBoundaryOutputStream;
 import org.apache.james.core.MailImpl;
 import org.apache.james.core.MimeMessageCopyOnWriteProxy;
+import org.apache.james.core.MimeMessageWrapper;
 import org.apache.james.queue.api.MailPrioritySupport;
 import org.apache.james.queue.api.MailQueue;
 import org.apache.james.queue.api.ManageableMailQueue;
@@ -256,7 +258,9 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
             } else {
                 out = new ByteArrayOutputStream();
             }
-            mail.getMessage().writeTo(out);
+            HeaderBoundaryOutputStream headerOut = new HeaderBoundaryOutputStream(out);
+            mail.getMessage().writeTo(headerOut);
+            message.setLongProperty(JAMES_MAIL_HEADER_SIZE, headerOut.getHeaderSize());
 
             // store the byte array in a ObjectMessage so we can use a
             // SharedByteArrayInputStream later
@@ -277,6 +281,23 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
 
     }
 
+    /**
+     * Return the size of the headers of the given message, if it is known
+     * without parsing the message
+     *
+     * @param message
+     * @return headerSize the size or -1 if unknown
+     * @throws MessagingException
+     */
+    protected long getHeaderSize(MimeMessage message) throws MessagingException {
+        if (message instanceof MimeMessageCopyOnWriteProxy) {
+            return ((MimeMessageCopyOnWriteProxy) message).getHeaderSize();
+        } else if (message instanceof MimeMessageWrapper) {
+            return ((MimeMessageWrapper) message).getHeaderSize();
+        }
+        return -1;
+    }
+
     /**
      * Get JMS Message properties with values
      *
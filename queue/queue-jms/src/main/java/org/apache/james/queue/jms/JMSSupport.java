@@ -38,6 +38,12 @@ public interface JMSSupport {
     /** JMS Property which holds the mail size as long (bytes) */
     final static String JAMES_MAIL_MESSAGE_SIZE = "JAMES_MAIL_MESSAGE_SIZE";
 
+    /**
+     * JMS Property which holds the size of the mail headers as long (bytes),
+     * including the empty line which separates them from the body
+     */
+    final static String JAMES_MAIL_HEADER_SIZE = "JAMES_MAIL_HEADER_SIZE";
+
     /** JMS Property which holds the mail name as String */
     final static String JAMES_MAIL_NAME = "JAMES_MAIL_NAME";
 
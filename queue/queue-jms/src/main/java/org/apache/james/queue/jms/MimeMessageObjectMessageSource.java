@@ -39,12 +39,18 @@ public class MimeMessageObjectMessageSource extends MimeMessageSource implements
     private final ObjectMessage message;
     private final SharedByteArrayInputStream in;
     private final String id;
+    private final long headerSize;
     private byte[] content;
 
     public MimeMessageObjectMessageSource(ObjectMessage message) throws JMSException {
         this.message = message;
         this.id = message.getJMSMessageID();
         this.content = (byte[]) message.getObject();
+        if (message.propertyExists(JMSSupport.JAMES_MAIL_HEADER_SIZE)) {
+            this.headerSize = message.getLongProperty(JMSSupport.JAMES_MAIL_HEADER_SIZE);
+        } else {
+            this.headerSize = -1;
+        }
         in = new SharedByteArrayInputStream(content);
     }
 
@@ -53,6 +59,11 @@ public class MimeMessageObjectMessageSource extends MimeMessageSource implements
         return content.length;
     }
 
+    @Override
+    public long getHeaderSize() throws IOException {
+        return headerSize;
+    }
+
     @Override
     public InputStream getInputStream() throws IOException {
         return in.newStream(0, -1);